@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A preview frame handed to a {@link FrameAnalyzer}, in YUV 4:2:0 with the same plane layout as
+ * {@link android.media.Image}: plane 0 is Y, 1 is U (Cb) and 2 is V (Cr). Frames and their buffers
+ * are recycled, so they're only valid during {@link FrameAnalyzer#analyze(AnalysisFrame)}.
+ */
+public abstract class AnalysisFrame {
+
+    public abstract int getWidth();
+
+    public abstract int getHeight();
+
+    /**
+     * Clockwise rotation in degrees that turns the frame upright, as shown on the display.
+     */
+    public abstract int getRotation();
+
+    public abstract long getTimestampNs();
+
+    public abstract ByteBuffer getPlane(int index);
+
+    public abstract int getRowStride(int index);
+
+    public abstract int getPixelStride(int index);
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera;
+
+/**
+ * Receives performance measurements from the camera screens, register one with {@link
+ * MaterialCamera#setMetricsListener(CaptureMetricsListener)}. Every method is a no-op by default,
+ * override the ones you track. Callbacks are delivered on the main thread.
+ */
+public abstract class CaptureMetricsListener {
+
+    /**
+     * Called once per recording with the time from the record request to the first frame going to
+     * the recorder. On Camera1, whose recorder doesn't report frames, the time until recording
+     * started is used.
+     *
+     * @param latencyMs latency in milliseconds
+     * @param prewarmed whether the recorder was prepared before the record request
+     */
+    public void onRecordingLatency(long latencyMs, boolean prewarmed) {
+    }
+
+    /**
+     * Called when the capture activity is asked to trim its memory, after it dropped its cached
+     * bitmaps and buffers.
+     *
+     * @param trimLevel     the level passed to {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+     * @param memoryMode    the {@link MaterialCamera.MemoryMode} the camera is opened with from now on
+     * @param releasedBytes bytes of cached bitmaps and buffers that were dropped
+     */
+    public void onMemoryTrimmed(
+            int trimLevel, @MaterialCamera.MemoryMode int memoryMode, long releasedBytes) {
+    }
+
+    /**
+     * Called when the camera is opened with a reduced configuration because memory is low.
+     *
+     * @param memoryMode   the {@link MaterialCamera.MemoryMode} that applies
+     * @param stillWidth   width of the stills that will be taken
+     * @param stillHeight  height of the stills that will be taken
+     * @param stillBuffers stills the camera can hand out at once, 0 with the Camera1 API
+     * @param zslDepth     frames kept for zero shutter lag, 0 if it's off
+     */
+    public void onMemoryAdapted(
+            @MaterialCamera.MemoryMode int memoryMode,
+            int stillWidth,
+            int stillHeight,
+            int stillBuffers,
+            int zslDepth) {
+    }
+
+    /**
+     * Called for each still taken with the focus and exposure sequence, with the time from the
+     * shutter press until the capture completed. Camera2 only; stills reprocessed from the zero
+     * shutter lag ring aren't reported.
+     *
+     * @param path      the {@link MaterialCamera.ShutterPath} flags of the steps that were skipped
+     * @param latencyMs latency in milliseconds
+     * @param timedOut  whether focus or exposure didn't settle in time and was given up on
+     */
+    public void onShutterLatency(
+            @MaterialCamera.ShutterPath int path, long latencyMs, boolean timedOut) {
+    }
+}
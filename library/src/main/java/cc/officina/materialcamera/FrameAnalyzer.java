@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera;
+
+/**
+ * Receives low resolution preview frames for real time analysis (barcodes, blur detection...).
+ * Register one with {@link MaterialCamera#setFrameAnalyzer(FrameAnalyzer)}.
+ *
+ * <p>Frames are analyzed one at a time on a dedicated thread. While a frame is being analyzed only
+ * the most recent one is kept, older ones are dropped, so a slow analyzer never makes frames pile
+ * up.
+ */
+public abstract class FrameAnalyzer {
+
+    /**
+     * Called on the analysis thread, the frame must not be kept past the return.
+     */
+    public abstract void analyze(AnalysisFrame frame);
+
+    /**
+     * Largest frame width wanted, in sensor orientation (landscape). With the Camera1 API frames
+     * always come at the preview size.
+     */
+    public int getMaxWidth() {
+        return 640;
+    }
+
+    /**
+     * Largest frame height wanted, in sensor orientation (landscape).
+     */
+    public int getMaxHeight() {
+        return 480;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link SegmentSink} that POSTs every segment to an HTTP endpoint as a {@code video/mp4} body.
+ * Segments of one recording share an {@code X-Recording-Id} header, and carry {@code
+ * X-Segment-Index} and {@code X-Segment-Name}. When the recording ends, an empty POST with {@code
+ * X-Segment-Count} is sent. A 5xx, 408 or 429 response fails with an {@link IOException}, so the
+ * request is retried; any other response outside of 2xx fails with a {@link RejectedException} and
+ * isn't.
+ */
+public class HttpSegmentSink implements SegmentSink {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 60000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final URL mEndpoint;
+    private final Map<String, String> mHeaders = new LinkedHashMap<>();
+    private int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int mReadTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+
+    public HttpSegmentSink(@NonNull String endpoint) {
+        try {
+            mEndpoint = new URL(endpoint);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid segment endpoint: " + endpoint, e);
+        }
+    }
+
+    /**
+     * Adds a header sent with every request, e.g. for authorization.
+     */
+    public HttpSegmentSink header(@NonNull String name, @NonNull String value) {
+        mHeaders.put(name, value);
+        return this;
+    }
+
+    public HttpSegmentSink timeouts(int connectTimeoutMs, int readTimeoutMs) {
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+        return this;
+    }
+
+    @Override
+    public void onSegment(String recordingId, File segment, int index)
+            throws IOException, RejectedException {
+        final HttpURLConnection connection = open(recordingId);
+        try {
+            connection.setRequestProperty("Content-Type", "video/mp4");
+            connection.setRequestProperty("X-Segment-Index", String.valueOf(index));
+            connection.setRequestProperty("X-Segment-Name", segment.getName());
+            // Stream the file instead of letting HttpURLConnection buffer it in memory
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+                connection.setFixedLengthStreamingMode(segment.length());
+            else
+                connection.setFixedLengthStreamingMode((int) segment.length());
+            final InputStream input = new FileInputStream(segment);
+            try {
+                final OutputStream output = connection.getOutputStream();
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1)
+                    output.write(buffer, 0, read);
+                output.close();
+            } finally {
+                input.close();
+            }
+            checkResponse(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void onRecordingFinished(String recordingId, int segmentCount)
+            throws IOException, RejectedException {
+        final HttpURLConnection connection = open(recordingId);
+        try {
+            connection.setRequestProperty("X-Segment-Count", String.valueOf(segmentCount));
+            connection.setFixedLengthStreamingMode(0);
+            connection.getOutputStream().close();
+            checkResponse(connection);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String recordingId) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) mEndpoint.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(mConnectTimeoutMs);
+        connection.setReadTimeout(mReadTimeoutMs);
+        connection.setRequestProperty("X-Recording-Id", recordingId);
+        for (Map.Entry<String, String> header : mHeaders.entrySet())
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        return connection;
+    }
+
+    private static void checkResponse(HttpURLConnection connection)
+            throws IOException, RejectedException {
+        final int code = connection.getResponseCode();
+        if (code >= 200 && code < 300)
+            return;
+        final String message =
+                "Segment upload failed with HTTP " + code + " " + connection.getResponseMessage();
+        if (code >= 500 || code == 408 || code == 429)
+            throw new IOException(message);
+        throw new RejectedException(code, message);
+    }
+
+    /**
+     * The endpoint refused a request in a way retrying won't fix, e.g. a 400 or 403.
+     */
+    public static class RejectedException extends Exception {
+
+        private final int mCode;
+
+        public RejectedException(int code, String message) {
+            super(message);
+            mCode = code;
+        }
+
+        /**
+         * @return the HTTP status code
+         */
+        public int getCode() {
+            return mCode;
+        }
+    }
+}
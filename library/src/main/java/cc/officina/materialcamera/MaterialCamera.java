@@ -17,8 +17,10 @@
 package cc.officina.materialcamera;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.media.CamcorderProfile;
+import android.media.MediaCodecInfo;
 import android.support.annotation.AttrRes;
 import android.support.annotation.ColorInt;
 import android.support.annotation.ColorRes;
@@ -38,7 +40,14 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
 import cc.officina.materialcamera.internal.CameraIntentKey;
+import cc.officina.materialcamera.internal.CaptureMetrics;
+import cc.officina.materialcamera.internal.FrameAnalysisPipeline;
+import cc.officina.materialcamera.internal.SegmentDispatcher;
+import cc.officina.materialcamera.internal.VideoEncoderConfig;
+import cc.officina.materialcamera.util.CameraCapabilities;
 import cc.officina.materialcamera.util.CameraUtil;
+import cc.officina.materialcamera.util.ImageQuality;
+import cc.officina.materialcamera.util.ThumbnailCache;
 
 @SuppressWarnings("WeakerAccess")
 public class MaterialCamera {
@@ -48,8 +57,36 @@ public class MaterialCamera {
     public static final int QUALITY_480P = CamcorderProfile.QUALITY_480P;
     public static final int QUALITY_720P = CamcorderProfile.QUALITY_720P;
     public static final int QUALITY_1080P = CamcorderProfile.QUALITY_1080P;
+    public static final int VIDEO_ENCODER_MEDIA_RECORDER = 0;
+    public static final int VIDEO_ENCODER_MEDIA_CODEC = 1;
+    public static final int BITRATE_MODE_CQ = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+    public static final int BITRATE_MODE_VBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+    public static final int BITRATE_MODE_CBR = MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+    public static final int VIDEO_CODEC_ANY = VideoEncoderConfig.CODEC_ANY;
+    public static final int VIDEO_CODEC_HARDWARE = VideoEncoderConfig.CODEC_HARDWARE;
+    public static final int VIDEO_CODEC_SOFTWARE = VideoEncoderConfig.CODEC_SOFTWARE;
     public static final String EXTRA_ERROR = "mcam_error";
     public static final String EXTRA_STATUS = "mcam_status";
+    public static final String EXTRA_BURST_URIS = "mcam_burst_uris";
+    public static final String EXTRA_SEGMENT_URIS = "mcam_segment_uris";
+    public static final String EXTRA_QUALITY_ISSUES = "mcam_quality_issues";
+    public static final String EXTRA_QUALITY_SHARPNESS = "mcam_quality_sharpness";
+    public static final String EXTRA_QUALITY_MEAN_LUMA = "mcam_quality_mean_luma";
+    public static final int QUALITY_GATE_OFF = 0;
+    public static final int QUALITY_GATE_FLAG = 1;
+    public static final int QUALITY_GATE_RETAKE = 2;
+    public static final int QUALITY_ISSUE_BLURRED = ImageQuality.ISSUE_BLURRED;
+    public static final int QUALITY_ISSUE_UNDEREXPOSED = ImageQuality.ISSUE_UNDEREXPOSED;
+    public static final int QUALITY_ISSUE_OVEREXPOSED = ImageQuality.ISSUE_OVEREXPOSED;
+    public static final int MEMORY_MODE_NORMAL = 0;
+    public static final int MEMORY_MODE_LOW = 1;
+    public static final int MEMORY_MODE_CRITICAL = 2;
+    public static final int SESSION_PROFILE_HYBRID = 0;
+    public static final int SESSION_PROFILE_PHOTO = 1;
+    public static final int SESSION_PROFILE_VIDEO = 2;
+    public static final int SHUTTER_PATH_FULL = 0;
+    public static final int SHUTTER_PATH_SKIP_FOCUS = 1;
+    public static final int SHUTTER_PATH_SKIP_PRECAPTURE = 1 << 1;
     public static final int STATUS_RECORDED = 1;
     public static final int STATUS_PICKED = 2;
     public static final int STATUS_RETRY = 3;
@@ -79,6 +116,31 @@ public class MaterialCamera {
     private float mVideoPreferredAspect = -1f;
     private long mMaxFileSize = -1;
     private int mQualityProfile = -1;
+    private int mCaptureIoThreads = -1;
+    private int mCaptureIoQueueDepth = -1;
+    private int mBurstCount = -1;
+    private boolean mZeroShutterLag = false;
+    private int mZeroShutterLagDepth = -1;
+    private boolean mPrewarmRecorder = false;
+    private long mSegmentMaxSize = -1;
+    private long mSegmentMaxDuration = -1;
+    private long mHoldToRecordThreshold = -1;
+    private boolean mHoldToRecordPreRoll = false;
+    private boolean mPersistentRecorderSurface = false;
+    private int mVideoEncoder = VIDEO_ENCODER_MEDIA_RECORDER;
+    private int mVideoBitRateMode = -1;
+    private int mVideoKeyFrameInterval = -1;
+    private int mVideoCodecProfile = -1;
+    private int mVideoCodecLevel = -1;
+    private int mVideoCodecPreference = VIDEO_CODEC_ANY;
+    private boolean mAdaptiveBitRate = false;
+    private int mQualityGate = QUALITY_GATE_OFF;
+    private float mQualityMinSharpness = -1f;
+    private boolean mUprightStills = false;
+    private boolean mGenerateThumbnails = false;
+    private boolean mAdaptToMemory = false;
+    private int mSessionProfile = SESSION_PROFILE_HYBRID;
+    private boolean mFastShutter = false;
     private int mIconRecord;
     private int mIconStop;
     private int mIconFrontCamera;
@@ -110,6 +172,46 @@ public class MaterialCamera {
         mPrimaryColor = DialogUtils.resolveColor(mContext, R.attr.colorPrimary);
     }
 
+    /**
+     * Probes the cameras in the background and caches what they can do, so the first launch of the
+     * camera doesn't pay for it. Call it early, e.g. from {@code Application.onCreate()}.
+     *
+     * @param context any context, only its application context is kept
+     */
+    public static void warmUp(@NonNull Context context) {
+        CameraCapabilities.warmUp(context);
+    }
+
+    /**
+     * Registers a listener for capture performance measurements (e.g. how long recording takes to
+     * start). Pass null to stop receiving them.
+     *
+     * @param listener
+     */
+    public static void setMetricsListener(@Nullable CaptureMetricsListener listener) {
+        CaptureMetrics.setListener(listener);
+    }
+
+    /**
+     * Registers a sink that receives every segment of a segmented recording as soon as it's closed,
+     * while recording continues, e.g. {@link HttpSegmentSink} to upload them. Pass null to stop.
+     *
+     * @param sink
+     */
+    public static void setSegmentSink(@Nullable SegmentSink sink) {
+        SegmentDispatcher.setSink(sink);
+    }
+
+    /**
+     * Registers an analyzer fed with low resolution preview frames on its own thread, e.g. for
+     * barcode scanning. It applies to cameras opened afterwards. Pass null to stop.
+     *
+     * @param analyzer
+     */
+    public static void setFrameAnalyzer(@Nullable FrameAnalyzer analyzer) {
+        FrameAnalysisPipeline.setAnalyzer(analyzer);
+    }
+
     public MaterialCamera countdownMillis(long lengthLimitMs) {
         mLengthLimit = lengthLimitMs;
         return this;
@@ -344,6 +446,323 @@ public class MaterialCamera {
         return this;
     }
 
+    /**
+     * Sets how many captures can be written to disk at the same time, defaults to 1.
+     *
+     * @param threads
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera captureIoThreads(@IntRange(from = 1, to = Integer.MAX_VALUE) int threads) {
+        mCaptureIoThreads = threads;
+        return this;
+    }
+
+    /**
+     * Sets how many captures are queued on the I/O threads, defaults to 4. The capture button
+     * ignores presses while the queue is full, so pictures waiting to be written stay bounded.
+     *
+     * @param depth
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera captureIoQueueDepth(@IntRange(from = 1, to = Integer.MAX_VALUE) int depth) {
+        mCaptureIoQueueDepth = depth;
+        return this;
+    }
+
+    /**
+     * Takes a burst of pictures instead of a single one when the capture button is tapped (Camera2
+     * only, Camera1 still takes one picture). Focus and exposure are locked once for the whole
+     * burst. The pictures skip the preview screen, their URIs are returned in order with {@link
+     * #EXTRA_BURST_URIS} and the first one is also set as the result data.
+     *
+     * @param count
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera burstCount(@IntRange(from = 1, to = Integer.MAX_VALUE) int count) {
+        mBurstCount = count;
+        return this;
+    }
+
+    /**
+     * Keeps the last few full resolution frames around while previewing, so a picture is taken from
+     * the frame closest to the moment the capture button was released instead of starting focus and
+     * exposure metering at that point. Needs Camera2 YUV reprocessing (Android 6.0+), other devices
+     * use the regular capture sequence.
+     *
+     * @param enabled
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera zeroShutterLag(boolean enabled) {
+        mZeroShutterLag = enabled;
+        return this;
+    }
+
+    /**
+     * Sets how many full resolution frames are kept for zero shutter lag capture, defaults to 3.
+     * Every frame costs a full resolution YUV buffer.
+     *
+     * @param depth
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera zeroShutterLagDepth(@IntRange(from = 1, to = Integer.MAX_VALUE) int depth) {
+        mZeroShutterLagDepth = depth;
+        return this;
+    }
+
+    /**
+     * Prepares the video recorder while the user is framing the shot, so recording starts right
+     * away instead of after a prepare stall. On Camera1 the camera is handed to the recorder while
+     * previewing, and taken back for focusing, flash changes and pictures.
+     *
+     * @param prewarm
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera prewarmRecorder(boolean prewarm) {
+        mPrewarmRecorder = prewarm;
+        return this;
+    }
+
+    /**
+     * Records in segments: once a segment reaches {@code size} bytes, recording continues in a new
+     * file. On Android 8.0+ the switch is seamless, older versions briefly stop and restart the
+     * recorder. The segments skip the playback screen, their URIs are returned in order with {@link
+     * #EXTRA_SEGMENT_URIS} and the first one is also set as the result data. Replaces {@link
+     * #maxAllowedFileSize(long)}.
+     *
+     * @param size
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera segmentMaxSize(@IntRange(from = 1, to = Long.MAX_VALUE) long size) {
+        mSegmentMaxSize = size;
+        return this;
+    }
+
+    /**
+     * Records in segments of at most {@code durationMs} milliseconds, see {@link
+     * #segmentMaxSize(long)}. Duration based rollover briefly stops and restarts the recorder on all
+     * versions.
+     *
+     * @param durationMs
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera segmentMaxDuration(@IntRange(from = 1, to = Long.MAX_VALUE) long durationMs) {
+        mSegmentMaxDuration = durationMs;
+        return this;
+    }
+
+    /**
+     * Sets how long the capture button must be held before a video recording starts, shorter
+     * presses take a picture. Defaults to the system long press timeout.
+     *
+     * @param thresholdMs
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera holdToRecordThreshold(@IntRange(from = 0, to = Long.MAX_VALUE) long thresholdMs) {
+        mHoldToRecordThreshold = thresholdMs;
+        return this;
+    }
+
+    /**
+     * Starts getting the video recorder ready as soon as the capture button is pressed, so a hold
+     * begins recording with less delay. On Camera1 this briefly hands the camera to the recorder,
+     * which is undone if the press turns out to be a tap.
+     *
+     * @param preRoll
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera holdToRecordPreRoll(boolean preRoll) {
+        mHoldToRecordPreRoll = preRoll;
+        return this;
+    }
+
+    /**
+     * Records through a persistent input surface on Android 6.0+ with the Camera2 API. The capture
+     * session then survives stopping and restarting the recorder, e.g. between segments of a
+     * segmented recording, instead of being rebuilt with a black preview in between.
+     *
+     * @param persistent
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera persistentRecorderSurface(boolean persistent) {
+        mPersistentRecorderSurface = persistent;
+        return this;
+    }
+
+    /**
+     * Chooses what encodes video with the Camera2 API: {@link #VIDEO_ENCODER_MEDIA_RECORDER} (the
+     * default) or {@link #VIDEO_ENCODER_MEDIA_CODEC}, which records with MediaCodec and MediaMuxer
+     * and honors {@link #videoBitRateMode(int)}, {@link #videoKeyFrameInterval(int)}, {@link
+     * #videoCodecProfile(int, int)} and {@link #videoCodecPreference(int)}.
+     *
+     * @param encoder
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera videoEncoder(@VideoEncoder int encoder) {
+        mVideoEncoder = encoder;
+        return this;
+    }
+
+    /**
+     * Sets the bit rate mode of the MediaCodec encoder, e.g. {@link #BITRATE_MODE_CBR} for
+     * predictable file sizes. Ignored if the encoder doesn't support it.
+     *
+     * @param mode
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera videoBitRateMode(@BitRateMode int mode) {
+        mVideoBitRateMode = mode;
+        return this;
+    }
+
+    /**
+     * Sets the seconds between key frames of the MediaCodec encoder, defaults to 1. Shorter
+     * intervals make seeking faster at the cost of size.
+     *
+     * @param seconds
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera videoKeyFrameInterval(@IntRange(from = 0, to = Integer.MAX_VALUE) int seconds) {
+        mVideoKeyFrameInterval = seconds;
+        return this;
+    }
+
+    /**
+     * Sets the profile and level of the MediaCodec encoder, as {@code
+     * MediaCodecInfo.CodecProfileLevel} values; e.g. a baseline profile rules out B-frames. The level
+     * is only applied on Android 6.0+, pass -1 to leave it to the encoder.
+     *
+     * @param profile
+     * @param level
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera videoCodecProfile(int profile, int level) {
+        mVideoCodecProfile = profile;
+        mVideoCodecLevel = level;
+        return this;
+    }
+
+    /**
+     * Prefers a hardware or software MediaCodec encoder, falling back to the other kind if there's
+     * none. Defaults to {@link #VIDEO_CODEC_ANY}, the platform's choice.
+     *
+     * @param preference
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera videoCodecPreference(@VideoCodecPreference int preference) {
+        mVideoCodecPreference = preference;
+        return this;
+    }
+
+    /**
+     * Lowers the video bit rate while recording when the device heats up, or when the free space
+     * (or {@link #maxAllowedFileSize(long)}) wouldn't last until the countdown ends, and raises it
+     * back when that passes. The MediaCodec encoder adapts right away, MediaRecorder only from one
+     * segment to the next of a segmented recording.
+     *
+     * @param adaptive
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera adaptiveBitRate(boolean adaptive) {
+        mAdaptiveBitRate = adaptive;
+        return this;
+    }
+
+    /**
+     * Checks every still for blur and bad exposure before it's shown. With {@link
+     * #QUALITY_GATE_FLAG} the result carries {@link #EXTRA_QUALITY_ISSUES}, {@link
+     * #EXTRA_QUALITY_SHARPNESS} and {@link #EXTRA_QUALITY_MEAN_LUMA}; with {@link
+     * #QUALITY_GATE_RETAKE} a bad still is also taken again, twice at most. Bursts aren't checked.
+     *
+     * @param gate
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera qualityGate(@QualityGate int gate) {
+        mQualityGate = gate;
+        return this;
+    }
+
+    /**
+     * Sets the sharpness (variance of the Laplacian) below which a still counts as blurred, 100 by
+     * default. Scenes without much texture score low even when in focus.
+     *
+     * @param minSharpness
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera qualityMinSharpness(float minSharpness) {
+        mQualityMinSharpness = minSharpness;
+        return this;
+    }
+
+    /**
+     * Rotates stills whose EXIF orientation says they're rotated, so the pixels themselves are
+     * upright for viewers that ignore the tag. The rotation is lossless (no decode and re-encode),
+     * a few edge pixels may be trimmed when the size isn't a multiple of 16.
+     *
+     * @param upright
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera uprightStills(boolean upright) {
+        mUprightStills = upright;
+        return this;
+    }
+
+    /**
+     * Generates a small JPEG thumbnail of every capture in the background and keeps it in the
+     * {@link ThumbnailCache}, so a gallery of captures doesn't have to decode the originals. Get
+     * them with {@link ThumbnailCache#fetchThumbnail(String, ThumbnailCache.Callback)}.
+     *
+     * @param generate
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera generateThumbnails(boolean generate) {
+        mGenerateThumbnails = generate;
+        return this;
+    }
+
+    /**
+     * Lowers the camera's memory use on low RAM devices and when the system asks to trim memory:
+     * {@link #MEMORY_MODE_LOW} caps stills at 8MP, holds fewer still buffers and keeps at most two
+     * zero shutter lag frames, {@link #MEMORY_MODE_CRITICAL} caps stills at about 3MP and turns zero
+     * shutter lag off. Changes apply the next time the camera opens. Cached bitmaps and buffers are
+     * dropped on memory trims either way.
+     *
+     * @param adapt
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera adaptToMemory(boolean adapt) {
+        mAdaptToMemory = adapt;
+        return this;
+    }
+
+    /**
+     * Picks the streams the camera runs while previewing. {@link #SESSION_PROFILE_HYBRID} (the
+     * default) keeps a full size still stream and the video encoder ready at all times. {@link
+     * #SESSION_PROFILE_PHOTO} leaves the encoder out and switches to a video session when a
+     * recording starts. {@link #SESSION_PROFILE_VIDEO} takes stills at about the video size instead of
+     * the sensor's. Camera1 only gets the matching recording hint and picture size.
+     *
+     * @param profile
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera sessionProfile(@SessionProfile int profile) {
+        mSessionProfile = profile;
+        return this;
+    }
+
+    /**
+     * Takes stills without the focus trigger when continuous auto focus already settled on the
+     * scene, and without the exposure precapture when exposure converged and the flash is off. The
+     * full sequence still runs when either is needed. Camera2 only, see {@link
+     * CaptureMetricsListener#onShutterLatency(int, long, boolean)} for the effect.
+     *
+     * @param fast
+     * @return The {@link MaterialCamera} builder instance.
+     */
+    public MaterialCamera fastShutter(boolean fast) {
+        mFastShutter = fast;
+        return this;
+    }
+
     /**
      * Sets a custom icon for the button used to start recording.
      *
@@ -499,7 +918,20 @@ public class MaterialCamera {
                         .putExtra(CameraIntentKey.RESTART_TIMER_ON_RETRY, mRestartTimerOnRetry)
                         .putExtra(CameraIntentKey.CONTINUE_TIMER_IN_PLAYBACK, mContinueTimerInPlayback)
                         .putExtra(CameraIntentKey.AUTO_RECORD, mAutoRecord)
-                        .putExtra(CameraIntentKey.AUDIO_DISABLED, mAudioDisabled);
+                        .putExtra(CameraIntentKey.AUDIO_DISABLED, mAudioDisabled)
+                        .putExtra(CameraIntentKey.ZERO_SHUTTER_LAG, mZeroShutterLag)
+                        .putExtra(CameraIntentKey.PREWARM_RECORDER, mPrewarmRecorder)
+                        .putExtra(CameraIntentKey.HOLD_TO_RECORD_PRE_ROLL, mHoldToRecordPreRoll)
+                        .putExtra(CameraIntentKey.PERSISTENT_RECORDER_SURFACE, mPersistentRecorderSurface)
+                        .putExtra(CameraIntentKey.VIDEO_ENCODER, mVideoEncoder)
+                        .putExtra(CameraIntentKey.VIDEO_CODEC_PREFERENCE, mVideoCodecPreference)
+                        .putExtra(CameraIntentKey.ADAPTIVE_BIT_RATE, mAdaptiveBitRate)
+                        .putExtra(CameraIntentKey.QUALITY_GATE, mQualityGate)
+                        .putExtra(CameraIntentKey.UPRIGHT_STILLS, mUprightStills)
+                        .putExtra(CameraIntentKey.GENERATE_THUMBNAILS, mGenerateThumbnails)
+                        .putExtra(CameraIntentKey.ADAPT_TO_MEMORY, mAdaptToMemory)
+                        .putExtra(CameraIntentKey.SESSION_PROFILE, mSessionProfile)
+                        .putExtra(CameraIntentKey.FAST_SHUTTER, mFastShutter);
 
         if (mVideoEncodingBitRate > 0)
             intent.putExtra(CameraIntentKey.VIDEO_BIT_RATE, mVideoEncodingBitRate);
@@ -515,6 +947,30 @@ public class MaterialCamera {
             intent.putExtra(CameraIntentKey.MAX_ALLOWED_FILE_SIZE, mMaxFileSize);
         if (mQualityProfile > -1)
             intent.putExtra(CameraIntentKey.QUALITY_PROFILE, mQualityProfile);
+        if (mCaptureIoThreads > 0)
+            intent.putExtra(CameraIntentKey.CAPTURE_IO_THREADS, mCaptureIoThreads);
+        if (mCaptureIoQueueDepth > 0)
+            intent.putExtra(CameraIntentKey.CAPTURE_IO_QUEUE_DEPTH, mCaptureIoQueueDepth);
+        if (mBurstCount > 1)
+            intent.putExtra(CameraIntentKey.BURST_COUNT, mBurstCount);
+        if (mZeroShutterLagDepth > 0)
+            intent.putExtra(CameraIntentKey.ZERO_SHUTTER_LAG_DEPTH, mZeroShutterLagDepth);
+        if (mSegmentMaxSize > 0)
+            intent.putExtra(CameraIntentKey.SEGMENT_MAX_SIZE, mSegmentMaxSize);
+        if (mSegmentMaxDuration > 0)
+            intent.putExtra(CameraIntentKey.SEGMENT_MAX_DURATION, mSegmentMaxDuration);
+        if (mVideoBitRateMode > -1)
+            intent.putExtra(CameraIntentKey.VIDEO_BIT_RATE_MODE, mVideoBitRateMode);
+        if (mQualityMinSharpness > -1)
+            intent.putExtra(CameraIntentKey.QUALITY_MIN_SHARPNESS, mQualityMinSharpness);
+        if (mVideoKeyFrameInterval > -1)
+            intent.putExtra(CameraIntentKey.VIDEO_KEY_FRAME_INTERVAL, mVideoKeyFrameInterval);
+        if (mVideoCodecProfile > 0) {
+            intent.putExtra(CameraIntentKey.VIDEO_CODEC_PROFILE, mVideoCodecProfile);
+            intent.putExtra(CameraIntentKey.VIDEO_CODEC_LEVEL, mVideoCodecLevel);
+        }
+        if (mHoldToRecordThreshold > -1)
+            intent.putExtra(CameraIntentKey.HOLD_TO_RECORD_THRESHOLD, mHoldToRecordThreshold);
 
         if (mIconRecord != 0)
             intent.putExtra(CameraIntentKey.ICON_RECORD, mIconRecord);
@@ -557,4 +1013,41 @@ public class MaterialCamera {
     @Retention(RetentionPolicy.SOURCE)
     public @interface QualityProfile {
     }
+
+    @IntDef({VIDEO_ENCODER_MEDIA_RECORDER, VIDEO_ENCODER_MEDIA_CODEC})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface VideoEncoder {
+    }
+
+    @IntDef({BITRATE_MODE_CQ, BITRATE_MODE_VBR, BITRATE_MODE_CBR})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface BitRateMode {
+    }
+
+    @IntDef({VIDEO_CODEC_ANY, VIDEO_CODEC_HARDWARE, VIDEO_CODEC_SOFTWARE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface VideoCodecPreference {
+    }
+
+    @IntDef({QUALITY_GATE_OFF, QUALITY_GATE_FLAG, QUALITY_GATE_RETAKE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface QualityGate {
+    }
+
+    @IntDef({MEMORY_MODE_NORMAL, MEMORY_MODE_LOW, MEMORY_MODE_CRITICAL})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface MemoryMode {
+    }
+
+    @IntDef({SESSION_PROFILE_HYBRID, SESSION_PROFILE_PHOTO, SESSION_PROFILE_VIDEO})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface SessionProfile {
+    }
+
+    @IntDef(
+            flag = true,
+            value = {SHUTTER_PATH_FULL, SHUTTER_PATH_SKIP_FOCUS, SHUTTER_PATH_SKIP_PRECAPTURE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ShutterPath {
+    }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Receives the segments of a segmented recording (see {@link MaterialCamera#segmentMaxSize(long)})
+ * as soon as each one is closed, while recording continues. Register one with {@link
+ * MaterialCamera#setSegmentSink(SegmentSink)}.
+ *
+ * <p>Calls are made in order on a single background thread. A call that throws an {@link
+ * IOException} is retried with exponential backoff, later calls wait for it; any other exception
+ * gives the call up right away. The segment files stay where they are and are still returned to the
+ * calling activity.
+ */
+public interface SegmentSink {
+
+    /**
+     * A segment was closed.
+     *
+     * @param recordingId identifies the recording, the same for all of its calls and unique to it
+     * @param segment     the finished file
+     * @param index       position of the segment in the recording, starting from 0
+     */
+    void onSegment(String recordingId, File segment, int index) throws Exception;
+
+    /**
+     * The recording ended, every segment was passed to {@link #onSegment(String, File, int)} before
+     * this.
+     *
+     * @param recordingId identifies the recording, see {@link #onSegment(String, File, int)}
+     * @param segmentCount number of segments in the recording
+     */
+    void onRecordingFinished(String recordingId, int segmentCount) throws Exception;
+}
@@ -17,20 +17,28 @@
 package cc.officina.materialcamera.internal;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.Fragment;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.res.ColorStateList;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.RippleDrawable;
 import android.media.MediaRecorder;
+import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.graphics.drawable.DrawableCompat;
 import android.support.v7.content.res.AppCompatResources;
 import android.util.Log;
@@ -41,20 +49,39 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import cc.officina.materialcamera.MaterialCamera;
 import cc.officina.materialcamera.R;
 import cc.officina.materialcamera.util.CameraUtil;
+import cc.officina.materialcamera.util.ImageQuality;
+import cc.officina.materialcamera.util.ImageUtil;
+import cc.officina.materialcamera.util.JpegRotator;
+import cc.officina.materialcamera.util.ThumbnailCache;
 
 import java.io.File;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.IOException;
+import java.util.ArrayList;
 
 import static android.app.Activity.RESULT_CANCELED;
 
 abstract class BaseCameraFragment extends Fragment
         implements CameraUriInterface, View.OnClickListener, View.OnTouchListener {
 
+    private static final long BIT_RATE_SAMPLE_INTERVAL_MS = 2000;
+    /**
+     * Stills taken again in a row by the quality gate before a bad one is kept anyway.
+     */
+    private static final int MAX_QUALITY_RETAKES = 2;
+    /**
+     * Largest still, in pixels, taken in {@link MaterialCamera#MEMORY_MODE_LOW} (8MP, 3264x2448).
+     */
+    private static final long LOW_MEMORY_MAX_STILL_AREA = 8000000;
+    /**
+     * Largest still, in pixels, taken in {@link MaterialCamera#MEMORY_MODE_CRITICAL} (2048x1536).
+     */
+    private static final long CRITICAL_MEMORY_MAX_STILL_AREA = 3200000;
+
     protected ImageButton mButtonStillshot;
     protected ImageButton mButtonFacing;
     protected ImageButton mButtonFlash;
@@ -67,7 +94,53 @@ abstract class BaseCameraFragment extends Fragment
     protected Handler mPositionHandler;
     protected MediaRecorder mMediaRecorder;
     private boolean mIsRecording;
+    private int mQualityRetakes;
     private int mIconTextColor;
+    /**
+     * Finished segments of the current recording in segmented mode, in recording order. The
+     * segment being recorded is {@link #mVideoOutputUri}.
+     */
+    private final ArrayList<String> mSegmentUris = new ArrayList<>();
+    /**
+     * Segment handed to {@link MediaRecorder#setNextOutputFile(File)} that the recorder hasn't
+     * switched to yet.
+     */
+    private String mPendingSegmentUri;
+    /**
+     * Adapts the bit rate of the running recording, see {@link
+     * BaseCaptureInterface#adaptiveBitRate()}. Created with the first sample.
+     */
+    private BitrateController mBitrateController;
+    private int mConfiguredBitRate = -1;
+    private long mRecordingStartedMs;
+    private long mFinishedSegmentBytes;
+    private final Handler mBitRateHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Recorder info events arrive on the thread the recorder was created on, the segments are
+     * tracked on the main thread.
+     */
+    private final Handler mRecorderInfoHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mBitRateSampler =
+            new Runnable() {
+                @Override
+                public void run() {
+                    sampleBitRate();
+                    mBitRateHandler.postDelayed(this, BIT_RATE_SAMPLE_INTERVAL_MS);
+                }
+            };
+    private final MediaRecorder.OnInfoListener mSegmentInfoListener =
+            new MediaRecorder.OnInfoListener() {
+                @Override
+                public void onInfo(MediaRecorder mediaRecorder, final int what, int extra) {
+                    mRecorderInfoHandler.post(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    onSegmentInfo(what);
+                                }
+                            });
+                }
+            };
     private final Runnable mPositionUpdater =
             new Runnable() {
                 @Override
@@ -96,8 +169,7 @@ abstract class BaseCameraFragment extends Fragment
     private boolean mDidAutoRecord = false;
     private Handler mDelayHandler;
     private int mDelayCurrentSecond = -1;
-    private Timer mTimer;
-    private TimerTask mTimerTask;
+    private CaptureButtonGesture mCaptureGesture;
 
     protected static void LOG(Object context, String message) {
         Log.d(
@@ -151,6 +223,43 @@ abstract class BaseCameraFragment extends Fragment
 
         //mButtonStillshot.setOnClickListener(this);
         mButtonStillshot.setOnTouchListener(this);
+        mCaptureGesture =
+                new CaptureButtonGesture(
+                        new CaptureButtonGesture.Callback() {
+                            @Override
+                            public void onPreRoll() {
+                                if (!mIsRecording)
+                                    prepareRecording();
+                            }
+
+                            @Override
+                            public void onPreRollCancelled() {
+                                if (!mIsRecording)
+                                    cancelPreparedRecording();
+                            }
+
+                            @Override
+                            public void onTap() {
+                                takeStillshot();
+                            }
+
+                            @Override
+                            public void onHoldStarted() {
+                                mRecordDuration.setVisibility(View.VISIBLE);
+                                mIsRecording = startRecordingVideo();
+                            }
+
+                            @Override
+                            public void onHoldEnded() {
+                                if (mIsRecording) {
+                                    mRecordDuration.setVisibility(View.GONE);
+                                    stopRecordingVideo(false);
+                                    mIsRecording = false;
+                                }
+                            }
+                        },
+                        mInterface.holdToRecordThreshold(),
+                        mInterface.holdToRecordPreRoll());
         mButtonFacing.setOnClickListener(this);
         mButtonFlash.setOnClickListener(this);
         mButtonPickFromGallery.setOnClickListener(this);
@@ -165,7 +274,7 @@ abstract class BaseCameraFragment extends Fragment
         view.findViewById(R.id.controlsFrame).setBackgroundColor(primaryColor);
         //mRecordDuration.setTextColor(mIconTextColor);
 
-        if (mMediaRecorder != null && mIsRecording) {
+        if (mIsRecording) {
             //setImageRes(mButtonVideo, mInterface.iconStop());
         } else {
             //setImageRes(mButtonVideo, mInterface.iconRecord());
@@ -311,23 +420,526 @@ abstract class BaseCameraFragment extends Fragment
                 getActivity(), getArguments().getString(CameraIntentKey.SAVE_DIR), "IMG_", ".jpg");
     }
 
+    /**
+     * Output file for the picture at {@code index} in a burst; burst frames are taken within the
+     * same second, so the index keeps their names apart.
+     */
+    @NonNull
+    protected final File getOutputPictureFile(int index) {
+        return CameraUtil.makeTempFile(
+                getActivity(),
+                getArguments().getString(CameraIntentKey.SAVE_DIR),
+                "IMG_",
+                "_" + index + ".jpg");
+    }
+
+    protected final boolean isSegmented() {
+        return mInterface != null
+                && (mInterface.segmentMaxSize() > 0 || mInterface.segmentMaxDuration() > 0);
+    }
+
+    @NonNull
+    private File getOutputSegmentFile(int index) {
+        return CameraUtil.makeTempFile(
+                getActivity(),
+                getArguments().getString(CameraIntentKey.SAVE_DIR),
+                "VID_",
+                "_" + index + ".mp4");
+    }
+
+    /**
+     * Output file for the recorder being prepared: a numbered segment in segmented mode, a plain
+     * video file otherwise.
+     */
+    @NonNull
+    protected final File getNextVideoOutputFile() {
+        return isSegmented() ? getOutputSegmentFile(mSegmentUris.size()) : getOutputMediaFile();
+    }
+
+    /**
+     * Output file for a recorder prepared ahead of a recording: the first segment in segmented
+     * mode, a plain video file otherwise. Unlike {@link #getNextVideoOutputFile()} it doesn't read
+     * the main thread's segment list.
+     */
+    @NonNull
+    protected final File getFirstVideoOutputFile() {
+        return isSegmented() ? getOutputSegmentFile(0) : getOutputMediaFile();
+    }
+
+    /**
+     * Sets the size and duration limits of a recorder being prepared: the segment thresholds in
+     * segmented mode, {@link BaseCaptureInterface#maxAllowedFileSize()} otherwise.
+     */
+    protected final void setUpRecorderLimits(MediaRecorder recorder) {
+        if (getRecorderMaxFileSize() > 0)
+            recorder.setMaxFileSize(getRecorderMaxFileSize());
+        if (getRecorderMaxDuration() > 0)
+            recorder.setMaxDuration((int) Math.min(Integer.MAX_VALUE, getRecorderMaxDuration()));
+        if (isSegmented()) {
+            recorder.setOnInfoListener(mSegmentInfoListener);
+        } else if (getRecorderMaxFileSize() > 0) {
+            recorder.setOnInfoListener(
+                    new MediaRecorder.OnInfoListener() {
+                        @Override
+                        public void onInfo(MediaRecorder mediaRecorder, int what, int extra) {
+                            if (what != MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED)
+                                return;
+                            mRecorderInfoHandler.post(
+                                    new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (mIsRecording)
+                                                onRecorderLimitReached(true);
+                                        }
+                                    });
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Handles an info event of a segmented recorder, on the main thread.
+     */
+    private void onSegmentInfo(int what) {
+        // Late events of a recording that already stopped
+        if (!mIsRecording)
+            return;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+            queueNextSegment();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+            if (mPendingSegmentUri != null) {
+                // The recorder only moves on once the previous file is complete
+                finishSegment(mVideoOutputUri);
+                mVideoOutputUri = mPendingSegmentUri;
+                mPendingSegmentUri = null;
+            }
+        } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED
+                || what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED) {
+            onRecorderLimitReached(what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED);
+        }
+    }
+
+    /**
+     * Size limit of one recorded file in bytes, -1 for none.
+     */
+    protected final long getRecorderMaxFileSize() {
+        if (isSegmented())
+            return mInterface.segmentMaxSize() > 0 ? mInterface.segmentMaxSize() : -1;
+        return mInterface.maxAllowedFileSize() > 0 ? mInterface.maxAllowedFileSize() : -1;
+    }
+
+    /**
+     * Duration limit of one recorded file in milliseconds, -1 for none.
+     */
+    protected final long getRecorderMaxDuration() {
+        return isSegmented() && mInterface.segmentMaxDuration() > 0 ? mInterface.segmentMaxDuration() : -1;
+    }
+
+    /**
+     * The recorder stopped writing at one of its limits: a segmented recording carries on in a new
+     * segment, otherwise recording ends.
+     */
+    protected final void onRecorderLimitReached(boolean fileSize) {
+        if (isSegmented()) {
+            if (mPendingSegmentUri != null) {
+                deleteFile(mPendingSegmentUri);
+                mPendingSegmentUri = null;
+            }
+            // Passed on once the recorder has finished writing it
+            startNextSegment(newSegmentFinalizer(mVideoOutputUri, addSegment(mVideoOutputUri)));
+        } else if (fileSize) {
+            Toast.makeText(getActivity(), R.string.mcam_file_size_limit_reached, Toast.LENGTH_SHORT).show();
+            abortRecording();
+        }
+    }
+
+    /**
+     * Hands the recorder the next segment ahead of time, so it switches files without stopping.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private void queueNextSegment() {
+        if (mPendingSegmentUri != null)
+            return;
+        final File next = getOutputSegmentFile(mSegmentUris.size() + 1);
+        mPendingSegmentUri = Uri.fromFile(next).toString();
+        setNextOutputFile(next);
+    }
+
+    /**
+     * Passes the next segment to the running recorder, on the thread the recorder is used on. A
+     * failure is reported through {@link #onNextOutputFileRejected(File, Exception)} on the main
+     * thread.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    protected void setNextOutputFile(File next) {
+        try {
+            if (mMediaRecorder == null)
+                throw new IllegalStateException("No recorder");
+            mMediaRecorder.setNextOutputFile(next);
+        } catch (IOException | IllegalStateException e) {
+            onNextOutputFileRejected(next, e);
+        }
+    }
+
+    /**
+     * The recorder didn't take the file passed to {@link #setNextOutputFile(File)}.
+     */
+    protected final void onNextOutputFileRejected(File next, Exception e) {
+        // The recorder will stop at the limit and startNextSegment(Runnable) takes over
+        LOG(this, "Unable to queue the next segment: " + e.getMessage());
+        if (Uri.fromFile(next).toString().equals(mPendingSegmentUri))
+            mPendingSegmentUri = null;
+    }
+
+    /**
+     * Continues a segmented recording in a new file after the recorder stopped at a segment limit.
+     * Implementations stop the recorder, run {@code segmentFinalized} once the finished segment's
+     * file is complete (on any thread), then prepare and start the recorder again.
+     */
+    protected abstract void startNextSegment(Runnable segmentFinalized);
+
+    /**
+     * Video bit rate to prepare a recorder with: the configured one, lowered to the adaptive
+     * controller's latest decision for the following segments of a recording.
+     */
+    protected final int getVideoBitRate(int profileBitRate) {
+        mConfiguredBitRate = mInterface.videoEncodingBitRate(profileBitRate);
+        if (mBitrateController != null) {
+            final int bitRate = Math.min(mConfiguredBitRate, mBitrateController.getBitRate());
+            mBitrateController.setAppliedBitRate(bitRate);
+            return bitRate;
+        }
+        return mConfiguredBitRate;
+    }
+
+    /**
+     * The adaptive controller changed the bit rate while recording. By default it's only applied
+     * to the next segment, through {@link #getVideoBitRate(int)}.
+     *
+     * @return true if the running encoder took the new bit rate right away
+     */
+    protected boolean onVideoBitRateChanged(int bitRate) {
+        return false;
+    }
+
+    private void startAdaptiveBitRate() {
+        stopAdaptiveBitRate();
+        if (!mInterface.adaptiveBitRate())
+            return;
+        mRecordingStartedMs = SystemClock.elapsedRealtime();
+        mBitRateHandler.postDelayed(mBitRateSampler, BIT_RATE_SAMPLE_INTERVAL_MS);
+    }
+
+    private void stopAdaptiveBitRate() {
+        mBitRateHandler.removeCallbacks(mBitRateSampler);
+        mBitrateController = null;
+        mFinishedSegmentBytes = 0;
+    }
+
+    private void sampleBitRate() {
+        final Activity activity = getActivity();
+        if (activity == null || mConfiguredBitRate <= 0 || mVideoOutputUri == null)
+            return;
+        final long elapsedMs = SystemClock.elapsedRealtime() - mRecordingStartedMs;
+        if (mBitrateController == null) {
+            long targetDurationMs = -1;
+            if (mInterface.hasLengthLimit() && mInterface.getRecordingEnd() > -1)
+                targetDurationMs = elapsedMs + mInterface.getRecordingEnd() - System.currentTimeMillis();
+            mBitrateController =
+                    new BitrateController(
+                            mConfiguredBitRate,
+                            mConfiguredBitRate / 4,
+                            isSegmented() ? -1 : getRecorderMaxFileSize(),
+                            targetDurationMs);
+        }
+        final File output = new File(Uri.parse(mVideoOutputUri).getPath());
+        final File dir = output.getParentFile();
+        final int before = mBitrateController.getBitRate();
+        final int bitRate =
+                mBitrateController.update(
+                        elapsedMs,
+                        mFinishedSegmentBytes + output.length(),
+                        dir != null ? dir.getUsableSpace() : -1,
+                        getBatteryTemperature(activity));
+        if (bitRate != before) {
+            LOG(this, "Adapting the video bit rate to " + bitRate);
+            if (onVideoBitRateChanged(bitRate))
+                mBitrateController.setAppliedBitRate(bitRate);
+        }
+    }
+
+    /**
+     * Battery temperature in degrees Celsius, the closest thing to a thermal signal before Android
+     * 10; {@link Float#NaN} if it isn't reported.
+     */
+    private static float getBatteryTemperature(Context context) {
+        final Intent battery =
+                context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null || !battery.hasExtra(BatteryManager.EXTRA_TEMPERATURE))
+            return Float.NaN;
+        return battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) / 10f;
+    }
+
+    /**
+     * The capture button was pressed and may be held to record, see {@link
+     * BaseCaptureInterface#holdToRecordPreRoll()}. Start any recorder set up that can be undone.
+     */
+    protected void prepareRecording() {
+    }
+
+    /**
+     * The press after {@link #prepareRecording()} didn't turn into a recording.
+     */
+    protected void cancelPreparedRecording() {
+    }
+
+    /**
+     * Closes a segment of the current recording and passes it on to the {@link
+     * cc.officina.materialcamera.SegmentSink}, if any, while recording continues.
+     */
+    private void finishSegment(String uri) {
+        dispatchSegment(uri, addSegment(uri));
+    }
+
+    /**
+     * Adds a segment to the current recording, before its file may be complete.
+     *
+     * @return the segment's index in the recording
+     */
+    private int addSegment(String uri) {
+        mSegmentUris.add(uri);
+        return mSegmentUris.size() - 1;
+    }
+
+    /**
+     * Passes on a complete segment, on the main thread.
+     */
+    private void dispatchSegment(String uri, int index) {
+        final File segment = new File(Uri.parse(uri).getPath());
+        mFinishedSegmentBytes += segment.length();
+        SegmentDispatcher.segmentFinished(segment, index);
+    }
+
+    /**
+     * Dispatches a segment added with {@link #addSegment(String)} once its recorder has stopped,
+     * for {@link #startNextSegment(Runnable)}.
+     */
+    private Runnable newSegmentFinalizer(final String uri, final int index) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRecorderInfoHandler.post(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                dispatchSegment(uri, index);
+                            }
+                        });
+            }
+        };
+    }
+
+    private static void deleteFile(String uri) {
+        //noinspection ResultOfMethodCallIgnored
+        new File(Uri.parse(uri).getPath()).delete();
+    }
+
+    /**
+     * Hands the finished recording to the activity: every segment in segmented mode, otherwise
+     * {@link #mVideoOutputUri} for playback.
+     */
+    protected final void showRecordedVideo(boolean reachedZero) {
+        if (isSegmented()) {
+            if (mPendingSegmentUri != null) {
+                deleteFile(mPendingSegmentUri);
+                mPendingSegmentUri = null;
+            }
+            // Already added if the recording ended while moving to the next segment
+            if (mVideoOutputUri != null
+                    && !mSegmentUris.contains(mVideoOutputUri)
+                    && new File(Uri.parse(mVideoOutputUri).getPath()).length() > 0)
+                finishSegment(mVideoOutputUri);
+            final ArrayList<String> segments = new ArrayList<>(mSegmentUris);
+            mSegmentUris.clear();
+            if (!segments.isEmpty()) {
+                SegmentDispatcher.recordingFinished(segments.size());
+                for (String segment : segments)
+                    fetchThumbnail(segment);
+                mInterface.onSegmentsRecorded(segments);
+                return;
+            }
+        }
+        if (mVideoOutputUri != null)
+            fetchThumbnail(mVideoOutputUri);
+        mInterface.onShowPreview(mVideoOutputUri, reachedZero);
+    }
+
+    /**
+     * Generates the thumbnail of a finished video in the background, if enabled.
+     */
+    private void fetchThumbnail(String uri) {
+        if (mInterface.generateThumbnails() && getActivity() != null)
+            ThumbnailCache.get(getActivity()).fetchThumbnail(uri, null);
+    }
+
     public abstract void openCamera();
 
     public abstract void closeCamera();
 
+    /**
+     * Moves from the previous camera to the current one after {@link
+     * BaseCaptureInterface#toggleCameraPosition()}. Implementations can override this to keep
+     * whatever doesn't depend on the camera.
+     */
+    protected void switchCamera() {
+        closeCamera();
+        openCamera();
+    }
+
+    /**
+     * Closes the camera, which releases the recorder on the thread it's used on.
+     */
     public void cleanup() {
         closeCamera();
-        releaseRecorder();
+        mIsRecording = false;
         stopCounter();
     }
 
     public abstract void takeStillshot();
 
+    /**
+     * @return how many pixels a still may have in the given {@link MaterialCamera.MemoryMode}
+     */
+    protected static long getMaxStillArea(@MaterialCamera.MemoryMode int memoryMode) {
+        switch (memoryMode) {
+            case MaterialCamera.MEMORY_MODE_CRITICAL:
+                return CRITICAL_MEMORY_MAX_STILL_AREA;
+            case MaterialCamera.MEMORY_MODE_LOW:
+                return LOW_MEMORY_MAX_STILL_AREA;
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Puts the thumbnail of a still that was just written in the {@link ThumbnailCache}, if enabled.
+     * Called on the thread that wrote it, before {@link #uprightStillshot(File)} since the embedded
+     * thumbnail keeps the original orientation.
+     */
+    protected final void cacheThumbnail(File outputPic) {
+        final BaseCaptureInterface captureInterface = mInterface;
+        final Activity activity = getActivity();
+        if (captureInterface == null || activity == null || !captureInterface.generateThumbnails())
+            return;
+        try {
+            ThumbnailCache.get(activity).getThumbnail(outputPic.getPath());
+        } catch (IOException e) {
+            Log.w("BaseCameraFragment", "Unable to create a thumbnail of " + outputPic, e);
+        }
+    }
+
+    /**
+     * Losslessly rotates a still that was just written so its pixels are upright, if enabled and
+     * its EXIF orientation says it's rotated. Called on the thread that wrote it. A still that can't
+     * be rotated, or that would take more heap than is left, keeps its EXIF orientation.
+     */
+    protected final void uprightStillshot(File outputPic) {
+        final BaseCaptureInterface captureInterface = mInterface;
+        if (captureInterface == null || !captureInterface.uprightStills())
+            return;
+        if (captureInterface.getMemoryMode() != MaterialCamera.MEMORY_MODE_NORMAL
+                || !hasHeapToRotate(outputPic)) {
+            LOG(this, "Not enough memory to rotate the still, keeping its EXIF orientation");
+            return;
+        }
+        try {
+            final long startMs = SystemClock.elapsedRealtime();
+            if (JpegRotator.makeUpright(outputPic))
+                LOG(this, "Still rotated upright in " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+        } catch (IOException e) {
+            Log.w("BaseCameraFragment", "Unable to rotate " + outputPic + " upright", e);
+        } catch (OutOfMemoryError e) {
+            // The original file is only replaced once the rotated one is complete
+            Log.w("BaseCameraFragment", "Out of memory rotating " + outputPic + " upright", e);
+        }
+    }
+
+    /**
+     * Whether the heap has room for a lossless rotation of the JPEG: the file itself plus two bytes
+     * for each of its 1.5 DCT coefficients per pixel (4:2:0), about 3 bytes per pixel.
+     */
+    private static boolean hasHeapToRotate(File jpeg) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(jpeg.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return false;
+        final long needed = jpeg.length() + (long) options.outWidth * options.outHeight * 3;
+        final Runtime runtime = Runtime.getRuntime();
+        final long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return needed < available;
+    }
+
+    /**
+     * Measures a still that was just written when the quality gate is on. Called on the thread that
+     * wrote it, the decode takes a few milliseconds.
+     *
+     * @return the quality, or null if the gate is off or the still couldn't be decoded
+     */
+    @Nullable
+    protected final ImageQuality measureStillshot(File outputPic) {
+        final BaseCaptureInterface captureInterface = mInterface;
+        if (captureInterface == null || captureInterface.qualityGate() == MaterialCamera.QUALITY_GATE_OFF)
+            return null;
+        final long startMs = SystemClock.elapsedRealtime();
+        final ImageQuality quality = ImageUtil.measureJpeg(outputPic);
+        LOG(this, "Still quality " + quality + " in " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+        return quality;
+    }
+
+    /**
+     * Hands a saved still to the activity along with its quality, or throws it away and takes it
+     * again if it fails the quality gate in retake mode. Called on the UI thread.
+     */
+    protected final void onStillshotSaved(String outputUri, @Nullable ImageQuality quality) {
+        if (mInterface == null)
+            return;
+        final int issues = quality != null ? quality.getIssues(mInterface.qualityMinSharpness()) : 0;
+        if (issues != 0
+                && mInterface.qualityGate() == MaterialCamera.QUALITY_GATE_RETAKE
+                && mQualityRetakes < MAX_QUALITY_RETAKES) {
+            mQualityRetakes++;
+            LOG(this, "Still failed the quality gate (issues " + issues + "), taking it again");
+            //noinspection ResultOfMethodCallIgnored
+            new File(Uri.parse(outputUri).getPath()).delete();
+            if (mInterface.generateThumbnails() && getActivity() != null)
+                ThumbnailCache.get(getActivity()).remove(outputUri);
+            retakeStillshot();
+            return;
+        }
+        mQualityRetakes = 0;
+        mPictureOutputUri = outputUri;
+        mInterface.setStillshotQuality(quality, issues);
+        mInterface.onShowStillshot(outputUri);
+    }
+
+    /**
+     * Takes a still again after one was rejected by the quality gate.
+     */
+    protected void retakeStillshot() {
+        takeStillshot();
+    }
+
     public abstract void onPreferencesUpdated();
 
     @Override
     public void onPause() {
         super.onPause();
+        if (mCaptureGesture != null)
+            mCaptureGesture.reset();
+        stopAdaptiveBitRate();
         cleanup();
     }
 
@@ -359,6 +971,23 @@ abstract class BaseCameraFragment extends Fragment
             return (Integer) mInterface.getFrontCamera();
     }
 
+    protected final boolean isRecording() {
+        return mIsRecording;
+    }
+
+    /**
+     * Ends a recording that failed after {@link #startRecordingVideo()} reported it started, as if
+     * the user stopped it.
+     */
+    protected final void abortRecording() {
+        if (!mIsRecording || getActivity() == null)
+            return;
+        if (mRecordDuration != null)
+            mRecordDuration.setVisibility(View.GONE);
+        stopRecordingVideo(false);
+        mIsRecording = false;
+    }
+
     public final void stopCounter() {
         if (mPositionHandler != null) {
             mPositionHandler.removeCallbacks(mPositionUpdater);
@@ -366,24 +995,6 @@ abstract class BaseCameraFragment extends Fragment
         }
     }
 
-    public final void releaseRecorder() {
-        if (mMediaRecorder != null) {
-            if (mIsRecording) {
-                try {
-                    mMediaRecorder.stop();
-                } catch (Throwable t) {
-                    //noinspection ResultOfMethodCallIgnored
-                    new File(mVideoOutputUri).delete();
-                    t.printStackTrace();
-                }
-                mIsRecording = false;
-            }
-            mMediaRecorder.reset();
-            mMediaRecorder.release();
-            mMediaRecorder = null;
-        }
-    }
-
     public boolean startRecordingVideo() {
         if (mInterface != null && mInterface.hasLengthLimit() && !mInterface.countdownImmediately()) {
             // Countdown wasn't started in onResume, start it now
@@ -394,11 +1005,14 @@ abstract class BaseCameraFragment extends Fragment
 
         setImageRes(mButtonStillshot, mInterface.iconRecord());
         mInterface.setDidRecord(true);
+        mSegmentUris.clear();
+        startAdaptiveBitRate();
 
         return true;
     }
 
     public void stopRecordingVideo(boolean reachedZero) {
+        stopAdaptiveBitRate();
         setImageRes(mButtonStillshot, mInterface.iconCapture());
         getActivity().setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
     }
@@ -438,8 +1052,7 @@ abstract class BaseCameraFragment extends Fragment
                     mInterface.getCurrentCameraPosition() == BaseCaptureActivity.CAMERA_POSITION_BACK
                             ? mInterface.iconFrontCamera()
                             : mInterface.iconRearCamera());
-            closeCamera();
-            openCamera();
+            switchCamera();
             setupFlashMode();
         } else if (id == R.id.flash) {
             invalidateFlash(true);
@@ -448,63 +1061,10 @@ abstract class BaseCameraFragment extends Fragment
         }
     }
 
-    private void startTimer() {
-        stopTimer();
-
-        mTimer = new Timer("VideoRecording");
-        mTimerTask = new TimerTask() {
-            @Override
-            public void run() {
-                getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mRecordDuration.setVisibility(View.VISIBLE);
-                        mIsRecording = startRecordingVideo();
-                    }
-                });
-            }
-        };
-
-        mTimer.schedule(mTimerTask, 1000);
-    }
-
-    private void stopTimer() {
-        if (mTimerTask != null) {
-            mTimerTask.cancel();
-            mTimerTask = null;
-        }
-
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer.purge();
-            mTimer = null;
-        }
-    }
-
     @Override
     public boolean onTouch(View v, MotionEvent event) {
-        int id = v.getId();
-        if (id == R.id.stillshot) {
-            switch (event.getAction()) {
-                case MotionEvent.ACTION_DOWN:
-                    startTimer();
-                    return true;
-
-                case MotionEvent.ACTION_UP:
-                    stopTimer();
-
-                    if (mIsRecording) {
-                        mRecordDuration.setVisibility(View.GONE);
-                        stopRecordingVideo(false);
-                        mIsRecording = false;
-                    } else {
-                        takeStillshot();
-                    }
-                    return true;
-                default:
-                    break;
-            }
-        }
+        if (v.getId() == R.id.stillshot && mCaptureGesture != null)
+            return mCaptureGesture.onTouchEvent(event);
         return false;
     }
 
@@ -18,7 +18,9 @@ package cc.officina.materialcamera.internal;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.Fragment;
+import android.content.ComponentCallbacks2;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -34,10 +36,12 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
 import android.support.v4.app.ActivityCompat;
+import android.support.v4.app.ActivityManagerCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.app.AppCompatDelegate;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.Window;
 import android.view.WindowManager;
 
@@ -45,13 +49,16 @@ import cc.officina.materialcamera.MaterialCamera;
 import cc.officina.materialcamera.R;
 import cc.officina.materialcamera.TimeLimitReachedException;
 import cc.officina.materialcamera.util.CameraUtil;
+import cc.officina.materialcamera.util.CaptureExecutor;
 import cc.officina.materialcamera.util.FilenameUtils;
+import cc.officina.materialcamera.util.ImageQuality;
 import cc.officina.materialcamera.util.MimeUtils;
 import com.afollestad.materialdialogs.MaterialDialog;
 
 import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
 import java.util.List;
 
 public abstract class BaseCaptureActivity extends AppCompatActivity
@@ -76,6 +83,7 @@ public abstract class BaseCaptureActivity extends AppCompatActivity
     private Object mBackCameraId;
     private boolean mDidRecord = false;
     private List<Integer> mFlashModes;
+    private int mMemoryMode = MaterialCamera.MEMORY_MODE_NORMAL;
 
     @Override
     protected final void onSaveInstanceState(Bundle outState) {
@@ -96,6 +104,7 @@ public abstract class BaseCaptureActivity extends AppCompatActivity
                 outState.putInt("back_camera_id_int", (Integer) mBackCameraId);
         }
         outState.putInt("flash_mode", mFlashMode);
+        outState.putInt("memory_mode", mMemoryMode);
     }
 
     @Override
@@ -120,6 +129,11 @@ public abstract class BaseCaptureActivity extends AppCompatActivity
         }
         setContentView(R.layout.mcam_activity_videocapture);
 
+        CaptureExecutor.configure(
+                getIntent().getIntExtra(CameraIntentKey.CAPTURE_IO_THREADS, CaptureExecutor.DEFAULT_POOL_SIZE),
+                getIntent()
+                        .getIntExtra(CameraIntentKey.CAPTURE_IO_QUEUE_DEPTH, CaptureExecutor.DEFAULT_QUEUE_DEPTH));
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             final int primaryColor = getIntent().getIntExtra(CameraIntentKey.PRIMARY_COLOR, 0);
             final boolean isPrimaryDark = CameraUtil.isColorDark(primaryColor);
@@ -135,6 +149,9 @@ public abstract class BaseCaptureActivity extends AppCompatActivity
         }
 
         if (null == savedInstanceState) {
+            if (adaptToMemory()
+                    && ActivityManagerCompat.isLowRamDevice((ActivityManager) getSystemService(ACTIVITY_SERVICE)))
+                mMemoryMode = MaterialCamera.MEMORY_MODE_LOW;
             checkPermissions();
             mLengthLimit = getIntent().getLongExtra(CameraIntentKey.LENGTH_LIMIT, -1);
         } else {
@@ -152,6 +169,7 @@ public abstract class BaseCaptureActivity extends AppCompatActivity
                 mBackCameraId = savedInstanceState.getInt("back_camera_id_int");
             }
             mFlashMode = savedInstanceState.getInt("flash_mode");
+            mMemoryMode = savedInstanceState.getInt("memory_mode", MaterialCamera.MEMORY_MODE_NORMAL);
         }
 
         getWindow()
@@ -201,6 +219,31 @@ public abstract class BaseCaptureActivity extends AppCompatActivity
             finish();
     }
 
+    /**
+     * Drops cached bitmaps and buffers and, if enabled, lowers the memory mode the camera opens with.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        long released = StillshotPreviewFragment.releaseCachedBitmaps();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            released += Camera2Fragment.releaseCachedBuffers();
+        if (adaptToMemory())
+            mMemoryMode = Math.max(mMemoryMode, toMemoryMode(level));
+        CaptureMetrics.reportMemoryTrimmed(level, mMemoryMode, released);
+    }
+
+    @MaterialCamera.MemoryMode
+    private static int toMemoryMode(int trimLevel) {
+        if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || trimLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            return MaterialCamera.MEMORY_MODE_CRITICAL;
+        if (trimLevel >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || trimLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return MaterialCamera.MEMORY_MODE_LOW;
+        return MaterialCamera.MEMORY_MODE_NORMAL;
+    }
+
     @Override
     public final void onBackPressed() {
         Fragment frag = getFragmentManager().findFragmentById(R.id.container);
@@ -373,6 +416,40 @@ public abstract class BaseCaptureActivity extends AppCompatActivity
         }
     }
 
+    @Override
+    public void setStillshotQuality(@Nullable ImageQuality quality, int issues) {
+        if (quality == null) {
+            getIntent().removeExtra(MaterialCamera.EXTRA_QUALITY_ISSUES);
+            getIntent().removeExtra(MaterialCamera.EXTRA_QUALITY_SHARPNESS);
+            getIntent().removeExtra(MaterialCamera.EXTRA_QUALITY_MEAN_LUMA);
+            return;
+        }
+        getIntent()
+                .putExtra(MaterialCamera.EXTRA_QUALITY_ISSUES, issues)
+                .putExtra(MaterialCamera.EXTRA_QUALITY_SHARPNESS, quality.getSharpness())
+                .putExtra(MaterialCamera.EXTRA_QUALITY_MEAN_LUMA, quality.getMeanLuma());
+    }
+
+    @Override
+    public void onBurstCaptured(List<String> outputUris) {
+        if (outputUris.isEmpty()) {
+            finish();
+            return;
+        }
+        getIntent().putStringArrayListExtra(MaterialCamera.EXTRA_BURST_URIS, new ArrayList<>(outputUris));
+        useMedia(outputUris.get(0));
+    }
+
+    @Override
+    public void onSegmentsRecorded(List<String> outputUris) {
+        if (outputUris.isEmpty()) {
+            finish();
+            return;
+        }
+        getIntent().putStringArrayListExtra(MaterialCamera.EXTRA_SEGMENT_URIS, new ArrayList<>(outputUris));
+        useMedia(outputUris.get(0));
+    }
+
     @Override
     public final boolean allowRetry() {
         return getIntent().getBooleanExtra(CameraIntentKey.ALLOW_RETRY, true);
@@ -515,6 +592,127 @@ public abstract class BaseCaptureActivity extends AppCompatActivity
         return getIntent().getIntExtra(CameraIntentKey.QUALITY_PROFILE, CamcorderProfile.QUALITY_HIGH);
     }
 
+    @Override
+    public int burstCount() {
+        return getIntent().getIntExtra(CameraIntentKey.BURST_COUNT, 1);
+    }
+
+    @Override
+    public boolean zeroShutterLag() {
+        return getIntent().getBooleanExtra(CameraIntentKey.ZERO_SHUTTER_LAG, false);
+    }
+
+    @Override
+    public int zeroShutterLagDepth() {
+        return getIntent().getIntExtra(CameraIntentKey.ZERO_SHUTTER_LAG_DEPTH, 3);
+    }
+
+    @Override
+    public boolean prewarmRecorder() {
+        return getIntent().getBooleanExtra(CameraIntentKey.PREWARM_RECORDER, false);
+    }
+
+    @Override
+    public long segmentMaxSize() {
+        return getIntent().getLongExtra(CameraIntentKey.SEGMENT_MAX_SIZE, -1);
+    }
+
+    @Override
+    public long segmentMaxDuration() {
+        return getIntent().getLongExtra(CameraIntentKey.SEGMENT_MAX_DURATION, -1);
+    }
+
+    @Override
+    public long holdToRecordThreshold() {
+        return getIntent()
+                .getLongExtra(CameraIntentKey.HOLD_TO_RECORD_THRESHOLD, ViewConfiguration.getLongPressTimeout());
+    }
+
+    @Override
+    public boolean holdToRecordPreRoll() {
+        return getIntent().getBooleanExtra(CameraIntentKey.HOLD_TO_RECORD_PRE_ROLL, false);
+    }
+
+    @Override
+    public boolean persistentRecorderSurface() {
+        return getIntent().getBooleanExtra(CameraIntentKey.PERSISTENT_RECORDER_SURFACE, false);
+    }
+
+    @Override
+    public int videoEncoder() {
+        return getIntent().getIntExtra(CameraIntentKey.VIDEO_ENCODER, MaterialCamera.VIDEO_ENCODER_MEDIA_RECORDER);
+    }
+
+    @Override
+    public int videoBitRateMode() {
+        return getIntent().getIntExtra(CameraIntentKey.VIDEO_BIT_RATE_MODE, -1);
+    }
+
+    @Override
+    public int videoKeyFrameInterval() {
+        return getIntent().getIntExtra(CameraIntentKey.VIDEO_KEY_FRAME_INTERVAL, 1);
+    }
+
+    @Override
+    public int videoCodecProfile() {
+        return getIntent().getIntExtra(CameraIntentKey.VIDEO_CODEC_PROFILE, -1);
+    }
+
+    @Override
+    public int videoCodecLevel() {
+        return getIntent().getIntExtra(CameraIntentKey.VIDEO_CODEC_LEVEL, -1);
+    }
+
+    @Override
+    public int videoCodecPreference() {
+        return getIntent().getIntExtra(CameraIntentKey.VIDEO_CODEC_PREFERENCE, MaterialCamera.VIDEO_CODEC_ANY);
+    }
+
+    @Override
+    public boolean adaptiveBitRate() {
+        return getIntent().getBooleanExtra(CameraIntentKey.ADAPTIVE_BIT_RATE, false);
+    }
+
+    @Override
+    public int qualityGate() {
+        return getIntent().getIntExtra(CameraIntentKey.QUALITY_GATE, MaterialCamera.QUALITY_GATE_OFF);
+    }
+
+    @Override
+    public float qualityMinSharpness() {
+        return getIntent().getFloatExtra(CameraIntentKey.QUALITY_MIN_SHARPNESS, 100f);
+    }
+
+    @Override
+    public boolean uprightStills() {
+        return getIntent().getBooleanExtra(CameraIntentKey.UPRIGHT_STILLS, false);
+    }
+
+    @Override
+    public boolean generateThumbnails() {
+        return getIntent().getBooleanExtra(CameraIntentKey.GENERATE_THUMBNAILS, false);
+    }
+
+    @Override
+    public boolean adaptToMemory() {
+        return getIntent().getBooleanExtra(CameraIntentKey.ADAPT_TO_MEMORY, false);
+    }
+
+    @Override
+    public int getMemoryMode() {
+        return mMemoryMode;
+    }
+
+    @Override
+    public int sessionProfile() {
+        return getIntent().getIntExtra(CameraIntentKey.SESSION_PROFILE, MaterialCamera.SESSION_PROFILE_HYBRID);
+    }
+
+    @Override
+    public boolean fastShutter() {
+        return getIntent().getBooleanExtra(CameraIntentKey.FAST_SHUTTER, false);
+    }
+
     @DrawableRes
     @Override
     public int iconPause() {
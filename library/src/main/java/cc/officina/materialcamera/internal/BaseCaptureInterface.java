@@ -20,6 +20,9 @@ import android.support.annotation.DrawableRes;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringRes;
 
+import cc.officina.materialcamera.MaterialCamera;
+import cc.officina.materialcamera.util.ImageQuality;
+
 import java.util.List;
 
 public interface BaseCaptureInterface {
@@ -30,6 +33,15 @@ public interface BaseCaptureInterface {
 
     void onShowStillshot(String outputUri);
 
+    /**
+     * Attaches a still's quality to the result, or clears it when {@code quality} is null.
+     */
+    void setStillshotQuality(@Nullable ImageQuality quality, int issues);
+
+    void onBurstCaptured(List<String> outputUris);
+
+    void onSegmentsRecorded(List<String> outputUris);
+
     long getRecordingStart();
 
     void setRecordingStart(long start);
@@ -89,6 +101,56 @@ public interface BaseCaptureInterface {
 
     int qualityProfile();
 
+    int burstCount();
+
+    boolean zeroShutterLag();
+
+    int zeroShutterLagDepth();
+
+    boolean prewarmRecorder();
+
+    long segmentMaxSize();
+
+    long segmentMaxDuration();
+
+    long holdToRecordThreshold();
+
+    boolean holdToRecordPreRoll();
+
+    boolean persistentRecorderSurface();
+
+    int videoEncoder();
+
+    int videoBitRateMode();
+
+    int videoKeyFrameInterval();
+
+    int videoCodecProfile();
+
+    int videoCodecLevel();
+
+    int videoCodecPreference();
+
+    boolean adaptiveBitRate();
+
+    int qualityGate();
+
+    float qualityMinSharpness();
+
+    boolean uprightStills();
+
+    boolean generateThumbnails();
+
+    boolean adaptToMemory();
+
+    @MaterialCamera.MemoryMode
+    int getMemoryMode();
+
+    @MaterialCamera.SessionProfile
+    int sessionProfile();
+
+    boolean fastShutter();
+
     @DrawableRes
     int iconRecord();
 
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+/**
+ * Decides the video bit rate of a running recording from periodic samples of what was written, the
+ * free space left and the device temperature. Pure Java and driven by the caller's clock, so its
+ * decisions can be simulated deterministically.
+ *
+ * <p>The bit rate is the lowest of: the configured one, what the remaining storage (and target file
+ * size) can hold until the target duration, and a thermal cap that steps down as the battery heats
+ * up. Decreases apply at once, increases are limited per sample so quality doesn't oscillate.
+ *
+ * <p>A decision doesn't always reach the encoder right away (MediaRecorder only takes it with the
+ * next segment), so the overhead is measured against the bit rate in effect, see {@link
+ * #setAppliedBitRate(int)}.
+ */
+class BitrateController {
+
+    /**
+     * Space left alone on the storage, so the device doesn't run completely out of it.
+     */
+    static final long STORAGE_RESERVE_BYTES = 32L * 1024 * 1024;
+    /**
+     * Without a target duration, the free space must last at least this long.
+     */
+    static final long DEFAULT_HORIZON_MS = 10 * 60 * 1000;
+    /**
+     * Battery temperatures in degrees Celsius at which the bit rate is capped to the matching fraction.
+     */
+    static final float[] THERMAL_THRESHOLDS = {40f, 43f, 46f};
+    static final float[] THERMAL_SCALES = {1f, 0.75f, 0.5f, 0.35f};
+    /**
+     * A thermal level is only left once the temperature is this far below its threshold.
+     */
+    static final float THERMAL_HYSTERESIS = 1.5f;
+    static final float MAX_STEP_UP = 1.2f;
+    /**
+     * Changes smaller than this fraction are ignored.
+     */
+    static final float MIN_CHANGE = 0.05f;
+
+    private final int mMaxBitRate;
+    private final int mMinBitRate;
+    private final long mTargetBytes;
+    private final long mTargetDurationMs;
+    private int mBitRate;
+    private int mAppliedBitRate;
+    private int mThermalLevel;
+    private long mLastElapsedMs = -1;
+    private long mLastBytes;
+    /**
+     * Measured bytes written over what the video bit rate accounts for: audio, container overhead
+     * and encoder overshoot.
+     */
+    private float mOverhead = 1f;
+
+    /**
+     * @param maxBitRate       the configured bit rate, never exceeded
+     * @param minBitRate       floor, quality below it isn't worth recording
+     * @param targetBytes      size the recording should fit in, 0 or less for none
+     * @param targetDurationMs duration the recording should last, 0 or less for none
+     */
+    BitrateController(int maxBitRate, int minBitRate, long targetBytes, long targetDurationMs) {
+        mMaxBitRate = maxBitRate;
+        mMinBitRate = Math.min(minBitRate, maxBitRate);
+        mTargetBytes = targetBytes;
+        mTargetDurationMs = targetDurationMs;
+        mBitRate = maxBitRate;
+        mAppliedBitRate = maxBitRate;
+    }
+
+    int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * The encoder now records at {@code bitRate}, the recording started at the max bit rate. The
+     * samples spanning the change mix both rates, so measuring starts over with the next one.
+     */
+    void setAppliedBitRate(int bitRate) {
+        if (bitRate == mAppliedBitRate)
+            return;
+        mAppliedBitRate = bitRate;
+        mLastElapsedMs = -1;
+    }
+
+    /**
+     * Takes a sample of the running recording.
+     *
+     * @param elapsedMs    time since recording started
+     * @param bytesWritten bytes recorded so far
+     * @param freeBytes    usable space left on the output's storage, negative if unknown
+     * @param temperatureC battery temperature, {@link Float#NaN} if unknown
+     * @return the bit rate to record with from now on
+     */
+    int update(long elapsedMs, long bytesWritten, long freeBytes, float temperatureC) {
+        if (mLastElapsedMs >= 0 && elapsedMs > mLastElapsedMs && bytesWritten > mLastBytes) {
+            final float measured = (bytesWritten - mLastBytes) * 8000f / (elapsedMs - mLastElapsedMs);
+            final float overhead = Math.max(0.5f, Math.min(2f, measured / mAppliedBitRate));
+            mOverhead += (overhead - mOverhead) * 0.3f;
+        }
+        mLastElapsedMs = elapsedMs;
+        mLastBytes = bytesWritten;
+
+        updateThermalLevel(temperatureC);
+        long target = (long) (mMaxBitRate * THERMAL_SCALES[mThermalLevel]);
+
+        long availableBytes = freeBytes >= 0 ? freeBytes - STORAGE_RESERVE_BYTES : Long.MAX_VALUE;
+        if (mTargetBytes > 0)
+            availableBytes = Math.min(availableBytes, mTargetBytes - bytesWritten);
+        if (availableBytes != Long.MAX_VALUE) {
+            final long remainingMs =
+                    mTargetDurationMs > 0
+                            ? Math.max(1000, mTargetDurationMs - elapsedMs)
+                            : DEFAULT_HORIZON_MS;
+            final long budget = (long) (Math.max(0, availableBytes) * 8000f / remainingMs / mOverhead);
+            target = Math.min(target, budget);
+        }
+        target = Math.max(mMinBitRate, Math.min(mMaxBitRate, target));
+
+        if (target < mBitRate * (1 - MIN_CHANGE))
+            mBitRate = (int) target;
+        else if (target > mBitRate * (1 + MIN_CHANGE))
+            mBitRate = (int) Math.min(target, (long) (mBitRate * MAX_STEP_UP));
+        return mBitRate;
+    }
+
+    private void updateThermalLevel(float temperatureC) {
+        if (Float.isNaN(temperatureC))
+            return;
+        while (mThermalLevel < THERMAL_THRESHOLDS.length
+                && temperatureC >= THERMAL_THRESHOLDS[mThermalLevel])
+            mThermalLevel++;
+        while (mThermalLevel > 0
+                && temperatureC < THERMAL_THRESHOLDS[mThermalLevel - 1] - THERMAL_HYSTERESIS)
+            mThermalLevel--;
+    }
+}
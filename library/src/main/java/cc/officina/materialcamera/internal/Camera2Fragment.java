@@ -36,19 +36,24 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.InputConfiguration;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.CamcorderProfile;
 import android.media.Image;
 import android.media.ImageReader;
+import android.media.MediaCodec;
 import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
@@ -59,23 +64,32 @@ import android.view.TextureView;
 import android.view.View;
 import android.widget.Toast;
 
+import cc.officina.materialcamera.FrameAnalyzer;
+import cc.officina.materialcamera.ICallback;
+import cc.officina.materialcamera.MaterialCamera;
 import cc.officina.materialcamera.R;
+import cc.officina.materialcamera.util.ByteBufferPool;
+import cc.officina.materialcamera.util.CameraCapabilities;
 import cc.officina.materialcamera.util.CameraUtil;
+import cc.officina.materialcamera.util.CaptureExecutor;
 import cc.officina.materialcamera.util.Degrees;
+import cc.officina.materialcamera.util.ImageQuality;
+import cc.officina.materialcamera.util.ImageUtil;
+import cc.officina.materialcamera.util.SizeSelector;
 import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class Camera2Fragment extends BaseCameraFragment implements View.OnClickListener {
@@ -85,33 +99,30 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
      */
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
     /**
-     * Camera state: Showing camera preview.
-     */
-    private static final int STATE_PREVIEW = 0;
-    /**
-     * Camera state: Waiting for the focus to be locked.
+     * Max preview width that is guaranteed by Camera2 API
      */
-    private static final int STATE_WAITING_LOCK = 1;
+    private static final int MAX_PREVIEW_WIDTH = 1920;
     /**
-     * Camera state: Waiting for the exposure to be precapture state.
+     * Max preview height that is guaranteed by Camera2 API
      */
-    private static final int STATE_WAITING_PRECAPTURE = 2;
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
     /**
-     * Camera state: Waiting for the exposure state to be something other than precapture.
+     * Number of images the still capture {@link ImageReader} can hand out at once.
      */
-    private static final int STATE_WAITING_NON_PRECAPTURE = 3;
+    private static final int JPEG_READER_MAX_IMAGES = 2;
+    private static final int ANALYSIS_READER_MAX_IMAGES = 3;
     /**
-     * Camera state: Picture was taken.
+     * Direct buffers used when a JPEG has to be copied out of the reader before it's written.
      */
-    private static final int STATE_PICTURE_TAKEN = 4;
+    private static final ByteBufferPool JPEG_BUFFER_POOL = new ByteBufferPool(2);
     /**
-     * Max preview width that is guaranteed by Camera2 API
+     * Zero shutter lag frames kept at most in {@link MaterialCamera#MEMORY_MODE_LOW}.
      */
-    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final int LOW_MEMORY_ZSL_DEPTH = 2;
     /**
-     * Max preview height that is guaranteed by Camera2 API
+     * Upper bound on the burst frames the still capture {@link ImageReader} keeps in flight.
      */
-    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final int MAX_BURST_IN_FLIGHT = 6;
 
     static {
         ORIENTATIONS.append(Surface.ROTATION_0, 90);
@@ -120,20 +131,112 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
         ORIENTATIONS.append(Surface.ROTATION_270, 180);
     }
 
-    private final Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private static HandlerThread sBackgroundThread;
+    private static HandlerThread sCloseThread;
+    /**
+     * Set while a device is opening, on the background thread. An open requested meanwhile waits
+     * in {@link #sDeferredOpen} for the device's first callback.
+     */
+    private static boolean sOpening;
+    private static Runnable sDeferredOpen;
+    /**
+     * Bumped on the main thread by every open and close. An open on the background thread that
+     * finds it changed was cancelled, its device is closed as soon as it arrives.
+     */
+    private volatile int mCameraGeneration;
+    /**
+     * Generation of the device {@link #mStateCallback} is waiting for, only touched on the
+     * background thread.
+     */
+    private int mOpeningGeneration;
+    /**
+     * Device being closed in the background by {@link #switchCamera()}, its late callbacks are
+     * ignored. It still holds the preview surface until {@link CameraDevice.StateCallback#onClosed}.
+     */
+    private volatile CameraDevice mClosingDevice;
+    /**
+     * The last open that ran, and the one to run again once {@link #mClosingDevice} closed when the
+     * HAL refused a second open device. Background thread only.
+     */
+    private Runnable mLatestOpen;
+    private Runnable mRetryOpen;
+    /** Set when the new device opened before the old one closed, background thread only. */
+    private boolean mPreviewAfterClose;
+    /**
+     * {@link SystemClock#elapsedRealtimeNanos()} of the last record request, until the first
+     * frame after recording started completes; -1 otherwise.
+     */
+    private volatile long mRecordRequestNs = -1;
+    /**
+     * Set while the session is rebuilt for the next segment of a segmented recording, the recorder
+     * starts as soon as the session is configured.
+     */
+    private volatile boolean mStartRecorderWhenConfigured;
+    /**
+     * Streams of the current session, one of the {@code SESSION_PROFILE_} constants. Starts as {@link
+     * BaseCaptureInterface#sessionProfile()} and moves from photo to video for a recording.
+     */
+    private int mSessionProfile = MaterialCamera.SESSION_PROFILE_HYBRID;
+    /**
+     * Whether the current session has the still stream. A photo session moved to video for a
+     * recording doesn't.
+     */
+    private boolean mStillStreamConfigured;
+    /**
+     * Set while a photo session is rebuilt with the recorder for a recording that hasn't started.
+     */
+    private boolean mAwaitingVideoSession;
+    /**
+     * Whether the recorder was already prepared when recording was requested, for the latency
+     * metric.
+     */
+    private volatile boolean mRecordRequestPrewarmed;
+    /**
+     * Recorder input that outlives the recorder, see {@link
+     * BaseCaptureInterface#persistentRecorderSurface()}. The session targets it directly, so the
+     * recorder can be stopped, reset and prepared again while the session keeps running.
+     */
+    private Surface mPersistentSurface;
+    /**
+     * What the recorder is prepared with, gathered on the main thread. Its output is used once, the
+     * following preparations pick their own file.
+     */
+    private RecorderSetup mRecorderSetup;
+    /**
+     * File {@link #mMediaRecorder} is prepared for or recording to.
+     */
+    private File mRecorderOutput;
+    private boolean mRecorderStarted;
+    /**
+     * Preview target taken from {@link #mTextureView} on the main thread.
+     */
+    private SurfaceTexture mPreviewTexture;
     private boolean mStillshot;
-    private CameraDevice mCameraDevice;
+    /**
+     * Set and used on the background handler, like the session, the request builders, the
+     * recorder and the readers. The main thread only checks whether a device is open.
+     */
+    private volatile CameraDevice mCameraDevice;
     private CameraCaptureSession mPreviewSession;
     private AutoFitTextureView mTextureView;
     /**
      * An {@link ImageReader} that handles still image capture.
      */
     private ImageReader mImageReader;
-    private Size mPreviewSize;
+    private volatile Size mPreviewSize;
     private Size mVideoSize;
     @Degrees.DegreeUnits
     private int mDisplayOrientation;
     private boolean mAfAvailable;
+    /**
+     * The newest result of the preview, the fast shutter reads the focus and exposure state from it.
+     */
+    private volatile TotalCaptureResult mLastPreviewResult;
+    /**
+     * When the shutter was pressed for the running still capture, in {@link
+     * SystemClock#elapsedRealtime()} time. Only touched on the background handler.
+     */
+    private long mShutterPressedAt;
     /**
      * {@link CaptureRequest.Builder} for the camera preview
      */
@@ -142,8 +245,52 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
      * {@link CaptureRequest} generated by {@link #mPreviewBuilder}
      */
     private CaptureRequest mPreviewRequest;
-    private HandlerThread mBackgroundThread;
-    private Handler mBackgroundHandler;
+    private final Handler mBackgroundHandler = new Handler(getBackgroundLooper());
+    /**
+     * Number of {@link Image}s held by pending writes rather than returned to {@link #mImageReader}.
+     */
+    private final AtomicInteger mHeldImages = new AtomicInteger();
+    private int mJpegReaderMaxImages = JPEG_READER_MAX_IMAGES;
+    /**
+     * Index of the next burst frame delivered by {@link #mImageReader}, only touched on the
+     * background handler.
+     */
+    private int mBurstFrameIndex;
+    /**
+     * Whether the burst requests of the running sequence reached the session, only touched on the
+     * background handler. Until then no frame can arrive, so a sequence that ends earlier gives the
+     * burst up as a whole.
+     */
+    private boolean mBurstIssued;
+    /**
+     * Output URIs of the burst being written, in capture order; {@code null} outside of a burst.
+     * Only touched on the UI thread.
+     */
+    private String[] mBurstOutputUris;
+    private int mBurstPending;
+    /**
+     * Full resolution YUV stream feeding {@link #mZslRing}, only set up in zero shutter lag mode.
+     */
+    private ImageReader mZslReader;
+    private ZslFrameRing mZslRing;
+    private boolean mZslActive;
+    /**
+     * Low resolution YUV stream feeding {@link #mFramePipeline}, only set up when a {@link
+     * FrameAnalyzer} is registered.
+     */
+    private ImageReader mAnalysisReader;
+    private FrameAnalysisPipeline mFramePipeline;
+    /**
+     * Whether sensor timestamps share the {@link SystemClock#elapsedRealtimeNanos()} time base, so
+     * a button press can be matched to a frame and audio stamped in sync with video.
+     */
+    private boolean mRealtimeTimestamps;
+    /**
+     * Used instead of {@link #mMediaRecorder} when {@link BaseCaptureInterface#videoEncoder()}
+     * selects the MediaCodec backend.
+     */
+    private VideoEncoderBackend mEncoderBackend;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private final TextureView.SurfaceTextureListener mSurfaceTextureListener =
             new TextureView.SurfaceTextureListener() {
                 @Override
@@ -168,61 +315,80 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                 }
             };
     /**
-     * The current state of camera state for taking pictures.
-     *
-     * @see #mCaptureCallback
-     */
-    private int mState = STATE_PREVIEW;
-    /**
-     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     * Runs the still capture sequence, only touched on the background handler.
      */
-    private CameraCaptureSession.CaptureCallback mCaptureCallback =
-            new CameraCaptureSession.CaptureCallback() {
+    private final StillCaptureStateMachine mStillCapture =
+            new StillCaptureStateMachine(
+                    new StillCaptureStateMachine.Actions() {
+                        @Override
+                        public void lockFocus() {
+                            Camera2Fragment.this.lockFocus();
+                        }
 
-                private void process(CaptureResult result) {
-                    switch (mState) {
-                        case STATE_PREVIEW: {
-                            // We have nothing to do when the camera preview is working normally.
-                            break;
+                        @Override
+                        public void runPrecapture() {
+                            runPrecaptureSequence();
                         }
-                        case STATE_WAITING_LOCK: {
-                            Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                            if (afState == null) {
-                                captureStillPicture();
-                            } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState
-                                    || CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-                                // CONTROL_AE_STATE can be null on some devices
-                                Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                                if (aeState == null || aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-                                    mState = STATE_PICTURE_TAKEN;
-                                    captureStillPicture();
-                                } else {
-                                    runPrecaptureSequence();
-                                }
-                            }
-                            break;
+
+                        @Override
+                        public void capture() {
+                            captureStillPicture();
                         }
-                        case STATE_WAITING_PRECAPTURE: {
-                            // CONTROL_AE_STATE can be null on some devices
-                            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                            if (aeState == null
-                                    || aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE
-                                    || aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED
-                                    || aeState == CameraMetadata.CONTROL_AE_STATE_CONVERGED) {
-                                mState = STATE_WAITING_NON_PRECAPTURE;
+
+                        @Override
+                        public void finish(boolean captured) {
+                            if (captured) {
+                                CaptureMetrics.reportShutterLatency(
+                                        mStillCapture.getPath(),
+                                        SystemClock.elapsedRealtime() - mShutterPressedAt,
+                                        mStillCapture.getTimedOutStates() != 0);
+                            } else {
+                                LOG(Camera2Fragment.class, "The still capture didn't complete");
                             }
-                            break;
+                            if (isBurst() && !mBurstIssued)
+                                postBurstAborted();
+                            if (mPreviewSession != null)
+                                unlockFocus();
                         }
-                        case STATE_WAITING_NON_PRECAPTURE: {
-                            // CONTROL_AE_STATE can be null on some devices
-                            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                            if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                                mState = STATE_PICTURE_TAKEN;
-                                captureStillPicture();
-                            }
-                            break;
+
+                        @Override
+                        public void scheduleDeadline(long delayMs) {
+                            mBackgroundHandler.removeCallbacks(mStillCaptureDeadline);
+                            mBackgroundHandler.postDelayed(mStillCaptureDeadline, delayMs);
                         }
-                    }
+
+                        @Override
+                        public void onTimeout(int state) {
+                            LOG(
+                                    Camera2Fragment.class,
+                                    "Still capture timed out in "
+                                            + StillCaptureStateMachine.getStateName(state));
+                        }
+                    });
+    private final Runnable mStillCaptureDeadline =
+            new Runnable() {
+                @Override
+                public void run() {
+                    mStillCapture.onDeadline(SystemClock.elapsedRealtime());
+                }
+            };
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} that feeds capture results to {@link
+     * #mStillCapture}.
+     */
+    private CameraCaptureSession.CaptureCallback mCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+
+                private void process(CaptureResult result) {
+                    if (mStillCapture.getState() == StillCaptureStateMachine.STATE_PREVIEW)
+                        return;
+                    final Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+                    // CONTROL_AE_STATE can be null on some devices
+                    final Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                    mStillCapture.onResult(
+                            afState != null ? afState : StillCaptureStateMachine.UNKNOWN,
+                            aeState != null ? aeState : StillCaptureStateMachine.UNKNOWN,
+                            SystemClock.elapsedRealtime());
                 }
 
                 @Override
@@ -238,6 +404,18 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                         @NonNull CameraCaptureSession session,
                         @NonNull CaptureRequest request,
                         @NonNull TotalCaptureResult result) {
+                    mLastPreviewResult = result;
+                    final ZslFrameRing ring = mZslRing;
+                    if (ring != null)
+                        ring.addResult(result);
+                    final long recordRequestNs = mRecordRequestNs;
+                    // Frames from before the video session was configured don't count
+                    if (recordRequestNs >= 0 && !mStartRecorderWhenConfigured) {
+                        mRecordRequestNs = -1;
+                        CaptureMetrics.reportRecordingLatency(
+                                (SystemClock.elapsedRealtimeNanos() - recordRequestNs) / 1000000,
+                                mRecordRequestPrewarmed);
+                    }
                     process(result);
                 }
             };
@@ -245,27 +423,59 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             new CameraDevice.StateCallback() {
                 @Override
                 public void onOpened(@NonNull CameraDevice cameraDevice) {
-                    mCameraOpenCloseLock.release();
-                    mCameraDevice = cameraDevice;
-                    startPreview();
-                    if (null != mTextureView) {
-                        configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
+                    if (mOpeningGeneration != mCameraGeneration) {
+                        // Closed or paused while it was opening
+                        cameraDevice.close();
+                        onOpenFinished();
+                        return;
                     }
-                    onCameraOpened();
+                    mCameraDevice = cameraDevice;
+                    // The old device still holds the preview surface, see onClosed
+                    if (mClosingDevice != null)
+                        mPreviewAfterClose = true;
+                    else
+                        startPreview();
+                    onOpenFinished();
+                    mMainHandler.post(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    onPreviewReady();
+                                }
+                            });
                 }
 
                 @Override
                 public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-                    mCameraOpenCloseLock.release();
+                    if (cameraDevice == mClosingDevice)
+                        return;
+                    final boolean opening = cameraDevice != mCameraDevice;
                     cameraDevice.close();
                     mCameraDevice = null;
+                    if (opening)
+                        onOpenFinished();
                 }
 
                 @Override
                 public void onError(@NonNull CameraDevice cameraDevice, int error) {
-                    mCameraOpenCloseLock.release();
+                    if (cameraDevice == mClosingDevice)
+                        return;
+                    final boolean opening = cameraDevice != mCameraDevice;
                     cameraDevice.close();
                     mCameraDevice = null;
+                    if (opening) {
+                        onOpenFinished();
+                        // Closed or paused while it was opening
+                        if (mOpeningGeneration != mCameraGeneration)
+                            return;
+                        if (mClosingDevice != null
+                                && (error == ERROR_MAX_CAMERAS_IN_USE
+                                        || error == ERROR_CAMERA_IN_USE)) {
+                            // Only one device at a time here, open again once the old one closed
+                            mRetryOpen = mLatestOpen;
+                            return;
+                        }
+                    }
 
                     String errorMsg = "Unknown camera error";
                     switch (error) {
@@ -285,105 +495,83 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                             errorMsg = "Camera service has encountered a fatal error, please try again.";
                             break;
                     }
-                    throwError(new Exception(errorMsg));
+                    postError(new Exception(errorMsg));
+                }
+
+                @Override
+                public void onClosed(@NonNull CameraDevice cameraDevice) {
+                    if (cameraDevice != mClosingDevice)
+                        return;
+                    mClosingDevice = null;
+                    if (mRetryOpen != null) {
+                        final Runnable retry = mRetryOpen;
+                        mRetryOpen = null;
+                        retry.run();
+                    } else if (mPreviewAfterClose) {
+                        mPreviewAfterClose = false;
+                        if (mCameraDevice != null)
+                            startPreview();
+                    }
                 }
             };
 
+    /**
+     * Drops the pooled JPEG buffers, for when the system is low on memory.
+     *
+     * @return how many bytes the buffers held
+     */
+    static long releaseCachedBuffers() {
+        return JPEG_BUFFER_POOL.clear();
+    }
+
     public static Camera2Fragment newInstance() {
         Camera2Fragment fragment = new Camera2Fragment();
         fragment.setRetainInstance(true);
         return fragment;
     }
 
-    private static Size chooseVideoSize(BaseCaptureInterface ci, Size[] choices) {
-        Size backupSize = null;
-        for (Size size : choices) {
-            if (size.getHeight() <= ci.videoPreferredHeight()) {
-                if (size.getWidth() == size.getHeight() * ci.videoPreferredAspect())
-                    return size;
-                if (ci.videoPreferredHeight() >= size.getHeight())
-                    backupSize = size;
-            }
-        }
-        if (backupSize != null)
-            return backupSize;
-        LOG(Camera2Fragment.class, "Couldn't find any suitable video size");
-        return choices[choices.length - 1];
-    }
-
-    private static Size chooseOptimalSize(Size[] choices, int width, int height, Size aspectRatio) {
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getHeight() == option.getWidth() * h / w
-                    && option.getWidth() >= width
-                    && option.getHeight() >= height) {
-                bigEnough.add(option);
-            }
-        }
-
-        // Pick the smallest of those, assuming we found any
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else {
-            LOG(Camera2Fragment.class, "Couldn't find any suitable preview size");
-            return aspectRatio;
-        }
+    private static Size chooseVideoSize(
+            BaseCaptureInterface ci, CameraCapabilities.CameraInfo camera) {
+        final int index =
+                camera
+                        .getVideoSizeSelector()
+                        .chooseVideoSize(ci.videoPreferredHeight(), ci.videoPreferredAspect());
+        return camera.getVideoSizes()[index];
     }
 
     /**
-     * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that is
+     * Given the {@code Size}s supported by a camera for preview, choose the smallest one that is
      * at least as large as the respective texture view size, and that is at most as large as the
      * respective max size, and whose aspect ratio matches with the specified value. If such size
      * doesn't exist, choose the largest one that is at most as large as the respective max size, and
      * whose aspect ratio matches with the specified value.
      *
-     * @param choices           The list of sizes that the camera supports for the intended output class
+     * @param camera            The camera whose preview sizes are considered
      * @param textureViewWidth  The width of the texture view relative to sensor coordinate
      * @param textureViewHeight The height of the texture view relative to sensor coordinate
      * @param maxWidth          The maximum width that can be chosen
      * @param maxHeight         The maximum height that can be chosen
      * @param aspectRatio       The aspect ratio
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
+     * @return The optimal {@code Size}, or the largest one within the max size if the aspect ratio
+     * can't be matched
      */
     private static Size chooseOptimalSize(
-            Size[] choices,
+            CameraCapabilities.CameraInfo camera,
             int textureViewWidth,
             int textureViewHeight,
             int maxWidth,
             int maxHeight,
             Size aspectRatio) {
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        // Collect the supported resolutions that are smaller than the preview Surface
-        List<Size> notBigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getWidth() <= maxWidth
-                    && option.getHeight() <= maxHeight
-                    && option.getHeight() == option.getWidth() * h / w) {
-                if (option.getWidth() >= textureViewWidth && option.getHeight() >= textureViewHeight) {
-                    bigEnough.add(option);
-                } else {
-                    notBigEnough.add(option);
-                }
-            }
-        }
-
-        // Pick the smallest of those big enough. If there is no one big enough, pick the
-        // largest of those not big enough.
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else if (notBigEnough.size() > 0) {
-            return Collections.max(notBigEnough, new CompareSizesByArea());
-        } else {
-            LOG(Camera2Fragment.class, "Couldn't find any suitable preview size");
-            return choices[0];
-        }
+        final int index =
+                camera
+                        .getPreviewSizeSelector()
+                        .choosePreviewSize(
+                                textureViewWidth,
+                                textureViewHeight,
+                                maxWidth,
+                                maxHeight,
+                                (float) aspectRatio.getWidth() / aspectRatio.getHeight());
+        return camera.getPreviewSizes()[index];
     }
 
     @Override
@@ -405,7 +593,6 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
     @Override
     public void onResume() {
         super.onResume();
-        startBackgroundThread();
         if (mTextureView.isAvailable()) {
             openCamera();
         } else {
@@ -413,34 +600,63 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
         }
     }
 
-    @Override
-    public void onPause() {
-        stopBackgroundThread();
-        super.onPause();
+    private void postError(final Exception e) {
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        throwError(e);
+                    }
+                });
     }
 
     /**
-     * Starts a background thread and its {@link Handler}.
+     * The thread shared by every Camera2 screen, so an open always runs after the previous release
+     * and no device callback is lost to a thread that quit. The session, the request builders, the
+     * recorder and the readers are only used here.
      */
-    private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+    private static synchronized Looper getBackgroundLooper() {
+        if (sBackgroundThread == null) {
+            sBackgroundThread = new HandlerThread("CameraBackground");
+            sBackgroundThread.start();
+        }
+        return sBackgroundThread.getLooper();
     }
 
-    private void stopBackgroundThread() {
-        stopCounter();
-        mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * The thread closing the old device of a camera switch, so the background thread can open the
+     * new one meanwhile.
+     */
+    private static synchronized Handler getCloseHandler() {
+        if (sCloseThread == null) {
+            sCloseThread = new HandlerThread("CameraClose");
+            sCloseThread.start();
         }
+        return new Handler(sCloseThread.getLooper());
+    }
+
+    /**
+     * The opening device called back, on the background thread. Runs the open that waited for it.
+     */
+    private static void onOpenFinished() {
+        sOpening = false;
+        final Runnable deferred = sDeferredOpen;
+        sDeferredOpen = null;
+        if (deferred != null)
+            deferred.run();
+    }
+
+    private void postCamera2Unsupported() {
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isAdded())
+                            new ErrorDialog().show(getFragmentManager(), "dialog");
+                    }
+                });
     }
 
-    @SuppressLint("MissingPermission")
     @Override
     public void openCamera() {
         final int width = mTextureView.getWidth();
@@ -450,89 +666,204 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
         if (null == activity || activity.isFinishing())
             return;
 
-        final CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-        try {
-            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throwError(new Exception("Time out waiting to lock camera opening."));
-                return;
-            }
+        final int generation = ++mCameraGeneration;
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        lookUpCameras(generation, activity, width, height);
+                    }
+                });
+    }
 
-            if (mInterface.getFrontCamera() == null || mInterface.getBackCamera() == null) {
-                for (String cameraId : manager.getCameraIdList()) {
-                    if (cameraId == null)
-                        continue;
-                    if (mInterface.getFrontCamera() != null && mInterface.getBackCamera() != null)
-                        break;
-                    CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-                    //noinspection ConstantConditions
-                    int facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                    if (facing == CameraCharacteristics.LENS_FACING_FRONT)
-                        mInterface.setFrontCamera(cameraId);
-                    else if (facing == CameraCharacteristics.LENS_FACING_BACK)
-                        mInterface.setBackCamera(cameraId);
-                }
+    /**
+     * Finds the front and back cameras on the background thread, the characteristics may not be
+     * cached yet. Continues on the main thread in {@link #onCamerasFound}.
+     */
+    private void lookUpCameras(
+            final int generation, final Activity activity, final int width, final int height) {
+        if (generation != mCameraGeneration)
+            return;
+        String front = null;
+        String back = null;
+        try {
+            final CameraCapabilities capabilities = CameraCapabilities.get(activity);
+            for (String id : capabilities.getCameraIds()) {
+                if (id == null)
+                    continue;
+                if (front != null && back != null)
+                    break;
+                int facing = capabilities.getCamera(id).getFacing();
+                if (facing == CameraCharacteristics.LENS_FACING_FRONT && front == null)
+                    front = id;
+                else if (facing == CameraCharacteristics.LENS_FACING_BACK && back == null)
+                    back = id;
             }
+        } catch (CameraAccessException e) {
+            postError(new Exception("Cannot access the camera.", e));
+            return;
+        } catch (NullPointerException e) {
+            // Currently an NPE is thrown when the Camera2API is used but not supported on the
+            // device this code runs.
+            postCamera2Unsupported();
+            return;
+        }
+        final String frontId = front;
+        final String backId = back;
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        onCamerasFound(generation, activity, frontId, backId, width, height);
+                    }
+                });
+    }
 
-            switch (mInterface.getCurrentCameraPosition()) {
-                case BaseCaptureActivity.CAMERA_POSITION_FRONT:
-                    setImageRes(mButtonFacing, mInterface.iconRearCamera());
-                    break;
-                case BaseCaptureActivity.CAMERA_POSITION_BACK:
-                    setImageRes(mButtonFacing, mInterface.iconFrontCamera());
-                    break;
-                case BaseCaptureActivity.CAMERA_POSITION_UNKNOWN:
-                default:
-                    if (getArguments().getBoolean(CameraIntentKey.DEFAULT_TO_FRONT_FACING, false)) {
-                        // Check front facing first
-                        if (mInterface.getFrontCamera() != null) {
-                            setImageRes(mButtonFacing, mInterface.iconRearCamera());
-                            mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_FRONT);
-                        } else {
-                            setImageRes(mButtonFacing, mInterface.iconFrontCamera());
-                            if (mInterface.getBackCamera() != null)
-                                mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_BACK);
-                            else
-                                mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_UNKNOWN);
-                        }
+    /**
+     * Picks the camera position and takes the preview texture and the recorder settings on the
+     * main thread, then posts the open.
+     */
+    private void onCamerasFound(
+            final int generation,
+            final Activity activity,
+            String frontId,
+            String backId,
+            final int width,
+            final int height) {
+        if (generation != mCameraGeneration
+                || mInterface == null
+                || mTextureView == null
+                || activity.isFinishing())
+            return;
+        if (mInterface.getFrontCamera() == null && frontId != null)
+            mInterface.setFrontCamera(frontId);
+        if (mInterface.getBackCamera() == null && backId != null)
+            mInterface.setBackCamera(backId);
+
+        switch (mInterface.getCurrentCameraPosition()) {
+            case BaseCaptureActivity.CAMERA_POSITION_FRONT:
+                setImageRes(mButtonFacing, mInterface.iconRearCamera());
+                break;
+            case BaseCaptureActivity.CAMERA_POSITION_BACK:
+                setImageRes(mButtonFacing, mInterface.iconFrontCamera());
+                break;
+            case BaseCaptureActivity.CAMERA_POSITION_UNKNOWN:
+            default:
+                if (getArguments().getBoolean(CameraIntentKey.DEFAULT_TO_FRONT_FACING, false)) {
+                    // Check front facing first
+                    if (mInterface.getFrontCamera() != null) {
+                        setImageRes(mButtonFacing, mInterface.iconRearCamera());
+                        mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_FRONT);
                     } else {
-                        // Check back facing first
-                        if (mInterface.getBackCamera() != null) {
-                            setImageRes(mButtonFacing, mInterface.iconFrontCamera());
+                        setImageRes(mButtonFacing, mInterface.iconFrontCamera());
+                        if (mInterface.getBackCamera() != null)
                             mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_BACK);
-                        } else {
-                            setImageRes(mButtonFacing, mInterface.iconRearCamera());
-                            if (mInterface.getFrontCamera() != null)
-                                mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_FRONT);
-                            else
-                                mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_UNKNOWN);
+                        else
+                            mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_UNKNOWN);
+                    }
+                } else {
+                    // Check back facing first
+                    if (mInterface.getBackCamera() != null) {
+                        setImageRes(mButtonFacing, mInterface.iconFrontCamera());
+                        mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_BACK);
+                    } else {
+                        setImageRes(mButtonFacing, mInterface.iconRearCamera());
+                        if (mInterface.getFrontCamera() != null)
+                            mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_FRONT);
+                        else
+                            mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_UNKNOWN);
+                    }
+                }
+                break;
+        }
+        final String cameraId = (String) mInterface.getCurrentCameraId();
+        if (cameraId == null) {
+            throwError(new Exception("No camera is available."));
+            return;
+        }
+
+        final boolean front =
+                getCurrentCameraPosition() == BaseCaptureActivity.CAMERA_POSITION_FRONT;
+        final SurfaceTexture texture = mTextureView.getSurfaceTexture();
+        // Photo sessions only tell about missing audio once they record
+        final RecorderSetup setup =
+                newRecorderSetup(
+                        null, mInterface.sessionProfile() != MaterialCamera.SESSION_PROFILE_PHOTO);
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // One device opens at a time, the latest request waits for the previous one
+                        if (sOpening) {
+                            sDeferredOpen = this;
+                            return;
                         }
+                        mLatestOpen = this;
+                        openOnBackgroundThread(
+                                generation, activity, cameraId, front, texture, setup, width, height);
                     }
-                    break;
-            }
+                });
+    }
+
+    /**
+     * Chooses the sizes, sets up the readers and opens the device, all on the background thread.
+     * The camera, the preview texture and the recorder setup are taken on the main thread in
+     * {@link #onCamerasFound}, the views are updated there in {@link #onCameraSetUp} and {@link
+     * #onPreviewReady()}.
+     */
+    @SuppressLint("MissingPermission")
+    private void openOnBackgroundThread(
+            final int generation,
+            final Activity activity,
+            final String cameraId,
+            final boolean front,
+            final SurfaceTexture texture,
+            final RecorderSetup setup,
+            final int width,
+            final int height) {
+        // Cancelled before it got its turn
+        if (generation != mCameraGeneration)
+            return;
+        final CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            mPreviewTexture = texture;
+            mRecorderSetup = setup;
+            if (mMediaRecorder == null && !useEncoderBackend())
+                mMediaRecorder = new MediaRecorder();
 
+            final CameraCapabilities capabilities = CameraCapabilities.get(activity);
             // Choose the sizes for camera preview and video recording
-            CameraCharacteristics characteristics =
-                    manager.getCameraCharacteristics((String) mInterface.getCurrentCameraId());
-            StreamConfigurationMap map =
-                    characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            final CameraCapabilities.CameraInfo cameraInfo = capabilities.getCamera(cameraId);
+            CameraCharacteristics characteristics = cameraInfo.getCharacteristics();
+            StreamConfigurationMap map = cameraInfo.getStreamConfigurationMap();
             assert map != null;
 
-            // For still image captures, we use the largest available size.
-            Size largest =
-                    Collections.max(
-                            Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)), new CompareSizesByArea());
+            mSessionProfile = mInterface.sessionProfile();
+            mVideoSize = chooseVideoSize((BaseCaptureInterface) activity, cameraInfo);
+
+            // For still image captures, we use the largest available size, or a smaller one when
+            // memory is low. Video sessions take snapshots at about the video size.
+            final int memoryMode = mInterface.getMemoryMode();
+            final SizeSelector jpegSizes = cameraInfo.getJpegSizeSelector();
+            final int stillIndex;
+            if (mSessionProfile == MaterialCamera.SESSION_PROFILE_VIDEO)
+                stillIndex =
+                        jpegSizes.chooseSnapshotSize(
+                                mVideoSize.getWidth(), mVideoSize.getHeight(), getMaxStillArea(memoryMode));
+            else if (memoryMode != MaterialCamera.MEMORY_MODE_NORMAL)
+                stillIndex = jpegSizes.chooseStillSize(getMaxStillArea(memoryMode));
+            else
+                stillIndex = jpegSizes.largest();
+            final Size stillSize = cameraInfo.getJpegSizes()[stillIndex];
             // Find out if we need to swap dimension to get the preview size relative to sensor
             // coordinate.
             int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-            //noinspection ConstantConditions,ResourceType
-            @Degrees.DegreeUnits final int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            //noinspection ResourceType
+            @Degrees.DegreeUnits final int sensorOrientation = cameraInfo.getSensorOrientation();
 
-            @Degrees.DegreeUnits int deviceRotation = Degrees.getDisplayRotation(getActivity());
+            @Degrees.DegreeUnits int deviceRotation = Degrees.getDisplayRotation(activity);
             mDisplayOrientation =
-                    Degrees.getDisplayOrientation(
-                            sensorOrientation,
-                            deviceRotation,
-                            getCurrentCameraPosition() == BaseCaptureActivity.CAMERA_POSITION_FRONT);
+                    Degrees.getDisplayOrientation(sensorOrientation, deviceRotation, front);
             Log.d(
                     "Camera2Fragment",
                     String.format(
@@ -685,54 +1016,90 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             // garbage capture data.
             mPreviewSize =
                     chooseOptimalSize(
-                            map.getOutputSizes(SurfaceTexture.class),
+                            cameraInfo,
                             rotatedPreviewWidth,
                             rotatedPreviewHeight,
                             maxPreviewWidth,
                             maxPreviewHeight,
-                            largest);
-
-            mImageReader =
-                    ImageReader.newInstance(largest.getWidth(), largest.getHeight(), ImageFormat.JPEG, 2);
+                            stillSize);
+
+            // A burst keeps several frames in flight while they're written to disk
+            mJpegReaderMaxImages =
+                    isBurst()
+                            ? Math.min(mInterface.burstCount(), MAX_BURST_IN_FLIGHT) + 1
+                            : JPEG_READER_MAX_IMAGES;
+            // Under memory pressure, a still waits for the previous one to be written
+            if (memoryMode != MaterialCamera.MEMORY_MODE_NORMAL)
+                mJpegReaderMaxImages = Math.min(mJpegReaderMaxImages, isBurst() ? 2 : 1);
+            if (mImageReader != null
+                    && mImageReader.getWidth() == stillSize.getWidth()
+                    && mImageReader.getHeight() == stillSize.getHeight()
+                    && mImageReader.getMaxImages() == mJpegReaderMaxImages) {
+                // Switching between cameras with the same still size, keep the reader
+                LOG(Camera2Fragment.class, "Reusing the still image reader");
+            } else {
+                releaseImageReader();
+                mImageReader =
+                        ImageReader.newInstance(
+                                stillSize.getWidth(), stillSize.getHeight(), ImageFormat.JPEG, mJpegReaderMaxImages);
+            }
             mImageReader.setOnImageAvailableListener(
                     new ImageReader.OnImageAvailableListener() {
                         @Override
                         public void onImageAvailable(ImageReader reader) {
-                            Image image = reader.acquireNextImage();
-                            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                            final byte[] bytes = new byte[buffer.remaining()];
-                            buffer.get(bytes);
-
-                            final File outputPic = getOutputPictureFile();
-
-                            FileOutputStream output = null;
-                            try {
-                                output = new FileOutputStream(outputPic);
-                                output.write(bytes);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            } finally {
-                                image.close();
-                                if (null != output) {
-                                    try {
-                                        output.close();
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
+                            final Image image = reader.acquireNextImage();
+                            if (image == null)
+                                return;
+                            if (isBurst()) {
+                                final int index = mBurstFrameIndex++;
+                                saveImageAsync(image, getOutputPictureFile(index), index);
+                            } else {
+                                saveImageAsync(image, getOutputPictureFile(), -1);
                             }
-                            Log.d("stillshot", "picture saved to disk - jpeg, size: " + bytes.length);
-                            mPictureOutputUri = Uri.fromFile(outputPic).toString();
-                            mInterface.onShowStillshot(mPictureOutputUri);
                         }
                     },
                     mBackgroundHandler);
 
-            // Initialize video related resources
-            mMediaRecorder = new MediaRecorder();
-            mVideoSize =
-                    chooseVideoSize(
-                            (BaseCaptureInterface) activity, map.getOutputSizes(MediaRecorder.class));
+            final Integer timestampSource =
+                    characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            mRealtimeTimestamps =
+                    timestampSource != null
+                            && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+
+            releaseZsl();
+            int zslDepth = 0;
+            if (mInterface.zeroShutterLag()
+                    && !isBurst()
+                    && memoryMode != MaterialCamera.MEMORY_MODE_CRITICAL
+                    && mSessionProfile != MaterialCamera.SESSION_PROFILE_VIDEO) {
+                final Size zslSize = getZslInputSize(characteristics, map);
+                if (zslSize != null) {
+                    zslDepth =
+                            memoryMode == MaterialCamera.MEMORY_MODE_LOW
+                                    ? Math.min(mInterface.zeroShutterLagDepth(), LOW_MEMORY_ZSL_DEPTH)
+                                    : mInterface.zeroShutterLagDepth();
+                    setUpZsl(characteristics, zslSize, zslDepth);
+                } else {
+                    LOG(Camera2Fragment.class, "Zero shutter lag isn't supported by this camera");
+                }
+            }
+
+            if (memoryMode != MaterialCamera.MEMORY_MODE_NORMAL) {
+                LOG(Camera2Fragment.class, "Memory mode " + memoryMode + ", stills at " + stillSize);
+                CaptureMetrics.reportMemoryAdapted(
+                        memoryMode,
+                        stillSize.getWidth(),
+                        stillSize.getHeight(),
+                        mJpegReaderMaxImages,
+                        mZslActive ? zslDepth : 0);
+            }
+
+            releaseFrameAnalysis();
+            final FrameAnalyzer analyzer = FrameAnalysisPipeline.getAnalyzer();
+            // A fourth stream next to zero shutter lag's is more than most devices can configure
+            if (analyzer != null && !mZslActive)
+                setUpFrameAnalysis(cameraInfo, analyzer, mPreviewSize);
+
             //mPreviewSize =
             //        chooseOptimalSize(
             //                map.getOutputSizes(SurfaceTexture.class),
@@ -740,100 +1107,370 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             //                height,
             //                mVideoSize);
 
-            int orientation = VideoStreamView.getScreenOrientation(activity);
-            if (orientation == ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE
-                    || orientation == ActivityInfo.SCREEN_ORIENTATION_REVERSE_LANDSCAPE) {
-                mTextureView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-            } else {
-                mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
-            }
-
-            mAfAvailable = false;
-            int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
-            if (afModes != null) {
-                for (int i : afModes) {
-                    if (i != 0) {
-                        mAfAvailable = true;
-                        break;
-                    }
-                }
-            }
-
-            configureTransform(width, height);
+            mAfAvailable = cameraInfo.isAutoFocusAvailable();
 
-            mInterface.setFlashModes(CameraUtil.getSupportedFlashModes(getActivity(), characteristics));
-            onFlashModesLoaded();
+            final List<Integer> flashModes = CameraUtil.getSupportedFlashModes(activity, characteristics);
+            mMainHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            onCameraSetUp(generation, flashModes, width, height);
+                        }
+                    });
 
+            mOpeningGeneration = generation;
             // noinspection ResourceType
-            manager.openCamera((String) mInterface.getCurrentCameraId(), mStateCallback, null);
+            manager.openCamera(cameraId, mStateCallback, mBackgroundHandler);
+            // Cleared by mStateCallback
+            sOpening = true;
         } catch (CameraAccessException e) {
-            throwError(new Exception("Cannot access the camera.", e));
+            if (mClosingDevice != null
+                    && (e.getReason() == CameraAccessException.MAX_CAMERAS_IN_USE
+                            || e.getReason() == CameraAccessException.CAMERA_IN_USE)) {
+                // Only one device at a time here, open again once the old one closed
+                mRetryOpen = mLatestOpen;
+                return;
+            }
+            postError(new Exception("Cannot access the camera.", e));
         } catch (NullPointerException e) {
             // Currently an NPE is thrown when the Camera2API is used but not supported on the
             // device this code runs.
-            new ErrorDialog().show(getFragmentManager(), "dialog");
-        } catch (InterruptedException e) {
-            throwError(new Exception("Interrupted while trying to lock camera opening.", e));
+            postCamera2Unsupported();
         }
     }
 
-    @Override
-    public void closeCamera() {
-        try {
-            if (mPictureOutputUri != null) {
-                final File outputFile = new File(Uri.parse(mPictureOutputUri).getPath());
-                if (outputFile.length() == 0)
-                    outputFile.delete();
-            }
-            if (mVideoOutputUri != null) {
-                final File outputFile = new File(Uri.parse(mVideoOutputUri).getPath());
-                if (outputFile.length() == 0)
-                    outputFile.delete();
-            }
-            mCameraOpenCloseLock.acquire();
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
-            }
-            if (null != mMediaRecorder) {
-                mMediaRecorder.release();
-                mMediaRecorder = null;
-            }
-        } catch (InterruptedException e) {
-            throwError(new Exception("Interrupted while trying to lock camera opening.", e));
-        } finally {
-            mCameraOpenCloseLock.release();
+    /**
+     * Fits the views to the camera chosen on the background thread, while its device opens.
+     */
+    private void onCameraSetUp(int generation, List<Integer> flashModes, int width, int height) {
+        if (generation != mCameraGeneration || mInterface == null || mTextureView == null)
+            return;
+
+        int orientation = VideoStreamView.getScreenOrientation(getActivity());
+        if (orientation == ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE
+                || orientation == ActivityInfo.SCREEN_ORIENTATION_REVERSE_LANDSCAPE) {
+            mTextureView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } else {
+            mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
         }
+
+        configureTransform(width, height);
+
+        mInterface.setFlashModes(flashModes);
+        onFlashModesLoaded();
     }
 
-    @Override
-    public void onPreferencesUpdated() {
-        if (mInterface == null
-                //|| !mInterface.useStillshot()
-                || mPreviewSession == null
-                || mPreviewBuilder == null) {
+    /**
+     * The device is open and its preview session is being configured, on the main thread.
+     */
+    private void onPreviewReady() {
+        if (mInterface == null || mCameraDevice == null)
             return;
+        if (null != mTextureView) {
+            configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
         }
-        setFlashMode(mPreviewBuilder);
-        mPreviewRequest = mPreviewBuilder.build();
-        try {
-            mPreviewSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-        } catch (Throwable t) {
-            t.printStackTrace();
-        }
+        onCameraOpened();
     }
 
-    private void startPreview() {
-        if (null == mCameraDevice || !mTextureView.isAvailable() || null == mPreviewSize)
-            return;
-        try {
+    /**
+     * Hands a JPEG {@link Image} to the {@link CaptureExecutor}. While the reader still has a free
+     * slot, the image plane is written to disk directly and the image is closed afterwards.
+     * Otherwise the data is copied into a pooled direct buffer first, so the image can go back to
+     * the reader immediately and the next capture isn't starved.
+     */
+    private void saveImageAsync(final Image image, final File outputPic, final int burstIndex) {
+        final ByteBuffer plane = image.getPlanes()[0].getBuffer();
+        final ByteBuffer data;
+        final Image heldImage;
+        if (mHeldImages.incrementAndGet() < mJpegReaderMaxImages) {
+            data = plane;
+            heldImage = image;
+        } else {
+            mHeldImages.decrementAndGet();
+            data = JPEG_BUFFER_POOL.acquire(plane.remaining());
+            data.put(plane);
+            data.flip();
+            image.close();
+            heldImage = null;
+        }
+
+        final int size = data.remaining();
+        // Written by the task, read by the callback once the task is done
+        final ImageQuality[] quality = new ImageQuality[1];
+        final boolean queued =
+                CaptureExecutor.get()
+                        .submit(
+                                new CaptureExecutor.Task() {
+                                    @Override
+                                    public void run() throws IOException {
+                                        try {
+                                            ImageUtil.saveToDisk(data, outputPic);
+                                        } finally {
+                                            if (heldImage != null) {
+                                                heldImage.close();
+                                                mHeldImages.decrementAndGet();
+                                            } else {
+                                                JPEG_BUFFER_POOL.release(data);
+                                            }
+                                        }
+                                        cacheThumbnail(outputPic);
+                                        uprightStillshot(outputPic);
+                                        if (burstIndex < 0)
+                                            quality[0] = measureStillshot(outputPic);
+                                    }
+                                },
+                                new ICallback() {
+                                    @Override
+                                    public void done(Exception e) {
+                                        if (mInterface == null || getActivity() == null)
+                                            return;
+                                        if (e != null) {
+                                            if (burstIndex >= 0)
+                                                onBurstFrameDone(burstIndex, null);
+                                            if (e instanceof RejectedExecutionException)
+                                                LOG(Camera2Fragment.class, "The capture I/O queue is full, dropping a picture");
+                                            else
+                                                throwError(e);
+                                            return;
+                                        }
+                                        Log.d("stillshot", "picture saved to disk - jpeg, size: " + size);
+                                        if (burstIndex < 0) {
+                                            onStillshotSaved(Uri.fromFile(outputPic).toString(), quality[0]);
+                                        } else {
+                                            onBurstFrameDone(burstIndex, Uri.fromFile(outputPic).toString());
+                                        }
+                                    }
+                                },
+                                mMainHandler);
+        if (!queued) {
+            // Dropped, the callback hears about it
+            if (heldImage != null) {
+                heldImage.close();
+                mHeldImages.decrementAndGet();
+            } else {
+                JPEG_BUFFER_POOL.release(data);
+            }
+        }
+    }
+
+    private boolean isBurst() {
+        return mInterface != null && mInterface.burstCount() > 1;
+    }
+
+    /**
+     * Called on the UI thread when a burst frame has been written ({@code outputUri} set) or was
+     * never delivered by the camera ({@code outputUri} null). Once every frame is accounted for,
+     * the written ones are handed to the activity in capture order.
+     */
+    private void onBurstFrameDone(int index, String outputUri) {
+        if (mBurstOutputUris == null)
+            return;
+        if (outputUri != null && index < mBurstOutputUris.length)
+            mBurstOutputUris[index] = outputUri;
+        if (--mBurstPending > 0)
+            return;
+
+        final List<String> outputUris = new ArrayList<>(mBurstOutputUris.length);
+        for (String uri : mBurstOutputUris) {
+            if (uri != null)
+                outputUris.add(uri);
+        }
+        resetBurst();
+        if (!outputUris.isEmpty())
+            mPictureOutputUri = outputUris.get(0);
+        mInterface.onBurstCaptured(outputUris);
+    }
+
+    /**
+     * Drops the burst state and lets the shutter be pressed again, on the UI thread.
+     */
+    private void resetBurst() {
+        if (mBurstOutputUris == null)
+            return;
+        mBurstOutputUris = null;
+        mBurstPending = 0;
+        if (mButtonStillshot != null)
+            mButtonStillshot.setEnabled(true);
+    }
+
+    private void deleteEmptyOutputs() {
+        if (mPictureOutputUri != null) {
+            final File outputFile = new File(Uri.parse(mPictureOutputUri).getPath());
+            if (outputFile.length() == 0)
+                outputFile.delete();
+        }
+        if (mVideoOutputUri != null) {
+            final File outputFile = new File(Uri.parse(mVideoOutputUri).getPath());
+            if (outputFile.length() == 0)
+                outputFile.delete();
+        }
+    }
+
+    /**
+     * Closes the still image reader, unless pending writes still hold some of its images (closing
+     * it would invalidate them). In that case the reader is left to the garbage collector.
+     */
+    private void releaseImageReader() {
+        if (mImageReader == null)
+            return;
+        if (mHeldImages.get() == 0)
+            mImageReader.close();
+        mImageReader = null;
+    }
+
+    @Override
+    public void closeCamera() {
+        // The session goes away with whatever burst frames were still due
+        resetBurst();
+        deleteEmptyOutputs();
+        // An open still on its way closes its own device
+        mCameraGeneration++;
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseCamera();
+                    }
+                });
+    }
+
+    /**
+     * Closes the device and releases the recorder and the readers, on the background thread.
+     */
+    private void releaseCamera() {
+        // The thread outlives the screen, nothing of this one may run on it afterwards
+        mBackgroundHandler.removeCallbacks(mStillCaptureDeadline);
+        if (null != mCameraDevice) {
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        mPreviewSession = null;
+        mClosingDevice = null;
+        mLatestOpen = null;
+        mRetryOpen = null;
+        mPreviewAfterClose = false;
+        stopVideoRecorder(false);
+        if (mEncoderBackend != null) {
+            mEncoderBackend.release();
+            mEncoderBackend = null;
+        }
+        if (mPersistentSurface != null) {
+            mPersistentSurface.release();
+            mPersistentSurface = null;
+        }
+        releaseZsl();
+        releaseFrameAnalysis();
+        releaseImageReader();
+        mPreviewTexture = null;
+    }
+
+    /**
+     * Switches cameras without a full close/reopen cycle: the media recorder is reset instead of
+     * released, the still image reader is kept if the new camera uses the same size, and sizes come
+     * from the {@link CameraCapabilities} cache. The old device closes on its own thread while the
+     * new one opens, the new session starts once the old device released the preview surface. A HAL
+     * that refuses the second device gets the open again after the close.
+     */
+    @Override
+    protected void switchCamera() {
+        if (mCameraDevice == null) {
+            super.switchCamera();
+            return;
+        }
+
+        deleteEmptyOutputs();
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        closeDeviceForSwitch();
+                    }
+                });
+        openCamera();
+    }
+
+    /**
+     * Stops the current device ahead of a switch, on the background thread, and closes it without
+     * waiting.
+     */
+    private void closeDeviceForSwitch() {
+        // The facing button is hidden while recording, so the recorder is only prepared
+        stopVideoRecorder(true);
+        if (mEncoderBackend != null) {
+            mEncoderBackend.release();
+            mEncoderBackend = null;
+        }
+        releaseZsl();
+        releaseFrameAnalysis();
+        final CameraDevice oldDevice = mCameraDevice;
+        final CameraCaptureSession oldSession = mPreviewSession;
+        mClosingDevice = oldDevice;
+        mCameraDevice = null;
+        mPreviewSession = null;
+        if (oldSession != null) {
+            try {
+                // Drop in-flight requests instead of waiting for them to complete
+                oldSession.abortCaptures();
+            } catch (CameraAccessException | IllegalStateException e) {
+                LOG(Camera2Fragment.class, "Unable to abort captures: " + e.getMessage());
+            }
+        }
+        if (oldDevice != null) {
+            getCloseHandler()
+                    .post(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    oldDevice.close();
+                                }
+                            });
+        }
+    }
+
+    @Override
+    public void onPreferencesUpdated() {
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        updatePreviewPreferences();
+                    }
+                });
+    }
+
+    private void updatePreviewPreferences() {
+        if (mInterface == null
+                //|| !mInterface.useStillshot()
+                || mPreviewSession == null
+                || mPreviewBuilder == null) {
+            return;
+        }
+        setFlashMode(mPreviewBuilder);
+        mPreviewRequest = mPreviewBuilder.build();
+        try {
+            mPreviewSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private void startPreview() {
+        if (null == mCameraDevice || null == mPreviewTexture || null == mPreviewSize)
+            return;
+        // Photo sessions leave the encoder out, video sessions started from photo mode have no still
+        // stream since the reader is sensor sized
+        final boolean recorder = mSessionProfile != MaterialCamera.SESSION_PROFILE_PHOTO;
+        final boolean stills =
+                mSessionProfile != MaterialCamera.SESSION_PROFILE_VIDEO
+                        || mInterface.sessionProfile() == MaterialCamera.SESSION_PROFILE_VIDEO;
+        final boolean zsl = mZslActive && mSessionProfile != MaterialCamera.SESSION_PROFILE_VIDEO;
+        try {
             //if (!mInterface.useStillshot()) {
-            if (!setUpMediaRecorder()) {
+            if (recorder && !setUpMediaRecorder()) {
                 return;
             }
             //}
-            SurfaceTexture texture = mTextureView.getSurfaceTexture();
-            assert texture != null;
+            final SurfaceTexture texture = mPreviewTexture;
             texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
 
             List<Surface> surfaces = new ArrayList<>();
@@ -852,15 +1489,26 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             //surfaces.add(recorderSurface);
             //mPreviewBuilder.addTarget(recorderSurface);
             //}
-            mPreviewBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            mPreviewBuilder =
+                    mCameraDevice.createCaptureRequest(
+                            recorder ? CameraDevice.TEMPLATE_RECORD : CameraDevice.TEMPLATE_PREVIEW);
             mPreviewBuilder.addTarget(previewSurface);
-            surfaces.add(mImageReader.getSurface());
-            Surface recorderSurface = mMediaRecorder.getSurface();
-            surfaces.add(recorderSurface);
-            mPreviewBuilder.addTarget(recorderSurface);
+            mStillStreamConfigured = stills;
+            if (stills)
+                surfaces.add(mImageReader.getSurface());
+            if (recorder) {
+                final Surface recorderSurface;
+                if (mEncoderBackend != null)
+                    recorderSurface = mEncoderBackend.getInputSurface();
+                else if (mPersistentSurface != null)
+                    recorderSurface = mPersistentSurface;
+                else
+                    recorderSurface = mMediaRecorder.getSurface();
+                surfaces.add(recorderSurface);
+                mPreviewBuilder.addTarget(recorderSurface);
+            }
 
-            mCameraDevice.createCaptureSession(
-                    surfaces,
+            final CameraCaptureSession.StateCallback sessionCallback =
                     new CameraCaptureSession.StateCallback() {
                         @Override
                         public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
@@ -868,20 +1516,214 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                                 return;
                             }
                             mPreviewSession = cameraCaptureSession;
+                            // A sequence on the previous session won't complete
+                            mStillCapture.reset();
+                            mLastPreviewResult = null;
+                            if (zsl)
+                                mZslRing.setInputSurface(cameraCaptureSession.getInputSurface());
                             updatePreview();
+                            if (mStartRecorderWhenConfigured) {
+                                mAwaitingVideoSession = false;
+                                startRecorderForNextSegment();
+                            }
                         }
 
                         @Override
                         public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-                            throwError(new Exception("Camera configuration failed"));
+                            if (zsl && mCameraDevice != null) {
+                                // The extra full resolution stream didn't fit, carry on without it
+                                LOG(Camera2Fragment.class, "Zero shutter lag session failed, falling back");
+                                releaseZsl();
+                                if (mMediaRecorder != null)
+                                    mMediaRecorder.reset();
+                                startPreview();
+                                return;
+                            }
+                            if (mAnalysisReader != null && mCameraDevice != null) {
+                                LOG(Camera2Fragment.class, "Frame analysis session failed, falling back");
+                                releaseFrameAnalysis();
+                                if (mMediaRecorder != null)
+                                    mMediaRecorder.reset();
+                                startPreview();
+                                return;
+                            }
+                            postError(new Exception("Camera configuration failed"));
                         }
-                    },
-                    mBackgroundHandler);
+                    };
+
+            if (mAnalysisReader != null) {
+                surfaces.add(mAnalysisReader.getSurface());
+                mPreviewBuilder.addTarget(mAnalysisReader.getSurface());
+            }
+            if (zsl) {
+                surfaces.add(mZslReader.getSurface());
+                mPreviewBuilder.addTarget(mZslReader.getSurface());
+                mCameraDevice.createReprocessableCaptureSession(
+                        new InputConfiguration(
+                                mZslReader.getWidth(), mZslReader.getHeight(), ImageFormat.YUV_420_888),
+                        surfaces,
+                        sessionCallback,
+                        mBackgroundHandler);
+            } else {
+                mCameraDevice.createCaptureSession(surfaces, sessionCallback, mBackgroundHandler);
+            }
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Rebuilds the session with the streams of another profile, see {@link #mSessionProfile}.
+     */
+    private void switchSessionProfile(@MaterialCamera.SessionProfile int profile) {
+        LOG(Camera2Fragment.class, "Switching the session profile from " + mSessionProfile + " to " + profile);
+        mSessionProfile = profile;
+        startPreview();
+    }
+
+    /**
+     * Returns the largest YUV size the camera can reprocess into a JPEG, or null if it can't do YUV
+     * reprocessing (in which case zero shutter lag falls back to the regular capture sequence).
+     */
+    private static Size getZslInputSize(
+            CameraCharacteristics characteristics, StreamConfigurationMap map) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return null;
+        final int[] capabilities =
+                characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean yuvReprocessing = false;
+        if (capabilities != null) {
+            for (int capability : capabilities) {
+                if (capability
+                        == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_YUV_REPROCESSING) {
+                    yuvReprocessing = true;
+                    break;
+                }
+            }
+        }
+        if (!yuvReprocessing)
+            return null;
+
+        boolean jpegOutput = false;
+        for (int format : map.getValidOutputFormatsForInput(ImageFormat.YUV_420_888)) {
+            if (format == ImageFormat.JPEG) {
+                jpegOutput = true;
+                break;
+            }
+        }
+        final Size[] inputSizes = map.getInputSizes(ImageFormat.YUV_420_888);
+        if (!jpegOutput || inputSizes == null || inputSizes.length == 0)
+            return null;
+        return Collections.max(Arrays.asList(inputSizes), new CompareSizesByArea());
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setUpZsl(CameraCharacteristics characteristics, Size size, int depth) {
+        mZslRing = new ZslFrameRing(depth);
+        // On top of the ring, one image is being delivered and one is on its way to be reprocessed
+        mZslReader =
+                ImageReader.newInstance(
+                        size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, depth + 2);
+        mZslReader.setOnImageAvailableListener(
+                new ImageReader.OnImageAvailableListener() {
+                    @Override
+                    public void onImageAvailable(ImageReader reader) {
+                        final Image image = reader.acquireNextImage();
+                        if (image == null)
+                            return;
+                        final ZslFrameRing ring = mZslRing;
+                        if (ring != null)
+                            ring.addImage(image);
+                        else
+                            image.close();
+                    }
+                },
+                mBackgroundHandler);
+        mZslActive = true;
+    }
+
+    private void releaseZsl() {
+        mZslActive = false;
+        if (mZslRing != null) {
+            mZslRing.clear();
+            mZslRing = null;
+        }
+        if (mZslReader != null) {
+            mZslReader.close();
+            mZslReader = null;
+        }
+    }
+
+    /**
+     * Attaches a YUV reader no larger than the analyzer asks for, preferably with the preview's
+     * aspect ratio so both show the same field of view.
+     */
+    private void setUpFrameAnalysis(
+            CameraCapabilities.CameraInfo cameraInfo, FrameAnalyzer analyzer, Size previewSize) {
+        final SizeSelector sizes = cameraInfo.getYuvSizeSelector();
+        final float aspect = (float) previewSize.getWidth() / previewSize.getHeight();
+        int index = sizes.largestWithin(analyzer.getMaxWidth(), analyzer.getMaxHeight(), aspect);
+        if (index == -1)
+            index = sizes.largestWithin(analyzer.getMaxWidth(), analyzer.getMaxHeight(), 0);
+        if (index == -1)
+            index = sizes.smallest();
+        if (index == -1) {
+            LOG(Camera2Fragment.class, "No YUV output for frame analysis");
+            return;
+        }
+        final Size size = cameraInfo.getYuvSizes()[index];
+        final FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline(analyzer);
+        // One frame being analyzed, one pending and one being delivered
+        final ArrayDeque<ImageAnalysisFrame> frames =
+                ImageAnalysisFrame.createPool(ANALYSIS_READER_MAX_IMAGES, mDisplayOrientation);
+        mAnalysisReader =
+                ImageReader.newInstance(
+                        size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, ANALYSIS_READER_MAX_IMAGES);
+        mAnalysisReader.setOnImageAvailableListener(
+                new ImageReader.OnImageAvailableListener() {
+                    @Override
+                    public void onImageAvailable(ImageReader reader) {
+                        final Image image;
+                        try {
+                            image = reader.acquireNextImage();
+                        } catch (IllegalStateException e) {
+                            // Every image is still held by the pipeline, this frame is skipped
+                            return;
+                        }
+                        if (image == null)
+                            return;
+                        final ImageAnalysisFrame frame = ImageAnalysisFrame.obtain(frames, image);
+                        if (frame != null)
+                            pipeline.submit(frame);
+                    }
+                },
+                mBackgroundHandler);
+        mFramePipeline = pipeline;
+        LOG(Camera2Fragment.class, "Frame analysis at " + size.getWidth() + "x" + size.getHeight());
+    }
+
+    private void releaseFrameAnalysis() {
+        final ImageReader reader = mAnalysisReader;
+        mAnalysisReader = null;
+        if (reader != null)
+            reader.setOnImageAvailableListener(null, null);
+        if (mFramePipeline != null) {
+            // The analyzer may still be reading an image's planes, close the reader after it
+            mFramePipeline.release(
+                    reader == null
+                            ? null
+                            : new Runnable() {
+                                @Override
+                                public void run() {
+                                    reader.close();
+                                }
+                            });
+            mFramePipeline = null;
+        } else if (reader != null) {
+            reader.close();
+        }
+    }
+
     private void updatePreview() {
         if (null == mCameraDevice) {
             return;
@@ -946,92 +1788,266 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
         mTextureView.setTransform(matrix);
     }
 
-    private boolean setUpMediaRecorder() {
+    private boolean useEncoderBackend() {
+        return mInterface.videoEncoder() == MaterialCamera.VIDEO_ENCODER_MEDIA_CODEC;
+    }
+
+    /**
+     * Whether audio can be recorded, letting the user know if it's enabled but not permitted.
+     */
+    private boolean canRecordAudio(Activity activity, boolean notify) {
+        if (mInterface.audioDisabled())
+            return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && ContextCompat.checkSelfPermission(activity, Manifest.permission.RECORD_AUDIO)
+                        != PackageManager.PERMISSION_GRANTED) {
+            if (notify)
+                Toast.makeText(activity, R.string.mcam_no_audio_access, Toast.LENGTH_LONG).show();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gathers the recorder settings on the main thread, for the recorder prepared on the background
+     * thread.
+     *
+     * @param output file for the next preparation, or null to pick a new one there
+     * @param notify whether to tell the user that audio isn't permitted
+     */
+    private RecorderSetup newRecorderSetup(File output, boolean notify) {
         final Activity activity = getActivity();
-        if (null == activity)
+        if (activity == null || mInterface == null)
+            return null;
+        final RecorderSetup setup = new RecorderSetup();
+        setup.profile = CamcorderProfile.get(0, mInterface.qualityProfile());
+        setup.frameRate = mInterface.videoFrameRate(setup.profile.videoFrameRate);
+        setup.bitRate = getVideoBitRate(setup.profile.videoBitRate);
+        setup.audioBitRate = mInterface.audioEncodingBitRate(setup.profile.audioBitRate);
+        setup.audio = canRecordAudio(activity, notify);
+        setup.output = output;
+        return setup;
+    }
+
+    /**
+     * Output of the recorder being prepared, on the background thread.
+     */
+    private File takeRecorderOutput() {
+        final File output = mRecorderSetup.output;
+        mRecorderSetup.output = null;
+        final File file = output != null ? output : getFirstVideoOutputFile();
+        final String uri = Uri.fromFile(file).toString();
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        mVideoOutputUri = uri;
+                    }
+                });
+        return file;
+    }
+
+    private boolean setUpMediaRecorder() {
+        if (null == getActivity() || null == mRecorderSetup)
             return false;
-        final BaseCaptureInterface captureInterface = (BaseCaptureInterface) activity;
+        if (useEncoderBackend())
+            return setUpEncoderBackend();
         if (mMediaRecorder == null)
             mMediaRecorder = new MediaRecorder();
 
-        boolean canUseAudio = true;
-        boolean audioEnabled = !mInterface.audioDisabled();
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-            canUseAudio =
-                    ContextCompat.checkSelfPermission(activity, Manifest.permission.RECORD_AUDIO)
-                            == PackageManager.PERMISSION_GRANTED;
-
-        if (canUseAudio && audioEnabled) {
+        final RecorderSetup setup = mRecorderSetup;
+        final CamcorderProfile profile = setup.profile;
+        if (setup.audio)
             mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
-        } else if (audioEnabled) {
-            Toast.makeText(getActivity(), R.string.mcam_no_audio_access, Toast.LENGTH_LONG).show();
-        }
         mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
 
-        final CamcorderProfile profile = CamcorderProfile.get(0, mInterface.qualityProfile());
         mMediaRecorder.setOutputFormat(profile.fileFormat);
-        mMediaRecorder.setVideoFrameRate(mInterface.videoFrameRate(profile.videoFrameRate));
+        mMediaRecorder.setVideoFrameRate(setup.frameRate);
         mMediaRecorder.setVideoSize(mVideoSize.getWidth(), mVideoSize.getHeight());
-        mMediaRecorder.setVideoEncodingBitRate(mInterface.videoEncodingBitRate(profile.videoBitRate));
+        mMediaRecorder.setVideoEncodingBitRate(setup.bitRate);
         mMediaRecorder.setVideoEncoder(profile.videoCodec);
 
-        if (canUseAudio && audioEnabled) {
-            mMediaRecorder.setAudioEncodingBitRate(mInterface.audioEncodingBitRate(profile.audioBitRate));
+        if (setup.audio) {
+            mMediaRecorder.setAudioEncodingBitRate(setup.audioBitRate);
             mMediaRecorder.setAudioChannels(profile.audioChannels);
             mMediaRecorder.setAudioSamplingRate(profile.audioSampleRate);
             mMediaRecorder.setAudioEncoder(profile.audioCodec);
         }
 
-        Uri uri = Uri.fromFile(getOutputMediaFile());
-        mVideoOutputUri = uri.toString();
-        mMediaRecorder.setOutputFile(uri.getPath());
+        mRecorderOutput = takeRecorderOutput();
+        mMediaRecorder.setOutputFile(mRecorderOutput.getPath());
 
-        if (captureInterface.maxAllowedFileSize() > 0) {
-            mMediaRecorder.setMaxFileSize(captureInterface.maxAllowedFileSize());
-            mMediaRecorder.setOnInfoListener(
-                    new MediaRecorder.OnInfoListener() {
-                        @Override
-                        public void onInfo(MediaRecorder mediaRecorder, int what, int extra) {
-                            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
-                                Toast.makeText(
-                                        getActivity(), R.string.mcam_file_size_limit_reached, Toast.LENGTH_SHORT)
-                                        .show();
-                                stopRecordingVideo(false);
-                            }
-                        }
-                    });
-        }
+        setUpRecorderLimits(mMediaRecorder);
 
         mMediaRecorder.setOrientationHint(mDisplayOrientation);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mInterface.persistentRecorderSurface())
+            setUpPersistentSurface();
 
         try {
             mMediaRecorder.prepare();
             return true;
         } catch (Throwable e) {
-            throwError(new Exception("Failed to prepare the media recorder: " + e.getMessage(), e));
+            postError(new Exception("Failed to prepare the media recorder: " + e.getMessage(), e));
+            return false;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setUpPersistentSurface() {
+        mMediaRecorder.setInputSurface(getPersistentSurface());
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private Surface getPersistentSurface() {
+        if (mPersistentSurface == null)
+            mPersistentSurface = MediaCodec.createPersistentInputSurface();
+        return mPersistentSurface;
+    }
+
+    /**
+     * The {@link #setUpMediaRecorder()} counterpart for the MediaCodec backend, which takes the
+     * same profile based defaults plus its own encoder settings.
+     */
+    private boolean setUpEncoderBackend() {
+        if (mEncoderBackend == null) {
+            mEncoderBackend =
+                    new MediaCodecBackend(
+                            new VideoEncoderBackend.Listener() {
+                                @Override
+                                public void onLimitReached(boolean fileSize) {
+                                    if (isRecording())
+                                        onRecorderLimitReached(fileSize);
+                                }
+
+                                @Override
+                                public void onError(Exception e) {
+                                    if (!isRecording())
+                                        return;
+                                    abortRecording();
+                                    throwError(new Exception("Recording failed: " + e.getMessage(), e));
+                                }
+                            });
+        }
+
+        final RecorderSetup setup = mRecorderSetup;
+        final VideoEncoderConfig config = new VideoEncoderConfig();
+        config.width = mVideoSize.getWidth();
+        config.height = mVideoSize.getHeight();
+        config.frameRate = setup.frameRate;
+        config.bitRate = setup.bitRate;
+        config.bitRateMode = mInterface.videoBitRateMode();
+        config.iFrameInterval = mInterface.videoKeyFrameInterval();
+        config.profile = mInterface.videoCodecProfile();
+        config.level = mInterface.videoCodecLevel();
+        config.codecPreference = mInterface.videoCodecPreference();
+        config.orientationHint = mDisplayOrientation;
+        config.audio = setup.audio;
+        config.audioBitRate = setup.audioBitRate;
+        config.audioSampleRate = setup.profile.audioSampleRate;
+        config.audioChannels = setup.profile.audioChannels;
+        config.maxFileSize = getRecorderMaxFileSize();
+        config.maxDurationMs = getRecorderMaxDuration();
+        config.realtimeTimestamps = mRealtimeTimestamps;
+
+        final File output = takeRecorderOutput();
+        try {
+            mEncoderBackend.prepare(
+                    config,
+                    output,
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mInterface.persistentRecorderSurface()
+                            ? getPersistentSurface()
+                            : null);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            postError(new Exception("Failed to prepare the video encoder: " + e.getMessage(), e));
             return false;
         }
     }
 
+    @Override
+    protected boolean onVideoBitRateChanged(final int bitRate) {
+        // The codec backend adapts mid-file, MediaRecorder waits for the next segment
+        if (!useEncoderBackend())
+            return false;
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mEncoderBackend != null)
+                            mEncoderBackend.setVideoBitRate(bitRate);
+                    }
+                });
+        return true;
+    }
+
+    private void startVideoRecorder() {
+        if (mEncoderBackend != null) {
+            mEncoderBackend.start();
+        } else {
+            mMediaRecorder.start();
+            mRecorderStarted = true;
+        }
+    }
+
+    /**
+     * Finishes the current file, keeping the recorder for the next one or releasing it. A file the
+     * recorder failed to finish is deleted.
+     */
+    private void stopVideoRecorder(boolean keep) {
+        if (mEncoderBackend != null)
+            mEncoderBackend.stop();
+        if (mMediaRecorder == null)
+            return;
+        if (mRecorderStarted) {
+            mRecorderStarted = false;
+            try {
+                mMediaRecorder.stop();
+            } catch (Throwable t) {
+                if (mRecorderOutput != null)
+                    //noinspection ResultOfMethodCallIgnored
+                    mRecorderOutput.delete();
+                t.printStackTrace();
+            }
+        }
+        mRecorderOutput = null;
+        if (keep) {
+            mMediaRecorder.reset();
+        } else {
+            mMediaRecorder.release();
+            mMediaRecorder = null;
+        }
+    }
+
     @Override
     public boolean startRecordingVideo() {
+        // Photo sessions only get the recorder now
+        final RecorderSetup setup =
+                newRecorderSetup(
+                        null, mInterface.sessionProfile() == MaterialCamera.SESSION_PROFILE_PHOTO);
+        if (setup == null)
+            return false;
         super.startRecordingVideo();
-        try {
-            // UI
-            //setImageRes(mButtonVideo, mInterface.iconStop());
-            if (!CameraUtil.isChromium())
-                mButtonFacing.setVisibility(View.GONE);
-
-            // Only start counter if count down wasn't already started
-            if (!mInterface.hasLengthLimit()) {
-                mInterface.setRecordingStart(System.currentTimeMillis());
-                startCounter();
-            }
+        final long requestNs = SystemClock.elapsedRealtimeNanos();
+        // UI
+        //setImageRes(mButtonVideo, mInterface.iconStop());
+        if (!CameraUtil.isChromium())
+            mButtonFacing.setVisibility(View.GONE);
 
-            // Start recording
-            mMediaRecorder.start();
+        // Only start counter if count down wasn't already started
+        if (!mInterface.hasLengthLimit()) {
+            mInterface.setRecordingStart(System.currentTimeMillis());
+            startCounter();
+        }
+
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        startRecorder(setup, requestNs);
+                    }
+                });
 
-            //mButtonVideo.setEnabled(false);
+        //mButtonVideo.setEnabled(false);
       /*mButtonVideo.postDelayed(
           new Runnable() {
             @Override
@@ -1041,40 +2057,202 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
           },
           200);*/
 
-            return true;
-        } catch (Throwable t) {
+        return true;
+    }
+
+    /**
+     * Starts the recorder on the background thread, in photo mode once the session has it.
+     */
+    private void startRecorder(RecorderSetup setup, long requestNs) {
+        mRecorderSetup = setup;
+        try {
+            if (mSessionProfile == MaterialCamera.SESSION_PROFILE_PHOTO) {
+                mAwaitingVideoSession = true;
+                mStartRecorderWhenConfigured = true;
+                mRecordRequestPrewarmed = false;
+                switchSessionProfile(MaterialCamera.SESSION_PROFILE_VIDEO);
+            } else {
+                startVideoRecorder();
+                mRecordRequestPrewarmed = true;
+            }
+            mRecordRequestNs = requestNs;
+        } catch (final Throwable t) {
             t.printStackTrace();
-            mInterface.setRecordingStart(-1);
-            stopRecordingVideo(false);
-            throwError(new Exception("Failed to start recording: " + t.getMessage(), t));
+            mMainHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mInterface == null)
+                                return;
+                            mInterface.setRecordingStart(-1);
+                            abortRecording();
+                            throwError(new Exception("Failed to start recording: " + t.getMessage(), t));
+                        }
+                    });
         }
-        return false;
     }
 
+    /**
+     * The recorder surface changes every time the recorder is prepared, so moving to the next
+     * segment rebuilds the session around the new one; recording resumes once it's configured. With
+     * a persistent surface the session is kept and only the recorder is prepared again.
+     */
     @Override
-    public void stopRecordingVideo(boolean reachedZero) {
+    protected void startNextSegment(final Runnable segmentFinalized) {
+        final RecorderSetup setup = newRecorderSetup(getNextVideoOutputFile(), false);
+        if (setup == null) {
+            abortRecording();
+            return;
+        }
+        mVideoOutputUri = Uri.fromFile(setup.output).toString();
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        restartRecorder(setup, segmentFinalized);
+                    }
+                });
+    }
+
+    /**
+     * Moves the recorder to the next segment, on the background thread.
+     */
+    private void restartRecorder(RecorderSetup setup, Runnable segmentFinalized) {
+        mRecorderSetup = setup;
+        if (mEncoderBackend != null) {
+            mEncoderBackend.stop();
+        } else if (mMediaRecorder != null) {
+            mRecorderStarted = false;
+            try {
+                // Usually the recorder already stopped itself at the limit
+                mMediaRecorder.stop();
+            } catch (Throwable ignored) {
+            }
+            mMediaRecorder.reset();
+        }
+        segmentFinalized.run();
+        if (mPersistentSurface != null) {
+            if (setUpMediaRecorder())
+                startRecorderForNextSegment();
+            return;
+        }
+        mStartRecorderWhenConfigured = true;
+        startPreview();
+    }
+
+    private void startRecorderForNextSegment() {
+        mStartRecorderWhenConfigured = false;
+        try {
+            startVideoRecorder();
+        } catch (final Throwable t) {
+            mMainHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            t.printStackTrace();
+                            abortRecording();
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public void stopRecordingVideo(final boolean reachedZero) {
         super.stopRecordingVideo(reachedZero);
+        final boolean autoSubmit = mInterface.hasLengthLimit() && mInterface.shouldAutoSubmit();
+        final boolean started = mInterface.getRecordingStart() >= 0;
+        // For the recorder prepared for the next take
+        final RecorderSetup setup = newRecorderSetup(null, false);
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        stopRecorder(reachedZero, autoSubmit, started, setup);
+                    }
+                });
+    }
+
+    /**
+     * Stops the recorder on the background thread, then finishes on the main thread in {@link
+     * #onRecorderStopped}.
+     */
+    private void stopRecorder(
+            final boolean reachedZero, boolean autoSubmit, boolean started, RecorderSetup setup) {
+        if (setup != null)
+            mRecorderSetup = setup;
+        final boolean awaited = mAwaitingVideoSession;
+        mAwaitingVideoSession = false;
+        mStartRecorderWhenConfigured = false;
+        final boolean submit =
+                autoSubmit && (!started || (mMediaRecorder == null && mEncoderBackend == null));
+        stopVideoRecorder(!submit && mPersistentSurface != null);
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        onRecorderStopped(reachedZero, submit, awaited);
+                    }
+                });
+    }
 
-        if (mInterface.hasLengthLimit()
-                && mInterface.shouldAutoSubmit()
-                && (mInterface.getRecordingStart() < 0 || mMediaRecorder == null)) {
-            stopCounter();
-            releaseRecorder();
-            mInterface.onShowPreview(mVideoOutputUri, reachedZero);
+    private void onRecorderStopped(boolean reachedZero, boolean submit, boolean awaited) {
+        if (mInterface == null)
+            return;
+        stopCounter();
+        if (submit) {
+            showRecordedVideo(reachedZero);
             return;
         }
+        if (awaited && !mInterface.hasLengthLimit()) {
+            // Let go before the video session was ready, nothing was recorded
+            mInterface.setRecordingStart(-1);
+            mInterface.setDidRecord(false);
+        }
 
         if (!mInterface.didRecord())
             mVideoOutputUri = null;
 
-        releaseRecorder();
         //setImageRes(mButtonVideo, mInterface.iconRecord());
-        if (!CameraUtil.isChromium())
+        if (!CameraUtil.isChromium() && mButtonFacing != null)
             mButtonFacing.setVisibility(View.VISIBLE);
-        if (mInterface.getRecordingStart() > -1 && getActivity() != null)
-            mInterface.onShowPreview(mVideoOutputUri, reachedZero);
+        if (mInterface.getRecordingStart() > -1 && getActivity() != null) {
+            showRecordedVideo(reachedZero);
+        } else {
+            mBackgroundHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mSessionProfile != mInterface.sessionProfile())
+                                switchSessionProfile(mInterface.sessionProfile());
+                            else if (mPersistentSurface != null)
+                                setUpMediaRecorder(); // Ready for the next take on the running session
+                        }
+                    });
+        }
+    }
 
-        stopCounter();
+    @Override
+    @TargetApi(Build.VERSION_CODES.O)
+    protected void setNextOutputFile(final File next) {
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (mMediaRecorder == null || !mRecorderStarted)
+                                throw new IllegalStateException("Not recording");
+                            mMediaRecorder.setNextOutputFile(next);
+                        } catch (final IOException | IllegalStateException e) {
+                            mMainHandler.post(
+                                    new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            onNextOutputFileRejected(next, e);
+                                        }
+                                    });
+                        }
+                    }
+                });
     }
 
     @Override
@@ -1084,25 +2262,168 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
      *     https://github.com/googlesamples/android-Camera2Basic/blob/master/Application/src/main/java/com/example/android/camera2basic/Camera2BasicFragment.java
      */
     public void takeStillshot() {
-        lockFocus();
+        if (CaptureExecutor.get().isFull()) {
+            LOG(Camera2Fragment.class, "Still saving earlier pictures, ignoring the capture");
+            return;
+        }
+        final long pressedAt = SystemClock.elapsedRealtime();
+        final long pressNs = SystemClock.elapsedRealtimeNanos();
+        final boolean burst = isBurst();
+        if (burst) {
+            if (mBurstOutputUris != null)
+                return;
+            mBurstOutputUris = new String[mInterface.burstCount()];
+            mBurstPending = mBurstOutputUris.length;
+            mButtonStillshot.setEnabled(false);
+        }
+        mBackgroundHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mStillStreamConfigured) {
+                            if (burst)
+                                postBurstAborted();
+                            return;
+                        }
+                        if (!burst && mZslActive) {
+                            captureZslPicture(mRealtimeTimestamps ? pressNs : -1, pressedAt);
+                            return;
+                        }
+                        if (!startStillCapture(pressedAt) && burst)
+                            postBurstAborted();
+                    }
+                });
     }
 
-    private void lockFocus() {
+    /**
+     * Starts the regular capture sequence, on the background handler.
+     *
+     * @param pressedAt when the shutter was pressed, in {@link SystemClock#elapsedRealtime()} time
+     * @return false if there's no session or a sequence is already running
+     */
+    private boolean startStillCapture(long pressedAt) {
+        if (mPreviewSession == null)
+            return false;
+        final int path =
+                mInterface.fastShutter() ? chooseShutterPath() : StillCaptureStateMachine.PATH_FULL;
+        mBurstIssued = false;
+        if (!mStillCapture.start(SystemClock.elapsedRealtime(), mAfAvailable, path)) {
+            LOG(Camera2Fragment.class, "A still capture is already running");
+            return false;
+        }
+        mShutterPressedAt = pressedAt;
+        return true;
+    }
+
+    /**
+     * Picks the steps the still capture can skip from the newest preview result.
+     */
+    private int chooseShutterPath() {
+        final TotalCaptureResult result = mLastPreviewResult;
+        if (result == null)
+            return StillCaptureStateMachine.PATH_FULL;
+        final Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        final Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        return StillCaptureStateMachine.choosePath(
+                afState != null ? afState : StillCaptureStateMachine.UNKNOWN,
+                aeState != null ? aeState : StillCaptureStateMachine.UNKNOWN,
+                mInterface.getFlashMode() == BaseCaptureActivity.FLASH_MODE_OFF);
+    }
+
+    /**
+     * Reprocesses the ring frame closest to the button press into a JPEG. The JPEG lands in {@link
+     * #mImageReader} and is saved like any other still. Without a complete frame in the ring, or when
+     * reprocessing fails, the regular capture sequence is used instead.
+     *
+     * @param pressTimestampNs time of the press in the sensor time base, or -1 for the newest frame
+     * @param pressedAt        time of the press in {@link SystemClock#elapsedRealtime()} time
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void captureZslPicture(long pressTimestampNs, final long pressedAt) {
+        final ZslFrameRing ring = mZslRing;
+        final Activity activity = getActivity();
+        final ZslFrameRing.Frame frame =
+                ring != null && activity != null && mCameraDevice != null && mPreviewSession != null
+                        ? ring.take(pressTimestampNs)
+                        : null;
+        if (frame == null) {
+            startStillCapture(pressedAt);
+            return;
+        }
+        boolean sent = false;
+        boolean queued = false;
         try {
-            if (mAfAvailable) {
-                // This is how to tell the camera to lock focus.
-                mPreviewBuilder.set(
-                        CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
-                // Tell #mCaptureCallback to wait for the lock.
-                mState = STATE_WAITING_LOCK;
-            } else {
-                runPrecaptureSequence();
-                return;
-            }
+            final CaptureRequest.Builder builder =
+                    mCameraDevice.createReprocessCaptureRequest(frame.result);
+            builder.addTarget(mImageReader.getSurface());
+            builder.set(CaptureRequest.JPEG_ORIENTATION, getJpegOrientation(activity));
+            final CaptureRequest request = builder.build();
+            // The request waits for its input, so a capture that fails leaves nothing in the writer
+            mPreviewSession.capture(
+                    request,
+                    new CameraCaptureSession.CaptureCallback() {
+                        @Override
+                        public void onCaptureFailed(
+                                @NonNull CameraCaptureSession session,
+                                @NonNull CaptureRequest request,
+                                @NonNull CaptureFailure failure) {
+                            // A captured image still reaches the reader, only the metadata is missing
+                            if (failure.wasImageCaptured())
+                                return;
+                            LOG(Camera2Fragment.class, "Reprocessing failed, reason " + failure.getReason());
+                            startStillCapture(pressedAt);
+                        }
 
+                        @Override
+                        public void onCaptureSequenceAborted(
+                                @NonNull CameraCaptureSession session, int sequenceId) {
+                            startStillCapture(pressedAt);
+                        }
+                    },
+                    mBackgroundHandler);
+            sent = true;
+            ring.queueForReprocess(frame);
+            queued = true;
+        } catch (CameraAccessException | RuntimeException e) {
+            e.printStackTrace();
+            if (!queued)
+                frame.image.close();
+            // A request without its input would hold the session, its abort falls back
+            if (!sent || !abortReprocessing())
+                startStillCapture(pressedAt);
+        }
+    }
+
+    /**
+     * Drops a reprocess request that never got its input and restarts the preview the abort
+     * clears.
+     *
+     * @return false if the captures couldn't be aborted
+     */
+    private boolean abortReprocessing() {
+        try {
+            mPreviewSession.abortCaptures();
+        } catch (CameraAccessException | IllegalStateException e) {
+            e.printStackTrace();
+            return false;
+        }
+        updatePreview();
+        return true;
+    }
+
+    /**
+     * Sends the auto focus trigger, {@link #mStillCapture} waits for the lock.
+     */
+    private void lockFocus() {
+        try {
+            // This is how to tell the camera to lock focus.
+            mPreviewBuilder.set(
+                    CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
             setFlashMode(mPreviewBuilder);
 
             mPreviewSession.capture(mPreviewBuilder.build(), mCaptureCallback, mBackgroundHandler);
+            // A trigger left in the builder would restart the scan with the precapture request
+            mPreviewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -1118,11 +2439,12 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             mPreviewBuilder.set(
                     CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
                     CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = STATE_WAITING_PRECAPTURE;
             setFlashMode(mPreviewBuilder);
 
             mPreviewSession.capture(mPreviewBuilder.build(), mCaptureCallback, mBackgroundHandler);
+            mPreviewBuilder.set(
+                    CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                    CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -1139,8 +2461,10 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                 return;
             }
             // This is the CaptureRequest.Builder that we use to take a picture.
+            final boolean snapshot = mSessionProfile == MaterialCamera.SESSION_PROFILE_VIDEO;
             final CaptureRequest.Builder captureBuilder =
-                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                    mCameraDevice.createCaptureRequest(
+                            snapshot ? CameraDevice.TEMPLATE_VIDEO_SNAPSHOT : CameraDevice.TEMPLATE_STILL_CAPTURE);
             captureBuilder.addTarget(mImageReader.getSurface());
 
             // Use the same AE and AF modes as the preview.
@@ -1149,22 +2473,13 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
             setFlashMode(captureBuilder);
 
             // Orientation
-            CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-
-            CameraCharacteristics characteristics =
-                    manager.getCameraCharacteristics(mCameraDevice.getId());
-
-            //noinspection ConstantConditions,ResourceType
-            @Degrees.DegreeUnits final int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-            int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getJpegOrientation(activity));
 
-            // default camera orientation used to be 90 degrees, for Nexus 5X, 6P it is 270 degrees
-            if (sensorOrientation == Degrees.DEGREES_270) {
-                displayRotation += 2 % 3;
+            if (isBurst()) {
+                captureBurst(captureBuilder);
+                return;
             }
 
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, ORIENTATIONS.get(displayRotation));
-
             CameraCaptureSession.CaptureCallback CaptureCallback =
                     new CameraCaptureSession.CaptureCallback() {
 
@@ -1174,29 +2489,141 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                                 @NonNull CaptureRequest request,
                                 @NonNull TotalCaptureResult result) {
                             Log.d("stillshot", "onCaptureCompleted");
-                            unlockFocus();
+                            mStillCapture.onCaptureCompleted();
+                        }
+
+                        @Override
+                        public void onCaptureFailed(
+                                @NonNull CameraCaptureSession session,
+                                @NonNull CaptureRequest request,
+                                @NonNull CaptureFailure failure) {
+                            mStillCapture.onCaptureFailed();
                         }
                     };
 
-            mPreviewSession.stopRepeating();
-            mPreviewSession.capture(captureBuilder.build(), CaptureCallback, null);
+            // A snapshot goes along with the repeating request, so a recording isn't interrupted
+            if (!snapshot)
+                mPreviewSession.stopRepeating();
+            mPreviewSession.capture(captureBuilder.build(), CaptureCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    private int getJpegOrientation(Activity activity) throws CameraAccessException {
+        //noinspection ResourceType
+        @Degrees.DegreeUnits final int sensorOrientation =
+                CameraCapabilities.get(activity).getCamera(mCameraDevice.getId()).getSensorOrientation();
+        int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+
+        // default camera orientation used to be 90 degrees, for Nexus 5X, 6P it is 270 degrees
+        if (sensorOrientation == Degrees.DEGREES_270) {
+            displayRotation += 2 % 3;
+        }
+
+        return ORIENTATIONS.get(displayRotation);
+    }
+
+    /**
+     * Captures {@link BaseCaptureInterface#burstCount()} pictures with a single {@link
+     * CameraCaptureSession#captureBurst}. Focus was locked by {@link #lockFocus()} and exposure is
+     * locked for the whole sequence, so the frames come out back to back and the preview keeps
+     * running in between.
+     */
+    private void captureBurst(CaptureRequest.Builder captureBuilder) throws CameraAccessException {
+        captureBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+        final CaptureRequest request = captureBuilder.build();
+        final int count = mInterface.burstCount();
+        final List<CaptureRequest> burst = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            burst.add(request);
+
+        mBurstFrameIndex = 0;
+        mPreviewSession.captureBurst(
+                burst,
+                new CameraCaptureSession.CaptureCallback() {
+                    @Override
+                    public void onCaptureFailed(
+                            @NonNull CameraCaptureSession session,
+                            @NonNull CaptureRequest request,
+                            @NonNull CaptureFailure failure) {
+                        if (!failure.wasImageCaptured())
+                            postBurstFramesLost(1);
+                    }
+
+                    @Override
+                    public void onCaptureBufferLost(
+                            @NonNull CameraCaptureSession session,
+                            @NonNull CaptureRequest request,
+                            @NonNull Surface target,
+                            long frameNumber) {
+                        // The reader is the only target of a burst request
+                        postBurstFramesLost(1);
+                    }
+
+                    @Override
+                    public void onCaptureSequenceCompleted(
+                            @NonNull CameraCaptureSession session, int sequenceId, long frameNumber) {
+                        Log.d("stillshot", "onCaptureSequenceCompleted, burst of " + count);
+                        mStillCapture.onCaptureCompleted();
+                    }
+
+                    @Override
+                    public void onCaptureSequenceAborted(
+                            @NonNull CameraCaptureSession session, int sequenceId) {
+                        // None of the frames was captured
+                        postBurstFramesLost(count);
+                        mStillCapture.onCaptureFailed();
+                    }
+                },
+                mBackgroundHandler);
+        mBurstIssued = true;
+    }
+
+    /**
+     * Accounts for burst frames the camera won't deliver, from the background handler.
+     */
+    private void postBurstFramesLost(final int count) {
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < count; i++)
+                            onBurstFrameDone(-1, null);
+                    }
+                });
+    }
+
+    /**
+     * Gives up a burst whose requests never reached the session, from the background handler.
+     */
+    private void postBurstAborted() {
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        resetBurst();
+                    }
+                });
+    }
+
     /**
      * Unlock the focus. This method should be called when still image capture sequence is finished.
+     * The focus trigger is only cancelled if the sequence sent one; cancelling a settled continuous
+     * focus would make it scan again.
      */
     private void unlockFocus() {
         try {
-            // Reset the auto-focus trigger
-            mPreviewBuilder.set(
-                    CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
-            setFlashMode(mPreviewBuilder);
-            mPreviewSession.capture(mPreviewBuilder.build(), mCaptureCallback, mBackgroundHandler);
+            if ((mStillCapture.getPath() & StillCaptureStateMachine.PATH_SKIP_FOCUS) == 0) {
+                // Reset the auto-focus trigger
+                mPreviewBuilder.set(
+                        CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+                setFlashMode(mPreviewBuilder);
+                mPreviewSession.capture(mPreviewBuilder.build(), mCaptureCallback, mBackgroundHandler);
+                mPreviewBuilder.set(
+                        CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+            }
             // After this, the camera will go back to the normal state of preview.
-            mState = STATE_PREVIEW;
             mPreviewSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
@@ -1255,4 +2682,16 @@ public class Camera2Fragment extends BaseCameraFragment implements View.OnClickL
                     .build();
         }
     }
+
+    /**
+     * Recorder settings taken on the main thread, see {@link #newRecorderSetup}.
+     */
+    private static class RecorderSetup {
+        CamcorderProfile profile;
+        int frameRate;
+        int bitRate;
+        int audioBitRate;
+        boolean audio;
+        File output;
+    }
 }
@@ -19,6 +19,7 @@ package cc.officina.materialcamera.internal;
 import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Point;
 import android.hardware.Camera;
@@ -27,37 +28,94 @@ import android.media.MediaRecorder;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.Surface;
 import android.view.View;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
 
+import cc.officina.materialcamera.FrameAnalyzer;
 import cc.officina.materialcamera.ICallback;
+import cc.officina.materialcamera.MaterialCamera;
 import cc.officina.materialcamera.R;
 import cc.officina.materialcamera.util.CameraUtil;
+import cc.officina.materialcamera.util.CaptureExecutor;
 import cc.officina.materialcamera.util.Degrees;
+import cc.officina.materialcamera.util.ImageQuality;
 import cc.officina.materialcamera.util.ImageUtil;
 import cc.officina.materialcamera.util.ManufacturerUtil;
+import cc.officina.materialcamera.util.SizeSelector;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
+/**
+ * The Camera1 screen. Every {@link Camera} call, the recorder's included, runs on a single camera
+ * thread so opening the camera doesn't block the UI; views are only touched on the main thread.
+ */
 @SuppressWarnings("deprecation")
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
 public class CameraFragment extends BaseCameraFragment implements View.OnClickListener {
 
+    /**
+     * One buffer being analyzed, one pending and one being filled by the camera.
+     */
+    private static final int ANALYSIS_BUFFER_COUNT = 3;
+
+    private static HandlerThread sCameraThread;
+    /**
+     * Size selectors of each camera id, built on its first open. Camera thread only.
+     */
+    private static final SparseArray<CameraSizes> sCameraSizes = new SparseArray<>();
+
     CameraPreview mPreviewView;
     RelativeLayout mPreviewFrame;
     List<Integer> mFlashModes;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Handler mCameraHandler = new Handler(getCameraLooper());
+    /**
+     * Bumped on the main thread by every open and close. Camera work posted for an older value was
+     * cancelled: an open that hasn't started is skipped, one that was blocked in {@link
+     * Camera#open(int)} releases the camera right away.
+     */
+    private volatile int mCameraGeneration;
+    private Point mWindowSize;
+    /**
+     * Output of the recorder prepared ahead of recording, reused when recording starts.
+     */
+    private File mPreparedOutput;
+    // The fields below are only touched on the camera thread
     private Camera.Size mVideoSize;
     private Camera mCamera;
-    private Point mWindowSize;
+    private int mCameraId;
+    private int mDeviceRotation;
     private int mDisplayOrientation;
     private boolean mIsAutoFocusing;
+    /**
+     * Created on the camera thread and only used there, unlike the base class' recorder.
+     */
+    private MediaRecorder mRecorder;
+    private File mRecorderOutput;
+    private boolean mRecorderStarted;
+    /**
+     * Whether {@link #mRecorder} is prepared and holds the unlocked camera while previewing,
+     * see {@link BaseCaptureInterface#prewarmRecorder()}.
+     */
+    private boolean mRecorderPrewarmed;
+    /**
+     * Preview buffers handed to the {@link FrameAnalyzer}, null when none is registered.
+     */
+    private FrameAnalysisPipeline mFramePipeline;
+    private Nv21AnalysisFrame[] mAnalysisFrames;
 
     public static CameraFragment newInstance() {
         CameraFragment fragment = new CameraFragment();
@@ -65,41 +123,83 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         return fragment;
     }
 
-    private static Camera.Size chooseVideoSize(BaseCaptureInterface ci, List<Camera.Size> choices) {
-        Camera.Size backupSize = null;
-        for (Camera.Size size : choices) {
-            if (size.height <= ci.videoPreferredHeight()) {
-                if (size.width == size.height * ci.videoPreferredAspect())
-                    return size;
-                if (ci.videoPreferredHeight() >= size.height)
-                    backupSize = size;
-            }
+    /**
+     * The thread shared by every Camera1 screen, so an open always waits for the previous release.
+     * Callbacks of a camera are delivered on the thread that opened it, so they land here as well.
+     */
+    private static synchronized Looper getCameraLooper() {
+        if (sCameraThread == null) {
+            sCameraThread = new HandlerThread("Camera1");
+            sCameraThread.start();
         }
-        if (backupSize != null)
-            return backupSize;
-        LOG(CameraFragment.class, "Couldn't find any suitable video size");
-        return choices.get(choices.size() - 1);
+        return sCameraThread.getLooper();
     }
 
-    private static Camera.Size chooseOptimalSize(
-            List<Camera.Size> choices, int width, int height, Camera.Size aspectRatio) {
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Camera.Size> bigEnough = new ArrayList<>();
-        int w = aspectRatio.width;
-        int h = aspectRatio.height;
-        for (Camera.Size option : choices) {
-            if (option.height == width * h / w && option.width >= width && option.height >= height) {
-                bigEnough.add(option);
-            }
+    /**
+     * The sorted sizes of a camera, indexed like the lists its parameters return.
+     */
+    private static final class CameraSizes {
+        final SizeSelector video;
+        final SizeSelector preview;
+        final SizeSelector picture;
+
+        CameraSizes(Camera.Parameters parameters) {
+            video = indexSizes(getVideoSizes(parameters));
+            preview = indexSizes(parameters.getSupportedPreviewSizes());
+            picture = indexSizes(parameters.getSupportedPictureSizes());
         }
+    }
 
-        // Pick the smallest of those, assuming we found any
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else {
-            LOG(CameraFragment.class, "Couldn't find any suitable preview size");
-            return aspectRatio;
+    private static CameraSizes getCameraSizes(int cameraId, Camera.Parameters parameters) {
+        CameraSizes sizes = sCameraSizes.get(cameraId);
+        if (sizes == null) {
+            sizes = new CameraSizes(parameters);
+            sCameraSizes.put(cameraId, sizes);
+        }
+        return sizes;
+    }
+
+    private static List<Camera.Size> getVideoSizes(Camera.Parameters parameters) {
+        final List<Camera.Size> videoSizes = parameters.getSupportedVideoSizes();
+        if (videoSizes == null || videoSizes.size() == 0)
+            return parameters.getSupportedPreviewSizes();
+        return videoSizes;
+    }
+
+    private static SizeSelector indexSizes(List<Camera.Size> sizes) {
+        final int[] widths = new int[sizes.size()];
+        final int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
         }
+        return new SizeSelector(widths, heights);
+    }
+
+    private static Camera.Size chooseVideoSize(
+            BaseCaptureInterface ci, List<Camera.Size> choices, SizeSelector selector) {
+        final int index = selector.chooseVideoSize(ci.videoPreferredHeight(), ci.videoPreferredAspect());
+        return choices.get(index);
+    }
+
+    private static Camera.Size chooseOptimalSize(
+            List<Camera.Size> choices,
+            SizeSelector selector,
+            int width,
+            int height,
+            Camera.Size aspectRatio) {
+        // The smallest size of the same shape that is at least as big as the preview Surface
+        final int index =
+                selector.smallestAtLeast(
+                        width,
+                        height,
+                        Integer.MAX_VALUE,
+                        Integer.MAX_VALUE,
+                        (float) aspectRatio.width / aspectRatio.height);
+        if (index != -1)
+            return choices.get(index);
+        LOG(CameraFragment.class, "Couldn't find any suitable preview size");
+        return aspectRatio;
     }
 
     @Override
@@ -125,38 +225,45 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         openCamera();
     }
 
-    @Override
-    public void onPause() {
-        if (mCamera != null)
-            mCamera.lock();
-        super.onPause();
-    }
-
     @Override
     public void onClick(View view) {
         if (view.getId() == R.id.rootFrame) {
-            if (mCamera == null || mIsAutoFocusing)
-                return;
-            try {
-                mIsAutoFocusing = true;
-                mCamera.cancelAutoFocus();
-                mCamera.autoFocus(
-                        new Camera.AutoFocusCallback() {
-                            @Override
-                            public void onAutoFocus(boolean success, Camera camera) {
-                                mIsAutoFocusing = false;
-                                if (!success)
-                                    Toast.makeText(getActivity(), "Unable to auto-focus!", Toast.LENGTH_SHORT).show();
-                            }
-                        });
-            } catch (Throwable t) {
-                t.printStackTrace();
-            }
+            mCameraHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            autoFocus();
+                        }
+                    });
         } else {
             super.onClick(view);
         }
     }
 
+    private void autoFocus() {
+        if (mCamera == null || mIsAutoFocusing)
+            return;
+        try {
+            mIsAutoFocusing = true;
+            releasePrewarmedRecorder();
+            mCamera.cancelAutoFocus();
+            mCamera.autoFocus(
+                    new Camera.AutoFocusCallback() {
+                        @Override
+                        public void onAutoFocus(boolean success, Camera camera) {
+                            mIsAutoFocusing = false;
+                            if (!success)
+                                showToast("Unable to auto-focus!", Toast.LENGTH_SHORT);
+                            prewarmRecorder();
+                        }
+                    });
+        } catch (Throwable t) {
+            t.printStackTrace();
+            mIsAutoFocusing = false;
+            prewarmRecorder();
+        }
+    }
+
     @Override
     public void openCamera() {
         final Activity activity = getActivity();
@@ -187,120 +294,191 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
                     }
                 }
             }
+        } catch (RuntimeException e) {
+            throwError(
+                    new Exception("Cannot access the camera, you may need to restart your device.", e));
+            return;
+        }
 
-            switch (getCurrentCameraPosition()) {
-                case BaseCaptureActivity.CAMERA_POSITION_FRONT:
-                    setImageRes(mButtonFacing, mInterface.iconRearCamera());
-                    break;
-                case BaseCaptureActivity.CAMERA_POSITION_BACK:
-                    setImageRes(mButtonFacing, mInterface.iconFrontCamera());
-                    break;
-                case BaseCaptureActivity.CAMERA_POSITION_UNKNOWN:
-                default:
-                    if (getArguments().getBoolean(CameraIntentKey.DEFAULT_TO_FRONT_FACING, false)) {
-                        // Check front facing first
-                        if (mInterface.getFrontCamera() != null
-                                && (Integer) mInterface.getFrontCamera() != -1) {
-                            setImageRes(mButtonFacing, mInterface.iconRearCamera());
-                            mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_FRONT);
-                        } else {
-                            setImageRes(mButtonFacing, mInterface.iconFrontCamera());
-                            if (mInterface.getBackCamera() != null && (Integer) mInterface.getBackCamera() != -1)
-                                mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_BACK);
-                            else
-                                mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_UNKNOWN);
-                        }
+        switch (getCurrentCameraPosition()) {
+            case BaseCaptureActivity.CAMERA_POSITION_FRONT:
+                setImageRes(mButtonFacing, mInterface.iconRearCamera());
+                break;
+            case BaseCaptureActivity.CAMERA_POSITION_BACK:
+                setImageRes(mButtonFacing, mInterface.iconFrontCamera());
+                break;
+            case BaseCaptureActivity.CAMERA_POSITION_UNKNOWN:
+            default:
+                if (getArguments().getBoolean(CameraIntentKey.DEFAULT_TO_FRONT_FACING, false)) {
+                    // Check front facing first
+                    if (mInterface.getFrontCamera() != null
+                            && (Integer) mInterface.getFrontCamera() != -1) {
+                        setImageRes(mButtonFacing, mInterface.iconRearCamera());
+                        mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_FRONT);
                     } else {
-                        // Check back facing first
-                        if (mInterface.getBackCamera() != null && (Integer) mInterface.getBackCamera() != -1) {
-                            setImageRes(mButtonFacing, mInterface.iconFrontCamera());
+                        setImageRes(mButtonFacing, mInterface.iconFrontCamera());
+                        if (mInterface.getBackCamera() != null && (Integer) mInterface.getBackCamera() != -1)
                             mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_BACK);
-                        } else {
-                            setImageRes(mButtonFacing, mInterface.iconRearCamera());
-                            if (mInterface.getFrontCamera() != null
-                                    && (Integer) mInterface.getFrontCamera() != -1)
-                                mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_FRONT);
-                            else
-                                mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_UNKNOWN);
-                        }
+                        else
+                            mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_UNKNOWN);
                     }
-                    break;
-            }
+                } else {
+                    // Check back facing first
+                    if (mInterface.getBackCamera() != null && (Integer) mInterface.getBackCamera() != -1) {
+                        setImageRes(mButtonFacing, mInterface.iconFrontCamera());
+                        mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_BACK);
+                    } else {
+                        setImageRes(mButtonFacing, mInterface.iconRearCamera());
+                        if (mInterface.getFrontCamera() != null
+                                && (Integer) mInterface.getFrontCamera() != -1)
+                            mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_FRONT);
+                        else
+                            mInterface.setCameraPosition(BaseCaptureActivity.CAMERA_POSITION_UNKNOWN);
+                    }
+                }
+                break;
+        }
+
+        if (mWindowSize == null)
+            mWindowSize = new Point();
+        activity.getWindowManager().getDefaultDisplay().getSize(mWindowSize);
+        final int toOpen = getCurrentCameraId();
+        final int cameraId = toOpen == -1 ? 0 : toOpen;
+        final int deviceRotation = Degrees.getDisplayRotation(activity);
+        final Point windowSize = new Point(mWindowSize);
+        final BaseCaptureInterface ci = mInterface;
+        final Context context = activity.getApplicationContext();
+        final int generation = ++mCameraGeneration;
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        openOnCameraThread(generation, ci, context, cameraId, deviceRotation, windowSize);
+                    }
+                });
+    }
 
-            if (mWindowSize == null)
-                mWindowSize = new Point();
-            activity.getWindowManager().getDefaultDisplay().getSize(mWindowSize);
-            final int toOpen = getCurrentCameraId();
-            mCamera = Camera.open(toOpen == -1 ? 0 : toOpen);
-            Camera.Parameters parameters = mCamera.getParameters();
-            List<Camera.Size> videoSizes = parameters.getSupportedVideoSizes();
-            if (videoSizes == null || videoSizes.size() == 0)
-                videoSizes = parameters.getSupportedPreviewSizes();
-            mVideoSize = chooseVideoSize((BaseCaptureActivity) activity, videoSizes);
+    /**
+     * Opens and sets up the camera on the camera thread, then hands it to {@link
+     * #onCameraReady(int, Camera, List)} on the main thread.
+     */
+    private void openOnCameraThread(
+            final int generation,
+            BaseCaptureInterface ci,
+            Context context,
+            int cameraId,
+            int deviceRotation,
+            Point windowSize) {
+        // Cancelled before it got its turn
+        if (generation != mCameraGeneration)
+            return;
+        final Camera camera;
+        final List<Integer> flashModes;
+        try {
+            camera = Camera.open(cameraId);
+            mCamera = camera;
+            mCameraId = cameraId;
+            mDeviceRotation = deviceRotation;
+            Camera.Parameters parameters = camera.getParameters();
+            final CameraSizes sizes = getCameraSizes(cameraId, parameters);
+            mVideoSize = chooseVideoSize(ci, getVideoSizes(parameters), sizes.video);
             Camera.Size previewSize =
                     chooseOptimalSize(
-                            parameters.getSupportedPreviewSizes(), mWindowSize.x, mWindowSize.y, mVideoSize);
+                            parameters.getSupportedPreviewSizes(),
+                            sizes.preview,
+                            windowSize.x,
+                            windowSize.y,
+                            mVideoSize);
 
             if (ManufacturerUtil.isSamsungGalaxyS3()) {
                 parameters.setPreviewSize(
                         ManufacturerUtil.SAMSUNG_S3_PREVIEW_WIDTH, ManufacturerUtil.SAMSUNG_S3_PREVIEW_HEIGHT);
             } else {
                 parameters.setPreviewSize(previewSize.width, previewSize.height);
+                // The hint favors recording over stills, leave it off in photo mode
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
-                    parameters.setRecordingHint(true);
+                    parameters.setRecordingHint(ci.sessionProfile() != MaterialCamera.SESSION_PROFILE_PHOTO);
             }
 
             Camera.Size mStillShotSize =
-                    getHighestSupportedStillShotSize(parameters.getSupportedPictureSizes());
+                    getHighestSupportedStillShotSize(
+                            ci, parameters.getSupportedPictureSizes(), sizes.picture);
             parameters.setPictureSize(mStillShotSize.width, mStillShotSize.height);
 
             setCameraDisplayOrientation(parameters);
-            mCamera.setParameters(parameters);
+            camera.setParameters(parameters);
 
             // NOTE: onFlashModesLoaded should not be called while modifying camera parameters as
             //       the flash parameters set in setupFlashMode will then be overwritten
-            mFlashModes = CameraUtil.getSupportedFlashModes(this.getActivity(), parameters);
-            mInterface.setFlashModes(mFlashModes);
-            onFlashModesLoaded();
-
-            createPreview();
-            mMediaRecorder = new MediaRecorder();
-
-            onCameraOpened();
+            flashModes = CameraUtil.getSupportedFlashModes(context, parameters);
         } catch (IllegalStateException e) {
-            throwError(new Exception("Cannot access the camera.", e));
+            releaseCamera();
+            postError(new Exception("Cannot access the camera.", e));
+            return;
         } catch (RuntimeException e2) {
-            throwError(
+            releaseCamera();
+            postError(
                     new Exception("Cannot access the camera, you may need to restart your device.", e2));
+            return;
         }
-    }
 
-    private Camera.Size getHighestSupportedStillShotSize(List<Camera.Size> supportedPictureSizes) {
-        Collections.sort(
-                supportedPictureSizes,
-                new Comparator<Camera.Size>() {
+        // Paused while Camera.open() blocked
+        if (generation != mCameraGeneration) {
+            releaseCamera();
+            return;
+        }
+        mMainHandler.post(
+                new Runnable() {
                     @Override
-                    public int compare(Camera.Size lhs, Camera.Size rhs) {
-                        if (lhs.height * lhs.width > rhs.height * rhs.width)
-                            return -1;
-                        return 1;
+                    public void run() {
+                        onCameraReady(generation, camera, flashModes);
                     }
                 });
-        Camera.Size maxSize = supportedPictureSizes.get(0);
+    }
+
+    /**
+     * Sets up the views for a camera opened on the camera thread, unless it was closed since.
+     */
+    private void onCameraReady(int generation, Camera camera, List<Integer> flashModes) {
+        // The close that cancelled it releases the camera
+        if (generation != mCameraGeneration || mInterface == null || mPreviewFrame == null)
+            return;
+        mFlashModes = flashModes;
+        mInterface.setFlashModes(mFlashModes);
+        onFlashModesLoaded();
+
+        createPreview(camera);
+        onCameraOpened();
+    }
+
+    /**
+     * Picks the largest picture size, or a smaller one when memory is low. In video mode, pictures
+     * are about the video size.
+     */
+    private Camera.Size getHighestSupportedStillShotSize(
+            BaseCaptureInterface ci, List<Camera.Size> supportedPictureSizes, SizeSelector sizes) {
+        final int memoryMode = ci.getMemoryMode();
+        final int index;
+        if (ci.sessionProfile() == MaterialCamera.SESSION_PROFILE_VIDEO)
+            index = sizes.chooseSnapshotSize(mVideoSize.width, mVideoSize.height, getMaxStillArea(memoryMode));
+        else if (memoryMode != MaterialCamera.MEMORY_MODE_NORMAL)
+            index = sizes.chooseStillSize(getMaxStillArea(memoryMode));
+        else
+            index = sizes.largest();
+        Camera.Size maxSize = supportedPictureSizes.get(index);
         Log.d("CameraFragment", "Using resolution: " + maxSize.width + "x" + maxSize.height);
+        if (memoryMode != MaterialCamera.MEMORY_MODE_NORMAL)
+            CaptureMetrics.reportMemoryAdapted(memoryMode, maxSize.width, maxSize.height, 0, 0);
         return maxSize;
     }
 
     @SuppressWarnings("WrongConstant")
     private void setCameraDisplayOrientation(Camera.Parameters parameters) {
         Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(getCurrentCameraId(), info);
-        final int deviceOrientation = Degrees.getDisplayRotation(getActivity());
-        mDisplayOrientation =
-                Degrees.getDisplayOrientation(
-                        info.orientation,
-                        deviceOrientation,
-                        info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
+        Camera.getCameraInfo(mCameraId, info);
+        final int deviceOrientation = mDeviceRotation;
+        final boolean front = info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+        mDisplayOrientation = Degrees.getDisplayOrientation(info.orientation, deviceOrientation, front);
         Log.d(
                 "CameraFragment",
                 String.format(
@@ -315,8 +493,7 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         } else {
             jpegOrientation = previewOrientation = mDisplayOrientation;
 
-            if (Degrees.isPortrait(deviceOrientation)
-                    && getCurrentCameraPosition() == BaseCaptureActivity.CAMERA_POSITION_FRONT)
+            if (Degrees.isPortrait(deviceOrientation) && front)
                 previewOrientation = Degrees.mirror(mDisplayOrientation);
         }
 
@@ -324,24 +501,118 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         mCamera.setDisplayOrientation(previewOrientation);
     }
 
-    private void createPreview() {
+    private void createPreview(Camera camera) {
         Activity activity = getActivity();
         if (activity == null)
             return;
         if (mWindowSize == null)
             mWindowSize = new Point();
         activity.getWindowManager().getDefaultDisplay().getSize(mWindowSize);
-        mPreviewView = new CameraPreview(getActivity(), mCamera);
+        mPreviewView = new CameraPreview(getActivity(), camera, mCameraHandler);
+        mPreviewView.setPreviewListener(
+                new CameraPreview.PreviewListener() {
+                    @Override
+                    public void onPreviewStopping() {
+                        releasePrewarmedRecorder();
+                    }
+
+                    @Override
+                    public void onPreviewStarted() {
+                        startFrameAnalysis();
+                        prewarmRecorder();
+                    }
+                });
         if (mPreviewFrame.getChildCount() > 0 && mPreviewFrame.getChildAt(0) instanceof CameraPreview)
             mPreviewFrame.removeViewAt(0);
         mPreviewFrame.addView(mPreviewView, 0);
         mPreviewView.setAspectRatio(mWindowSize.x, mWindowSize.y);
     }
 
+    /**
+     * Cycles a few NV21 buffers through {@link Camera#setPreviewCallbackWithBuffer}, so frames reach
+     * the analyzer without a new array per frame. Camera1 only delivers frames at the preview size.
+     */
+    private void startFrameAnalysis() {
+        final FrameAnalyzer analyzer = FrameAnalysisPipeline.getAnalyzer();
+        if (analyzer == null || mCamera == null || mFramePipeline != null)
+            return;
+        final Camera.Size size;
+        try {
+            size = mCamera.getParameters().getPreviewSize();
+        } catch (RuntimeException e) {
+            Log.e("CameraFragment", "Unable to set up frame analysis", e);
+            return;
+        }
+        final Camera camera = mCamera;
+        mFramePipeline = new FrameAnalysisPipeline(analyzer);
+        mAnalysisFrames = new Nv21AnalysisFrame[ANALYSIS_BUFFER_COUNT];
+        for (int i = 0; i < mAnalysisFrames.length; i++) {
+            mAnalysisFrames[i] =
+                    new Nv21AnalysisFrame(camera, mCameraHandler, size.width, size.height, mDisplayOrientation);
+            camera.addCallbackBuffer(mAnalysisFrames[i].data);
+        }
+        camera.setPreviewCallbackWithBuffer(
+                new Camera.PreviewCallback() {
+                    @Override
+                    public void onPreviewFrame(byte[] data, Camera camera) {
+                        final FrameAnalysisPipeline pipeline = mFramePipeline;
+                        final Nv21AnalysisFrame[] frames = mAnalysisFrames;
+                        if (pipeline == null || frames == null)
+                            return;
+                        for (Nv21AnalysisFrame frame : frames) {
+                            if (frame.data == data) {
+                                frame.set(System.nanoTime());
+                                pipeline.submit(frame);
+                                return;
+                            }
+                        }
+                    }
+                });
+    }
+
+    private void stopFrameAnalysis() {
+        if (mFramePipeline == null)
+            return;
+        try {
+            mCamera.setPreviewCallbackWithBuffer(null);
+        } catch (RuntimeException ignored) {
+            // Already released
+        }
+        mFramePipeline.release();
+        mFramePipeline = null;
+        mAnalysisFrames = null;
+    }
+
     @Override
     public void closeCamera() {
+        closeCamera(null);
+    }
+
+    /**
+     * Cancels any open in progress and releases the recorder and the camera on the camera thread.
+     *
+     * @param then posted to the main thread once both are released
+     */
+    private void closeCamera(@Nullable final Runnable then) {
+        mCameraGeneration++;
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseCamera();
+                        if (then != null)
+                            mMainHandler.post(then);
+                    }
+                });
+    }
+
+    private void releaseCamera() {
+        releasePrewarmedRecorder();
+        releaseMediaRecorder();
+        mIsAutoFocusing = false;
         try {
             if (mCamera != null) {
+                stopFrameAnalysis();
                 try {
                     mCamera.lock();
                 } catch (Throwable ignored) {
@@ -350,134 +621,361 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
                 mCamera = null;
             }
         } catch (IllegalStateException e) {
-            throwError(new Exception("Illegal state while trying to close camera.", e));
+            postError(new Exception("Illegal state while trying to close camera.", e));
         }
     }
 
-    private boolean prepareMediaRecorder() {
+    private void postError(final Exception e) {
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        throwError(e);
+                    }
+                });
+    }
+
+    private void showToast(final CharSequence text, final int duration) {
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (getActivity() != null)
+                            Toast.makeText(getActivity(), text, duration).show();
+                    }
+                });
+    }
+
+    /**
+     * Prepares the recorder ahead of recording, leaving the preview running. The recorder holds the
+     * unlocked camera until {@link #releasePrewarmedRecorder()} or recording starts. Called on the
+     * camera thread; the set up is gathered on the main thread first.
+     */
+    private void prewarmRecorder() {
+        if (mInterface != null && mInterface.prewarmRecorder())
+            mMainHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            prepareRecording();
+                        }
+                    });
+    }
+
+    private void prepareRecorderAhead(RecorderSetup setup) {
+        if (mRecorderPrewarmed || mRecorderStarted || mIsAutoFocusing || mCamera == null)
+            return;
         try {
-            final Activity activity = getActivity();
-            if (null == activity)
-                return false;
-            final BaseCaptureInterface captureInterface = (BaseCaptureInterface) activity;
+            prepareMediaRecorder(setup, true);
+            mRecorderPrewarmed = true;
+        } catch (IOException | RuntimeException e) {
+            LOG(CameraFragment.class, "Unable to prewarm the media recorder: " + e.getMessage());
+        }
+    }
 
-            setCameraDisplayOrientation(mCamera.getParameters());
-            mMediaRecorder = new MediaRecorder();
-            mCamera.stopPreview();
-            mCamera.unlock();
-            mMediaRecorder.setCamera(mCamera);
-
-            boolean canUseAudio = true;
-            boolean audioEnabled = !mInterface.audioDisabled();
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-                canUseAudio =
-                        ContextCompat.checkSelfPermission(activity, Manifest.permission.RECORD_AUDIO)
-                                == PackageManager.PERMISSION_GRANTED;
-
-            if (canUseAudio && audioEnabled) {
-                mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
-            } else if (audioEnabled) {
-                Toast.makeText(getActivity(), R.string.mcam_no_audio_access, Toast.LENGTH_LONG).show();
-            }
-            mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.DEFAULT);
-
-            final CamcorderProfile profile =
-                    CamcorderProfile.get(getCurrentCameraId(), mInterface.qualityProfile());
-            mMediaRecorder.setOutputFormat(profile.fileFormat);
-            mMediaRecorder.setVideoFrameRate(mInterface.videoFrameRate(profile.videoFrameRate));
-            mMediaRecorder.setVideoSize(mVideoSize.width, mVideoSize.height);
-            mMediaRecorder.setVideoEncodingBitRate(mInterface.videoEncodingBitRate(profile.videoBitRate));
-            mMediaRecorder.setVideoEncoder(profile.videoCodec);
-
-            if (canUseAudio && audioEnabled) {
-                mMediaRecorder.setAudioEncodingBitRate(
-                        mInterface.audioEncodingBitRate(profile.audioBitRate));
-                mMediaRecorder.setAudioChannels(profile.audioChannels);
-                mMediaRecorder.setAudioSamplingRate(profile.audioSampleRate);
-                mMediaRecorder.setAudioEncoder(profile.audioCodec);
-            }
+    @Override
+    protected void prepareRecording() {
+        if (isRecording())
+            return;
+        final RecorderSetup setup = newRecorderSetup(mPreparedOutput, false);
+        if (setup == null)
+            return;
+        mPreparedOutput = setup.output;
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        prepareRecorderAhead(setup);
+                    }
+                });
+    }
 
-            Uri uri = Uri.fromFile(getOutputMediaFile());
-            mVideoOutputUri = uri.toString();
-            mMediaRecorder.setOutputFile(uri.getPath());
-
-            if (captureInterface.maxAllowedFileSize() > 0) {
-                mMediaRecorder.setMaxFileSize(captureInterface.maxAllowedFileSize());
-                mMediaRecorder.setOnInfoListener(
-                        new MediaRecorder.OnInfoListener() {
-                            @Override
-                            public void onInfo(MediaRecorder mediaRecorder, int what, int extra) {
-                                if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
-                                    Toast.makeText(
-                                            getActivity(), R.string.mcam_file_size_limit_reached, Toast.LENGTH_SHORT)
-                                            .show();
-                                    stopRecordingVideo(false);
-                                }
-                            }
-                        });
-            }
+    @Override
+    protected void cancelPreparedRecording() {
+        // Keep the recorder when it's prewarmed for the whole preview anyway
+        if (mInterface != null && !mInterface.prewarmRecorder())
+            mCameraHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            releasePrewarmedRecorder();
+                        }
+                    });
+    }
 
-            mMediaRecorder.setOrientationHint(mDisplayOrientation);
-            mMediaRecorder.setPreviewDisplay(mPreviewView.getHolder().getSurface());
+    /**
+     * Takes the camera back from a prewarmed recorder, so it can be used directly again.
+     */
+    private void releasePrewarmedRecorder() {
+        if (!mRecorderPrewarmed)
+            return;
+        mRecorderPrewarmed = false;
+        abandonRecorder();
+    }
 
-            try {
-                mMediaRecorder.prepare();
-                return true;
-            } catch (Throwable e) {
-                throwError(new Exception("Failed to prepare the media recorder: " + e.getMessage(), e));
-                return false;
-            }
+    /**
+     * Takes the camera back from a recorder that was set up but didn't start, and deletes its file.
+     */
+    private void abandonRecorder() {
+        if (mRecorder != null)
+            mRecorder.reset();
+        try {
+            if (mCamera != null)
+                mCamera.lock();
         } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        if (mRecorderOutput != null) {
+            //noinspection ResultOfMethodCallIgnored
+            mRecorderOutput.delete();
+            mRecorderOutput = null;
+        }
+    }
+
+    /**
+     * Finishes the file being recorded, if any, and releases the recorder, on the camera thread.
+     */
+    private void releaseMediaRecorder() {
+        if (mRecorder == null)
+            return;
+        if (mRecorderStarted) {
+            mRecorderStarted = false;
             try {
-                mCamera.lock();
-            } catch (IllegalStateException e) {
-                throwError(new Exception("Failed to re-lock camera: " + e.getMessage(), e));
-                return false;
+                mRecorder.stop();
+            } catch (Throwable t) {
+                // Stopped before anything was written, the file is unusable
+                if (mRecorderOutput != null)
+                    //noinspection ResultOfMethodCallIgnored
+                    mRecorderOutput.delete();
+                t.printStackTrace();
             }
-            t.printStackTrace();
-            throwError(new Exception("Failed to begin recording: " + t.getMessage(), t));
-            return false;
+        }
+        mRecorder.reset();
+        mRecorder.release();
+        mRecorder = null;
+        mRecorderOutput = null;
+    }
+
+    /**
+     * Gathers what a recorder is set up with, on the main thread.
+     *
+     * @param output the file to record to, or null for the next one
+     * @param notify whether to tell the user when audio can't be recorded
+     * @return null if there is no preview to record
+     */
+    @Nullable
+    private RecorderSetup newRecorderSetup(@Nullable File output, boolean notify) {
+        final Activity activity = getActivity();
+        if (activity == null || mInterface == null || mPreviewView == null)
+            return null;
+        final int cameraId = getCurrentCameraId();
+        final RecorderSetup setup = new RecorderSetup();
+        try {
+            setup.profile = CamcorderProfile.get(cameraId == -1 ? 0 : cameraId, mInterface.qualityProfile());
+        } catch (RuntimeException e) {
+            LOG(CameraFragment.class, "No recording profile: " + e.getMessage());
+            return null;
+        }
+        setup.frameRate = mInterface.videoFrameRate(setup.profile.videoFrameRate);
+        setup.bitRate = getVideoBitRate(setup.profile.videoBitRate);
+        setup.audioBitRate = mInterface.audioEncodingBitRate(setup.profile.audioBitRate);
+
+        boolean canUseAudio = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            canUseAudio =
+                    ContextCompat.checkSelfPermission(activity, Manifest.permission.RECORD_AUDIO)
+                            == PackageManager.PERMISSION_GRANTED;
+        setup.audio = canUseAudio && !mInterface.audioDisabled();
+        if (notify && !canUseAudio && !mInterface.audioDisabled())
+            Toast.makeText(activity, R.string.mcam_no_audio_access, Toast.LENGTH_LONG).show();
+
+        setup.output = output != null ? output : getNextVideoOutputFile();
+        setup.previewSurface = mPreviewView.getHolder().getSurface();
+        return setup;
+    }
+
+    /**
+     * Sets up {@link #mRecorder} with the camera, on the camera thread. On failure the camera is
+     * locked again and the output deleted.
+     *
+     * @param prewarm whether the recorder is prepared ahead of time, in which case the preview keeps
+     *                running
+     */
+    private void prepareMediaRecorder(RecorderSetup setup, boolean prewarm) throws IOException {
+        if (mCamera == null)
+            throw new IllegalStateException("The camera is closed");
+        // Created on this thread so its info events arrive here too
+        if (mRecorder == null)
+            mRecorder = new MediaRecorder();
+        try {
+            setCameraDisplayOrientation(mCamera.getParameters());
+            if (!prewarm)
+                mCamera.stopPreview();
+            mCamera.unlock();
+            mRecorder.setCamera(mCamera);
+
+            if (setup.audio)
+                mRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
+            mRecorder.setVideoSource(MediaRecorder.VideoSource.DEFAULT);
+
+            final CamcorderProfile profile = setup.profile;
+            mRecorder.setOutputFormat(profile.fileFormat);
+            mRecorder.setVideoFrameRate(setup.frameRate);
+            mRecorder.setVideoSize(mVideoSize.width, mVideoSize.height);
+            mRecorder.setVideoEncodingBitRate(setup.bitRate);
+            mRecorder.setVideoEncoder(profile.videoCodec);
+
+            if (setup.audio) {
+                mRecorder.setAudioEncodingBitRate(setup.audioBitRate);
+                mRecorder.setAudioChannels(profile.audioChannels);
+                mRecorder.setAudioSamplingRate(profile.audioSampleRate);
+                mRecorder.setAudioEncoder(profile.audioCodec);
+            }
+
+            mRecorderOutput = setup.output;
+            mRecorder.setOutputFile(setup.output.getPath());
+
+            setUpRecorderLimits(mRecorder);
+
+            mRecorder.setOrientationHint(mDisplayOrientation);
+            mRecorder.setPreviewDisplay(setup.previewSurface);
+            mRecorder.prepare();
+        } catch (IOException | RuntimeException e) {
+            abandonRecorder();
+            throw e;
         }
     }
 
     @Override
     public boolean startRecordingVideo() {
+        final RecorderSetup setup = newRecorderSetup(mPreparedOutput, true);
+        mPreparedOutput = null;
+        if (setup == null)
+            return false;
         super.startRecordingVideo();
-        if (prepareMediaRecorder()) {
-            try {
-                // UI
-                //setImageRes(mButtonVideo, mInterface.iconStop());
-                if (!CameraUtil.isChromium())
-                    mButtonFacing.setVisibility(View.GONE);
-
-                // Only start counter if count down wasn't already started
-                if (!mInterface.hasLengthLimit()) {
-                    mInterface.setRecordingStart(System.currentTimeMillis());
-                    startCounter();
-                }
+        mVideoOutputUri = Uri.fromFile(setup.output).toString();
+        final long requestNs = System.nanoTime();
+        // UI
+        //setImageRes(mButtonVideo, mInterface.iconStop());
+        if (!CameraUtil.isChromium())
+            mButtonFacing.setVisibility(View.GONE);
 
-                // Start recording
-                mMediaRecorder.start();
+        // Only start counter if count down wasn't already started
+        if (!mInterface.hasLengthLimit()) {
+            mInterface.setRecordingStart(System.currentTimeMillis());
+            startCounter();
+        }
 
-        /*mButtonVideo.setEnabled(false);
-        mButtonVideo.postDelayed(
-            new Runnable() {
-              @Override
-              public void run() {
-                mButtonVideo.setEnabled(true);
-              }
-            },
-            200);*/
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        startRecorder(setup, requestNs);
+                    }
+                });
+        return true;
+    }
 
-                return true;
-            } catch (Throwable t) {
-                t.printStackTrace();
-                mInterface.setRecordingStart(-1);
-                stopRecordingVideo(false);
-                throwError(new Exception("Failed to start recording: " + t.getMessage(), t));
-            }
+    /**
+     * Starts the recorder on the camera thread, with the one prewarmed for the same output if any.
+     * A failure ends the recording on the main thread.
+     */
+    private void startRecorder(RecorderSetup setup, long requestNs) {
+        final boolean prewarmed = mRecorderPrewarmed && setup.output.equals(mRecorderOutput);
+        if (!prewarmed)
+            releasePrewarmedRecorder();
+        mRecorderPrewarmed = false;
+        try {
+            if (!prewarmed)
+                prepareMediaRecorder(setup, false);
+            mRecorder.start();
+            mRecorderStarted = true;
+            CaptureMetrics.reportRecordingLatency((System.nanoTime() - requestNs) / 1000000, prewarmed);
+        } catch (final IOException | RuntimeException e) {
+            e.printStackTrace();
+            abandonRecorder();
+            mMainHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mInterface == null)
+                                return;
+                            mInterface.setRecordingStart(-1);
+                            abortRecording();
+                            throwError(new Exception("Failed to start recording: " + e.getMessage(), e));
+                        }
+                    });
+        }
+    }
+
+    @Override
+    protected void startNextSegment(final Runnable segmentFinalized) {
+        final RecorderSetup setup = newRecorderSetup(null, false);
+        if (setup == null) {
+            abortRecording();
+            return;
         }
-        return false;
+        mVideoOutputUri = Uri.fromFile(setup.output).toString();
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mRecorder == null || !mRecorderStarted) {
+                            segmentFinalized.run();
+                            return;
+                        }
+                        mRecorderStarted = false;
+                        try {
+                            // Usually the recorder already stopped itself at the limit
+                            mRecorder.stop();
+                        } catch (Throwable ignored) {
+                        }
+                        segmentFinalized.run();
+                        mRecorder.reset();
+                        // The finished segment belongs to the recording now
+                        mRecorderOutput = null;
+                        try {
+                            prepareMediaRecorder(setup, false);
+                            mRecorder.start();
+                            mRecorderStarted = true;
+                            return;
+                        } catch (IOException | RuntimeException e) {
+                            e.printStackTrace();
+                            abandonRecorder();
+                        }
+                        mMainHandler.post(
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        abortRecording();
+                                    }
+                                });
+                    }
+                });
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.O)
+    protected void setNextOutputFile(final File next) {
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (mRecorder == null || !mRecorderStarted)
+                                throw new IllegalStateException("Not recording");
+                            mRecorder.setNextOutputFile(next);
+                        } catch (final IOException | IllegalStateException e) {
+                            mMainHandler.post(
+                                    new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            onNextOutputFileRejected(next, e);
+                                        }
+                                    });
+                        }
+                    }
+                });
     }
 
     @Override
@@ -486,43 +984,38 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
 
         if (mInterface.hasLengthLimit()
                 && mInterface.shouldAutoSubmit()
-                && (mInterface.getRecordingStart() < 0 || mMediaRecorder == null)) {
+                && mInterface.getRecordingStart() < 0) {
             stopCounter();
-            if (mCamera != null) {
-                try {
-                    mCamera.lock();
-                } catch (Throwable t) {
-                    t.printStackTrace();
-                }
-            }
-            releaseRecorder();
-            closeCamera();
-            mButtonFacing.postDelayed(
+            closeCamera(
                     new Runnable() {
                         @Override
                         public void run() {
-                            mInterface.onShowPreview(mVideoOutputUri, reachedZero);
+                            if (mInterface != null)
+                                showRecordedVideo(reachedZero);
                         }
-                    },
-                    100);
+                    });
             return;
         }
 
-        if (mCamera != null)
-            mCamera.lock();
-        releaseRecorder();
-        closeCamera();
-
-        if (!mInterface.didRecord())
-            mVideoOutputUri = null;
+        // The recorder has to finish the file before it's shown
+        closeCamera(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mInterface == null)
+                            return;
+                        if (!mInterface.didRecord())
+                            mVideoOutputUri = null;
 
-        //setImageRes(mButtonVideo, mInterface.iconRecord());
-        if (!CameraUtil.isChromium())
-            mButtonFacing.setVisibility(View.VISIBLE);
-        if (mInterface.getRecordingStart() > -1 && getActivity() != null)
-            mInterface.onShowPreview(mVideoOutputUri, reachedZero);
+                        //setImageRes(mButtonVideo, mInterface.iconRecord());
+                        if (!CameraUtil.isChromium() && mButtonFacing != null)
+                            mButtonFacing.setVisibility(View.VISIBLE);
+                        if (mInterface.getRecordingStart() > -1 && getActivity() != null)
+                            showRecordedVideo(reachedZero);
 
-        stopCounter();
+                        stopCounter();
+                    }
+                });
     }
 
     private void setupFlashMode() {
@@ -540,9 +1033,26 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
                 break;
         }
         if (flashMode != null) {
-            Camera.Parameters parameters = mCamera.getParameters();
-            parameters.setFlashMode(flashMode);
-            mCamera.setParameters(parameters);
+            final String mode = flashMode;
+            mCameraHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mCamera == null)
+                                return;
+                            final boolean prewarmed = mRecorderPrewarmed;
+                            releasePrewarmedRecorder();
+                            try {
+                                Camera.Parameters parameters = mCamera.getParameters();
+                                parameters.setFlashMode(mode);
+                                mCamera.setParameters(parameters);
+                            } catch (RuntimeException e) {
+                                Log.e("CameraFragment", "Unable to set the flash mode", e);
+                            }
+                            if (prewarmed)
+                                prewarmRecorder();
+                        }
+                    });
         }
     }
 
@@ -551,8 +1061,49 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         setupFlashMode();
     }
 
+    @Override
+    protected void retakeStillshot() {
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // takePicture() stopped the preview
+                        if (mCamera != null)
+                            mCamera.startPreview();
+                    }
+                });
+        takeStillshot();
+    }
+
     @Override
     public void takeStillshot() {
+        if (CaptureExecutor.get().isFull()) {
+            LOG(CameraFragment.class, "Still saving earlier pictures, ignoring the capture");
+            return;
+        }
+        mButtonStillshot.setEnabled(false);
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        takePicture();
+                    }
+                });
+    }
+
+    private void takePicture() {
+        if (mCamera == null) {
+            mMainHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mButtonStillshot != null)
+                                mButtonStillshot.setEnabled(true);
+                        }
+                    });
+            return;
+        }
+        releasePrewarmedRecorder();
         Camera.ShutterCallback shutterCallback =
                 new Camera.ShutterCallback() {
                     public void onShutter() {
@@ -570,24 +1121,39 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
                     public void onPictureTaken(final byte[] data, Camera camera) {
                         //Log.d(TAG, "onPictureTaken - jpeg, size: " + data.length);
                         final File outputPic = getOutputPictureFile();
-                        // lets save the image to disk
-                        ImageUtil.saveToDiskAsync(
-                                data,
-                                outputPic,
-                                new ICallback() {
-                                    @Override
-                                    public void done(Exception e) {
-                                        if (e == null) {
-                                            Log.d("CameraFragment", "Picture saved to disk - jpeg, size: " + data.length);
-                                            mPictureOutputUri = Uri.fromFile(outputPic).toString();
-                                            mInterface.onShowStillshot(mPictureOutputUri);
-                                            //mCamera.startPreview();
-                                            mButtonStillshot.setEnabled(true);
-                                        } else {
-                                            throwError(e);
-                                        }
-                                    }
-                                });
+                        // Written by the task, read by the callback once the task is done
+                        final ImageQuality[] quality = new ImageQuality[1];
+                        // lets save the image to disk, back on the main thread when done
+                        CaptureExecutor.get()
+                                .submit(
+                                        new CaptureExecutor.Task() {
+                                            @Override
+                                            public void run() throws IOException {
+                                                ImageUtil.saveToDisk(ByteBuffer.wrap(data), outputPic);
+                                                cacheThumbnail(outputPic);
+                                                uprightStillshot(outputPic);
+                                                quality[0] = measureStillshot(outputPic);
+                                            }
+                                        },
+                                        new ICallback() {
+                                            @Override
+                                            public void done(Exception e) {
+                                                if (mInterface == null)
+                                                    return;
+                                                if (e == null) {
+                                                    Log.d("CameraFragment", "Picture saved to disk - jpeg, size: " + data.length);
+                                                    //mCamera.startPreview();
+                                                    mButtonStillshot.setEnabled(true);
+                                                    onStillshotSaved(Uri.fromFile(outputPic).toString(), quality[0]);
+                                                } else if (e instanceof RejectedExecutionException) {
+                                                    LOG(CameraFragment.class, "The capture I/O queue is full, dropping a picture");
+                                                    mButtonStillshot.setEnabled(true);
+                                                } else {
+                                                    throwError(e);
+                                                }
+                                            }
+                                        },
+                                        mMainHandler);
                     }
                 };
 
@@ -596,15 +1162,19 @@ public class CameraFragment extends BaseCameraFragment implements View.OnClickLi
         //            mCamera.enableShutterSound(false);
         //        }
 
-        mButtonStillshot.setEnabled(false);
         mCamera.takePicture(shutterCallback, rawCallback, jpegCallback);
     }
 
-    static class CompareSizesByArea implements Comparator<Camera.Size> {
-        @Override
-        public int compare(Camera.Size lhs, Camera.Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum((long) lhs.width * lhs.height - (long) rhs.width * rhs.height);
-        }
+    /**
+     * What a recorder is set up with, gathered on the main thread and handed to the camera thread.
+     */
+    private static class RecorderSetup {
+        CamcorderProfile profile;
+        int frameRate;
+        int bitRate;
+        int audioBitRate;
+        boolean audio;
+        File output;
+        Surface previewSurface;
     }
 }
@@ -36,6 +36,31 @@ public class CameraIntentKey {
     public static final String VIDEO_PREFERRED_ASPECT = "video_preferred_aspect";
     public static final String MAX_ALLOWED_FILE_SIZE = "max_allowed_file_size";
     public static final String QUALITY_PROFILE = "quality_profile";
+    public static final String CAPTURE_IO_THREADS = "capture_io_threads";
+    public static final String CAPTURE_IO_QUEUE_DEPTH = "capture_io_queue_depth";
+    public static final String BURST_COUNT = "burst_count";
+    public static final String ZERO_SHUTTER_LAG = "zero_shutter_lag";
+    public static final String ZERO_SHUTTER_LAG_DEPTH = "zero_shutter_lag_depth";
+    public static final String PREWARM_RECORDER = "prewarm_recorder";
+    public static final String SEGMENT_MAX_SIZE = "segment_max_size";
+    public static final String SEGMENT_MAX_DURATION = "segment_max_duration";
+    public static final String HOLD_TO_RECORD_THRESHOLD = "hold_to_record_threshold";
+    public static final String HOLD_TO_RECORD_PRE_ROLL = "hold_to_record_pre_roll";
+    public static final String PERSISTENT_RECORDER_SURFACE = "persistent_recorder_surface";
+    public static final String VIDEO_ENCODER = "video_encoder";
+    public static final String VIDEO_BIT_RATE_MODE = "video_bit_rate_mode";
+    public static final String VIDEO_KEY_FRAME_INTERVAL = "video_key_frame_interval";
+    public static final String VIDEO_CODEC_PROFILE = "video_codec_profile";
+    public static final String VIDEO_CODEC_LEVEL = "video_codec_level";
+    public static final String VIDEO_CODEC_PREFERENCE = "video_codec_preference";
+    public static final String ADAPTIVE_BIT_RATE = "adaptive_bit_rate";
+    public static final String QUALITY_GATE = "quality_gate";
+    public static final String QUALITY_MIN_SHARPNESS = "quality_min_sharpness";
+    public static final String UPRIGHT_STILLS = "upright_stills";
+    public static final String GENERATE_THUMBNAILS = "generate_thumbnails";
+    public static final String ADAPT_TO_MEMORY = "adapt_to_memory";
+    public static final String SESSION_PROFILE = "session_profile";
+    public static final String FAST_SHUTTER = "fast_shutter";
     public static final String ALLOW_CHANGE_CAMERA = "allow_change_camera";
     public static final String ICON_RECORD = "icon_record";
     public static final String ICON_STOP = "icon_stop";
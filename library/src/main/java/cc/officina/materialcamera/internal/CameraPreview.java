@@ -19,41 +19,91 @@ package cc.officina.materialcamera.internal;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.hardware.Camera;
+import android.os.Handler;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shows the preview of a Camera1 camera. Surface changes arrive on the main thread, the camera is
+ * only used on its own thread through the handler it's created with.
+ */
 @SuppressWarnings("deprecation")
 @SuppressLint("ViewConstructor")
 class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
 
     private static final String TAG = "SF-CameraPreview";
+    /**
+     * How long {@link #surfaceDestroyed(SurfaceHolder)} waits for the camera thread.
+     */
+    private static final long STOP_TIMEOUT_MS = 2500;
 
     protected final SurfaceHolder mHolder;
     private final Camera mCamera;
+    private final Handler mCameraHandler;
     private int mRatioWidth = 0;
     private int mRatioHeight = 0;
+    private PreviewListener mPreviewListener;
 
-    public CameraPreview(Context context, Camera camera) {
+    public CameraPreview(Context context, Camera camera, Handler cameraHandler) {
         super(context);
         mCamera = camera;
+        mCameraHandler = cameraHandler;
         mHolder = getHolder();
         mHolder.addCallback(this);
         mHolder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
     }
 
     @Override
-    public void surfaceCreated(SurfaceHolder holder) {
-        try {
-            mCamera.setPreviewDisplay(holder);
-            mCamera.startPreview();
-        } catch (Throwable e) {
-            Log.d(TAG, "Error setting camera preview: " + e.getMessage());
-        }
+    public void surfaceCreated(final SurfaceHolder holder) {
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mCamera.setPreviewDisplay(holder);
+                            mCamera.startPreview();
+                        } catch (Throwable e) {
+                            Log.d(TAG, "Error setting camera preview: " + e.getMessage());
+                        }
+                    }
+                });
     }
 
+    /**
+     * The camera must stop drawing into the surface before this returns, so it waits for the camera
+     * thread to stop the preview.
+     */
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
+        final PreviewListener listener = mPreviewListener;
+        final CountDownLatch stopped = new CountDownLatch(1);
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (listener != null)
+                                listener.onPreviewStopping();
+                            mCamera.stopPreview();
+                            mCamera.setPreviewDisplay(null);
+                        } catch (Throwable e) {
+                            // Already released
+                            Log.d(TAG, "Error stopping camera preview: " + e.getMessage());
+                        } finally {
+                            stopped.countDown();
+                        }
+                    }
+                });
+        try {
+            if (!stopped.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                Log.w(TAG, "Timed out stopping the camera preview");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         mHolder.removeCallback(this);
     }
 
@@ -61,6 +111,19 @@ class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
     public void surfaceChanged(SurfaceHolder holder, int format, int w, int h) {
         if (mHolder.getSurface() == null)
             return;
+        final PreviewListener listener = mPreviewListener;
+        mCameraHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        restartPreview(listener);
+                    }
+                });
+    }
+
+    private void restartPreview(PreviewListener listener) {
+        if (listener != null)
+            listener.onPreviewStopping();
         try {
             mCamera.stopPreview();
         } catch (Exception ignored) {
@@ -70,7 +133,14 @@ class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
             mCamera.startPreview();
         } catch (Exception e) {
             Log.d(TAG, "Error starting camera preview: " + e.getMessage());
+            return;
         }
+        if (listener != null)
+            listener.onPreviewStarted();
+    }
+
+    public void setPreviewListener(PreviewListener listener) {
+        mPreviewListener = listener;
     }
 
     /**
@@ -105,4 +175,14 @@ class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
             }
         }
     }
+
+    /**
+     * Notified around the preview restarts this view does on its own, the camera must be locked
+     * while they happen. Called on the camera's thread.
+     */
+    interface PreviewListener {
+        void onPreviewStopping();
+
+        void onPreviewStarted();
+    }
 }
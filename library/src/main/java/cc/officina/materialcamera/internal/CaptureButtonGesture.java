@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.MotionEvent;
+
+/**
+ * Tells taps from holds on the capture button: a tap takes a picture, holding past the threshold
+ * records video until release. Runs on the main looper, the hold threshold is a delayed message
+ * rather than a timer thread.
+ */
+class CaptureButtonGesture {
+
+    interface Callback {
+
+        /**
+         * The button went down, recording may follow.
+         */
+        void onPreRoll();
+
+        /**
+         * The press ended without recording, undo {@link #onPreRoll()}.
+         */
+        void onPreRollCancelled();
+
+        void onTap();
+
+        void onHoldStarted();
+
+        void onHoldEnded();
+    }
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PRESSED = 1;
+    private static final int STATE_HOLDING = 2;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Callback mCallback;
+    private final long mHoldThresholdMs;
+    private final boolean mPreRoll;
+    private int mState = STATE_IDLE;
+
+    private final Runnable mHoldRunnable =
+            new Runnable() {
+                @Override
+                public void run() {
+                    if (mState != STATE_PRESSED)
+                        return;
+                    mState = STATE_HOLDING;
+                    mCallback.onHoldStarted();
+                }
+            };
+
+    CaptureButtonGesture(Callback callback, long holdThresholdMs, boolean preRoll) {
+        mCallback = callback;
+        mHoldThresholdMs = Math.max(0, holdThresholdMs);
+        mPreRoll = preRoll;
+    }
+
+    boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                cancel();
+                mState = STATE_PRESSED;
+                if (mPreRoll)
+                    mCallback.onPreRoll();
+                mHandler.postDelayed(mHoldRunnable, mHoldThresholdMs);
+                return true;
+            case MotionEvent.ACTION_UP:
+                if (mState == STATE_PRESSED) {
+                    mHandler.removeCallbacks(mHoldRunnable);
+                    mState = STATE_IDLE;
+                    if (mPreRoll)
+                        mCallback.onPreRollCancelled();
+                    mCallback.onTap();
+                } else {
+                    cancel();
+                }
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                cancel();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Forgets the current gesture without any callback, e.g. when the fragment goes away.
+     */
+    void reset() {
+        mHandler.removeCallbacks(mHoldRunnable);
+        mState = STATE_IDLE;
+    }
+
+    /**
+     * Ends the current gesture without a tap: a pending hold is dropped, a running one ended.
+     */
+    void cancel() {
+        mHandler.removeCallbacks(mHoldRunnable);
+        final int state = mState;
+        mState = STATE_IDLE;
+        if (state == STATE_HOLDING)
+            mCallback.onHoldEnded();
+        else if (state == STATE_PRESSED && mPreRoll)
+            mCallback.onPreRollCancelled();
+    }
+}
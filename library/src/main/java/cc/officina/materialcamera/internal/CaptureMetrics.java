@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import cc.officina.materialcamera.CaptureMetricsListener;
+
+/**
+ * Holds the process wide {@link CaptureMetricsListener} and delivers measurements to it on the
+ * main thread, whichever thread they're taken on.
+ */
+public class CaptureMetrics {
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static volatile CaptureMetricsListener sListener;
+
+    private CaptureMetrics() {
+    }
+
+    public static void setListener(@Nullable CaptureMetricsListener listener) {
+        sListener = listener;
+    }
+
+    static void reportRecordingLatency(final long latencyMs, final boolean prewarmed) {
+        final CaptureMetricsListener listener = sListener;
+        if (listener == null)
+            return;
+        sMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onRecordingLatency(latencyMs, prewarmed);
+                    }
+                });
+    }
+
+    static void reportMemoryTrimmed(final int trimLevel, final int memoryMode, final long releasedBytes) {
+        final CaptureMetricsListener listener = sListener;
+        if (listener == null)
+            return;
+        sMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        //noinspection WrongConstant
+                        listener.onMemoryTrimmed(trimLevel, memoryMode, releasedBytes);
+                    }
+                });
+    }
+
+    static void reportMemoryAdapted(
+            final int memoryMode,
+            final int stillWidth,
+            final int stillHeight,
+            final int stillBuffers,
+            final int zslDepth) {
+        final CaptureMetricsListener listener = sListener;
+        if (listener == null)
+            return;
+        sMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        //noinspection WrongConstant
+                        listener.onMemoryAdapted(memoryMode, stillWidth, stillHeight, stillBuffers, zslDepth);
+                    }
+                });
+    }
+
+    static void reportShutterLatency(final int path, final long latencyMs, final boolean timedOut) {
+        final CaptureMetricsListener listener = sListener;
+        if (listener == null)
+            return;
+        sMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        //noinspection WrongConstant
+                        listener.onShutterLatency(path, latencyMs, timedOut);
+                    }
+                });
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Orders encoded samples from several encoders onto one container timeline, without depending on
+ * the Android media classes so it can be exercised with synthetic frames on the JVM.
+ *
+ * <p>Samples are held back until every track has its format (a muxer can't start before that),
+ * the timeline starts at the first video key frame, and earlier samples are dropped. Timestamps of
+ * the other tracks are kept strictly increasing. Video samples come in decode order and may have
+ * B-frames, whose presentation times go back and forth, so they're passed through as they are and
+ * only a repeat of the previous timestamp is moved forward. The size and duration limits are
+ * checked before a sample is written, so the output never goes past them.
+ */
+public class EncodedSampleTimeline {
+
+    // Same values as the MediaCodec.BUFFER_FLAG_* constants
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final int FLAG_CODEC_CONFIG = 2;
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    public static final int RESULT_WRITTEN = 0;
+    public static final int RESULT_PENDING = 1;
+    public static final int RESULT_DROPPED = 2;
+    public static final int RESULT_LIMIT_REACHED = 3;
+
+    /**
+     * Samples kept while waiting for every track's format, past this they're dropped.
+     */
+    static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    public interface Sink {
+
+        /**
+         * Every track is ready, called once before the first {@link #writeSample}.
+         */
+        void start();
+
+        void writeSample(int track, ByteBuffer data, long presentationTimeUs, int flags);
+    }
+
+    private final Sink mSink;
+    private final int mVideoTrack;
+    private final boolean[] mTrackReady;
+    private final long[] mLastTimeUs;
+    private final long mMaxBytes;
+    private final long mMaxDurationUs;
+    private final List<Sample> mPending = new ArrayList<>();
+    private int mPendingBytes;
+    private boolean mStarted;
+    private boolean mLimitReached;
+    private boolean mFileSizeLimitReached;
+    private long mBaseTimeUs = -1;
+    private long mBytesWritten;
+    private long mDurationUs;
+
+    /**
+     * @param trackCount    number of tracks, every one of them must become ready
+     * @param videoTrack    the track whose first key frame starts the timeline
+     * @param maxBytes      size limit of the written samples, 0 or less for none
+     * @param maxDurationUs duration limit, 0 or less for none
+     */
+    public EncodedSampleTimeline(int trackCount, int videoTrack, long maxBytes, long maxDurationUs, Sink sink) {
+        mSink = sink;
+        mVideoTrack = videoTrack;
+        mTrackReady = new boolean[trackCount];
+        mLastTimeUs = new long[trackCount];
+        for (int i = 0; i < trackCount; i++)
+            mLastTimeUs[i] = -1;
+        mMaxBytes = maxBytes;
+        mMaxDurationUs = maxDurationUs;
+    }
+
+    /**
+     * The track's format is known (and added to the container), samples can be written once every
+     * track is ready.
+     */
+    public synchronized void setTrackReady(int track) {
+        mTrackReady[track] = true;
+        if (mStarted)
+            return;
+        for (boolean ready : mTrackReady) {
+            if (!ready)
+                return;
+        }
+        mStarted = true;
+        mSink.start();
+        final List<Sample> pending = new ArrayList<>(mPending);
+        mPending.clear();
+        mPendingBytes = 0;
+        for (Sample sample : pending)
+            write(sample.track, sample.data, sample.timeUs, sample.flags);
+    }
+
+    /**
+     * Submits an encoded sample, the buffer's position to limit is the sample data. A pending
+     * sample is copied, so the buffer can be given back to the encoder right away.
+     *
+     * @return one of the {@code RESULT_*} constants
+     */
+    public synchronized int submit(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+        if (mLimitReached)
+            return RESULT_LIMIT_REACHED;
+        // Codec config travels in the track format, an end of stream buffer is usually empty
+        if ((flags & FLAG_CODEC_CONFIG) != 0 || !data.hasRemaining())
+            return RESULT_DROPPED;
+        if (!mStarted) {
+            final int size = data.remaining();
+            if (mPendingBytes + size > MAX_PENDING_BYTES)
+                return RESULT_DROPPED;
+            final ByteBuffer copy = ByteBuffer.allocate(size);
+            copy.put(data.duplicate());
+            copy.flip();
+            mPending.add(new Sample(track, copy, presentationTimeUs, flags));
+            mPendingBytes += size;
+            return RESULT_PENDING;
+        }
+        return write(track, data, presentationTimeUs, flags);
+    }
+
+    private int write(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+        if (mBaseTimeUs < 0) {
+            if (track != mVideoTrack || (flags & FLAG_KEY_FRAME) == 0)
+                return RESULT_DROPPED;
+            mBaseTimeUs = presentationTimeUs;
+        }
+        if (presentationTimeUs < mBaseTimeUs)
+            return RESULT_DROPPED;
+
+        long timeUs = presentationTimeUs - mBaseTimeUs;
+        // Containers need distinct timestamps (increasing ones outside of reordered video), encoders
+        // occasionally repeat one
+        if (track == mVideoTrack ? timeUs == mLastTimeUs[track] : timeUs <= mLastTimeUs[track])
+            timeUs = mLastTimeUs[track] + 1;
+
+        final int size = data.remaining();
+        mFileSizeLimitReached = mMaxBytes > 0 && mBytesWritten + size > mMaxBytes;
+        if (mFileSizeLimitReached || (mMaxDurationUs > 0 && timeUs > mMaxDurationUs)) {
+            mLimitReached = true;
+            return RESULT_LIMIT_REACHED;
+        }
+        mSink.writeSample(track, data, timeUs, flags & ~FLAG_END_OF_STREAM);
+        mLastTimeUs[track] = timeUs;
+        mBytesWritten += size;
+        mDurationUs = Math.max(mDurationUs, timeUs);
+        return RESULT_WRITTEN;
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Whether anything was written, a container without samples can't be finished.
+     */
+    public synchronized boolean hasSamples() {
+        return mBytesWritten > 0;
+    }
+
+    /**
+     * After {@link #RESULT_LIMIT_REACHED}, whether it was the size rather than the duration limit.
+     */
+    public synchronized boolean isFileSizeLimitReached() {
+        return mFileSizeLimitReached;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public synchronized long getDurationUs() {
+        return mDurationUs;
+    }
+
+    private static class Sample {
+
+        final int track;
+        final ByteBuffer data;
+        final long timeUs;
+        final int flags;
+
+        Sample(int track, ByteBuffer data, long timeUs, int flags) {
+            this.track = track;
+            this.data = data;
+            this.timeUs = timeUs;
+            this.flags = flags;
+        }
+    }
+}
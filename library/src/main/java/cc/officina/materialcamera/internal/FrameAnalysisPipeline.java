@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import cc.officina.materialcamera.AnalysisFrame;
+import cc.officina.materialcamera.FrameAnalyzer;
+
+/**
+ * Delivers frames to a {@link FrameAnalyzer} on its own thread, keeping only the latest frame while
+ * one is being analyzed. Every frame is recycled once analyzed or dropped.
+ */
+public class FrameAnalysisPipeline {
+
+    private static final String TAG = "FrameAnalysisPipeline";
+
+    private static volatile FrameAnalyzer sAnalyzer;
+
+    /**
+     * A frame whose buffers go back to their source when it's done with.
+     */
+    abstract static class RecyclableFrame extends AnalysisFrame {
+
+        abstract void recycle();
+    }
+
+    private final FrameAnalyzer mAnalyzer;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private RecyclableFrame mPending;
+    private boolean mBusy;
+    private boolean mReleased;
+
+    private final Runnable mAnalyzeRunnable =
+            new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        final RecyclableFrame frame;
+                        synchronized (FrameAnalysisPipeline.this) {
+                            frame = mPending;
+                            mPending = null;
+                            if (frame == null) {
+                                mBusy = false;
+                                return;
+                            }
+                        }
+                        try {
+                            mAnalyzer.analyze(frame);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "Frame analyzer failed", e);
+                        } finally {
+                            frame.recycle();
+                        }
+                    }
+                }
+            };
+
+    public static void setAnalyzer(@Nullable FrameAnalyzer analyzer) {
+        sAnalyzer = analyzer;
+    }
+
+    @Nullable
+    static FrameAnalyzer getAnalyzer() {
+        return sAnalyzer;
+    }
+
+    FrameAnalysisPipeline(FrameAnalyzer analyzer) {
+        mAnalyzer = analyzer;
+        mThread = new HandlerThread("FrameAnalysis", Process.THREAD_PRIORITY_DEFAULT);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    FrameAnalyzer getFrameAnalyzer() {
+        return mAnalyzer;
+    }
+
+    void submit(RecyclableFrame frame) {
+        synchronized (this) {
+            if (mReleased) {
+                frame.recycle();
+                return;
+            }
+            if (mPending != null)
+                mPending.recycle();
+            mPending = frame;
+            if (mBusy)
+                return;
+            mBusy = true;
+        }
+        mHandler.post(mAnalyzeRunnable);
+    }
+
+    /**
+     * Drops the pending frame and stops the thread once the current analysis returns.
+     */
+    void release() {
+        release(null);
+    }
+
+    /**
+     * Same as {@link #release()}, {@code then} runs on the analysis thread once the current analysis
+     * returned, e.g. to close what the frames are read from.
+     */
+    void release(@Nullable final Runnable then) {
+        synchronized (this) {
+            mReleased = true;
+            if (mPending != null) {
+                mPending.recycle();
+                mPending = null;
+            }
+        }
+        mHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (then != null)
+                            then.run();
+                        mThread.quit();
+                    }
+                });
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A {@code YUV_420_888} {@link Image} from the Camera2 analysis stream. The frame objects are
+ * pooled, recycling one closes its image so the reader can reuse the buffer.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class ImageAnalysisFrame extends FrameAnalysisPipeline.RecyclableFrame {
+
+    private final ArrayDeque<ImageAnalysisFrame> mPool;
+    private final int mRotation;
+    private Image mImage;
+    private Image.Plane[] mPlanes;
+
+    private ImageAnalysisFrame(ArrayDeque<ImageAnalysisFrame> pool, int rotation) {
+        mPool = pool;
+        mRotation = rotation;
+    }
+
+    /**
+     * Creates a pool with a frame for each image the reader can hand out.
+     */
+    static ArrayDeque<ImageAnalysisFrame> createPool(int size, int rotation) {
+        final ArrayDeque<ImageAnalysisFrame> pool = new ArrayDeque<>(size);
+        for (int i = 0; i < size; i++)
+            pool.add(new ImageAnalysisFrame(pool, rotation));
+        return pool;
+    }
+
+    /**
+     * Wraps the image in a pooled frame, or closes it and returns null if none is free.
+     */
+    static ImageAnalysisFrame obtain(ArrayDeque<ImageAnalysisFrame> pool, Image image) {
+        final ImageAnalysisFrame frame;
+        synchronized (pool) {
+            frame = pool.poll();
+        }
+        if (frame == null) {
+            image.close();
+            return null;
+        }
+        frame.mImage = image;
+        frame.mPlanes = image.getPlanes();
+        return frame;
+    }
+
+    @Override
+    void recycle() {
+        mImage.close();
+        mImage = null;
+        mPlanes = null;
+        synchronized (mPool) {
+            mPool.add(this);
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mImage.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mImage.getHeight();
+    }
+
+    @Override
+    public int getRotation() {
+        return mRotation;
+    }
+
+    @Override
+    public long getTimestampNs() {
+        return mImage.getTimestamp();
+    }
+
+    @Override
+    public ByteBuffer getPlane(int index) {
+        return mPlanes[index].getBuffer();
+    }
+
+    @Override
+    public int getRowStride(int index) {
+        return mPlanes[index].getRowStride();
+    }
+
+    @Override
+    public int getPixelStride(int index) {
+        return mPlanes[index].getPixelStride();
+    }
+}
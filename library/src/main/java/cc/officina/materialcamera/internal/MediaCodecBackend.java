@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Records with {@link MediaCodec} encoders and a {@link MediaMuxer}, which unlike {@link
+ * MediaRecorder} exposes the bit rate mode, key frame interval, profile/level and the choice
+ * between hardware and software encoders. Video comes from the input surface, audio from an {@link
+ * AudioRecord}; each encoder is drained on its own thread and {@link EncodedSampleTimeline} puts
+ * their output in order.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MediaCodecBackend implements VideoEncoderBackend {
+
+    private static final String TAG = "MediaCodecBackend";
+    private static final String AUDIO_MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    private static final long STOP_TIMEOUT_MS = 3000;
+    private static final int VIDEO_TRACK = 0;
+    private static final int AUDIO_TRACK = 1;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Listener mListener;
+    private final int[] mMuxerTracks = new int[2];
+    private MediaCodec mVideoCodec;
+    private MediaCodec mAudioCodec;
+    private AudioRecord mAudioRecord;
+    private MediaMuxer mMuxer;
+    private EncodedSampleTimeline mTimeline;
+    private Surface mInputSurface;
+    private boolean mOwnsInputSurface;
+    private Thread mVideoThread;
+    private Thread mAudioThread;
+    private int mAudioFrameSize;
+    private int mAudioSampleRate;
+    private boolean mRealtimeTimestamps;
+    private volatile boolean mStopping;
+    private volatile boolean mLimitReported;
+
+    public MediaCodecBackend(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void prepare(VideoEncoderConfig config, File output, @Nullable Surface persistentSurface)
+            throws IOException {
+        release();
+        mStopping = false;
+        mLimitReported = false;
+        mRealtimeTimestamps = config.realtimeTimestamps;
+        try {
+            mVideoCodec = createEncoder(config.videoMimeType, config.codecPreference);
+            mVideoCodec.configure(
+                    createVideoFormat(config, mVideoCodec.getCodecInfo()),
+                    null,
+                    null,
+                    MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (persistentSurface != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                mVideoCodec.setInputSurface(persistentSurface);
+                mInputSurface = persistentSurface;
+                mOwnsInputSurface = false;
+            } else {
+                mInputSurface = mVideoCodec.createInputSurface();
+                mOwnsInputSurface = true;
+            }
+            if (config.audio)
+                setUpAudio(config);
+
+            mMuxer = new MediaMuxer(output.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            mMuxer.setOrientationHint(config.orientationHint);
+            final MediaMuxer muxer = mMuxer;
+            mTimeline =
+                    new EncodedSampleTimeline(
+                            config.audio ? 2 : 1,
+                            VIDEO_TRACK,
+                            config.maxFileSize,
+                            config.maxDurationMs * 1000,
+                            new EncodedSampleTimeline.Sink() {
+                                @Override
+                                public void start() {
+                                    muxer.start();
+                                }
+
+                                @Override
+                                public void writeSample(
+                                        int track, ByteBuffer data, long presentationTimeUs, int flags) {
+                                    final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                                    info.set(data.position(), data.remaining(), presentationTimeUs, flags);
+                                    muxer.writeSampleData(mMuxerTracks[track], data, info);
+                                }
+                            });
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private void setUpAudio(VideoEncoderConfig config) throws IOException {
+        final int channelMask =
+                config.audioChannels > 1 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        final int minBufferSize =
+                AudioRecord.getMinBufferSize(
+                        config.audioSampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0)
+            throw new IOException("Unsupported audio configuration");
+        mAudioRecord =
+                new AudioRecord(
+                        MediaRecorder.AudioSource.DEFAULT,
+                        config.audioSampleRate,
+                        channelMask,
+                        AudioFormat.ENCODING_PCM_16BIT,
+                        minBufferSize * 2);
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED)
+            throw new IOException("Unable to open the microphone");
+        mAudioFrameSize = 2 * (config.audioChannels > 1 ? 2 : 1);
+        mAudioSampleRate = config.audioSampleRate;
+
+        final MediaFormat format =
+                MediaFormat.createAudioFormat(
+                        AUDIO_MIME_TYPE, config.audioSampleRate, config.audioChannels > 1 ? 2 : 1);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.audioBitRate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, minBufferSize);
+        mAudioCodec = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+        mAudioCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    private static MediaFormat createVideoFormat(VideoEncoderConfig config, MediaCodecInfo codecInfo) {
+        final MediaFormat format =
+                MediaFormat.createVideoFormat(config.videoMimeType, config.width, config.height);
+        format.setInteger(
+                MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.iFrameInterval);
+        if (config.bitRateMode >= 0) {
+            final MediaCodecInfo.EncoderCapabilities capabilities =
+                    codecInfo.getCapabilitiesForType(config.videoMimeType).getEncoderCapabilities();
+            if (capabilities.isBitrateModeSupported(config.bitRateMode))
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, config.bitRateMode);
+            else
+                Log.w(TAG, codecInfo.getName() + " doesn't support bit rate mode " + config.bitRateMode);
+        }
+        if (config.profile > 0) {
+            format.setInteger(MediaFormat.KEY_PROFILE, config.profile);
+            if (config.level > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                format.setInteger(MediaFormat.KEY_LEVEL, config.level);
+        }
+        return format;
+    }
+
+    /**
+     * Creates an encoder for the type, honoring the hardware/software preference when there's a
+     * choice.
+     */
+    static MediaCodec createEncoder(String mimeType, int preference) throws IOException {
+        if (preference == VideoEncoderConfig.CODEC_ANY)
+            return MediaCodec.createEncoderByType(mimeType);
+        MediaCodecInfo fallback = null;
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder() || !supportsType(info, mimeType))
+                continue;
+            if (isSoftwareCodec(info) == (preference == VideoEncoderConfig.CODEC_SOFTWARE))
+                return MediaCodec.createByCodecName(info.getName());
+            if (fallback == null)
+                fallback = info;
+        }
+        if (fallback == null)
+            throw new IOException("No encoder available for " + mimeType);
+        Log.w(TAG, "No encoder of the preferred kind for " + mimeType + ", using " + fallback.getName());
+        return MediaCodec.createByCodecName(fallback.getName());
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mimeType) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mimeType))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isSoftwareCodec(MediaCodecInfo info) {
+        final String name = info.getName().toLowerCase(Locale.US);
+        return name.startsWith("omx.google.") || name.startsWith("c2.android.") || name.contains(".sw.");
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public void start() {
+        mVideoCodec.start();
+        mVideoThread =
+                new Thread("VideoEncoder") {
+                    @Override
+                    public void run() {
+                        drainVideo();
+                    }
+                };
+        mVideoThread.start();
+        if (mAudioCodec != null) {
+            mAudioCodec.start();
+            mAudioRecord.startRecording();
+            mAudioThread =
+                    new Thread("AudioEncoder") {
+                        @Override
+                        public void run() {
+                            encodeAudio();
+                        }
+                    };
+            mAudioThread.start();
+        }
+    }
+
+    @Override
+    public void setVideoBitRate(int bitRate) {
+        if (mVideoCodec == null)
+            return;
+        final Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            mVideoCodec.setParameters(parameters);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to change the video bit rate", e);
+        }
+    }
+
+    private void drainVideo() {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            while (true) {
+                final int index = mVideoCodec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+                    addTrack(VIDEO_TRACK, mVideoCodec.getOutputFormat());
+                else if (index >= 0 && writeOutput(VIDEO_TRACK, mVideoCodec, index, info))
+                    return;
+            }
+        } catch (RuntimeException e) {
+            onEncoderError(e);
+        }
+    }
+
+    private void encodeAudio() {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        try {
+            while (true) {
+                if (!inputDone) {
+                    final int inputIndex = mAudioCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        final ByteBuffer input = mAudioCodec.getInputBuffer(inputIndex);
+                        input.clear();
+                        final int read = mStopping ? 0 : mAudioRecord.read(input, input.capacity());
+                        final long nowNs =
+                                mRealtimeTimestamps ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+                        // The samples just read were captured before now
+                        final long timeUs =
+                                nowNs / 1000 - (long) Math.max(0, read) / mAudioFrameSize * 1000000 / mAudioSampleRate;
+                        if (mStopping || read < 0) {
+                            mAudioCodec.queueInputBuffer(
+                                    inputIndex, 0, 0, timeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            mAudioCodec.queueInputBuffer(inputIndex, 0, read, timeUs, 0);
+                        }
+                    }
+                }
+                final int outputIndex = mAudioCodec.dequeueOutputBuffer(info, inputDone ? DEQUEUE_TIMEOUT_US : 0);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+                    addTrack(AUDIO_TRACK, mAudioCodec.getOutputFormat());
+                else if (outputIndex >= 0 && writeOutput(AUDIO_TRACK, mAudioCodec, outputIndex, info))
+                    return;
+            }
+        } catch (RuntimeException e) {
+            onEncoderError(e);
+        }
+    }
+
+    private void addTrack(int track, MediaFormat format) {
+        // Both encoder threads add their track, the muxer starts with the last one
+        synchronized (mTimeline) {
+            mMuxerTracks[track] = mMuxer.addTrack(format);
+            mTimeline.setTrackReady(track);
+        }
+    }
+
+    /**
+     * Hands an output buffer to the timeline and gives it back to the encoder.
+     *
+     * @return whether it was the last one
+     */
+    private boolean writeOutput(int track, MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        final ByteBuffer data = codec.getOutputBuffer(index);
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        final int result = mTimeline.submit(track, data, info.presentationTimeUs, info.flags);
+        codec.releaseOutputBuffer(index, false);
+        if (result == EncodedSampleTimeline.RESULT_LIMIT_REACHED && !mLimitReported && !mStopping) {
+            mLimitReported = true;
+            final boolean fileSize = mTimeline.isFileSizeLimitReached();
+            mMainHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            mListener.onLimitReached(fileSize);
+                        }
+                    });
+        }
+        return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    private void onEncoderError(final RuntimeException e) {
+        // Encoders released while stopping throw, that's expected
+        if (mStopping)
+            return;
+        Log.e(TAG, "Encoding failed", e);
+        mMainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onError(e);
+                    }
+                });
+    }
+
+    @Override
+    public void stop() {
+        if (mVideoThread == null)
+            return;
+        mStopping = true;
+        try {
+            mVideoCodec.signalEndOfInputStream();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Unable to signal the end of the video stream", e);
+        }
+        join(mVideoThread);
+        join(mAudioThread);
+        mVideoThread = null;
+        mAudioThread = null;
+        if (mAudioRecord != null) {
+            try {
+                mAudioRecord.stop();
+            } catch (IllegalStateException ignored) {
+            }
+        }
+        if (mTimeline.hasSamples()) {
+            try {
+                mMuxer.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Unable to finish the recording", e);
+            }
+        }
+        releaseEncoders();
+    }
+
+    private static void join(@Nullable Thread thread) {
+        if (thread == null)
+            return;
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+        releaseEncoders();
+    }
+
+    private void releaseEncoders() {
+        mStopping = true;
+        if (mVideoCodec != null) {
+            mVideoCodec.release();
+            mVideoCodec = null;
+        }
+        if (mAudioCodec != null) {
+            mAudioCodec.release();
+            mAudioCodec = null;
+        }
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        if (mMuxer != null) {
+            try {
+                mMuxer.release();
+            } catch (IllegalStateException ignored) {
+                // Started without a sample, there's nothing to keep
+            }
+            mMuxer = null;
+        }
+        if (mInputSurface != null && mOwnsInputSurface)
+            mInputSurface.release();
+        mInputSurface = null;
+        mTimeline = null;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import android.hardware.Camera;
+import android.os.Handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An NV21 preview buffer from Camera1's {@link Camera#setPreviewCallbackWithBuffer}. Each frame
+ * owns one callback buffer with plane views made up front; recycling it hands the buffer back to
+ * the camera on the camera's thread.
+ */
+@SuppressWarnings("deprecation")
+class Nv21AnalysisFrame extends FrameAnalysisPipeline.RecyclableFrame {
+
+    final byte[] data;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final ByteBuffer[] mPlanes = new ByteBuffer[3];
+    private final Handler mCameraHandler;
+    private final Runnable mRequeue;
+    private long mTimestampNs;
+
+    Nv21AnalysisFrame(final Camera camera, Handler cameraHandler, int width, int height, int rotation) {
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mCameraHandler = cameraHandler;
+        final int lumaSize = width * height;
+        data = new byte[lumaSize + 2 * ((width + 1) / 2) * ((height + 1) / 2)];
+        // NV21 interleaves V and U after the luma, V first
+        mPlanes[0] = ByteBuffer.wrap(data, 0, lumaSize).slice();
+        mPlanes[1] = ByteBuffer.wrap(data, lumaSize + 1, data.length - lumaSize - 1).slice();
+        mPlanes[2] = ByteBuffer.wrap(data, lumaSize, data.length - lumaSize - 1).slice();
+        mRequeue =
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            camera.addCallbackBuffer(data);
+                        } catch (RuntimeException ignored) {
+                            // The camera was released in the meantime
+                        }
+                    }
+                };
+    }
+
+    void set(long timestampNs) {
+        mTimestampNs = timestampNs;
+        // The previous analyzer may have moved the positions
+        for (ByteBuffer plane : mPlanes)
+            plane.clear();
+    }
+
+    @Override
+    void recycle() {
+        mCameraHandler.post(mRequeue);
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getRotation() {
+        return mRotation;
+    }
+
+    @Override
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    @Override
+    public ByteBuffer getPlane(int index) {
+        return mPlanes[index];
+    }
+
+    @Override
+    public int getRowStride(int index) {
+        return index == 0 ? mWidth : 2 * ((mWidth + 1) / 2);
+    }
+
+    @Override
+    public int getPixelStride(int index) {
+        return index == 0 ? 1 : 2;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import cc.officina.materialcamera.SegmentSink;
+
+/**
+ * Hands finished segments to the process wide {@link SegmentSink} on a single worker thread, in
+ * order. The queue is bounded so a sink that can't keep up (e.g. no network) doesn't pile up work
+ * without limit; a segment that doesn't fit is dropped from the upload, but its file is kept and
+ * still returned to the activity. Calls failing with an {@link IOException} are retried with
+ * exponential backoff before the next one is attempted. Each job carries the id of its recording,
+ * taken when it's queued, so a recording whose end was never delivered doesn't leak its id into the
+ * next one.
+ */
+public class SegmentDispatcher {
+
+    private static final String TAG = "SegmentDispatcher";
+
+    static final int QUEUE_DEPTH = 16;
+    static final int MAX_ATTEMPTS = 6;
+    static final long INITIAL_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 60000;
+
+    private static final BlockingQueue<Job> sQueue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+    private static volatile SegmentSink sSink;
+    private static Thread sWorker;
+    /**
+     * Id of the current recording, only touched on the UI thread.
+     */
+    private static String sRecordingId;
+
+    private SegmentDispatcher() {
+    }
+
+    public static void setSink(@Nullable SegmentSink sink) {
+        sSink = sink;
+    }
+
+    static void segmentFinished(File segment, int index) {
+        // The first segment starts a recording
+        if (index == 0 || sRecordingId == null)
+            sRecordingId = UUID.randomUUID().toString();
+        enqueue(new Job(sSink, sRecordingId, segment, index));
+    }
+
+    static void recordingFinished(int segmentCount) {
+        if (sRecordingId == null)
+            return;
+        enqueue(new Job(sSink, sRecordingId, null, segmentCount));
+        sRecordingId = null;
+    }
+
+    private static void enqueue(Job job) {
+        if (job.sink == null)
+            return;
+        if (!sQueue.offer(job)) {
+            Log.w(TAG, "Segment queue is full, not handing " + job + " to the sink");
+            return;
+        }
+        startWorker();
+    }
+
+    private static synchronized void startWorker() {
+        if (sWorker != null)
+            return;
+        sWorker =
+                new Thread("SegmentSink") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        while (true) {
+                            try {
+                                deliver(sQueue.take());
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                };
+        sWorker.setDaemon(true);
+        sWorker.start();
+    }
+
+    private static void deliver(Job job) throws InterruptedException {
+        long backoff = INITIAL_BACKOFF_MS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                job.run();
+                return;
+            } catch (Exception e) {
+                if (!(e instanceof IOException)) {
+                    Log.e(TAG, "Giving up on " + job + ", the sink won't take it", e);
+                    return;
+                }
+                if (attempt >= MAX_ATTEMPTS) {
+                    Log.e(TAG, "Giving up on " + job + " after " + attempt + " attempts", e);
+                    return;
+                }
+                Log.w(TAG, "Failed to deliver " + job + ", retrying in " + backoff + "ms", e);
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    private static class Job {
+
+        final SegmentSink sink;
+        final String recordingId;
+        @Nullable
+        final File segment;
+        // Segment index, or the segment count when the recording finished
+        final int number;
+
+        Job(SegmentSink sink, String recordingId, @Nullable File segment, int number) {
+            this.sink = sink;
+            this.recordingId = recordingId;
+            this.segment = segment;
+            this.number = number;
+        }
+
+        void run() throws Exception {
+            if (segment != null)
+                sink.onSegment(recordingId, segment, number);
+            else
+                sink.onRecordingFinished(recordingId, number);
+        }
+
+        @Override
+        public String toString() {
+            return segment != null ? "segment " + number + " (" + segment.getName() + ")" : "end of recording";
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+/**
+ * The Camera2 still capture sequence: lock focus, run the exposure precapture if exposure hasn't
+ * converged, capture, then unlock. Every waiting state has a deadline; when the camera doesn't get
+ * there in time the sequence moves on with what it has instead of hanging on a focus or exposure
+ * that never converges.
+ *
+ * <p>Plain Java, fed with the AF and AE state of each capture result and with the time, so it can
+ * be driven by scripted result sequences. Not thread safe: everything, including the {@link
+ * Actions} it calls, runs on the camera handler.
+ */
+class StillCaptureStateMachine {
+
+    static final int STATE_PREVIEW = 0;
+    static final int STATE_AF_LOCK = 1;
+    static final int STATE_PRECAPTURE = 2;
+    static final int STATE_CAPTURING = 3;
+    static final int STATE_DONE = 4;
+
+    /**
+     * Stands for a state the capture result doesn't report.
+     */
+    static final int UNKNOWN = -1;
+    // Same values as CaptureResult.CONTROL_AF_STATE_* and CONTROL_AE_STATE_*
+    static final int AF_STATE_PASSIVE_FOCUSED = 2;
+    static final int AF_STATE_FOCUSED_LOCKED = 4;
+    static final int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+    static final int AE_STATE_CONVERGED = 2;
+    static final int AE_STATE_LOCKED = 3;
+    static final int AE_STATE_FLASH_REQUIRED = 4;
+    static final int AE_STATE_PRECAPTURE = 5;
+
+    // Same values as MaterialCamera.SHUTTER_PATH_*
+    static final int PATH_FULL = 0;
+    static final int PATH_SKIP_FOCUS = 1;
+    static final int PATH_SKIP_PRECAPTURE = 1 << 1;
+
+    static final long AF_LOCK_TIMEOUT_MS = 1000;
+    /**
+     * Covers both waiting for the precapture to start and for it to finish.
+     */
+    static final long PRECAPTURE_TIMEOUT_MS = 1000;
+    static final long CAPTURE_TIMEOUT_MS = 3000;
+
+    private final Actions mActions;
+    private int mState = STATE_PREVIEW;
+    private long mDeadlineMs;
+    private boolean mPrecaptureStarted;
+    private int mLastAeState = UNKNOWN;
+    private int mTimedOutStates;
+    private boolean mSkipPrecapture;
+    private int mPath;
+
+    StillCaptureStateMachine(Actions actions) {
+        mActions = actions;
+    }
+
+    static String getStateName(int state) {
+        switch (state) {
+            case STATE_PREVIEW:
+                return "PREVIEW";
+            case STATE_AF_LOCK:
+                return "AF_LOCK";
+            case STATE_PRECAPTURE:
+                return "PRECAPTURE";
+            case STATE_CAPTURING:
+                return "CAPTURING";
+            case STATE_DONE:
+                return "DONE";
+            default:
+                return Integer.toString(state);
+        }
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * Picks the steps a sequence can leave out given the last preview result: the focus trigger
+     * when continuous auto focus already settled, the precapture when exposure converged and the
+     * flash won't fire.
+     *
+     * @param afState  the last reported AF state, or {@link #UNKNOWN}
+     * @param aeState  the last reported AE state, or {@link #UNKNOWN}
+     * @param flashOff whether the still is taken without flash
+     * @return a combination of {@code PATH_*} flags
+     */
+    static int choosePath(int afState, int aeState, boolean flashOff) {
+        int path = PATH_FULL;
+        if (afState == AF_STATE_PASSIVE_FOCUSED || afState == AF_STATE_FOCUSED_LOCKED)
+            path |= PATH_SKIP_FOCUS;
+        if (flashOff && (aeState == AE_STATE_CONVERGED || aeState == AE_STATE_LOCKED))
+            path |= PATH_SKIP_PRECAPTURE;
+        return path;
+    }
+
+    /**
+     * Starts a sequence, locking focus first if the camera has auto focus. Leaves out the steps in
+     * {@code path}, see {@link #choosePath(int, int, boolean)}; {@link #PATH_FULL} runs them all.
+     *
+     * @return false if a sequence is already running
+     */
+    boolean start(long nowMs, boolean afAvailable, int path) {
+        if (mState != STATE_PREVIEW)
+            return false;
+        mTimedOutStates = 0;
+        mLastAeState = UNKNOWN;
+        mSkipPrecapture = (path & PATH_SKIP_PRECAPTURE) != 0;
+        mPath = PATH_SKIP_FOCUS | PATH_SKIP_PRECAPTURE;
+        if (afAvailable && (path & PATH_SKIP_FOCUS) == 0) {
+            mPath &= ~PATH_SKIP_FOCUS;
+            enter(STATE_AF_LOCK, nowMs, AF_LOCK_TIMEOUT_MS);
+            mActions.lockFocus();
+        } else if (mSkipPrecapture) {
+            enterCapturing(nowMs);
+        } else {
+            enterPrecapture(nowMs);
+        }
+        return true;
+    }
+
+    /**
+     * Feeds the AF and AE state of a capture result, partial or total; {@link #UNKNOWN} for one it
+     * doesn't report.
+     */
+    void onResult(int afState, int aeState, long nowMs) {
+        if (mState == STATE_PREVIEW || mState == STATE_DONE)
+            return;
+        if (aeState != UNKNOWN)
+            mLastAeState = aeState;
+        switch (mState) {
+            case STATE_AF_LOCK:
+                if (afState == UNKNOWN) {
+                    // No auto focus report, nothing to wait for
+                    enterCapturing(nowMs);
+                } else if (afState == AF_STATE_FOCUSED_LOCKED || afState == AF_STATE_NOT_FOCUSED_LOCKED) {
+                    if (mSkipPrecapture || aeState == UNKNOWN || aeState == AE_STATE_CONVERGED)
+                        enterCapturing(nowMs);
+                    else
+                        enterPrecapture(nowMs);
+                } else {
+                    checkDeadline(nowMs);
+                }
+                break;
+            case STATE_PRECAPTURE:
+                if (!mPrecaptureStarted) {
+                    // Converged is what results report before the trigger takes effect
+                    if (aeState == UNKNOWN
+                            || aeState == AE_STATE_PRECAPTURE
+                            || aeState == AE_STATE_FLASH_REQUIRED)
+                        mPrecaptureStarted = true;
+                    else
+                        checkDeadline(nowMs);
+                } else if (aeState != AE_STATE_PRECAPTURE) {
+                    enterCapturing(nowMs);
+                } else {
+                    checkDeadline(nowMs);
+                }
+                break;
+            case STATE_CAPTURING:
+                checkDeadline(nowMs);
+                break;
+        }
+    }
+
+    /**
+     * Called when the deadline scheduled through {@link Actions#scheduleDeadline(long)} may have
+     * passed, in case the camera stopped sending results.
+     */
+    void onDeadline(long nowMs) {
+        if (mState != STATE_PREVIEW && mState != STATE_DONE)
+            checkDeadline(nowMs);
+    }
+
+    /**
+     * The still request (or the whole burst) completed.
+     */
+    void onCaptureCompleted() {
+        if (mState == STATE_CAPTURING)
+            finish(true);
+    }
+
+    /**
+     * The still request failed or the burst was aborted.
+     */
+    void onCaptureFailed() {
+        if (mState == STATE_CAPTURING)
+            finish(false);
+    }
+
+    /**
+     * Drops a running sequence without unlocking focus, for when the session it ran on is gone.
+     */
+    void reset() {
+        mState = STATE_PREVIEW;
+        mPrecaptureStarted = false;
+    }
+
+    /**
+     * @return a bit per state ({@code 1 << STATE_*}) that hit its deadline in the current or last
+     * sequence
+     */
+    int getTimedOutStates() {
+        return mTimedOutStates;
+    }
+
+    /**
+     * @return the {@code PATH_*} flags of the steps the current or last sequence didn't run
+     */
+    int getPath() {
+        return mPath;
+    }
+
+    private void checkDeadline(long nowMs) {
+        if (nowMs < mDeadlineMs)
+            return;
+        mTimedOutStates |= 1 << mState;
+        mActions.onTimeout(mState);
+        switch (mState) {
+            case STATE_AF_LOCK:
+                // Capture out of focus rather than never
+                if (mSkipPrecapture || mLastAeState == UNKNOWN || mLastAeState == AE_STATE_CONVERGED)
+                    enterCapturing(nowMs);
+                else
+                    enterPrecapture(nowMs);
+                break;
+            case STATE_PRECAPTURE:
+                enterCapturing(nowMs);
+                break;
+            case STATE_CAPTURING:
+                finish(false);
+                break;
+        }
+    }
+
+    private void enter(int state, long nowMs, long timeoutMs) {
+        mState = state;
+        mDeadlineMs = nowMs + timeoutMs;
+        mActions.scheduleDeadline(timeoutMs);
+    }
+
+    private void enterPrecapture(long nowMs) {
+        mPrecaptureStarted = false;
+        mPath &= ~PATH_SKIP_PRECAPTURE;
+        enter(STATE_PRECAPTURE, nowMs, PRECAPTURE_TIMEOUT_MS);
+        mActions.runPrecapture();
+    }
+
+    private void enterCapturing(long nowMs) {
+        enter(STATE_CAPTURING, nowMs, CAPTURE_TIMEOUT_MS);
+        mActions.capture();
+    }
+
+    private void finish(boolean captured) {
+        mState = STATE_DONE;
+        mActions.finish(captured);
+        mState = STATE_PREVIEW;
+    }
+
+    /**
+     * What the state machine asks of the camera. Called on the thread that drives it.
+     */
+    interface Actions {
+        /**
+         * Sends the auto focus trigger.
+         */
+        void lockFocus();
+
+        /**
+         * Sends the auto exposure precapture trigger.
+         */
+        void runPrecapture();
+
+        /**
+         * Sends the still request, answered by {@link #onCaptureCompleted()} or {@link
+         * #onCaptureFailed()}.
+         */
+        void capture();
+
+        /**
+         * Unlocks focus and goes back to the preview.
+         *
+         * @param captured false if the still request failed or never completed
+         */
+        void finish(boolean captured);
+
+        /**
+         * Calls {@link #onDeadline(long)} after {@code delayMs}, replacing any earlier call.
+         */
+        void scheduleDeadline(long delayMs);
+
+        /**
+         * A state hit its deadline, the sequence moves on without it.
+         */
+        void onTimeout(int state);
+    }
+}
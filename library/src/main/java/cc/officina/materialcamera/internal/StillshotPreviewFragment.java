@@ -17,6 +17,7 @@
 package cc.officina.materialcamera.internal;
 
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
@@ -26,18 +27,39 @@ import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
+import cc.officina.materialcamera.ICallback;
 import cc.officina.materialcamera.R;
+import cc.officina.materialcamera.util.BitmapPool;
+import cc.officina.materialcamera.util.CaptureExecutor;
+import cc.officina.materialcamera.util.Degrees;
 import cc.officina.materialcamera.util.ImageUtil;
 
 public class StillshotPreviewFragment extends BaseGalleryFragment {
 
     /**
-     * Reference to the bitmap, in case 'onConfigurationChange' event comes, so we do not recreate the
-     * bitmap
+     * Keeps the last preview's pixel memory around for the next one.
      */
-    private static Bitmap mBitmap;
+    private static final BitmapPool PREVIEW_BITMAP_POOL = new BitmapPool(1);
+
+    /**
+     * Kept across configuration changes since the fragment is retained, so the image isn't decoded
+     * again.
+     */
+    private Bitmap mBitmap;
+    private int mRotation;
+    private boolean mDecoding;
+    private boolean mDestroyed;
     private ImageView mImageView;
 
+    /**
+     * Drops the pooled preview bitmap, for when the system is low on memory.
+     *
+     * @return how many bytes of pixels were released
+     */
+    static long releaseCachedBitmaps() {
+        return PREVIEW_BITMAP_POOL.clear();
+    }
+
     public static StillshotPreviewFragment newInstance(
             String outputUri, boolean allowRetry, int primaryColor) {
         final StillshotPreviewFragment fragment = new StillshotPreviewFragment();
@@ -61,6 +83,7 @@ public class StillshotPreviewFragment extends BaseGalleryFragment {
     public void onViewCreated(View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
         mImageView = (ImageView) view.findViewById(R.id.stillshot_imageview);
+        mImageView.setScaleType(ImageView.ScaleType.MATRIX);
 
         mConfirm.setText(mInterface.labelConfirm());
         mRetry.setText(mInterface.labelRetry());
@@ -68,6 +91,22 @@ public class StillshotPreviewFragment extends BaseGalleryFragment {
         mRetry.setOnClickListener(this);
         mConfirm.setOnClickListener(this);
 
+        mImageView.addOnLayoutChangeListener(
+                new View.OnLayoutChangeListener() {
+                    @Override
+                    public void onLayoutChange(
+                            View v,
+                            int left,
+                            int top,
+                            int right,
+                            int bottom,
+                            int oldLeft,
+                            int oldTop,
+                            int oldRight,
+                            int oldBottom) {
+                        updateImageMatrix();
+                    }
+                });
         mImageView
                 .getViewTreeObserver()
                 .addOnPreDrawListener(
@@ -85,33 +124,91 @@ public class StillshotPreviewFragment extends BaseGalleryFragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (mBitmap != null && !mBitmap.isRecycled()) {
-            try {
-                mBitmap.recycle();
-                mBitmap = null;
-            } catch (Throwable t) {
-                t.printStackTrace();
-            }
-        }
+        mImageView = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mDestroyed = true;
+        PREVIEW_BITMAP_POOL.release(mBitmap);
+        mBitmap = null;
     }
 
     /**
-     * Sets bitmap to ImageView widget
+     * Sets bitmap to ImageView widget, decoding it first on the capture executor if needed.
      */
     private void setImageBitmap() {
+        if (mBitmap != null) {
+            mImageView.setImageBitmap(mBitmap);
+            updateImageMatrix();
+            return;
+        }
+        if (mDecoding)
+            return;
+        mDecoding = true;
+
+        final String path = Uri.parse(mOutputUri).getPath();
         final int width = mImageView.getMeasuredWidth();
         final int height = mImageView.getMeasuredHeight();
+        // Written by the task, read by the callback once the task is done
+        final Bitmap[] bitmap = new Bitmap[1];
+        final int[] rotation = new int[1];
+        CaptureExecutor.get()
+                .submit(
+                        new CaptureExecutor.Task() {
+                            @Override
+                            public void run() {
+                                rotation[0] = ImageUtil.getExifDegreesFromJpeg(path);
+                                bitmap[0] =
+                                        ImageUtil.decodeSampledBitmap(
+                                                path, width, height, rotation[0], PREVIEW_BITMAP_POOL);
+                            }
+                        },
+                        new ICallback() {
+                            @Override
+                            public void done(Exception e) {
+                                mDecoding = false;
+                                if (mDestroyed) {
+                                    PREVIEW_BITMAP_POOL.release(bitmap[0]);
+                                    return;
+                                }
+                                mBitmap = bitmap[0];
+                                mRotation = rotation[0];
+                                if (mImageView == null)
+                                    return;
+                                if (mBitmap == null)
+                                    showDialog(
+                                            getString(R.string.mcam_image_preview_error_title),
+                                            getString(R.string.mcam_image_preview_error_message));
+                                else
+                                    setImageBitmap();
+                            }
+                        });
+    }
 
-        // TODO IMPROVE MEMORY USAGE HERE, ESPECIALLY ON LOW-END DEVICES.
-        if (mBitmap == null)
-            mBitmap = ImageUtil.getRotatedBitmap(Uri.parse(mOutputUri).getPath(), width, height);
-
-        if (mBitmap == null)
-            showDialog(
-                    getString(R.string.mcam_image_preview_error_title),
-                    getString(R.string.mcam_image_preview_error_message));
-        else
-            mImageView.setImageBitmap(mBitmap);
+    /**
+     * Rotates the bitmap upright and fits it to the view at draw time, instead of allocating a
+     * rotated copy.
+     */
+    private void updateImageMatrix() {
+        if (mImageView == null || mBitmap == null)
+            return;
+        final int viewWidth = mImageView.getWidth();
+        final int viewHeight = mImageView.getHeight();
+        if (viewWidth == 0 || viewHeight == 0)
+            return;
+        final boolean swapped = mRotation == Degrees.DEGREES_90 || mRotation == Degrees.DEGREES_270;
+        final int rotatedWidth = swapped ? mBitmap.getHeight() : mBitmap.getWidth();
+        final int rotatedHeight = swapped ? mBitmap.getWidth() : mBitmap.getHeight();
+        final float scale =
+                Math.min((float) viewWidth / rotatedWidth, (float) viewHeight / rotatedHeight);
+        final Matrix matrix = new Matrix();
+        matrix.setTranslate(-mBitmap.getWidth() / 2f, -mBitmap.getHeight() / 2f);
+        matrix.postRotate(mRotation);
+        matrix.postScale(scale, scale);
+        matrix.postTranslate(viewWidth / 2f, viewHeight / 2f);
+        mImageView.setImageMatrix(matrix);
     }
 
     @Override
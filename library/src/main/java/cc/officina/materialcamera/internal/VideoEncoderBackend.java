@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import android.support.annotation.Nullable;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Encodes the camera's video (and the microphone, if enabled) into a file, as an alternative to
+ * {@link android.media.MediaRecorder}. The camera draws into {@link #getInputSurface()}.
+ */
+public interface VideoEncoderBackend {
+
+    interface Listener {
+
+        /**
+         * Called on the main thread when the recording hit its size or duration limit, nothing more
+         * is written to the file.
+         */
+        void onLimitReached(boolean fileSize);
+
+        /**
+         * Called on the main thread when encoding failed while recording.
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * Configures the encoders for a recording into {@code output}.
+     *
+     * @param persistentSurface an input surface to reuse across recordings, or null to create one
+     */
+    void prepare(VideoEncoderConfig config, File output, @Nullable Surface persistentSurface)
+            throws IOException;
+
+    Surface getInputSurface();
+
+    void start();
+
+    /**
+     * Changes the video bit rate of the running recording.
+     */
+    void setVideoBitRate(int bitRate);
+
+    /**
+     * Finishes the file, blocks until the encoders are drained.
+     */
+    void stop();
+
+    void release();
+}
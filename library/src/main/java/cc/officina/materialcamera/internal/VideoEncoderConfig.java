@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+/**
+ * Settings for a {@link VideoEncoderBackend} recording.
+ */
+public class VideoEncoderConfig {
+
+    public static final int CODEC_ANY = 0;
+    public static final int CODEC_HARDWARE = 1;
+    public static final int CODEC_SOFTWARE = 2;
+
+    String videoMimeType = "video/avc";
+    int width;
+    int height;
+    int frameRate;
+    int bitRate;
+    /**
+     * One of the {@code MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*} constants, -1 for the
+     * encoder's default.
+     */
+    int bitRateMode = -1;
+    /**
+     * Seconds between key frames.
+     */
+    int iFrameInterval = 1;
+    /**
+     * {@code MediaCodecInfo.CodecProfileLevel} values, -1 for the encoder's default.
+     */
+    int profile = -1;
+    int level = -1;
+    int codecPreference = CODEC_ANY;
+    int orientationHint;
+    boolean audio;
+    int audioBitRate;
+    int audioSampleRate;
+    int audioChannels;
+    long maxFileSize;
+    long maxDurationMs;
+    /**
+     * Whether camera frame timestamps use {@code SystemClock.elapsedRealtimeNanos()} rather than
+     * {@code System.nanoTime()}, audio is stamped with the same clock to stay in sync.
+     */
+    boolean realtimeTimestamps;
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageWriter;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * Keeps the most recent full resolution preview frames for zero shutter lag capture, together
+ * with the {@link TotalCaptureResult} of each frame (needed to reprocess it). Frames and results
+ * arrive independently and are paired by sensor timestamp. The ring never holds more than {@code
+ * depth} images; the oldest one is closed when a new one comes in. A frame taken out of the ring is
+ * sent back to the camera through the reprocessable session's input surface.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class ZslFrameRing {
+
+    private final int mDepth;
+    private final ArrayDeque<Image> mImages;
+    private final TreeMap<Long, TotalCaptureResult> mResults = new TreeMap<>();
+    private ImageWriter mWriter;
+
+    ZslFrameRing(int depth) {
+        mDepth = Math.max(1, depth);
+        mImages = new ArrayDeque<>(mDepth);
+    }
+
+    synchronized void addImage(Image image) {
+        mImages.addLast(image);
+        while (mImages.size() > mDepth) {
+            final Image oldest = mImages.removeFirst();
+            mResults.remove(oldest.getTimestamp());
+            oldest.close();
+        }
+    }
+
+    synchronized void addResult(TotalCaptureResult result) {
+        final Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null)
+            return;
+        mResults.put(timestamp, result);
+        // Results can arrive before their image, keep a little slack but don't grow unbounded
+        while (mResults.size() > mDepth * 2)
+            mResults.pollFirstEntry();
+    }
+
+    /**
+     * Removes and returns the frame closest to {@code timestampNs}, or the newest frame if {@code
+     * timestampNs} is negative. Only frames whose capture result already arrived are considered.
+     *
+     * @return the frame, or null if no complete frame is available
+     */
+    @Nullable
+    synchronized Frame take(long timestampNs) {
+        Image best = null;
+        long bestDistance = Long.MAX_VALUE;
+        final Iterator<Image> iterator = mImages.descendingIterator();
+        while (iterator.hasNext()) {
+            final Image image = iterator.next();
+            if (!mResults.containsKey(image.getTimestamp()))
+                continue;
+            if (timestampNs < 0) {
+                best = image;
+                break;
+            }
+            final long distance = Math.abs(image.getTimestamp() - timestampNs);
+            if (distance < bestDistance) {
+                best = image;
+                bestDistance = distance;
+            }
+        }
+        if (best == null)
+            return null;
+        mImages.remove(best);
+        return new Frame(best, mResults.remove(best.getTimestamp()));
+    }
+
+    /**
+     * Connects the ring to the input surface of a reprocessable capture session.
+     */
+    synchronized void setInputSurface(Surface inputSurface) {
+        if (mWriter != null)
+            mWriter.close();
+        mWriter = ImageWriter.newInstance(inputSurface, 1);
+    }
+
+    /**
+     * Queues a frame obtained from {@link #take(long)} for reprocessing, the writer takes ownership
+     * of its image.
+     */
+    synchronized void queueForReprocess(Frame frame) {
+        if (mWriter == null) {
+            frame.image.close();
+            throw new IllegalStateException("No reprocessing input surface is set.");
+        }
+        mWriter.queueInputImage(frame.image);
+    }
+
+    synchronized void clear() {
+        for (Image image : mImages)
+            image.close();
+        mImages.clear();
+        mResults.clear();
+        if (mWriter != null) {
+            mWriter.close();
+            mWriter = null;
+        }
+    }
+
+    static class Frame {
+        final Image image;
+        final TotalCaptureResult result;
+
+        Frame(Image image, TotalCaptureResult result) {
+            this.image = image;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A small pool of mutable bitmaps for {@link android.graphics.BitmapFactory.Options#inBitmap}, so
+ * decoding one preview after another reuses the same pixel memory instead of allocating a new
+ * multi-megabyte bitmap each time. Reuse needs Android 4.4+, below that the pool stays empty.
+ */
+public class BitmapPool {
+
+    private final int mMaxPooled;
+    private final ArrayDeque<Bitmap> mPool;
+
+    public BitmapPool(int maxPooled) {
+        mMaxPooled = maxPooled;
+        mPool = new ArrayDeque<>(maxPooled);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8)
+            return 1;
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+            return 2;
+        return 4;
+    }
+
+    /**
+     * Returns a pooled bitmap the decoder can reconfigure to {@code width} x {@code height}, or null
+     * if none is big enough. The caller owns it until it's {@link #release(Bitmap) released}.
+     */
+    @Nullable
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+            return null;
+        final long size = (long) width * height * getBytesPerPixel(config);
+        final Iterator<Bitmap> iterator = mPool.iterator();
+        while (iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            if (bitmap.getAllocationByteCount() >= size) {
+                iterator.remove();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hands a bitmap back to the pool. If the pool is full or the bitmap can't be reused, the
+     * smallest one is recycled.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public synchronized void release(@Nullable Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || !bitmap.isMutable() || mMaxPooled <= 0) {
+            bitmap.recycle();
+            return;
+        }
+        if (mPool.size() >= mMaxPooled) {
+            Bitmap smallest = bitmap;
+            for (Bitmap pooled : mPool) {
+                if (pooled.getAllocationByteCount() < smallest.getAllocationByteCount())
+                    smallest = pooled;
+            }
+            smallest.recycle();
+            if (smallest == bitmap)
+                return;
+            mPool.remove(smallest);
+        }
+        mPool.add(bitmap);
+    }
+
+    /**
+     * Recycles every pooled bitmap.
+     *
+     * @return how many bytes of pixels were released
+     */
+    public synchronized long clear() {
+        long released = 0;
+        for (Bitmap bitmap : mPool) {
+            released += bitmap.getByteCount();
+            bitmap.recycle();
+        }
+        mPool.clear();
+        return released;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A small pool of direct {@link ByteBuffer}s, used when capture data has to be copied out of a
+ * camera buffer before it can be written to disk. Reusing the buffers keeps multi-megabyte
+ * allocations off the Java heap and away from the garbage collector.
+ */
+public class ByteBufferPool {
+
+    /**
+     * Capacities are rounded up to this granularity so buffers can be reused across captures whose
+     * sizes differ slightly (JPEG sizes vary from shot to shot).
+     */
+    private static final int CAPACITY_GRANULARITY = 256 * 1024;
+
+    private final int mMaxPooled;
+    private final ArrayDeque<ByteBuffer> mPool;
+
+    public ByteBufferPool(int maxPooled) {
+        mMaxPooled = maxPooled;
+        mPool = new ArrayDeque<>(maxPooled);
+    }
+
+    /**
+     * Returns a cleared direct buffer whose limit is exactly {@code size}, reusing a pooled one if
+     * it's big enough.
+     */
+    public synchronized ByteBuffer acquire(int size) {
+        final Iterator<ByteBuffer> iterator = mPool.iterator();
+        while (iterator.hasNext()) {
+            final ByteBuffer buffer = iterator.next();
+            if (buffer.capacity() >= size) {
+                iterator.remove();
+                buffer.clear();
+                buffer.limit(size);
+                return buffer;
+            }
+        }
+        final int capacity =
+                ((size + CAPACITY_GRANULARITY - 1) / CAPACITY_GRANULARITY) * CAPACITY_GRANULARITY;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer obtained from {@link #acquire(int)} back to the pool. If the pool is full, the
+     * smallest buffer is dropped.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || mMaxPooled <= 0)
+            return;
+        if (mPool.size() >= mMaxPooled) {
+            ByteBuffer smallest = buffer;
+            for (ByteBuffer pooled : mPool) {
+                if (pooled.capacity() < smallest.capacity())
+                    smallest = pooled;
+            }
+            if (smallest == buffer)
+                return;
+            mPool.remove(smallest);
+        }
+        mPool.add(buffer);
+    }
+
+    /**
+     * Drops every pooled buffer.
+     *
+     * @return how many bytes the dropped buffers held
+     */
+    public synchronized long clear() {
+        long released = 0;
+        for (ByteBuffer buffer : mPool)
+            released += buffer.capacity();
+        mPool.clear();
+        return released;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Size;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of what the Camera2 cameras can do. Querying {@link CameraManager} costs a
+ * binder round trip per call, so the camera list and each camera's characteristics are read once
+ * and reused by every launch. The cache drops itself when the set of cameras changes (e.g. an
+ * external camera is plugged in or removed).
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class CameraCapabilities {
+
+    private static final String TAG = "CameraCapabilities";
+
+    private static CameraCapabilities sInstance;
+    private static boolean sAvailabilityCallbackRegistered;
+
+    private final CameraManager mManager;
+    private final String[] mCameraIds;
+    private final Map<String, CameraInfo> mCameras = new LinkedHashMap<>();
+
+    private CameraCapabilities(CameraManager manager) throws CameraAccessException {
+        mManager = manager;
+        mCameraIds = manager.getCameraIdList();
+        for (String cameraId : mCameraIds) {
+            if (cameraId != null && !cameraId.trim().isEmpty())
+                mCameras.put(cameraId, new CameraInfo(cameraId, manager.getCameraCharacteristics(cameraId)));
+        }
+    }
+
+    /**
+     * Returns the cached capabilities, probing the cameras first if the cache is empty.
+     */
+    @NonNull
+    public static synchronized CameraCapabilities get(@NonNull Context context)
+            throws CameraAccessException {
+        if (sInstance == null) {
+            final CameraManager manager =
+                    (CameraManager) context.getApplicationContext().getSystemService(Context.CAMERA_SERVICE);
+            sInstance = new CameraCapabilities(manager);
+            registerAvailabilityCallback(manager);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Fills the cache on a background thread, so the first camera launch doesn't have to.
+     */
+    public static void warmUp(@NonNull Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+        final Context appContext = context.getApplicationContext();
+        new Thread("CameraWarmUp") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    get(appContext);
+                } catch (Throwable t) {
+                    Log.w(TAG, "Unable to probe the cameras", t);
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Drops the cache, the next {@link #get(Context)} probes the cameras again.
+     */
+    public static synchronized void invalidate() {
+        sInstance = null;
+    }
+
+    private static void registerAvailabilityCallback(CameraManager manager) {
+        if (sAvailabilityCallbackRegistered)
+            return;
+        sAvailabilityCallbackRegistered = true;
+        manager.registerAvailabilityCallback(
+                new CameraManager.AvailabilityCallback() {
+                    @Override
+                    public void onCameraAvailable(@NonNull String cameraId) {
+                        // Called for every known camera when it's closed, only a new id matters
+                        synchronized (CameraCapabilities.class) {
+                            if (sInstance != null && sInstance.peekCamera(cameraId) == null)
+                                invalidate();
+                        }
+                    }
+
+                    @Override
+                    public void onCameraUnavailable(@NonNull String cameraId) {
+                        // Built in cameras become unavailable while in use, external ones also when unplugged
+                        synchronized (CameraCapabilities.class) {
+                            if (sInstance == null)
+                                return;
+                            final CameraInfo info = sInstance.peekCamera(cameraId);
+                            if (info != null && info.isExternal())
+                                invalidate();
+                        }
+                    }
+                },
+                new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Whether every camera is usable through Camera2, i.e. there's at least one camera and none of
+     * them is running in legacy mode.
+     */
+    public synchronized boolean isCamera2Supported() {
+        if (mCameraIds.length == 0)
+            return false;
+        for (String cameraId : mCameraIds) {
+            final CameraInfo info = cameraId != null ? mCameras.get(cameraId) : null;
+            if (info == null
+                    || info.getHardwareLevel() == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY)
+                return false;
+        }
+        return true;
+    }
+
+    @NonNull
+    public String[] getCameraIds() {
+        return mCameraIds.clone();
+    }
+
+    /**
+     * Returns the first camera facing the given way.
+     *
+     * @param facing one of the {@code CameraCharacteristics.LENS_FACING_*} constants
+     */
+    @Nullable
+    public synchronized CameraInfo getCamera(int facing) {
+        for (CameraInfo info : mCameras.values()) {
+            if (info.getFacing() == facing)
+                return info;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a camera by id. Ids missing from the camera list are probed and cached on demand.
+     */
+    @NonNull
+    public synchronized CameraInfo getCamera(@NonNull String cameraId)
+            throws CameraAccessException {
+        CameraInfo info = mCameras.get(cameraId);
+        if (info == null) {
+            info = new CameraInfo(cameraId, mManager.getCameraCharacteristics(cameraId));
+            mCameras.put(cameraId, info);
+        }
+        return info;
+    }
+
+    @Nullable
+    private synchronized CameraInfo peekCamera(String cameraId) {
+        return mCameras.get(cameraId);
+    }
+
+    /**
+     * What a single camera can do, read once from its {@link CameraCharacteristics}.
+     */
+    public static class CameraInfo {
+
+        private final String mId;
+        private final CameraCharacteristics mCharacteristics;
+        private final int mFacing;
+        private final int mHardwareLevel;
+        private final int mSensorOrientation;
+        private final StreamConfigurationMap mStreamConfigurationMap;
+        private final Size[] mJpegSizes;
+        private final Size[] mPreviewSizes;
+        private final Size[] mVideoSizes;
+        private final Size[] mYuvSizes;
+        private final SizeSelector mJpegSizeSelector;
+        private final SizeSelector mPreviewSizeSelector;
+        private final SizeSelector mVideoSizeSelector;
+        private final SizeSelector mYuvSizeSelector;
+        private final int[] mAfModes;
+        private final int[] mAeModes;
+        private final boolean mFlashAvailable;
+
+        CameraInfo(String id, CameraCharacteristics characteristics) {
+            mId = id;
+            mCharacteristics = characteristics;
+            mFacing = getInt(characteristics.get(CameraCharacteristics.LENS_FACING), -1);
+            mHardwareLevel =
+                    getInt(
+                            characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL),
+                            CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
+            mSensorOrientation = getInt(characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION), 0);
+            mStreamConfigurationMap =
+                    characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (mStreamConfigurationMap != null) {
+                mJpegSizes = mStreamConfigurationMap.getOutputSizes(ImageFormat.JPEG);
+                mPreviewSizes = mStreamConfigurationMap.getOutputSizes(SurfaceTexture.class);
+                mVideoSizes = mStreamConfigurationMap.getOutputSizes(MediaRecorder.class);
+                final Size[] yuvSizes = mStreamConfigurationMap.getOutputSizes(ImageFormat.YUV_420_888);
+                mYuvSizes = yuvSizes != null ? yuvSizes : new Size[0];
+            } else {
+                mJpegSizes = mPreviewSizes = mVideoSizes = mYuvSizes = new Size[0];
+            }
+            mJpegSizeSelector = indexSizes(mJpegSizes);
+            mPreviewSizeSelector = indexSizes(mPreviewSizes);
+            mVideoSizeSelector = indexSizes(mVideoSizes);
+            mYuvSizeSelector = indexSizes(mYuvSizes);
+            final int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+            mAfModes = afModes != null ? afModes : new int[0];
+            final int[] aeModes = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES);
+            mAeModes = aeModes != null ? aeModes : new int[0];
+            final Boolean flashAvailable = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+            mFlashAvailable = flashAvailable != null && flashAvailable;
+        }
+
+        private static int getInt(Integer value, int fallback) {
+            return value != null ? value : fallback;
+        }
+
+        private static SizeSelector indexSizes(Size[] sizes) {
+            final int[] widths = new int[sizes.length];
+            final int[] heights = new int[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                widths[i] = sizes[i].getWidth();
+                heights[i] = sizes[i].getHeight();
+            }
+            return new SizeSelector(widths, heights);
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        /**
+         * The full characteristics, for the rare keys that aren't broken out here. Reading them
+         * doesn't go back to the camera service.
+         */
+        public CameraCharacteristics getCharacteristics() {
+            return mCharacteristics;
+        }
+
+        public int getFacing() {
+            return mFacing;
+        }
+
+        public boolean isExternal() {
+            // CameraMetadata.LENS_FACING_EXTERNAL, added in API 23
+            return mFacing == 2;
+        }
+
+        public int getHardwareLevel() {
+            return mHardwareLevel;
+        }
+
+        public int getSensorOrientation() {
+            return mSensorOrientation;
+        }
+
+        @Nullable
+        public StreamConfigurationMap getStreamConfigurationMap() {
+            return mStreamConfigurationMap;
+        }
+
+        public Size[] getJpegSizes() {
+            return mJpegSizes;
+        }
+
+        public Size[] getPreviewSizes() {
+            return mPreviewSizes;
+        }
+
+        public Size[] getVideoSizes() {
+            return mVideoSizes;
+        }
+
+        public Size[] getYuvSizes() {
+            return mYuvSizes;
+        }
+
+        /**
+         * Index over {@link #getJpegSizes()}, the selector's results are indices into that array.
+         */
+        public SizeSelector getJpegSizeSelector() {
+            return mJpegSizeSelector;
+        }
+
+        /**
+         * Index over {@link #getPreviewSizes()}, the selector's results are indices into that array.
+         */
+        public SizeSelector getPreviewSizeSelector() {
+            return mPreviewSizeSelector;
+        }
+
+        /**
+         * Index over {@link #getVideoSizes()}, the selector's results are indices into that array.
+         */
+        public SizeSelector getVideoSizeSelector() {
+            return mVideoSizeSelector;
+        }
+
+        /**
+         * Index over {@link #getYuvSizes()}, the selector's results are indices into that array.
+         */
+        public SizeSelector getYuvSizeSelector() {
+            return mYuvSizeSelector;
+        }
+
+        public int[] getAfModes() {
+            return mAfModes;
+        }
+
+        public int[] getAeModes() {
+            return mAeModes;
+        }
+
+        public boolean isFlashAvailable() {
+            return mFlashAvailable;
+        }
+
+        /**
+         * Whether the lens can focus at all, i.e. it has an AF mode other than {@code OFF}.
+         */
+        public boolean isAutoFocusAvailable() {
+            for (int mode : mAfModes) {
+                if (mode != CameraCharacteristics.CONTROL_AF_MODE_OFF)
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -22,7 +22,6 @@ import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.hardware.Camera;
 import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraManager;
 import android.os.Build;
 import android.support.annotation.ColorInt;
 import android.support.annotation.NonNull;
@@ -158,28 +157,7 @@ public class CameraUtil {
         if (ManufacturerUtil.isSamsungDevice())
             return false;
         try {
-            CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-            String[] idList = manager.getCameraIdList();
-            boolean notNull = true;
-            if (idList.length == 0) {
-                notNull = false;
-            } else {
-                for (final String str : idList) {
-                    if (str == null || str.trim().isEmpty()) {
-                        notNull = false;
-                        break;
-                    }
-                    final CameraCharacteristics characteristics = manager.getCameraCharacteristics(str);
-                    //noinspection ConstantConditions
-                    final int supportLevel =
-                            characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
-                    if (supportLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
-                        notNull = false;
-                        break;
-                    }
-                }
-            }
-            return notNull;
+            return CameraCapabilities.get(context).isCamera2Supported();
         } catch (Throwable t) {
             t.printStackTrace();
             return false;
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import cc.officina.materialcamera.ICallback;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide, bounded executor for capture I/O (writing pictures, video segments etc.). It runs
+ * at most {@code poolSize} tasks at once and queues at most {@code queueDepth} more. Tasks beyond
+ * that are rejected, since each one usually holds a full JPEG in memory; callers check {@link
+ * #isFull()} before capturing. Submitting never blocks, the submitter is usually a camera callback
+ * thread.
+ */
+public class CaptureExecutor {
+
+    public static final int DEFAULT_POOL_SIZE = 1;
+    public static final int DEFAULT_QUEUE_DEPTH = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static CaptureExecutor sInstance;
+    private static Handler sMainHandler;
+    private static final ThreadLocal<Handler> sLooperHandler = new ThreadLocal<>();
+
+    private final int mPoolSize;
+    private final int mQueueDepth;
+    private final ThreadPoolExecutor mExecutor;
+
+    private CaptureExecutor(int poolSize, int queueDepth) {
+        mPoolSize = poolSize;
+        mQueueDepth = queueDepth;
+        mExecutor =
+                new ThreadPoolExecutor(
+                        poolSize,
+                        poolSize,
+                        KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueDepth),
+                        new IoThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the shared executor, creating it with the default configuration if needed.
+     */
+    public static synchronized CaptureExecutor get() {
+        if (sInstance == null)
+            sInstance = new CaptureExecutor(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_DEPTH);
+        return sInstance;
+    }
+
+    /**
+     * Changes the pool size and queue depth of the shared executor. Tasks already submitted to the
+     * previous executor still run to completion, its threads time out once it's idle.
+     */
+    public static synchronized void configure(int poolSize, int queueDepth) {
+        poolSize = Math.max(1, poolSize);
+        queueDepth = Math.max(1, queueDepth);
+        if (sInstance != null
+                && sInstance.mPoolSize == poolSize
+                && sInstance.mQueueDepth == queueDepth)
+            return;
+        sInstance = new CaptureExecutor(poolSize, queueDepth);
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (sMainHandler == null)
+            sMainHandler = new Handler(Looper.getMainLooper());
+        return sMainHandler;
+    }
+
+    /**
+     * Whether a task submitted now would be rejected.
+     */
+    public boolean isFull() {
+        return mExecutor.getQueue().remainingCapacity() == 0;
+    }
+
+    /**
+     * Same as {@link #submit(Task, ICallback, Handler)}, but the callback is delivered on the looper
+     * of the calling thread (or the main looper if the calling thread has none).
+     */
+    public boolean submit(@NonNull Task task, @Nullable ICallback callback) {
+        final Looper looper = Looper.myLooper();
+        final Handler handler;
+        if (looper == null || looper == Looper.getMainLooper()) {
+            handler = getMainHandler();
+        } else if (sLooperHandler.get() != null) {
+            handler = sLooperHandler.get();
+        } else {
+            handler = new Handler(looper);
+            sLooperHandler.set(handler);
+        }
+        return submit(task, callback, handler);
+    }
+
+    /**
+     * Runs a task on the I/O pool, unless the queue is full. A rejected task never runs, its
+     * callback receives a {@link RejectedExecutionException}.
+     *
+     * @param task     work to run off the calling thread
+     * @param callback receives the task's failure, or {@code null} on success
+     * @param handler  handler the callback is posted to
+     * @return false if the task was rejected, the caller still owns whatever it holds
+     */
+    public boolean submit(
+            @NonNull final Task task, @Nullable final ICallback callback, @NonNull final Handler handler) {
+        try {
+            mExecutor.execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            Exception error = null;
+                            try {
+                                task.run();
+                            } catch (Exception e) {
+                                error = e;
+                            } catch (Throwable t) {
+                                // Such as running out of memory, the caller still has to hear back
+                                error = new ExecutionException(t);
+                            } finally {
+                                post(callback, error, handler);
+                            }
+                        }
+                    });
+            return true;
+        } catch (RejectedExecutionException e) {
+            post(callback, e, handler);
+            return false;
+        }
+    }
+
+    private static void post(
+            @Nullable final ICallback callback, @Nullable final Exception error, Handler handler) {
+        if (callback == null)
+            return;
+        handler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.done(error);
+                    }
+                });
+    }
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private static class IoThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread("CaptureIO-" + mCount.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            };
+        }
+    }
+}
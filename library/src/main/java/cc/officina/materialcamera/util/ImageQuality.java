@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sharpness and exposure of an image, measured on its luma plane. Sharpness is the variance of the
+ * Laplacian: blurred images have few strong edges, so it drops sharply when a shot is out of
+ * focus or shaken. Plain Java, large planes are sampled on a grid so a measure stays in the low
+ * milliseconds.
+ */
+public class ImageQuality {
+
+    public static final int ISSUE_BLURRED = 1;
+    public static final int ISSUE_UNDEREXPOSED = 1 << 1;
+    public static final int ISSUE_OVEREXPOSED = 1 << 2;
+
+    /**
+     * Larger planes are sampled every few pixels, keeping about this many along the longer side.
+     */
+    private static final int MAX_SAMPLED_SIDE = 640;
+    private static final int DARK_LUMA = 16;
+    private static final int BRIGHT_LUMA = 240;
+    private static final float MIN_MEAN_LUMA = 40f;
+    private static final float MAX_MEAN_LUMA = 220f;
+    /**
+     * Share of clipped pixels past which the shot counts as under or overexposed, whatever the mean.
+     */
+    private static final float MAX_CLIPPED_FRACTION = 0.5f;
+
+    private final float mSharpness;
+    private final float mMeanLuma;
+    private final float mDarkFraction;
+    private final float mBrightFraction;
+
+    private ImageQuality(float sharpness, float meanLuma, float darkFraction, float brightFraction) {
+        mSharpness = sharpness;
+        mMeanLuma = meanLuma;
+        mDarkFraction = darkFraction;
+        mBrightFraction = brightFraction;
+    }
+
+    public static ImageQuality measure(byte[] luma, int width, int height) {
+        return measure(ByteBuffer.wrap(luma), width, height, width, 1);
+    }
+
+    /**
+     * Measures packed ARGB pixels, such as those of a decoded {@link android.graphics.Bitmap}.
+     */
+    public static ImageQuality measureArgb(int[] pixels, int width, int height) {
+        final byte[] luma = new byte[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            final int pixel = pixels[i];
+            // BT.601 weights in 8 bit fixed point
+            luma[i] =
+                    (byte)
+                            ((77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF) + 29 * (pixel & 0xFF))
+                                    >> 8);
+        }
+        return measure(luma, width, height);
+    }
+
+    /**
+     * Measures a luma plane laid out like an {@link android.media.Image} plane. The buffer's
+     * position is ignored and left untouched.
+     */
+    public static ImageQuality measure(
+            ByteBuffer luma, int width, int height, int rowStride, int pixelStride) {
+        if (width < 3 || height < 3)
+            throw new IllegalArgumentException("Image too small: " + width + "x" + height);
+        final int step = Math.max(1, (Math.max(width, height) + MAX_SAMPLED_SIDE - 1) / MAX_SAMPLED_SIDE);
+        final int base = luma.position();
+        final int rowStep = step * rowStride;
+        final int columnStep = step * pixelStride;
+        final int[] histogram = new int[256];
+        double sum = 0;
+        double sumOfSquares = 0;
+        int count = 0;
+        for (int y = step; y < height - step; y += step) {
+            final int row = base + y * rowStride;
+            for (int x = step; x < width - step; x += step) {
+                final int offset = row + x * pixelStride;
+                final int center = luma.get(offset) & 0xFF;
+                // 4-neighbour Laplacian, with the neighbours one sampling step away
+                final int laplacian =
+                        4 * center
+                                - (luma.get(offset - columnStep) & 0xFF)
+                                - (luma.get(offset + columnStep) & 0xFF)
+                                - (luma.get(offset - rowStep) & 0xFF)
+                                - (luma.get(offset + rowStep) & 0xFF);
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+                histogram[center]++;
+                count++;
+            }
+        }
+        if (count == 0)
+            throw new IllegalArgumentException("Image too small: " + width + "x" + height);
+
+        final double mean = sum / count;
+        final float sharpness = (float) (sumOfSquares / count - mean * mean);
+        long lumaSum = 0;
+        int dark = 0;
+        int bright = 0;
+        for (int value = 0; value < histogram.length; value++) {
+            lumaSum += (long) value * histogram[value];
+            if (value < DARK_LUMA)
+                dark += histogram[value];
+            else if (value > BRIGHT_LUMA)
+                bright += histogram[value];
+        }
+        return new ImageQuality(
+                sharpness, (float) lumaSum / count, (float) dark / count, (float) bright / count);
+    }
+
+    /**
+     * Variance of the Laplacian, higher is sharper. Around 100 is a common limit for blur, though
+     * it depends on the scene: a blank wall is never sharp.
+     */
+    public float getSharpness() {
+        return mSharpness;
+    }
+
+    /**
+     * Average luma, 0 to 255.
+     */
+    public float getMeanLuma() {
+        return mMeanLuma;
+    }
+
+    /**
+     * Share of nearly black pixels.
+     */
+    public float getDarkFraction() {
+        return mDarkFraction;
+    }
+
+    /**
+     * Share of nearly white pixels.
+     */
+    public float getBrightFraction() {
+        return mBrightFraction;
+    }
+
+    /**
+     * @param minSharpness sharpness below which the image counts as blurred
+     * @return a combination of the {@code ISSUE_} flags, 0 if the image looks fine
+     */
+    public int getIssues(float minSharpness) {
+        int issues = 0;
+        if (mSharpness < minSharpness)
+            issues |= ISSUE_BLURRED;
+        if (mMeanLuma < MIN_MEAN_LUMA || mDarkFraction > MAX_CLIPPED_FRACTION)
+            issues |= ISSUE_UNDEREXPOSED;
+        if (mMeanLuma > MAX_MEAN_LUMA || mBrightFraction > MAX_CLIPPED_FRACTION)
+            issues |= ISSUE_OVEREXPOSED;
+        return issues;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageQuality{sharpness="
+                + mSharpness
+                + ", meanLuma="
+                + mMeanLuma
+                + ", dark="
+                + mDarkFraction
+                + ", bright="
+                + mBrightFraction
+                + "}";
+    }
+}
@@ -19,8 +19,6 @@ package cc.officina.materialcamera.util;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
-import android.media.ExifInterface;
-import android.os.Handler;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
@@ -29,13 +27,23 @@ import cc.officina.materialcamera.ICallback;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Created by tomiurankar on 06/03/16.
  */
 public class ImageUtil {
+
+    /**
+     * Quality is measured on a decode whose longer side is at least this long, within the scales
+     * the JPEG decoder can skip work for.
+     */
+    private static final int QUALITY_MIN_SIDE = 480;
+    private static final int QUALITY_MAX_SAMPLE_SIZE = 8;
+
     /**
-     * Saves byte[] array to disk
+     * Saves byte[] array to disk on the shared {@link CaptureExecutor}
      *
      * @param input    byte array
      * @param output   path to output file
@@ -43,34 +51,132 @@ public class ImageUtil {
      */
     public static void saveToDiskAsync(
             final byte[] input, final File output, final ICallback callback) {
-        final Handler handler = new Handler();
-        new Thread() {
-            @Override
-            public void run() {
-                try {
-                    FileOutputStream outputStream = new FileOutputStream(output);
-                    outputStream.write(input);
-                    outputStream.flush();
-                    outputStream.close();
-
-                    handler.post(
-                            new Runnable() {
-                                @Override
-                                public void run() {
-                                    callback.done(null);
-                                }
-                            });
-                } catch (final Exception e) {
-                    handler.post(
-                            new Runnable() {
-                                @Override
-                                public void run() {
-                                    callback.done(e);
-                                }
-                            });
-                }
-            }
-        }.start();
+        CaptureExecutor.get()
+                .submit(
+                        new CaptureExecutor.Task() {
+                            @Override
+                            public void run() throws IOException {
+                                saveToDisk(ByteBuffer.wrap(input), output);
+                            }
+                        },
+                        callback);
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer to disk through a {@link FileChannel}. Direct buffers
+     * (such as an {@link android.media.Image} plane) are handed to the kernel as-is, without being
+     * copied onto the Java heap first.
+     *
+     * @param input  buffer to write, its position is advanced to the limit
+     * @param output path to output file
+     */
+    public static void saveToDisk(final ByteBuffer input, final File output) throws IOException {
+        final FileOutputStream outputStream = new FileOutputStream(output);
+        try {
+            final FileChannel channel = outputStream.getChannel();
+            while (input.hasRemaining())
+                channel.write(input);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Measures the sharpness and exposure of a JPEG. It's decoded at 1/2 to 1/8 scale, which the
+     * decoder does while still in the frequency domain, so most of the cost of a full decode is
+     * skipped.
+     *
+     * @return the quality, or null if the file can't be decoded
+     */
+    @Nullable
+    public static ImageQuality measureJpeg(File input) {
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(input.getAbsolutePath(), opts);
+        final int longSide = Math.max(opts.outWidth, opts.outHeight);
+        if (longSide <= 0)
+            return null;
+        int sampleSize = 1;
+        while (sampleSize < QUALITY_MAX_SAMPLE_SIZE && longSide / (sampleSize * 2) >= QUALITY_MIN_SIDE)
+            sampleSize *= 2;
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        final Bitmap bitmap = BitmapFactory.decodeFile(input.getAbsolutePath(), opts);
+        if (bitmap == null)
+            return null;
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width < 3 || height < 3) {
+            bitmap.recycle();
+            return null;
+        }
+        final int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        return ImageQuality.measureArgb(pixels, width, height);
+    }
+
+    /**
+     * Decodes an image at exactly the size that fits {@code reqWidth} x {@code reqHeight} once
+     * rotated by {@code degrees}, without rotating the pixels: the caller rotates it when drawing.
+     * The decoder subsamples by the largest power of two that keeps the image at least that big,
+     * then scales the rest of the way through {@code inDensity}/{@code inTargetDensity}, so at most
+     * one bitmap of the target size is allocated, or none when the pool has one to reuse.
+     *
+     * @param degrees clockwise rotation the image will be drawn with
+     * @param pool    bitmaps to decode into, may be null
+     * @return the bitmap, to be handed back to the pool when no longer shown, or null
+     */
+    @Nullable
+    public static Bitmap decodeSampledBitmap(
+            String inputFile, int reqWidth, int reqHeight, int degrees, @Nullable BitmapPool pool) {
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(inputFile, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0 || reqWidth <= 0 || reqHeight <= 0)
+            return null;
+
+        // Size the image takes on screen, in its own orientation
+        final boolean swapped = degrees == Degrees.DEGREES_90 || degrees == Degrees.DEGREES_270;
+        final int fitWidth = swapped ? reqHeight : reqWidth;
+        final int fitHeight = swapped ? reqWidth : reqHeight;
+        final float scale =
+                Math.min(1f, Math.min((float) fitWidth / opts.outWidth, (float) fitHeight / opts.outHeight));
+        final int targetWidth = Math.max(1, Math.round(opts.outWidth * scale));
+        final int targetHeight = Math.max(1, Math.round(opts.outHeight * scale));
+
+        int sampleSize = 1;
+        while (opts.outWidth / (sampleSize * 2) >= targetWidth
+                && opts.outHeight / (sampleSize * 2) >= targetHeight)
+            sampleSize *= 2;
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        opts.inMutable = true;
+        if (targetWidth * sampleSize < opts.outWidth) {
+            opts.inScaled = true;
+            opts.inDensity = opts.outWidth;
+            opts.inTargetDensity = targetWidth * sampleSize;
+        }
+        if (pool != null)
+            opts.inBitmap = pool.acquire(targetWidth, targetHeight, opts.inPreferredConfig);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(inputFile, opts);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all, decode into a new one
+            if (opts.inBitmap == null)
+                throw e;
+            pool.release(opts.inBitmap);
+            opts.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(inputFile, opts);
+        }
+        // The scaling density stays on the bitmap, a BitmapDrawable would scale it again by the
+        // display density over it; the caller sizes it in pixels
+        if (bitmap != null)
+            bitmap.setDensity(Bitmap.DENSITY_NONE);
+        return bitmap;
     }
 
     /**
@@ -79,7 +185,10 @@ public class ImageUtil {
      *
      * @param inputFile Expects an JPEG file if corrected orientation wants to be set.
      * @return rotated bitmap or null
+     * @deprecated Allocates the image twice to rotate it, use {@link #decodeSampledBitmap(String,
+     * int, int, int, BitmapPool)} and rotate it when drawing.
      */
+    @Deprecated
     @Nullable
     public static Bitmap getRotatedBitmap(String inputFile, int reqWidth, int reqHeight) {
         final int rotationInDegrees = getExifDegreesFromJpeg(inputFile);
@@ -133,18 +242,16 @@ public class ImageUtil {
         return inSampleSize;
     }
 
-    private static int getExifDegreesFromJpeg(String inputFile) {
+    /**
+     * @return the clockwise rotation the JPEG's EXIF orientation asks for, 0 if it has none
+     */
+    public static int getExifDegreesFromJpeg(String inputFile) {
         try {
-            final ExifInterface exif = new ExifInterface(inputFile);
-            final int exifOrientation =
-                    exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-            if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90) {
-                return 90;
-            } else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_180) {
-                return 180;
-            } else if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {
-                return 270;
-            }
+            final int exifOrientation = JpegExif.readOrientation(new File(inputFile));
+            if (exifOrientation == JpegExif.ORIENTATION_ROTATE_90
+                    || exifOrientation == JpegExif.ORIENTATION_ROTATE_180
+                    || exifOrientation == JpegExif.ORIENTATION_ROTATE_270)
+                return JpegExif.toDegrees(exifOrientation);
         } catch (IOException e) {
             Log.e("exif", "Error when trying to get exif data from : " + inputFile, e);
         }
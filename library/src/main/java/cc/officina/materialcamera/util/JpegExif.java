@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Reads and rewrites the EXIF orientation of a JPEG without decoding it. Only the marker segments
+ * ahead of the image data are walked, the orientation is read from the first IFD of the {@code
+ * APP1} Exif segment and rewritten in place, the embedded thumbnail from the second. Plain Java.
+ */
+public class JpegExif {
+
+    public static final int ORIENTATION_UNDEFINED = 0;
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    static final int MARKER_SOI = 0xD8;
+    static final int MARKER_EOI = 0xD9;
+    static final int MARKER_SOS = 0xDA;
+    static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+    private static final int EXIF_HEADER_LENGTH = 6;
+
+    private JpegExif() {
+    }
+
+    /**
+     * @return one of the {@code ORIENTATION_} constants, {@link #ORIENTATION_UNDEFINED} if the
+     * file has no orientation tag
+     */
+    public static int readOrientation(File jpeg) throws IOException {
+        final InputStream input = new BufferedInputStream(new FileInputStream(jpeg));
+        try {
+            return readOrientation(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the orientation from a stream positioned at the start of a JPEG. Stops at the first
+     * Exif segment or at the image data, whichever comes first.
+     */
+    public static int readOrientation(InputStream input) throws IOException {
+        final byte[] segment = readExifSegment(input);
+        if (segment == null)
+            return ORIENTATION_UNDEFINED;
+        final int index = findOrientation(segment, 0, segment.length);
+        return index != -1 ? readShort(segment, index, isLittleEndian(segment, 0)) : ORIENTATION_UNDEFINED;
+    }
+
+    /**
+     * Copies the JPEG thumbnail embedded in the Exif segment. It's stored as shot, so the file's
+     * orientation applies to it too.
+     *
+     * @return the thumbnail's JPEG bytes, or null if the file has none
+     */
+    public static byte[] readThumbnail(File jpeg) throws IOException {
+        final InputStream input = new BufferedInputStream(new FileInputStream(jpeg));
+        final byte[] segment;
+        try {
+            segment = readExifSegment(input);
+        } finally {
+            input.close();
+        }
+        if (segment == null)
+            return null;
+        final int tiff = EXIF_HEADER_LENGTH;
+        final boolean littleEndian = isLittleEndian(segment, 0);
+        final int ifd0 = findIfd(segment, readInt(segment, tiff + 4, littleEndian), littleEndian);
+        if (ifd0 == -1)
+            return null;
+        final int count0 = readShort(segment, ifd0, littleEndian);
+        final int ifd1 = findIfd(segment, readInt(segment, ifd0 + 2 + count0 * 12, littleEndian), littleEndian);
+        if (ifd1 == -1)
+            return null;
+        long offset = -1;
+        long length = -1;
+        final int count1 = readShort(segment, ifd1, littleEndian);
+        for (int i = 0; i < count1; i++) {
+            final int entry = ifd1 + 2 + i * 12;
+            if (entry + 12 > segment.length)
+                return null;
+            final int tag = readShort(segment, entry, littleEndian);
+            if (tag == TAG_THUMBNAIL_OFFSET)
+                offset = readInt(segment, entry + 8, littleEndian) & 0xFFFFFFFFL;
+            else if (tag == TAG_THUMBNAIL_LENGTH)
+                length = readInt(segment, entry + 8, littleEndian) & 0xFFFFFFFFL;
+        }
+        if (offset <= 0 || length < 4 || tiff + offset + length > segment.length)
+            return null;
+        final int start = tiff + (int) offset;
+        if ((segment[start] & 0xFF) != 0xFF || (segment[start + 1] & 0xFF) != MARKER_SOI)
+            return null;
+        return Arrays.copyOfRange(segment, start, start + (int) length);
+    }
+
+    /**
+     * Rewrites the orientation tag in place, leaving every other byte of the file untouched.
+     *
+     * @return false if the file has no orientation tag to rewrite
+     */
+    public static boolean writeOrientation(File jpeg, int orientation) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(jpeg, "rw");
+        try {
+            if (file.read() != 0xFF || file.read() != MARKER_SOI)
+                throw new IOException("Not a JPEG");
+            while (true) {
+                int marker;
+                do {
+                    marker = file.read();
+                } while (marker == 0xFF);
+                if (marker == -1)
+                    throw new EOFException();
+                if (marker == MARKER_SOS || marker == MARKER_EOI)
+                    return false;
+                if (isStandalone(marker))
+                    continue;
+                final int length = file.readUnsignedShort() - 2;
+                if (length < 0)
+                    throw new IOException("Bad segment length");
+                final long start = file.getFilePointer();
+                if (marker == MARKER_APP1) {
+                    final byte[] segment = new byte[length];
+                    file.readFully(segment);
+                    if (setOrientation(segment, 0, length, orientation)) {
+                        file.seek(start);
+                        file.write(segment);
+                        return true;
+                    }
+                }
+                file.seek(start + length);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the clockwise rotation that turns the image upright, ignoring mirroring
+     */
+    public static int toDegrees(int orientation) {
+        switch (orientation) {
+            case ORIENTATION_ROTATE_90:
+            case ORIENTATION_TRANSPOSE:
+                return 90;
+            case ORIENTATION_ROTATE_180:
+            case ORIENTATION_FLIP_VERTICAL:
+                return 180;
+            case ORIENTATION_ROTATE_270:
+            case ORIENTATION_TRANSVERSE:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Sets the orientation tag of an {@code APP1} segment payload held in memory.
+     *
+     * @return false if the segment isn't Exif or has no orientation tag
+     */
+    static boolean setOrientation(byte[] segment, int start, int length, int orientation) {
+        final int index = findOrientation(segment, start, length);
+        if (index == -1)
+            return false;
+        if (isLittleEndian(segment, start)) {
+            segment[index] = (byte) orientation;
+            segment[index + 1] = (byte) (orientation >> 8);
+        } else {
+            segment[index] = (byte) (orientation >> 8);
+            segment[index + 1] = (byte) orientation;
+        }
+        return true;
+    }
+
+    /**
+     * Reads up to the first {@code APP1} segment that holds Exif data.
+     *
+     * @return the segment's payload, or null if the image data comes first
+     */
+    private static byte[] readExifSegment(InputStream input) throws IOException {
+        if (input.read() != 0xFF || input.read() != MARKER_SOI)
+            throw new IOException("Not a JPEG");
+        while (true) {
+            final int marker = readMarker(input);
+            if (marker == MARKER_SOS || marker == MARKER_EOI)
+                return null;
+            if (isStandalone(marker))
+                continue;
+            final int length = readUnsignedShort(input) - 2;
+            if (length < 0)
+                throw new IOException("Bad segment length");
+            if (marker == MARKER_APP1) {
+                final byte[] segment = new byte[length];
+                readFully(input, segment);
+                if (isExif(segment, 0, length))
+                    return segment;
+            } else {
+                skipFully(input, length);
+            }
+        }
+    }
+
+    private static boolean isExif(byte[] segment, int start, int length) {
+        if (length < EXIF_HEADER_LENGTH + 8
+                || segment[start] != 'E'
+                || segment[start + 1] != 'x'
+                || segment[start + 2] != 'i'
+                || segment[start + 3] != 'f'
+                || segment[start + 4] != 0
+                || segment[start + 5] != 0)
+            return false;
+        final int tiff = start + EXIF_HEADER_LENGTH;
+        return (segment[tiff] == 'I' && segment[tiff + 1] == 'I')
+                || (segment[tiff] == 'M' && segment[tiff + 1] == 'M');
+    }
+
+    /**
+     * @return the index of the IFD at {@code offset} from the TIFF header of a whole segment
+     * payload, or -1 if it's out of bounds
+     */
+    private static int findIfd(byte[] segment, int offset, boolean littleEndian) {
+        final long ifdOffset = offset & 0xFFFFFFFFL;
+        if (ifdOffset < 8 || EXIF_HEADER_LENGTH + ifdOffset + 2 > segment.length)
+            return -1;
+        final int ifd = EXIF_HEADER_LENGTH + (int) ifdOffset;
+        return ifd + 2 + readShort(segment, ifd, littleEndian) * 12 + 4 <= segment.length ? ifd : -1;
+    }
+
+    /**
+     * @return the index of the orientation value in an {@code APP1} segment payload, or -1
+     */
+    private static int findOrientation(byte[] segment, int start, int length) {
+        final int end = start + length;
+        if (!isExif(segment, start, length))
+            return -1;
+        // Offsets in the TIFF structure are relative to its header
+        final int tiff = start + EXIF_HEADER_LENGTH;
+        final boolean littleEndian = isLittleEndian(segment, start);
+        final long ifdOffset = readInt(segment, tiff + 4, littleEndian) & 0xFFFFFFFFL;
+        if (ifdOffset < 8 || tiff + ifdOffset + 2 > end)
+            return -1;
+        final int ifd = tiff + (int) ifdOffset;
+        final int count = readShort(segment, ifd, littleEndian);
+        for (int i = 0; i < count; i++) {
+            final int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end)
+                return -1;
+            if (readShort(segment, entry, littleEndian) == TAG_ORIENTATION) {
+                if (readShort(segment, entry + 2, littleEndian) != TYPE_SHORT)
+                    return -1;
+                // A single short sits at the start of the value field
+                return entry + 8;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isLittleEndian(byte[] segment, int start) {
+        final int tiff = start + EXIF_HEADER_LENGTH;
+        return segment[tiff] == 'I' && segment[tiff + 1] == 'I';
+    }
+
+    private static int readShort(byte[] data, int index, boolean littleEndian) {
+        final int first = data[index] & 0xFF;
+        final int second = data[index + 1] & 0xFF;
+        return littleEndian ? first | (second << 8) : (first << 8) | second;
+    }
+
+    private static int readInt(byte[] data, int index, boolean littleEndian) {
+        final int high = readShort(data, littleEndian ? index + 2 : index, littleEndian);
+        final int low = readShort(data, littleEndian ? index : index + 2, littleEndian);
+        return (high << 16) | low;
+    }
+
+    /**
+     * Markers without a length: TEM and the restart markers.
+     */
+    static boolean isStandalone(int marker) {
+        return marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7);
+    }
+
+    /**
+     * Reads the next marker code, skipping fill bytes.
+     */
+    static int readMarker(InputStream input) throws IOException {
+        int value = input.read();
+        if (value != 0xFF)
+            throw value == -1 ? new EOFException() : new IOException("Marker expected");
+        do {
+            value = input.read();
+        } while (value == 0xFF);
+        if (value == -1)
+            throw new EOFException();
+        return value;
+    }
+
+    static int readUnsignedShort(InputStream input) throws IOException {
+        final int high = input.read();
+        final int low = input.read();
+        if ((high | low) < 0)
+            throw new EOFException();
+        return (high << 8) | low;
+    }
+
+    static void readFully(InputStream input, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            final int read = input.read(buffer, offset, buffer.length - offset);
+            if (read == -1)
+                throw new EOFException();
+            offset += read;
+        }
+    }
+
+    private static void skipFully(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = input.skip(count);
+            if (skipped > 0) {
+                count -= skipped;
+            } else {
+                if (input.read() == -1)
+                    throw new EOFException();
+                count--;
+            }
+        }
+    }
+}
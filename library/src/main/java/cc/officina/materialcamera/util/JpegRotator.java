@@ -0,0 +1,996 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rotates a JPEG by 90, 180 or 270 degrees without decoding it to pixels. The quantized DCT
+ * coefficients are read, moved and transposed block by block and written out again, so the image
+ * loses nothing and the cost is a small fraction of a decode and re-encode. Like {@code jpegtran
+ * -trim}, the partial blocks along an edge that would end up on the top or left are dropped (at
+ * most 15 pixels, camera sizes are usually aligned). Plain Java.
+ *
+ * <p>Only baseline, Huffman coded JPEGs with a single scan are supported, which is what cameras
+ * produce; others are left alone.
+ */
+public class JpegRotator {
+
+    /**
+     * Natural (row-major) index of each coefficient in zigzag order.
+     */
+    private static final int[] ZIGZAG = {
+        0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20,
+        13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51, 58, 59,
+        52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_SOF1 = 0xC1;
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_DQT = 0xDB;
+    private static final int MARKER_DNL = 0xDC;
+    private static final int MARKER_DRI = 0xDD;
+    private static final int MARKER_COM = 0xFE;
+    private static final int LOOKUP_BITS = 9;
+
+    private JpegRotator() {
+    }
+
+    /**
+     * Rotates the file in place if its EXIF orientation says it's rotated, and resets the
+     * orientation to normal. Mirrored orientations are left alone.
+     *
+     * @return whether the file was rotated
+     */
+    public static boolean makeUpright(File jpeg) throws IOException {
+        final int orientation = JpegExif.readOrientation(jpeg);
+        if (orientation != JpegExif.ORIENTATION_ROTATE_90
+                && orientation != JpegExif.ORIENTATION_ROTATE_180
+                && orientation != JpegExif.ORIENTATION_ROTATE_270)
+            return false;
+        final File rotated = new File(jpeg.getParentFile(), jpeg.getName() + ".rotating");
+        boolean done = false;
+        try {
+            done = rotate(jpeg, rotated, JpegExif.toDegrees(orientation)) && rotated.renameTo(jpeg);
+            return done;
+        } finally {
+            if (!done)
+                //noinspection ResultOfMethodCallIgnored
+                rotated.delete();
+        }
+    }
+
+    /**
+     * Writes {@code input} rotated clockwise by {@code degrees} to {@code output}. Every segment
+     * ahead of the image is copied, with the EXIF orientation reset to normal; the EXIF thumbnail,
+     * if any, keeps its original orientation.
+     *
+     * @param degrees 90, 180 or 270
+     * @return false if the JPEG isn't one that can be rotated, in which case nothing is written
+     */
+    public static boolean rotate(File input, File output, int degrees) throws IOException {
+        if (degrees != 90 && degrees != 180 && degrees != 270)
+            throw new IllegalArgumentException("Unsupported rotation: " + degrees);
+        final byte[] data = readFile(input);
+        final Decoder decoder = new Decoder(data);
+        if (!decoder.decode())
+            return false;
+        final Transform transform = Transform.create(decoder, degrees);
+        if (transform == null)
+            return false;
+
+        final OutputStream stream = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+        try {
+            new Encoder(decoder, transform, stream).write();
+        } finally {
+            stream.close();
+        }
+        return true;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final long length = file.length();
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("File too large");
+        final byte[] data = new byte[(int) length];
+        final InputStream input = new FileInputStream(file);
+        try {
+            JpegExif.readFully(input, data);
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int quantTable;
+        int dcTable;
+        int acTable;
+        int blocksPerLine;
+        int blocksPerColumn;
+        /**
+         * Quantized coefficients, 64 per block in natural order, blocks in raster order.
+         */
+        short[] coefficients;
+    }
+
+    private static class HuffmanDecodeTable {
+        final int[] lookup = new int[1 << LOOKUP_BITS];
+        final int[] minCode = new int[17];
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final int[] values;
+
+        HuffmanDecodeTable(int[] bits, int[] values) throws IOException {
+            this.values = values;
+            int code = 0;
+            int index = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = index;
+                minCode[length] = code;
+                for (int i = 0; i < bits[length]; i++, code++, index++) {
+                    if (index >= values.length)
+                        throw new IOException("Bad Huffman table");
+                    if (length <= LOOKUP_BITS) {
+                        final int shift = LOOKUP_BITS - length;
+                        for (int fill = 0; fill < 1 << shift; fill++)
+                            lookup[(code << shift) | fill] = (length << 8) | values[index];
+                    }
+                }
+                maxCode[length] = bits[length] > 0 ? code - 1 : -1;
+                if (code > 1 << length)
+                    throw new IOException("Bad Huffman table");
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reads the marker segments and the coefficients of a baseline JPEG.
+     */
+    private static class Decoder {
+        final byte[] data;
+        /**
+         * Marker and payload bounds of the APPn and COM segments, copied as they are.
+         */
+        final List<int[]> passThrough = new ArrayList<>();
+        final int[][] quantTables = new int[4][];
+        final boolean[] quantSixteenBit = new boolean[4];
+        final HuffmanDecodeTable[] dcTables = new HuffmanDecodeTable[4];
+        final HuffmanDecodeTable[] acTables = new HuffmanDecodeTable[4];
+        int frameMarker;
+        int precision;
+        int width;
+        int height;
+        int maxH;
+        int maxV;
+        int mcusPerLine;
+        int mcusPerColumn;
+        Component[] components;
+        int restartInterval;
+
+        private int mPosition;
+        private long mBits;
+        private int mBitCount;
+        private boolean mMarkerReached;
+
+        Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * @return false if the JPEG uses a coding process that isn't supported
+         */
+        boolean decode() throws IOException {
+            if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != JpegExif.MARKER_SOI)
+                throw new IOException("Not a JPEG");
+            mPosition = 2;
+            while (true) {
+                final int marker = nextMarker();
+                if (marker == JpegExif.MARKER_EOI)
+                    throw new IOException("No image data");
+                if (JpegExif.isStandalone(marker))
+                    continue;
+                final int length = readShort(mPosition);
+                final int start = mPosition + 2;
+                final int end = mPosition + length;
+                if (length < 2 || end > data.length)
+                    throw new EOFException();
+                mPosition = end;
+                if ((marker >= 0xE0 && marker <= 0xEF) || marker == MARKER_COM) {
+                    passThrough.add(new int[] {marker, start, end});
+                } else if (marker == MARKER_DQT) {
+                    readQuantTables(start, end);
+                } else if (marker == MARKER_DHT) {
+                    readHuffmanTables(start, end);
+                } else if (marker == MARKER_DRI) {
+                    restartInterval = readShort(start);
+                } else if (marker == MARKER_SOF0 || marker == MARKER_SOF1) {
+                    readFrame(marker, start);
+                } else if ((marker >= 0xC2 && marker <= 0xCF && marker != MARKER_DHT)
+                        || marker == MARKER_DNL) {
+                    // Progressive, lossless, hierarchical or arithmetic coding
+                    return false;
+                } else if (marker == JpegExif.MARKER_SOS) {
+                    if (components == null || !readScan(start))
+                        return false;
+                    decodeScan();
+                    // A second scan would mean more than the single interleaved one
+                    return nextMarkerAfterScan() != JpegExif.MARKER_SOS;
+                }
+            }
+        }
+
+        private int nextMarker() throws IOException {
+            if (mPosition >= data.length || (data[mPosition] & 0xFF) != 0xFF)
+                throw new IOException("Marker expected");
+            while (mPosition < data.length && (data[mPosition] & 0xFF) == 0xFF)
+                mPosition++;
+            if (mPosition >= data.length)
+                throw new EOFException();
+            return data[mPosition++] & 0xFF;
+        }
+
+        private int nextMarkerAfterScan() {
+            for (int i = mPosition; i + 1 < data.length; i++) {
+                if ((data[i] & 0xFF) == 0xFF) {
+                    final int marker = data[i + 1] & 0xFF;
+                    if (marker != 0 && marker != 0xFF && !JpegExif.isStandalone(marker))
+                        return marker;
+                }
+            }
+            return JpegExif.MARKER_EOI;
+        }
+
+        private int readShort(int index) throws IOException {
+            if (index + 1 >= data.length)
+                throw new EOFException();
+            return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+        }
+
+        private void readQuantTables(int index, int end) throws IOException {
+            while (index < end) {
+                final int info = data[index++] & 0xFF;
+                final int id = info & 0x0F;
+                final boolean sixteenBit = (info >> 4) != 0;
+                if (id > 3 || index + (sixteenBit ? 128 : 64) > end)
+                    throw new IOException("Bad quantization table");
+                final int[] table = new int[64];
+                for (int k = 0; k < 64; k++) {
+                    if (sixteenBit) {
+                        table[ZIGZAG[k]] = readShort(index);
+                        index += 2;
+                    } else {
+                        table[ZIGZAG[k]] = data[index++] & 0xFF;
+                    }
+                }
+                quantTables[id] = table;
+                quantSixteenBit[id] = sixteenBit;
+            }
+        }
+
+        private void readHuffmanTables(int index, int end) throws IOException {
+            while (index < end) {
+                final int info = data[index++] & 0xFF;
+                final int id = info & 0x0F;
+                if (id > 3 || index + 16 > end)
+                    throw new IOException("Bad Huffman table");
+                final int[] bits = new int[17];
+                int count = 0;
+                for (int length = 1; length <= 16; length++) {
+                    bits[length] = data[index++] & 0xFF;
+                    count += bits[length];
+                }
+                if (count > 256 || index + count > end)
+                    throw new IOException("Bad Huffman table");
+                final int[] values = new int[count];
+                for (int i = 0; i < count; i++)
+                    values[i] = data[index++] & 0xFF;
+                if ((info >> 4) == 0)
+                    dcTables[id] = new HuffmanDecodeTable(bits, values);
+                else
+                    acTables[id] = new HuffmanDecodeTable(bits, values);
+            }
+        }
+
+        private void readFrame(int marker, int index) throws IOException {
+            frameMarker = marker;
+            precision = data[index] & 0xFF;
+            height = readShort(index + 1);
+            width = readShort(index + 3);
+            final int count = data[index + 5] & 0xFF;
+            if (width == 0 || height == 0 || count == 0)
+                throw new IOException("Bad frame header");
+            components = new Component[count];
+            index += 6;
+            for (int i = 0; i < count; i++, index += 3) {
+                final Component component = new Component();
+                component.id = data[index] & 0xFF;
+                component.h = (data[index + 1] >> 4) & 0x0F;
+                component.v = data[index + 1] & 0x0F;
+                component.quantTable = data[index + 2] & 0x0F;
+                if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4
+                        || component.quantTable > 3)
+                    throw new IOException("Bad frame header");
+                // A single component is never interleaved, its MCU is one block whatever the factors
+                if (count == 1)
+                    component.h = component.v = 1;
+                components[i] = component;
+                maxH = Math.max(maxH, component.h);
+                maxV = Math.max(maxV, component.v);
+            }
+            mcusPerLine = (width + 8 * maxH - 1) / (8 * maxH);
+            mcusPerColumn = (height + 8 * maxV - 1) / (8 * maxV);
+            for (Component component : components) {
+                component.blocksPerLine = mcusPerLine * component.h;
+                component.blocksPerColumn = mcusPerColumn * component.v;
+                component.coefficients =
+                        new short[component.blocksPerLine * component.blocksPerColumn * 64];
+            }
+        }
+
+        /**
+         * @return false unless the scan holds every component, interleaved, in one pass
+         */
+        private boolean readScan(int index) throws IOException {
+            final int count = data[index++] & 0xFF;
+            if (count != components.length)
+                return false;
+            for (int i = 0; i < count; i++, index += 2) {
+                final Component component = findComponent(data[index] & 0xFF);
+                if (component == null || component != components[i])
+                    return false;
+                component.dcTable = (data[index + 1] >> 4) & 0x0F;
+                component.acTable = data[index + 1] & 0x0F;
+                if (component.dcTable > 3 || component.acTable > 3
+                        || dcTables[component.dcTable] == null || acTables[component.acTable] == null
+                        || quantTables[component.quantTable] == null)
+                    throw new IOException("Missing table");
+            }
+            final int spectralStart = data[index] & 0xFF;
+            final int spectralEnd = data[index + 1] & 0xFF;
+            final int approximation = data[index + 2] & 0xFF;
+            return spectralStart == 0 && spectralEnd == 63 && approximation == 0;
+        }
+
+        private Component findComponent(int id) {
+            for (Component component : components) {
+                if (component.id == id)
+                    return component;
+            }
+            return null;
+        }
+
+        private void decodeScan() throws IOException {
+            final int[] predictors = new int[components.length];
+            final int mcuCount = mcusPerLine * mcusPerColumn;
+            for (int mcu = 0; mcu < mcuCount; mcu++) {
+                if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                    restart();
+                    for (int i = 0; i < predictors.length; i++)
+                        predictors[i] = 0;
+                }
+                final int mcuX = mcu % mcusPerLine;
+                final int mcuY = mcu / mcusPerLine;
+                for (int i = 0; i < components.length; i++) {
+                    final Component component = components[i];
+                    final HuffmanDecodeTable dcTable = dcTables[component.dcTable];
+                    final HuffmanDecodeTable acTable = acTables[component.acTable];
+                    for (int v = 0; v < component.v; v++) {
+                        final int row = mcuY * component.v + v;
+                        for (int h = 0; h < component.h; h++) {
+                            final int block = row * component.blocksPerLine + mcuX * component.h + h;
+                            predictors[i] =
+                                    decodeBlock(component.coefficients, block * 64, dcTable, acTable, predictors[i]);
+                        }
+                    }
+                }
+            }
+        }
+
+        private int decodeBlock(
+                short[] coefficients,
+                int offset,
+                HuffmanDecodeTable dcTable,
+                HuffmanDecodeTable acTable,
+                int predictor)
+                throws IOException {
+            final int dcSize = decodeHuffman(dcTable);
+            predictor += receiveExtend(dcSize);
+            coefficients[offset] = (short) predictor;
+            for (int k = 1; k < 64; ) {
+                final int symbol = decodeHuffman(acTable);
+                final int run = symbol >> 4;
+                final int size = symbol & 0x0F;
+                if (size == 0) {
+                    if (run != 15)
+                        break;
+                    k += 16;
+                    continue;
+                }
+                k += run;
+                if (k > 63)
+                    throw new IOException("Bad coefficient run");
+                coefficients[offset + ZIGZAG[k]] = (short) receiveExtend(size);
+                k++;
+            }
+            return predictor;
+        }
+
+        private void fillBits() {
+            while (mBitCount <= 56) {
+                int value = 0;
+                if (!mMarkerReached && mPosition < data.length) {
+                    value = data[mPosition] & 0xFF;
+                    if (value == 0xFF) {
+                        final int next = mPosition + 1 < data.length ? data[mPosition + 1] & 0xFF : -1;
+                        if (next == 0) {
+                            mPosition += 2;
+                        } else {
+                            // Past the end of the segment the decoder reads zeros
+                            mMarkerReached = true;
+                            value = 0;
+                        }
+                    } else {
+                        mPosition++;
+                    }
+                }
+                mBits |= (long) value << (56 - mBitCount);
+                mBitCount += 8;
+            }
+        }
+
+        private int peekBits(int count) {
+            return (int) (mBits >>> (64 - count));
+        }
+
+        private void skipBits(int count) {
+            mBits <<= count;
+            mBitCount -= count;
+        }
+
+        private int decodeHuffman(HuffmanDecodeTable table) throws IOException {
+            if (mBitCount < 16)
+                fillBits();
+            final int entry = table.lookup[peekBits(LOOKUP_BITS)];
+            if (entry != 0) {
+                skipBits(entry >> 8);
+                return entry & 0xFF;
+            }
+            for (int length = LOOKUP_BITS + 1; length <= 16; length++) {
+                final int code = peekBits(length);
+                if (code <= table.maxCode[length]) {
+                    skipBits(length);
+                    return table.values[table.valueOffset[length] + code - table.minCode[length]];
+                }
+            }
+            throw new IOException("Bad Huffman code");
+        }
+
+        private int receiveExtend(int size) {
+            if (size == 0)
+                return 0;
+            if (mBitCount < size)
+                fillBits();
+            int value = peekBits(size);
+            skipBits(size);
+            if (value < 1 << (size - 1))
+                value += (-1 << size) + 1;
+            return value;
+        }
+
+        /**
+         * Skips to the data following the next restart marker.
+         */
+        private void restart() throws IOException {
+            mBits = 0;
+            mBitCount = 0;
+            mMarkerReached = false;
+            while (mPosition + 1 < data.length) {
+                if ((data[mPosition] & 0xFF) == 0xFF) {
+                    final int marker = data[mPosition + 1] & 0xFF;
+                    if (marker >= 0xD0 && marker <= 0xD7) {
+                        mPosition += 2;
+                        return;
+                    }
+                    if (marker != 0 && marker != 0xFF)
+                        throw new IOException("Restart marker expected");
+                }
+                mPosition++;
+            }
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Where each block of the rotated image comes from. Coordinates are in blocks of the
+     * component, source blocks beyond the trimmed edge are never read.
+     */
+    private static class Transform {
+        final int degrees;
+        final int width;
+        final int height;
+        final int maxH;
+        final int maxV;
+        final int mcusPerLine;
+        final int mcusPerColumn;
+        /**
+         * Blocks of each source component kept along its mirrored dimensions.
+         */
+        final int[] sourceColumns;
+        final int[] sourceRows;
+        /**
+         * For each coefficient of a rotated block in zigzag order, the natural index of the
+         * source coefficient and whether it's negated: mirroring a block negates its odd
+         * frequencies along the mirrored axis.
+         */
+        final int[] sourceIndex = new int[64];
+        final boolean[] negate = new boolean[64];
+
+        private Transform(Decoder decoder, int degrees, int trimmedWidth, int trimmedHeight) {
+            this.degrees = degrees;
+            final int trimmedMcusPerLine = (trimmedWidth + 8 * decoder.maxH - 1) / (8 * decoder.maxH);
+            final int trimmedMcusPerColumn = (trimmedHeight + 8 * decoder.maxV - 1) / (8 * decoder.maxV);
+            final boolean transposed = degrees != 180;
+            width = transposed ? trimmedHeight : trimmedWidth;
+            height = transposed ? trimmedWidth : trimmedHeight;
+            maxH = transposed ? decoder.maxV : decoder.maxH;
+            maxV = transposed ? decoder.maxH : decoder.maxV;
+            mcusPerLine = transposed ? trimmedMcusPerColumn : trimmedMcusPerLine;
+            mcusPerColumn = transposed ? trimmedMcusPerLine : trimmedMcusPerColumn;
+            sourceColumns = new int[decoder.components.length];
+            sourceRows = new int[decoder.components.length];
+            for (int i = 0; i < decoder.components.length; i++) {
+                sourceColumns[i] = trimmedMcusPerLine * decoder.components[i].h;
+                sourceRows[i] = trimmedMcusPerColumn * decoder.components[i].v;
+            }
+            for (int k = 0; k < 64; k++) {
+                final int u = ZIGZAG[k] % 8;
+                final int v = ZIGZAG[k] / 8;
+                if (degrees == 90) {
+                    sourceIndex[k] = u * 8 + v;
+                    negate[k] = (u & 1) != 0;
+                } else if (degrees == 180) {
+                    sourceIndex[k] = v * 8 + u;
+                    negate[k] = ((u + v) & 1) != 0;
+                } else {
+                    sourceIndex[k] = u * 8 + v;
+                    negate[k] = (v & 1) != 0;
+                }
+            }
+        }
+
+        /**
+         * @return null if trimming would leave nothing
+         */
+        static Transform create(Decoder decoder, int degrees) {
+            final int mcuWidth = 8 * decoder.maxH;
+            final int mcuHeight = 8 * decoder.maxV;
+            // Edges that get mirrored must end on a whole MCU, or padding would show
+            final int trimmedWidth =
+                    degrees == 90 ? decoder.width : decoder.width / mcuWidth * mcuWidth;
+            final int trimmedHeight =
+                    degrees == 270 ? decoder.height : decoder.height / mcuHeight * mcuHeight;
+            if (trimmedWidth == 0 || trimmedHeight == 0)
+                return null;
+            return new Transform(decoder, degrees, trimmedWidth, trimmedHeight);
+        }
+
+        /**
+         * @return the offset of the source block that lands at {@code column}, {@code row} of the
+         * rotated component
+         */
+        int getBlockOffset(Component source, int index, int column, int row) {
+            final int sourceColumn;
+            final int sourceRow;
+            if (degrees == 90) {
+                sourceColumn = row;
+                sourceRow = sourceRows[index] - 1 - column;
+            } else if (degrees == 180) {
+                sourceColumn = sourceColumns[index] - 1 - column;
+                sourceRow = sourceRows[index] - 1 - row;
+            } else {
+                sourceColumn = sourceColumns[index] - 1 - row;
+                sourceRow = column;
+            }
+            return (sourceRow * source.blocksPerLine + sourceColumn) * 64;
+        }
+    }
+
+    /**
+     * Writes the rotated JPEG with Huffman tables built for its coefficients, since moving them
+     * around produces symbols the original tables may lack.
+     */
+    private static class Encoder {
+        private final Decoder mDecoder;
+        private final Transform mTransform;
+        private final OutputStream mOutput;
+        private final int[][] mDcFrequencies = new int[4][];
+        private final int[][] mAcFrequencies = new int[4][];
+        private final int[][] mDcCodes = new int[4][];
+        private final int[][] mDcSizes = new int[4][];
+        private final int[][] mAcCodes = new int[4][];
+        private final int[][] mAcSizes = new int[4][];
+        private final byte[][] mDcTables = new byte[4][];
+        private final byte[][] mAcTables = new byte[4][];
+        private final byte[] mBuffer = new byte[64 * 1024];
+        private int mBufferLength;
+        private boolean mCounting;
+        private long mBits;
+        private int mBitCount;
+
+        Encoder(Decoder decoder, Transform transform, OutputStream output) {
+            mDecoder = decoder;
+            mTransform = transform;
+            mOutput = output;
+        }
+
+        void write() throws IOException {
+            for (Component component : mDecoder.components) {
+                if (mDcFrequencies[component.dcTable] == null)
+                    mDcFrequencies[component.dcTable] = new int[257];
+                if (mAcFrequencies[component.acTable] == null)
+                    mAcFrequencies[component.acTable] = new int[257];
+            }
+            mCounting = true;
+            encodeScan();
+            for (int i = 0; i < 4; i++) {
+                if (mDcFrequencies[i] != null) {
+                    mDcTables[i] = buildTable(mDcFrequencies[i]);
+                    mDcCodes[i] = new int[256];
+                    mDcSizes[i] = new int[256];
+                    assignCodes(mDcTables[i], mDcCodes[i], mDcSizes[i]);
+                }
+                if (mAcFrequencies[i] != null) {
+                    mAcTables[i] = buildTable(mAcFrequencies[i]);
+                    mAcCodes[i] = new int[256];
+                    mAcSizes[i] = new int[256];
+                    assignCodes(mAcTables[i], mAcCodes[i], mAcSizes[i]);
+                }
+            }
+
+            mOutput.write(0xFF);
+            mOutput.write(JpegExif.MARKER_SOI);
+            writeSegments();
+            mCounting = false;
+            encodeScan();
+            flushBits();
+            mOutput.write(0xFF);
+            mOutput.write(JpegExif.MARKER_EOI);
+        }
+
+        private void writeSegments() throws IOException {
+            final byte[] data = mDecoder.data;
+            for (int[] segment : mDecoder.passThrough) {
+                final int marker = segment[0];
+                final int start = segment[1];
+                final int length = segment[2] - start;
+                if (marker == JpegExif.MARKER_APP1) {
+                    final byte[] payload = new byte[length];
+                    System.arraycopy(data, start, payload, 0, length);
+                    JpegExif.setOrientation(payload, 0, length, JpegExif.ORIENTATION_NORMAL);
+                    writeSegment(marker, payload, 0, length);
+                } else {
+                    writeSegment(marker, data, start, length);
+                }
+            }
+
+            final boolean transposed = mTransform.degrees != 180;
+            for (int id = 0; id < 4; id++) {
+                final int[] table = mDecoder.quantTables[id];
+                if (table == null)
+                    continue;
+                final boolean sixteenBit = mDecoder.quantSixteenBit[id];
+                final byte[] payload = new byte[1 + (sixteenBit ? 128 : 64)];
+                payload[0] = (byte) ((sixteenBit ? 0x10 : 0) | id);
+                int index = 1;
+                for (int k = 0; k < 64; k++) {
+                    final int natural = ZIGZAG[k];
+                    // Transposed coefficients need a transposed table
+                    final int value = table[transposed ? (natural % 8) * 8 + natural / 8 : natural];
+                    if (sixteenBit)
+                        payload[index++] = (byte) (value >> 8);
+                    payload[index++] = (byte) value;
+                }
+                writeSegment(MARKER_DQT, payload, 0, payload.length);
+            }
+
+            final Component[] components = mDecoder.components;
+            final byte[] frame = new byte[6 + 3 * components.length];
+            frame[0] = (byte) mDecoder.precision;
+            frame[1] = (byte) (mTransform.height >> 8);
+            frame[2] = (byte) mTransform.height;
+            frame[3] = (byte) (mTransform.width >> 8);
+            frame[4] = (byte) mTransform.width;
+            frame[5] = (byte) components.length;
+            for (int i = 0; i < components.length; i++) {
+                final Component component = components[i];
+                final int h = transposed ? component.v : component.h;
+                final int v = transposed ? component.h : component.v;
+                frame[6 + 3 * i] = (byte) component.id;
+                frame[7 + 3 * i] = (byte) ((h << 4) | v);
+                frame[8 + 3 * i] = (byte) component.quantTable;
+            }
+            writeSegment(mDecoder.frameMarker, frame, 0, frame.length);
+
+            for (int id = 0; id < 4; id++) {
+                if (mDcTables[id] != null) {
+                    mDcTables[id][0] = (byte) id;
+                    writeSegment(MARKER_DHT, mDcTables[id], 0, mDcTables[id].length);
+                }
+                if (mAcTables[id] != null) {
+                    mAcTables[id][0] = (byte) (0x10 | id);
+                    writeSegment(MARKER_DHT, mAcTables[id], 0, mAcTables[id].length);
+                }
+            }
+
+            final byte[] scan = new byte[4 + 2 * components.length];
+            scan[0] = (byte) components.length;
+            for (int i = 0; i < components.length; i++) {
+                scan[1 + 2 * i] = (byte) components[i].id;
+                scan[2 + 2 * i] = (byte) ((components[i].dcTable << 4) | components[i].acTable);
+            }
+            scan[scan.length - 3] = 0;
+            scan[scan.length - 2] = 63;
+            scan[scan.length - 1] = 0;
+            writeSegment(JpegExif.MARKER_SOS, scan, 0, scan.length);
+        }
+
+        private void writeSegment(int marker, byte[] payload, int start, int length) throws IOException {
+            if (length + 2 > 0xFFFF)
+                throw new IOException("Segment too long");
+            mOutput.write(0xFF);
+            mOutput.write(marker);
+            mOutput.write((length + 2) >> 8);
+            mOutput.write(length + 2);
+            mOutput.write(payload, start, length);
+        }
+
+        /**
+         * Walks the rotated image MCU by MCU, counting symbols or writing them.
+         */
+        private void encodeScan() throws IOException {
+            final Component[] components = mDecoder.components;
+            final boolean transposed = mTransform.degrees != 180;
+            final int[] predictors = new int[components.length];
+            for (int mcuY = 0; mcuY < mTransform.mcusPerColumn; mcuY++) {
+                for (int mcuX = 0; mcuX < mTransform.mcusPerLine; mcuX++) {
+                    for (int i = 0; i < components.length; i++) {
+                        final Component component = components[i];
+                        final int h = transposed ? component.v : component.h;
+                        final int v = transposed ? component.h : component.v;
+                        for (int y = 0; y < v; y++) {
+                            for (int x = 0; x < h; x++) {
+                                final int offset =
+                                        mTransform.getBlockOffset(component, i, mcuX * h + x, mcuY * v + y);
+                                predictors[i] = encodeBlock(component, offset, predictors[i]);
+                                // A block takes well under 1KB once coded
+                                if (mBufferLength > mBuffer.length - 1024) {
+                                    mOutput.write(mBuffer, 0, mBufferLength);
+                                    mBufferLength = 0;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private int encodeBlock(Component component, int offset, int predictor) throws IOException {
+            final short[] coefficients = component.coefficients;
+            final int[] sourceIndex = mTransform.sourceIndex;
+            final boolean[] negate = mTransform.negate;
+            final int dc = coefficients[offset];
+            final int diff = dc - predictor;
+            final int dcSize = bitLength(diff);
+            if (mCounting) {
+                mDcFrequencies[component.dcTable][dcSize]++;
+            } else {
+                emitCode(mDcCodes[component.dcTable], mDcSizes[component.dcTable], dcSize);
+                if (dcSize > 0)
+                    emitBits(diff < 0 ? diff - 1 : diff, dcSize);
+            }
+
+            final int[] frequencies = mAcFrequencies[component.acTable];
+            final int[] codes = mAcCodes[component.acTable];
+            final int[] sizes = mAcSizes[component.acTable];
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int value = coefficients[offset + sourceIndex[k]];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                if (negate[k])
+                    value = -value;
+                for (; run > 15; run -= 16) {
+                    if (mCounting)
+                        frequencies[0xF0]++;
+                    else
+                        emitCode(codes, sizes, 0xF0);
+                }
+                final int size = bitLength(value);
+                final int symbol = (run << 4) | size;
+                if (mCounting) {
+                    frequencies[symbol]++;
+                } else {
+                    emitCode(codes, sizes, symbol);
+                    emitBits(value < 0 ? value - 1 : value, size);
+                }
+                run = 0;
+            }
+            if (run > 0) {
+                if (mCounting)
+                    frequencies[0x00]++;
+                else
+                    emitCode(codes, sizes, 0x00);
+            }
+            return dc;
+        }
+
+        private static int bitLength(int value) {
+            return 32 - Integer.numberOfLeadingZeros(value < 0 ? -value : value);
+        }
+
+        private void emitCode(int[] codes, int[] sizes, int symbol) throws IOException {
+            final int size = sizes[symbol];
+            if (size == 0)
+                throw new IOException("Symbol missing from Huffman table");
+            emitBits(codes[symbol], size);
+        }
+
+        private void emitBits(int value, int size) {
+            mBits = (mBits << size) | (value & ((1 << size) - 1));
+            mBitCount += size;
+            while (mBitCount >= 8) {
+                final int b = (int) (mBits >> (mBitCount - 8)) & 0xFF;
+                mBuffer[mBufferLength++] = (byte) b;
+                // Byte stuffing, so data can't be mistaken for a marker
+                if (b == 0xFF)
+                    mBuffer[mBufferLength++] = 0;
+                mBitCount -= 8;
+            }
+        }
+
+        private void flushBits() throws IOException {
+            // Pad with ones up to a byte boundary
+            if (mBitCount > 0)
+                emitBits(0x7F, 8 - mBitCount);
+            mOutput.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+
+        /**
+         * Builds a length-limited optimal table, per Annex K.2 of the JPEG specification.
+         *
+         * @return a DHT payload, its first byte to be set to the table class and id
+         */
+        private static byte[] buildTable(int[] frequencies) {
+            final int[] frequency = frequencies.clone();
+            boolean any = false;
+            for (int i = 0; i < 256; i++)
+                any |= frequency[i] > 0;
+            if (!any)
+                frequency[0] = 1;
+            // Reserve one code so that no real code is all ones
+            frequency[256] = 1;
+            final int[] codeSize = new int[257];
+            final int[] others = new int[257];
+            for (int i = 0; i < others.length; i++)
+                others[i] = -1;
+            while (true) {
+                int c1 = -1;
+                long least = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequency[i] > 0 && frequency[i] <= least) {
+                        least = frequency[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                least = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequency[i] > 0 && frequency[i] <= least && i != c1) {
+                        least = frequency[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0)
+                    break;
+                frequency[c1] += frequency[c2];
+                frequency[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            final int[] bits = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0)
+                    bits[Math.min(codeSize[i], 32)]++;
+            }
+            for (int i = 32; i > 16; i--) {
+                while (bits[i] > 0) {
+                    int j = i - 2;
+                    while (bits[j] == 0)
+                        j--;
+                    bits[i] -= 2;
+                    bits[i - 1]++;
+                    bits[j + 1] += 2;
+                    bits[j]--;
+                }
+            }
+            int longest = 16;
+            while (bits[longest] == 0)
+                longest--;
+            bits[longest]--;
+
+            int count = 0;
+            for (int i = 1; i <= 16; i++)
+                count += bits[i];
+            final byte[] table = new byte[17 + count];
+            for (int i = 1; i <= 16; i++)
+                table[i] = (byte) bits[i];
+            int index = 17;
+            for (int length = 1; length <= 32; length++) {
+                for (int symbol = 0; symbol < 256; symbol++) {
+                    if (codeSize[symbol] == length)
+                        table[index++] = (byte) symbol;
+                }
+            }
+            return table;
+        }
+
+        /**
+         * Derives each symbol's code from a DHT payload built by {@link #buildTable(int[])}.
+         */
+        private static void assignCodes(byte[] table, int[] codes, int[] sizes) {
+            int code = 0;
+            int index = 17;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < (table[length] & 0xFF); i++) {
+                    final int symbol = table[index++] & 0xFF;
+                    codes[symbol] = code++;
+                    sizes[symbol] = length;
+                }
+                code <<= 1;
+            }
+        }
+    }
+}
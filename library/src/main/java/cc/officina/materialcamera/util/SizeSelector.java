@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks capture sizes out of the list a camera supports. The sizes are indexed once: they're
+ * grouped by aspect ratio, and each group is sorted by area. Within a group width and height grow
+ * together, so every query is a binary search per aspect ratio instead of a pass over the list.
+ *
+ * <p>Plain Java on purpose, so the same logic serves Camera1 and Camera2 and runs on the JVM.
+ * Queries return the index of the size in the arrays given to the constructor, or -1.
+ */
+public class SizeSelector {
+
+    /**
+     * Aspect ratios that differ by less than this fraction are considered the same (e.g. 854x480
+     * is 16:9).
+     */
+    private static final float ASPECT_TOLERANCE = 0.01f;
+
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final Bucket[] mBuckets;
+    private final int mLargest;
+    private final int mSmallest;
+
+    public SizeSelector(int[] widths, int[] heights) {
+        if (widths.length != heights.length)
+            throw new IllegalArgumentException("Widths and heights must have the same length.");
+        mWidths = widths.clone();
+        mHeights = heights.clone();
+
+        final Map<Long, List<Integer>> groups = new HashMap<>();
+        int largest = -1;
+        int smallest = -1;
+        for (int i = 0; i < mWidths.length; i++) {
+            final int width = mWidths[i];
+            final int height = mHeights[i];
+            if (width <= 0 || height <= 0)
+                continue;
+            final int divisor = gcd(width, height);
+            final long key = ((long) (width / divisor) << 32) | (height / divisor);
+            List<Integer> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(i);
+            if (largest == -1 || area(i) > area(largest))
+                largest = i;
+            if (smallest == -1 || area(i) < area(smallest))
+                smallest = i;
+        }
+        mLargest = largest;
+        mSmallest = smallest;
+
+        final Comparator<Integer> byArea =
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer lhs, Integer rhs) {
+                        return Long.signum(area(lhs) - area(rhs));
+                    }
+                };
+        mBuckets = new Bucket[groups.size()];
+        int b = 0;
+        for (List<Integer> group : groups.values()) {
+            Collections.sort(group, byArea);
+            final int[] indices = new int[group.size()];
+            for (int i = 0; i < indices.length; i++)
+                indices[i] = group.get(i);
+            mBuckets[b++] = new Bucket((float) mWidths[indices[0]] / mHeights[indices[0]], indices);
+        }
+        Arrays.sort(
+                mBuckets,
+                new Comparator<Bucket>() {
+                    @Override
+                    public int compare(Bucket lhs, Bucket rhs) {
+                        return Float.compare(lhs.aspect, rhs.aspect);
+                    }
+                });
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    public int size() {
+        return mWidths.length;
+    }
+
+    public int getWidth(int index) {
+        return mWidths[index];
+    }
+
+    public int getHeight(int index) {
+        return mHeights[index];
+    }
+
+    public long area(int index) {
+        return (long) mWidths[index] * mHeights[index];
+    }
+
+    private static boolean matches(Bucket bucket, float aspect) {
+        return aspect <= 0 || Math.abs(bucket.aspect - aspect) <= aspect * ASPECT_TOLERANCE;
+    }
+
+    /**
+     * @return the index of the size with the largest area, or -1 if there are no sizes
+     */
+    public int largest() {
+        return mLargest;
+    }
+
+    /**
+     * @return the index of the size with the smallest area, or -1 if there are no sizes
+     */
+    public int smallest() {
+        return mSmallest;
+    }
+
+    /**
+     * Finds the largest size that fits within {@code maxWidth} x {@code maxHeight}.
+     *
+     * @param aspect width / height ratio the size must have, or 0 for any
+     */
+    public int largestWithin(int maxWidth, int maxHeight, float aspect) {
+        int best = -1;
+        for (Bucket bucket : mBuckets) {
+            if (!matches(bucket, aspect))
+                continue;
+            // Last member that fits: members fit up to a point, then stop fitting
+            int low = 0;
+            int high = bucket.indices.length - 1;
+            int found = -1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int index = bucket.indices[mid];
+                if (mWidths[index] <= maxWidth && mHeights[index] <= maxHeight) {
+                    found = index;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found != -1 && (best == -1 || area(found) > area(best)))
+                best = found;
+        }
+        return best;
+    }
+
+    /**
+     * Finds the smallest size that is at least {@code minWidth} x {@code minHeight} and fits within
+     * {@code maxWidth} x {@code maxHeight}.
+     *
+     * @param aspect width / height ratio the size must have, or 0 for any
+     */
+    public int smallestAtLeast(int minWidth, int minHeight, int maxWidth, int maxHeight, float aspect) {
+        int best = -1;
+        for (Bucket bucket : mBuckets) {
+            if (!matches(bucket, aspect))
+                continue;
+            // First member big enough: members are too small up to a point, then big enough
+            int low = 0;
+            int high = bucket.indices.length - 1;
+            int found = -1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int index = bucket.indices[mid];
+                if (mWidths[index] >= minWidth && mHeights[index] >= minHeight) {
+                    found = index;
+                    high = mid - 1;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            if (found == -1 || mWidths[found] > maxWidth || mHeights[found] > maxHeight)
+                continue;
+            if (best == -1 || area(found) < area(best))
+                best = found;
+        }
+        return best;
+    }
+
+    /**
+     * Finds the size whose area is closest to {@code targetArea} without exceeding {@code
+     * maxArea}.
+     *
+     * @param aspect width / height ratio the size must have, or 0 for any
+     */
+    public int closestArea(long targetArea, long maxArea, float aspect) {
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for (Bucket bucket : mBuckets) {
+            if (!matches(bucket, aspect))
+                continue;
+            // First member whose area reaches the target, or the budget when the target is over it;
+            // the closest one that fits is it or its predecessor
+            final long key = Math.min(targetArea, maxArea);
+            int low = 0;
+            int high = bucket.indices.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (area(bucket.indices[mid]) < key)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            for (int i = low - 1; i <= low; i++) {
+                if (i < 0 || i >= bucket.indices.length)
+                    continue;
+                final int index = bucket.indices[i];
+                if (area(index) > maxArea)
+                    continue;
+                final long distance = Math.abs(area(index) - targetArea);
+                if (distance < bestDistance) {
+                    best = index;
+                    bestDistance = distance;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Lets a {@link Policy} pick the size.
+     */
+    public int choose(Policy policy) {
+        return policy.choose(this);
+    }
+
+    /**
+     * Picks a still size: the largest one of the sensor's aspect ratio (that of the largest size)
+     * with at most {@code maxArea} pixels, then the largest one of any ratio, then the smallest one.
+     */
+    public int chooseStillSize(long maxArea) {
+        if (mLargest == -1)
+            return -1;
+        int index = closestArea(maxArea, maxArea, (float) mWidths[mLargest] / mHeights[mLargest]);
+        if (index == -1)
+            index = closestArea(maxArea, maxArea, 0);
+        if (index == -1)
+            index = smallest();
+        return index;
+    }
+
+    /**
+     * Picks a still size to go along with a video: the closest one to the video's area and aspect
+     * ratio with at most {@code maxArea} pixels, or else what {@link #chooseStillSize(long)} picks.
+     */
+    public int chooseSnapshotSize(int videoWidth, int videoHeight, long maxArea) {
+        final long area = Math.min((long) videoWidth * videoHeight, maxArea);
+        final int index = closestArea(area, area, (float) videoWidth / videoHeight);
+        return index != -1 ? index : chooseStillSize(area);
+    }
+
+    /**
+     * Picks a video size: the largest one of the preferred aspect ratio that isn't taller than
+     * {@code maxHeight}, then the largest one of any ratio, then the smallest one.
+     */
+    public int chooseVideoSize(int maxHeight, float aspect) {
+        int index = largestWithin(Integer.MAX_VALUE, maxHeight, aspect);
+        if (index == -1)
+            index = largestWithin(Integer.MAX_VALUE, maxHeight, 0);
+        if (index == -1)
+            index = smallest();
+        return index;
+    }
+
+    /**
+     * Picks a preview size with the given aspect ratio: the smallest one at least as big as the
+     * view and at most as big as the max size, or else the largest one within the max size. When the
+     * ratio can't be matched, the largest size within the max size is used, or the smallest size.
+     */
+    public int choosePreviewSize(
+            int viewWidth, int viewHeight, int maxWidth, int maxHeight, float aspect) {
+        int index = smallestAtLeast(viewWidth, viewHeight, maxWidth, maxHeight, aspect);
+        if (index == -1)
+            index = largestWithin(maxWidth, maxHeight, aspect);
+        if (index == -1)
+            index = largestWithin(maxWidth, maxHeight, 0);
+        if (index == -1)
+            index = smallest();
+        return index;
+    }
+
+    /**
+     * Decides which size to use, given a {@link SizeSelector} over the camera's supported sizes.
+     */
+    public interface Policy {
+        /**
+         * @return the index of the chosen size, or -1 if none is acceptable
+         */
+        int choose(SizeSelector sizes);
+    }
+
+    /**
+     * A policy picking the size closest to {@code width} x {@code height} (by area, same aspect
+     * ratio preferred) that doesn't exceed {@code maxArea} pixels, e.g. "closest to 1080p within
+     * what the encoder can take".
+     */
+    public static Policy closestTo(final int width, final int height, final long maxArea) {
+        return new Policy() {
+            @Override
+            public int choose(SizeSelector sizes) {
+                final long target = (long) width * height;
+                final int index = sizes.closestArea(target, maxArea, (float) width / height);
+                return index != -1 ? index : sizes.closestArea(target, maxArea, 0);
+            }
+        };
+    }
+
+    /**
+     * Sizes sharing one aspect ratio, sorted by area.
+     */
+    private static class Bucket {
+        final float aspect;
+        final int[] indices;
+
+        Bucket(float aspect, int[] indices) {
+            this.aspect = aspect;
+            this.indices = indices;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small JPEG thumbnails of captured stills and videos, kept in a size bounded LRU cache in the app's
+ * cache directory and keyed by the media's path. A still's thumbnail comes from the one embedded in
+ * its Exif data when that's big enough, otherwise from a sampled decode; a video's from its first
+ * key frame. Either way the original is never decoded at full size.
+ */
+public class ThumbnailCache {
+
+    public static final int DEFAULT_MAX_SIDE = 256;
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final String TAG = "ThumbnailCache";
+    private static final String DIRECTORY = "materialcamera_thumbnails";
+    private static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int JPEG_QUALITY = 85;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    // How far the embedded thumbnail's aspect ratio may be off before it counts as letterboxed
+    private static final float MAX_ASPECT_ERROR = 0.02f;
+
+    private static ThumbnailCache sInstance;
+
+    private final File mDirectory;
+    private final Handler mMainHandler;
+    private final Executor mExecutor;
+    // File name to size, least recently used first
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private int mMaxSide = DEFAULT_MAX_SIDE;
+    private long mSize;
+    private boolean mLoaded;
+
+    private ThumbnailCache(File directory) {
+        mDirectory = directory;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        final ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(@NonNull final Runnable runnable) {
+                                return new Thread("Thumbnails") {
+                                    @Override
+                                    public void run() {
+                                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                        runnable.run();
+                                    }
+                                };
+                            }
+                        });
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the shared cache, creating it if needed.
+     */
+    public static synchronized ThumbnailCache get(Context context) {
+        if (sInstance == null)
+            sInstance = new ThumbnailCache(new File(context.getApplicationContext().getCacheDir(), DIRECTORY));
+        return sInstance;
+    }
+
+    /**
+     * Sets how many bytes of thumbnails are kept, evicting the least recently used ones over it.
+     */
+    public void setMaxBytes(long maxBytes) {
+        synchronized (this) {
+            mMaxBytes = maxBytes;
+        }
+        trimToSize();
+    }
+
+    /**
+     * Sets the longest side of thumbnails generated from now on, in pixels.
+     */
+    public synchronized void setMaxSide(int maxSide) {
+        mMaxSide = Math.max(1, maxSide);
+    }
+
+    /**
+     * Returns the thumbnail of {@code media} if it's already cached. Only touches the disk the first
+     * time the cache is used.
+     *
+     * @param media the path or {@code file://} URI of a captured still or video
+     */
+    @Nullable
+    public File getCachedThumbnail(String media) {
+        final String name = getName(media);
+        synchronized (this) {
+            load();
+            if (mEntries.get(name) == null)
+                return null;
+        }
+        final File thumbnail = new File(mDirectory, name);
+        // Keeps the LRU order across restarts
+        //noinspection ResultOfMethodCallIgnored
+        thumbnail.setLastModified(System.currentTimeMillis());
+        return thumbnail;
+    }
+
+    /**
+     * Returns the thumbnail of {@code media}, generating it first if it isn't cached. Blocks, call
+     * it off the UI thread or use {@link #fetchThumbnail(String, Callback)}.
+     *
+     * @return the thumbnail, or null if the media doesn't exist or can't be decoded
+     */
+    @Nullable
+    public File getThumbnail(String media) throws IOException {
+        final File cached = getCachedThumbnail(media);
+        if (cached != null)
+            return cached;
+        final File source = toFile(media);
+        if (!source.isFile())
+            return null;
+        final int maxSide;
+        synchronized (this) {
+            maxSide = mMaxSide;
+        }
+        final Bitmap bitmap = isJpeg(source) ? decodeStill(source, maxSide) : decodeVideo(source, maxSide);
+        if (bitmap == null)
+            return null;
+        final File thumbnail = new File(mDirectory, getName(media));
+        final File temp;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            mDirectory.mkdirs();
+            temp = File.createTempFile("thumb", TEMP_SUFFIX, mDirectory);
+            final OutputStream output = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output);
+            } finally {
+                output.close();
+            }
+        } finally {
+            bitmap.recycle();
+        }
+        if (!temp.renameTo(thumbnail)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Unable to move the thumbnail to " + thumbnail);
+        }
+        synchronized (this) {
+            final Long previous = mEntries.put(thumbnail.getName(), thumbnail.length());
+            if (previous != null)
+                mSize -= previous;
+            mSize += thumbnail.length();
+        }
+        trimToSize();
+        return thumbnail;
+    }
+
+    /**
+     * Gets the thumbnail of {@code media} on a background thread, generating it if needed. Requests
+     * are served one at a time in the order they're made.
+     *
+     * @param callback receives the thumbnail on the main thread, or null to only warm the cache
+     */
+    public void fetchThumbnail(final String media, @Nullable final Callback callback) {
+        mExecutor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        File thumbnail = null;
+                        try {
+                            thumbnail = getThumbnail(media);
+                        } catch (IOException e) {
+                            Log.w(TAG, "Unable to create a thumbnail of " + media, e);
+                        }
+                        if (callback == null)
+                            return;
+                        final File result = thumbnail;
+                        mMainHandler.post(
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        callback.onThumbnail(media, result);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * Drops the thumbnail of {@code media}, e.g. after deleting it.
+     */
+    public void remove(String media) {
+        final String name = getName(media);
+        synchronized (this) {
+            load();
+            final Long size = mEntries.remove(name);
+            if (size == null)
+                return;
+            mSize -= size;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        new File(mDirectory, name).delete();
+    }
+
+    /**
+     * Drops every thumbnail.
+     */
+    public void clear() {
+        final String[] names;
+        synchronized (this) {
+            load();
+            names = mEntries.keySet().toArray(new String[mEntries.size()]);
+            mEntries.clear();
+            mSize = 0;
+        }
+        for (String name : names) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDirectory, name).delete();
+        }
+    }
+
+    /**
+     * Indexes the thumbnails left by a previous run, oldest first, and removes abandoned temp files.
+     */
+    private void load() {
+        if (mLoaded)
+            return;
+        mLoaded = true;
+        final File[] files = mDirectory.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(
+                files,
+                new Comparator<File>() {
+                    @Override
+                    public int compare(File lhs, File rhs) {
+                        final long lhsModified = lhs.lastModified();
+                        final long rhsModified = rhs.lastModified();
+                        return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+                    }
+                });
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                mEntries.put(file.getName(), file.length());
+                mSize += file.length();
+            } else if (file.getName().endsWith(TEMP_SUFFIX)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private void trimToSize() {
+        while (true) {
+            final String name;
+            synchronized (this) {
+                load();
+                if (mSize <= mMaxBytes || mEntries.isEmpty())
+                    return;
+                final Iterator<Map.Entry<String, Long>> eldest = mEntries.entrySet().iterator();
+                final Map.Entry<String, Long> entry = eldest.next();
+                name = entry.getKey();
+                mSize -= entry.getValue();
+                eldest.remove();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDirectory, name).delete();
+        }
+    }
+
+    /**
+     * Decodes a still at thumbnail size and turns it upright. Uses the embedded thumbnail when it's at
+     * least {@code maxSide} and has the still's aspect ratio (some cameras letterbox it).
+     */
+    @Nullable
+    private static Bitmap decodeStill(File still, int maxSide) throws IOException {
+        final int degrees = JpegExif.toDegrees(JpegExif.readOrientation(still));
+        Bitmap bitmap = null;
+        final byte[] embedded = JpegExif.readThumbnail(still);
+        if (embedded != null) {
+            final BitmapFactory.Options stillBounds = decodeBounds(still);
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(embedded, 0, embedded.length, opts);
+            if (Math.max(opts.outWidth, opts.outHeight) >= maxSide
+                    && stillBounds.outWidth > 0
+                    && stillBounds.outHeight > 0
+                    && Math.abs((float) opts.outWidth * stillBounds.outHeight / (opts.outHeight * stillBounds.outWidth) - 1f)
+                    <= MAX_ASPECT_ERROR) {
+                opts.inJustDecodeBounds = false;
+                bitmap = BitmapFactory.decodeByteArray(embedded, 0, embedded.length, opts);
+            }
+        }
+        if (bitmap == null)
+            bitmap = ImageUtil.decodeSampledBitmap(still.getPath(), maxSide, maxSide, 0, null);
+        return bitmap != null ? fit(bitmap, maxSide, degrees) : null;
+    }
+
+    /**
+     * Grabs the first key frame of a video, which the retriever hands back already rotated.
+     */
+    @Nullable
+    private static Bitmap decodeVideo(File video, int maxSide) {
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        final Bitmap frame;
+        try {
+            retriever.setDataSource(video.getPath());
+            frame = retriever.getFrameAtTime(0, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to read a frame of " + video, e);
+            return null;
+        } finally {
+            retriever.release();
+        }
+        return frame != null ? fit(frame, maxSide, 0) : null;
+    }
+
+    private static BitmapFactory.Options decodeBounds(File image) {
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getPath(), opts);
+        return opts;
+    }
+
+    /**
+     * Scales {@code bitmap} down to {@code maxSide} and rotates it in one pass, recycling it if a
+     * new bitmap had to be made.
+     */
+    private static Bitmap fit(Bitmap bitmap, int maxSide, int degrees) {
+        final float scale = Math.min(1f, (float) maxSide / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        if (scale == 1f && degrees == 0)
+            return bitmap;
+        final Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        matrix.postRotate(degrees);
+        final Bitmap fitted =
+                Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (fitted != bitmap)
+            bitmap.recycle();
+        return fitted;
+    }
+
+    private static boolean isJpeg(File file) throws IOException {
+        final InputStream input = new FileInputStream(file);
+        try {
+            return input.read() == 0xFF && input.read() == JpegExif.MARKER_SOI;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static File toFile(String media) {
+        return media.startsWith("file:") ? new File(Uri.parse(media).getPath()) : new File(media);
+    }
+
+    private static String getName(String media) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] hash = digest.digest(toFile(media).getAbsolutePath().getBytes());
+        final StringBuilder name = new StringBuilder(hash.length * 2 + SUFFIX.length());
+        for (byte b : hash)
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return name.append(SUFFIX).toString();
+    }
+
+    public interface Callback {
+        /**
+         * @param thumbnail the JPEG thumbnail, or null if none could be made
+         */
+        void onThumbnail(String media, @Nullable File thumbnail);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link HttpSegmentSink} against a stand-in server on the loopback interface.
+ */
+public class HttpSegmentSinkTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private final List<Request> mRequests = new ArrayList<>();
+    private volatile int mResponseCode = 200;
+    private HttpSegmentSink mSink;
+
+    @Before
+    public void startServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext(
+                "/upload",
+                new HttpHandler() {
+                    @Override
+                    public void handle(HttpExchange exchange) throws IOException {
+                        final Request request = new Request();
+                        request.method = exchange.getRequestMethod();
+                        request.recordingId = exchange.getRequestHeaders().getFirst("X-Recording-Id");
+                        request.segmentIndex = exchange.getRequestHeaders().getFirst("X-Segment-Index");
+                        request.segmentName = exchange.getRequestHeaders().getFirst("X-Segment-Name");
+                        request.segmentCount = exchange.getRequestHeaders().getFirst("X-Segment-Count");
+                        request.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                        request.authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                        request.body = readAll(exchange.getRequestBody());
+                        synchronized (mRequests) {
+                            mRequests.add(request);
+                        }
+                        exchange.sendResponseHeaders(mResponseCode, -1);
+                        exchange.close();
+                    }
+                });
+        mServer.start();
+        mSink =
+                new HttpSegmentSink("http://127.0.0.1:" + mServer.getAddress().getPort() + "/upload")
+                        .header("Authorization", "Bearer token")
+                        .timeouts(5000, 5000);
+    }
+
+    @After
+    public void stopServer() {
+        mServer.stop(0);
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1)
+            output.write(buffer, 0, read);
+        return output.toByteArray();
+    }
+
+    private File segment(String name, int size) throws IOException {
+        final File file = mFolder.newFile(name);
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) i;
+        final FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void postsSegmentsAndTheEndOfTheRecording() throws Exception {
+        final File first = segment("segment_0.mp4", 200 * 1024);
+        final File second = segment("segment_1.mp4", 10);
+        mSink.onSegment("recording-a", first, 0);
+        mSink.onSegment("recording-a", second, 1);
+        mSink.onRecordingFinished("recording-a", 2);
+
+        assertEquals(3, mRequests.size());
+        final Request upload = mRequests.get(0);
+        assertEquals("POST", upload.method);
+        assertEquals("recording-a", upload.recordingId);
+        assertEquals("0", upload.segmentIndex);
+        assertEquals("segment_0.mp4", upload.segmentName);
+        assertEquals("video/mp4", upload.contentType);
+        assertEquals("Bearer token", upload.authorization);
+        assertEquals(200 * 1024, upload.body.length);
+        assertArrayEquals(Arrays.copyOf(upload.body, 10), mRequests.get(1).body);
+        assertEquals("1", mRequests.get(1).segmentIndex);
+
+        final Request end = mRequests.get(2);
+        assertEquals("recording-a", end.recordingId);
+        assertEquals("2", end.segmentCount);
+        assertEquals(0, end.body.length);
+    }
+
+    @Test
+    public void sendsTheRecordingIdItIsGiven() throws Exception {
+        mSink.onSegment("recording-a", segment("a.mp4", 1), 0);
+        mSink.onSegment("recording-b", segment("b.mp4", 1), 0);
+        assertEquals("recording-a", mRequests.get(0).recordingId);
+        assertEquals("recording-b", mRequests.get(1).recordingId);
+    }
+
+    @Test
+    public void serverErrorsAreRetryable() throws Exception {
+        for (int code : new int[] {500, 503, 408, 429}) {
+            mResponseCode = code;
+            try {
+                mSink.onRecordingFinished("recording-a", 1);
+                fail("HTTP " + code + " should fail");
+            } catch (IOException expected) {
+                // Retried by the dispatcher
+            }
+        }
+    }
+
+    @Test
+    public void clientErrorsAreRejected() throws Exception {
+        for (int code : new int[] {400, 403, 404, 413}) {
+            mResponseCode = code;
+            try {
+                mSink.onSegment("recording-a", segment("segment_" + code + ".mp4", 1), 0);
+                fail("HTTP " + code + " should fail");
+            } catch (HttpSegmentSink.RejectedException e) {
+                assertEquals(code, e.getCode());
+            }
+        }
+    }
+
+    private static class Request {
+        String method;
+        String recordingId;
+        String segmentIndex;
+        String segmentName;
+        String segmentCount;
+        String contentType;
+        String authorization;
+        byte[] body;
+    }
+}
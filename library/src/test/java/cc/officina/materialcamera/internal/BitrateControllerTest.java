@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates recordings to check the decisions of {@link BitrateController}: a recorder writes the
+ * bit rate in effect plus a fixed overhead, the storage drains accordingly and the controller is
+ * sampled every 2 seconds, like {@link BaseCameraFragment} does.
+ */
+public class BitrateControllerTest {
+
+    private static final int MAX_BIT_RATE = 10000000;
+    private static final int MIN_BIT_RATE = MAX_BIT_RATE / 4;
+    private static final long SAMPLE_INTERVAL_MS = 2000;
+    /**
+     * Audio and container on top of the video bit rate.
+     */
+    private static final float OVERHEAD = 1.1f;
+
+    /**
+     * A recording in progress, with the bit rate reaching the encoder either at once, at segment
+     * boundaries or never.
+     */
+    private static class Simulation {
+
+        final BitrateController controller;
+        final long segmentMs;
+        final boolean appliesAtOnce;
+        long freeBytes;
+        long elapsedMs;
+        double bytesWritten;
+        int appliedBitRate = MAX_BIT_RATE;
+        int minBitRateSeen = MAX_BIT_RATE;
+
+        /**
+         * @param segmentMs segment length, 0 or less for one file
+         */
+        Simulation(long freeBytes, long targetDurationMs, long segmentMs, boolean appliesAtOnce) {
+            controller = new BitrateController(MAX_BIT_RATE, MIN_BIT_RATE, -1, targetDurationMs);
+            this.freeBytes = freeBytes;
+            this.segmentMs = segmentMs;
+            this.appliesAtOnce = appliesAtOnce;
+        }
+
+        void run(long durationMs, float temperatureC) {
+            final long end = elapsedMs + durationMs;
+            while (elapsedMs < end) {
+                final double written = appliedBitRate * OVERHEAD * SAMPLE_INTERVAL_MS / 8000.0;
+                bytesWritten += written;
+                freeBytes -= (long) written;
+                elapsedMs += SAMPLE_INTERVAL_MS;
+
+                final int bitRate =
+                        controller.update(elapsedMs, (long) bytesWritten, freeBytes, temperatureC);
+                minBitRateSeen = Math.min(minBitRateSeen, bitRate);
+                if (appliesAtOnce) {
+                    apply(bitRate);
+                } else if (segmentMs > 0 && elapsedMs % segmentMs == 0) {
+                    // The next segment's recorder is prepared with the latest decision
+                    apply(Math.min(MAX_BIT_RATE, controller.getBitRate()));
+                }
+            }
+        }
+
+        private void apply(int bitRate) {
+            appliedBitRate = bitRate;
+            controller.setAppliedBitRate(bitRate);
+        }
+    }
+
+    @Test
+    public void keepsTheMaxBitRateWithPlentyOfSpace() {
+        final Simulation simulation = new Simulation(64L * 1024 * 1024 * 1024, -1, -1, false);
+        simulation.run(10 * 60 * 1000, 30f);
+        assertEquals(MAX_BIT_RATE, simulation.controller.getBitRate());
+    }
+
+    @Test
+    public void segmentedRecordingSettlesOnWhatTheStorageHolds() {
+        // 400MB for 10 minutes is about 4.85Mbps of video with the overhead
+        final long freeBytes = 400L * 1024 * 1024 + BitrateController.STORAGE_RESERVE_BYTES;
+        final Simulation simulation = new Simulation(freeBytes, 10 * 60 * 1000, 60 * 1000, false);
+        simulation.run(9 * 60 * 1000, Float.NaN);
+
+        // Measured against the bit rate in effect, the overhead doesn't inflate and the controller
+        // doesn't keep cutting down to the floor while the old rate is still being recorded
+        assertTrue(
+                "Collapsed to " + simulation.minBitRateSeen,
+                simulation.minBitRateSeen > 4000000);
+        simulation.run(60 * 1000, Float.NaN);
+        assertTrue(simulation.freeBytes > 0);
+        assertTrue(
+                "Left " + simulation.freeBytes + " unused",
+                simulation.freeBytes < BitrateController.STORAGE_RESERVE_BYTES + 64L * 1024 * 1024);
+    }
+
+    @Test
+    public void encoderBackendTracksTheBudgetDuringTheFile() {
+        final long freeBytes = 400L * 1024 * 1024 + BitrateController.STORAGE_RESERVE_BYTES;
+        final Simulation simulation = new Simulation(freeBytes, 10 * 60 * 1000, -1, true);
+        simulation.run(60 * 1000, Float.NaN);
+        final int settled = simulation.controller.getBitRate();
+        assertTrue("Settled at " + settled, settled > 4400000 && settled < 5300000);
+        simulation.run(9 * 60 * 1000, Float.NaN);
+        assertTrue(simulation.freeBytes > 0);
+    }
+
+    @Test
+    public void unappliedDecisionsDontSkewTheOverhead() {
+        // One file: MediaRecorder never takes the new bit rate, so the measurement keeps reflecting
+        // the max one; with the right overhead the decision stays the same sample after sample
+        final long freeBytes = 2L * 1024 * 1024 * 1024;
+        final Simulation simulation = new Simulation(freeBytes, 60 * 60 * 1000, -1, false);
+        simulation.run(20 * 1000, Float.NaN);
+        final int first = simulation.controller.getBitRate();
+        assertTrue(first < MAX_BIT_RATE);
+        simulation.run(20 * 1000, Float.NaN);
+        assertTrue(
+                first + " became " + simulation.controller.getBitRate(),
+                simulation.controller.getBitRate() > first * (1 - BitrateController.MIN_CHANGE * 2));
+    }
+
+    @Test
+    public void thermalCapStepsDownAndBackWithHysteresis() {
+        final Simulation simulation = new Simulation(64L * 1024 * 1024 * 1024, -1, -1, true);
+        simulation.run(SAMPLE_INTERVAL_MS, 41f);
+        assertEquals((int) (MAX_BIT_RATE * 0.75f), simulation.controller.getBitRate());
+        simulation.run(SAMPLE_INTERVAL_MS, 47f);
+        assertEquals((int) (MAX_BIT_RATE * 0.35f), simulation.controller.getBitRate());
+
+        // Just under a threshold isn't enough to leave its level
+        simulation.run(SAMPLE_INTERVAL_MS, 45.5f);
+        assertEquals((int) (MAX_BIT_RATE * 0.35f), simulation.controller.getBitRate());
+
+        // Increases are limited per sample
+        simulation.run(SAMPLE_INTERVAL_MS, 30f);
+        assertEquals(
+                (int) (MAX_BIT_RATE * 0.35f * BitrateController.MAX_STEP_UP),
+                simulation.controller.getBitRate());
+        simulation.run(60 * 1000, 30f);
+        assertEquals(MAX_BIT_RATE, simulation.controller.getBitRate());
+    }
+
+    @Test
+    public void neverGoesBelowTheFloor() {
+        final Simulation simulation =
+                new Simulation(BitrateController.STORAGE_RESERVE_BYTES, 10 * 60 * 1000, -1, true);
+        simulation.run(60 * 1000, 50f);
+        assertEquals(MIN_BIT_RATE, simulation.controller.getBitRate());
+    }
+
+    @Test
+    public void sameInputsGiveTheSameDecisions() {
+        final Simulation first = new Simulation(300L * 1024 * 1024, 5 * 60 * 1000, 30 * 1000, false);
+        final Simulation second = new Simulation(300L * 1024 * 1024, 5 * 60 * 1000, 30 * 1000, false);
+        first.run(5 * 60 * 1000, 42f);
+        second.run(5 * 60 * 1000, 42f);
+        assertEquals(first.controller.getBitRate(), second.controller.getBitRate());
+        assertEquals(first.freeBytes, second.freeBytes);
+    }
+}
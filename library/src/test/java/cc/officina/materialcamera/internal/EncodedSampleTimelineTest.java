@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link EncodedSampleTimeline} synthetic video and audio frames.
+ */
+public class EncodedSampleTimelineTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final int KEY = EncodedSampleTimeline.FLAG_KEY_FRAME;
+
+    private final List<String> mWritten = new ArrayList<>();
+    private boolean mStarted;
+
+    private EncodedSampleTimeline timeline(long maxBytes, long maxDurationUs) {
+        return new EncodedSampleTimeline(
+                2,
+                VIDEO,
+                maxBytes,
+                maxDurationUs,
+                new EncodedSampleTimeline.Sink() {
+                    @Override
+                    public void start() {
+                        assertFalse(mStarted);
+                        mStarted = true;
+                    }
+
+                    @Override
+                    public void writeSample(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+                        assertTrue(mStarted);
+                        mWritten.add(
+                                (track == VIDEO ? "v" : "a")
+                                        + presentationTimeUs
+                                        + ((flags & KEY) != 0 ? "k" : "")
+                                        + "/"
+                                        + data.remaining());
+                    }
+                });
+    }
+
+    private static ByteBuffer frame(int size) {
+        return ByteBuffer.allocate(size);
+    }
+
+    @Test
+    public void holdsSamplesUntilEveryTrackIsReady() {
+        final EncodedSampleTimeline timeline = timeline(0, 0);
+        timeline.setTrackReady(VIDEO);
+        assertEquals(EncodedSampleTimeline.RESULT_PENDING, timeline.submit(VIDEO, frame(10), 1000, KEY));
+        assertEquals(EncodedSampleTimeline.RESULT_PENDING, timeline.submit(AUDIO, frame(4), 1500, 0));
+        assertFalse(timeline.isStarted());
+        assertTrue(mWritten.isEmpty());
+
+        timeline.setTrackReady(AUDIO);
+        assertTrue(timeline.isStarted());
+        assertEquals("[v0k/10, a500/4]", mWritten.toString());
+        assertEquals(EncodedSampleTimeline.RESULT_WRITTEN, timeline.submit(VIDEO, frame(8), 34333, 0));
+        assertEquals("v33333/8", mWritten.get(2));
+    }
+
+    @Test
+    public void pendingSamplesAreCopied() {
+        final EncodedSampleTimeline timeline = timeline(0, 0);
+        final ByteBuffer buffer = frame(10);
+        timeline.submit(VIDEO, buffer, 0, KEY);
+        // The encoder gets its buffer back and reuses it
+        buffer.limit(2);
+        timeline.setTrackReady(VIDEO);
+        timeline.setTrackReady(AUDIO);
+        assertEquals("[v0k/10]", mWritten.toString());
+    }
+
+    @Test
+    public void startsAtTheFirstVideoKeyFrame() {
+        final EncodedSampleTimeline timeline = timeline(0, 0);
+        timeline.setTrackReady(VIDEO);
+        timeline.setTrackReady(AUDIO);
+        assertEquals(EncodedSampleTimeline.RESULT_DROPPED, timeline.submit(AUDIO, frame(4), 900, 0));
+        assertEquals(EncodedSampleTimeline.RESULT_DROPPED, timeline.submit(VIDEO, frame(8), 1000, 0));
+        assertEquals(EncodedSampleTimeline.RESULT_WRITTEN, timeline.submit(VIDEO, frame(8), 2000, KEY));
+        // Audio captured before the key frame doesn't fit on the timeline
+        assertEquals(EncodedSampleTimeline.RESULT_DROPPED, timeline.submit(AUDIO, frame(4), 1900, 0));
+        assertEquals(EncodedSampleTimeline.RESULT_WRITTEN, timeline.submit(AUDIO, frame(4), 2100, 0));
+        assertEquals("[v0k/8, a100/4]", mWritten.toString());
+    }
+
+    @Test
+    public void dropsCodecConfigAndEmptyBuffers() {
+        final EncodedSampleTimeline timeline = timeline(0, 0);
+        timeline.setTrackReady(VIDEO);
+        timeline.setTrackReady(AUDIO);
+        assertEquals(
+                EncodedSampleTimeline.RESULT_DROPPED,
+                timeline.submit(VIDEO, frame(20), 0, EncodedSampleTimeline.FLAG_CODEC_CONFIG));
+        assertEquals(
+                EncodedSampleTimeline.RESULT_DROPPED,
+                timeline.submit(VIDEO, frame(0), 0, EncodedSampleTimeline.FLAG_END_OF_STREAM));
+        assertFalse(timeline.hasSamples());
+    }
+
+    @Test
+    public void keepsAudioTimestampsIncreasing() {
+        final EncodedSampleTimeline timeline = timeline(0, 0);
+        timeline.setTrackReady(VIDEO);
+        timeline.setTrackReady(AUDIO);
+        timeline.submit(VIDEO, frame(8), 0, KEY);
+        timeline.submit(AUDIO, frame(4), 100, 0);
+        timeline.submit(AUDIO, frame(4), 100, 0);
+        timeline.submit(AUDIO, frame(4), 50, 0);
+        assertEquals("[v0k/8, a100/4, a101/4, a102/4]", mWritten.toString());
+    }
+
+    @Test
+    public void passesReorderedVideoTimestampsThrough() {
+        final EncodedSampleTimeline timeline = timeline(0, 0);
+        timeline.setTrackReady(VIDEO);
+        timeline.setTrackReady(AUDIO);
+        // I0 P3 B1 B2 P6 B4 B5 in decode order, one frame every 1000us
+        final long[] times = {0, 3000, 1000, 2000, 6000, 4000, 5000};
+        for (int i = 0; i < times.length; i++)
+            timeline.submit(VIDEO, frame(8), 10000 + times[i], i == 0 ? KEY : 0);
+        assertEquals(
+                "[v0k/8, v3000/8, v1000/8, v2000/8, v6000/8, v4000/8, v5000/8]",
+                mWritten.toString());
+        assertEquals(6000, timeline.getDurationUs());
+
+        // A repeated timestamp is still moved forward
+        timeline.submit(VIDEO, frame(8), 15000, 0);
+        assertEquals("v5001/8", mWritten.get(mWritten.size() - 1));
+    }
+
+    @Test
+    public void stopsBeforeTheSizeLimit() {
+        final EncodedSampleTimeline timeline = timeline(20, 0);
+        timeline.setTrackReady(VIDEO);
+        timeline.setTrackReady(AUDIO);
+        assertEquals(EncodedSampleTimeline.RESULT_WRITTEN, timeline.submit(VIDEO, frame(12), 0, KEY));
+        assertEquals(EncodedSampleTimeline.RESULT_WRITTEN, timeline.submit(AUDIO, frame(8), 10, 0));
+        assertEquals(EncodedSampleTimeline.RESULT_LIMIT_REACHED, timeline.submit(VIDEO, frame(1), 20, 0));
+        assertTrue(timeline.isFileSizeLimitReached());
+        // Nothing is written past the limit
+        assertEquals(EncodedSampleTimeline.RESULT_LIMIT_REACHED, timeline.submit(AUDIO, frame(1), 30, 0));
+        assertEquals(20, timeline.getBytesWritten());
+    }
+
+    @Test
+    public void stopsBeforeTheDurationLimit() {
+        final EncodedSampleTimeline timeline = timeline(0, 1000000);
+        timeline.setTrackReady(VIDEO);
+        timeline.setTrackReady(AUDIO);
+        timeline.submit(VIDEO, frame(8), 5000000, KEY);
+        assertEquals(EncodedSampleTimeline.RESULT_WRITTEN, timeline.submit(VIDEO, frame(8), 6000000, 0));
+        assertEquals(
+                EncodedSampleTimeline.RESULT_LIMIT_REACHED, timeline.submit(VIDEO, frame(8), 6000001, 0));
+        assertFalse(timeline.isFileSizeLimitReached());
+        assertEquals(1000000, timeline.getDurationUs());
+    }
+
+    @Test
+    public void dropsPendingSamplesPastTheBudget() {
+        final EncodedSampleTimeline timeline = timeline(0, 0);
+        assertEquals(
+                EncodedSampleTimeline.RESULT_PENDING,
+                timeline.submit(VIDEO, frame(EncodedSampleTimeline.MAX_PENDING_BYTES), 0, KEY));
+        assertEquals(EncodedSampleTimeline.RESULT_DROPPED, timeline.submit(AUDIO, frame(1), 10, 0));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cc.officina.materialcamera.SegmentSink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentDispatcherTest {
+
+    @After
+    public void removeSink() {
+        SegmentDispatcher.setSink(null);
+    }
+
+    @Test
+    public void everyRecordingGetsItsOwnIdEvenIfItsEndIsLost() throws Exception {
+        final RecordingSink sink = new RecordingSink(5);
+        sink.failFinish = true;
+        SegmentDispatcher.setSink(sink);
+
+        SegmentDispatcher.segmentFinished(new File("a0.mp4"), 0);
+        SegmentDispatcher.segmentFinished(new File("a1.mp4"), 1);
+        SegmentDispatcher.recordingFinished(2);
+        SegmentDispatcher.segmentFinished(new File("b0.mp4"), 0);
+        SegmentDispatcher.recordingFinished(1);
+        sink.await();
+
+        assertEquals(sink.ids.get(0), sink.ids.get(1));
+        assertEquals(sink.ids.get(0), sink.ids.get(2));
+        assertNotEquals(sink.ids.get(0), sink.ids.get(3));
+        assertEquals(sink.ids.get(3), sink.ids.get(4));
+    }
+
+    @Test
+    public void onlyIoFailuresAreRetried() throws Exception {
+        final RecordingSink sink = new RecordingSink(3);
+        sink.ioFailures = 1;
+        sink.failFinish = true;
+        SegmentDispatcher.setSink(sink);
+
+        SegmentDispatcher.segmentFinished(new File("a0.mp4"), 0);
+        SegmentDispatcher.recordingFinished(1);
+        sink.await();
+
+        // The segment failed once and was retried, the rejected end of the recording wasn't
+        assertEquals(3, sink.calls.size());
+        assertEquals("segment a0.mp4", sink.calls.get(0));
+        assertEquals("segment a0.mp4", sink.calls.get(1));
+        assertEquals("finished 1", sink.calls.get(2));
+        Thread.sleep(200);
+        assertEquals(3, sink.calls.size());
+    }
+
+    private static class RecordingSink implements SegmentSink {
+
+        final List<String> calls = new ArrayList<>();
+        final List<String> ids = new ArrayList<>();
+        final CountDownLatch latch;
+        boolean failFinish;
+        int ioFailures;
+
+        RecordingSink(int calls) {
+            latch = new CountDownLatch(calls);
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public synchronized void onSegment(String recordingId, File segment, int index)
+                throws IOException {
+            calls.add("segment " + segment.getName());
+            ids.add(recordingId);
+            latch.countDown();
+            if (ioFailures > 0) {
+                ioFailures--;
+                throw new IOException("Network unreachable");
+            }
+        }
+
+        @Override
+        public synchronized void onRecordingFinished(String recordingId, int segmentCount) {
+            calls.add("finished " + segmentCount);
+            ids.add(recordingId);
+            latch.countDown();
+            if (failFinish)
+                throw new IllegalStateException("Rejected");
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.internal;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.AE_STATE_CONVERGED;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.AE_STATE_FLASH_REQUIRED;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.AE_STATE_LOCKED;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.AE_STATE_PRECAPTURE;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.AF_LOCK_TIMEOUT_MS;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.AF_STATE_FOCUSED_LOCKED;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.AF_STATE_NOT_FOCUSED_LOCKED;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.AF_STATE_PASSIVE_FOCUSED;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.CAPTURE_TIMEOUT_MS;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.PATH_FULL;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.PATH_SKIP_FOCUS;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.PATH_SKIP_PRECAPTURE;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.PRECAPTURE_TIMEOUT_MS;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.STATE_AF_LOCK;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.STATE_CAPTURING;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.STATE_PRECAPTURE;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.STATE_PREVIEW;
+import static cc.officina.materialcamera.internal.StillCaptureStateMachine.UNKNOWN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StillCaptureStateMachineTest {
+
+    // CaptureResult.CONTROL_AF_STATE_* and CONTROL_AE_STATE_* the machine doesn't name
+    private static final int AF_STATE_INACTIVE = 0;
+    private static final int AF_STATE_ACTIVE_SCAN = 3;
+    private static final int AE_STATE_SEARCHING = 1;
+
+    private ScriptedActions mActions;
+    private StillCaptureStateMachine mMachine;
+
+    @Before
+    public void setUp() {
+        mActions = new ScriptedActions();
+        mMachine = new StillCaptureStateMachine(mActions);
+    }
+
+    /**
+     * Feeds one {@code {afState, aeState, timeMs}} result after another.
+     */
+    private void play(long[]... results) {
+        for (long[] result : results)
+            mMachine.onResult((int) result[0], (int) result[1], result[2]);
+    }
+
+    @Test
+    public void fullSequence() {
+        assertTrue(mMachine.start(0, true, PATH_FULL));
+        assertEquals(STATE_AF_LOCK, mMachine.getState());
+        play(
+                new long[] {AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, 30},
+                new long[] {AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING, 60});
+        assertEquals(STATE_PRECAPTURE, mMachine.getState());
+        play(
+                new long[] {AF_STATE_FOCUSED_LOCKED, AE_STATE_SEARCHING, 90},
+                new long[] {AF_STATE_FOCUSED_LOCKED, AE_STATE_PRECAPTURE, 120},
+                new long[] {AF_STATE_FOCUSED_LOCKED, AE_STATE_PRECAPTURE, 150},
+                new long[] {AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED, 180});
+        assertEquals(STATE_CAPTURING, mMachine.getState());
+        mMachine.onCaptureCompleted();
+
+        assertEquals(STATE_PREVIEW, mMachine.getState());
+        assertEquals(Arrays.asList("lockFocus", "runPrecapture", "capture", "finish true"), mActions.calls);
+        assertEquals(PATH_FULL, mMachine.getPath());
+        assertEquals(0, mMachine.getTimedOutStates());
+    }
+
+    @Test
+    public void focusLockedWithConvergedExposureSkipsThePrecapture() {
+        mMachine.start(0, true, PATH_FULL);
+        play(new long[] {AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_CONVERGED, 30});
+        assertEquals(STATE_CAPTURING, mMachine.getState());
+        assertEquals(Arrays.asList("lockFocus", "capture"), mActions.calls);
+        assertEquals(PATH_SKIP_PRECAPTURE, mMachine.getPath());
+    }
+
+    @Test
+    public void skippedFocusWaitsForThePrecaptureToStart() {
+        // Converged exposure with the flash on: the precapture still runs
+        final int path = StillCaptureStateMachine.choosePath(
+                AF_STATE_PASSIVE_FOCUSED, AE_STATE_CONVERGED, false);
+        assertEquals(PATH_SKIP_FOCUS, path);
+        mMachine.start(0, true, path);
+        assertEquals(STATE_PRECAPTURE, mMachine.getState());
+
+        // Results from before the trigger took effect still say converged
+        play(
+                new long[] {AF_STATE_PASSIVE_FOCUSED, AE_STATE_CONVERGED, 30},
+                new long[] {AF_STATE_PASSIVE_FOCUSED, AE_STATE_CONVERGED, 60});
+        assertEquals(STATE_PRECAPTURE, mMachine.getState());
+        play(
+                new long[] {AF_STATE_PASSIVE_FOCUSED, AE_STATE_FLASH_REQUIRED, 90},
+                new long[] {AF_STATE_PASSIVE_FOCUSED, AE_STATE_PRECAPTURE, 120});
+        assertEquals(STATE_PRECAPTURE, mMachine.getState());
+        play(new long[] {AF_STATE_PASSIVE_FOCUSED, AE_STATE_CONVERGED, 150});
+        assertEquals(STATE_CAPTURING, mMachine.getState());
+
+        assertEquals(Arrays.asList("runPrecapture", "capture"), mActions.calls);
+        assertEquals(PATH_SKIP_FOCUS, mMachine.getPath());
+    }
+
+    @Test
+    public void skippingBothCapturesRightAway() {
+        final int path = StillCaptureStateMachine.choosePath(
+                AF_STATE_FOCUSED_LOCKED, AE_STATE_LOCKED, true);
+        assertEquals(PATH_SKIP_FOCUS | PATH_SKIP_PRECAPTURE, path);
+        mMachine.start(0, true, path);
+        assertEquals(STATE_CAPTURING, mMachine.getState());
+        mMachine.onCaptureCompleted();
+        assertEquals(Arrays.asList("capture", "finish true"), mActions.calls);
+        assertEquals(PATH_SKIP_FOCUS | PATH_SKIP_PRECAPTURE, mMachine.getPath());
+    }
+
+    @Test
+    public void choosePathNeedsSettledFocusAndConvergedExposureWithoutFlash() {
+        assertEquals(PATH_FULL, StillCaptureStateMachine.choosePath(UNKNOWN, UNKNOWN, true));
+        assertEquals(PATH_FULL, StillCaptureStateMachine.choosePath(
+                AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, true));
+        assertEquals(PATH_FULL, StillCaptureStateMachine.choosePath(
+                AF_STATE_NOT_FOCUSED_LOCKED, AE_STATE_FLASH_REQUIRED, true));
+        assertEquals(PATH_SKIP_PRECAPTURE, StillCaptureStateMachine.choosePath(
+                AF_STATE_INACTIVE, AE_STATE_CONVERGED, true));
+        assertEquals(PATH_FULL, StillCaptureStateMachine.choosePath(
+                AF_STATE_INACTIVE, AE_STATE_LOCKED, false));
+    }
+
+    @Test
+    public void withoutAutoFocusStartsWithThePrecapture() {
+        mMachine.start(0, false, PATH_FULL);
+        assertEquals(STATE_PRECAPTURE, mMachine.getState());
+        assertEquals(Arrays.asList("runPrecapture"), mActions.calls);
+        assertEquals(PATH_SKIP_FOCUS, mMachine.getPath());
+    }
+
+    @Test
+    public void missingAutoFocusReportCapturesRightAway() {
+        mMachine.start(0, true, PATH_FULL);
+        play(new long[] {UNKNOWN, AE_STATE_SEARCHING, 30});
+        assertEquals(STATE_CAPTURING, mMachine.getState());
+    }
+
+    @Test
+    public void missingExposureReportCountsAsAStartedPrecapture() {
+        mMachine.start(0, false, PATH_FULL);
+        play(
+                new long[] {UNKNOWN, UNKNOWN, 30},
+                new long[] {UNKNOWN, UNKNOWN, 60});
+        assertEquals(STATE_CAPTURING, mMachine.getState());
+    }
+
+    @Test
+    public void focusThatNeverLocksTimesOut() {
+        mMachine.start(0, true, PATH_FULL);
+        play(
+                new long[] {AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, 500},
+                new long[] {AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, AF_LOCK_TIMEOUT_MS - 1});
+        assertEquals(STATE_AF_LOCK, mMachine.getState());
+        play(new long[] {AF_STATE_ACTIVE_SCAN, AE_STATE_CONVERGED, AF_LOCK_TIMEOUT_MS});
+
+        // Exposure had converged, so it goes straight to the capture
+        assertEquals(STATE_CAPTURING, mMachine.getState());
+        assertEquals(1 << STATE_AF_LOCK, mMachine.getTimedOutStates());
+        assertEquals(Arrays.asList("lockFocus", "timeout AF_LOCK", "capture"), mActions.calls);
+    }
+
+    @Test
+    public void focusTimeoutRunsThePrecaptureIfExposureIsntConverged() {
+        mMachine.start(0, true, PATH_FULL);
+        play(new long[] {AF_STATE_ACTIVE_SCAN, AE_STATE_SEARCHING, 30});
+        // No results at all after that
+        mMachine.onDeadline(AF_LOCK_TIMEOUT_MS);
+        assertEquals(STATE_PRECAPTURE, mMachine.getState());
+        assertEquals(Arrays.asList("lockFocus", "timeout AF_LOCK", "runPrecapture"), mActions.calls);
+    }
+
+    @Test
+    public void precaptureThatNeverStartsTimesOut() {
+        mMachine.start(0, false, PATH_FULL);
+        final long timeout = PRECAPTURE_TIMEOUT_MS;
+        play(
+                new long[] {UNKNOWN, AE_STATE_CONVERGED, 30},
+                new long[] {UNKNOWN, AE_STATE_CONVERGED, timeout - 1});
+        assertEquals(STATE_PRECAPTURE, mMachine.getState());
+        play(new long[] {UNKNOWN, AE_STATE_CONVERGED, timeout});
+        assertEquals(STATE_CAPTURING, mMachine.getState());
+        assertEquals(1 << STATE_PRECAPTURE, mMachine.getTimedOutStates());
+    }
+
+    @Test
+    public void precaptureThatNeverFinishesTimesOut() {
+        mMachine.start(0, false, PATH_FULL);
+        play(new long[] {UNKNOWN, AE_STATE_PRECAPTURE, 30});
+        mMachine.onDeadline(PRECAPTURE_TIMEOUT_MS - 1);
+        assertEquals(STATE_PRECAPTURE, mMachine.getState());
+        mMachine.onDeadline(PRECAPTURE_TIMEOUT_MS);
+        assertEquals(STATE_CAPTURING, mMachine.getState());
+    }
+
+    @Test
+    public void captureThatNeverCompletesFails() {
+        mMachine.start(0, false, PATH_SKIP_PRECAPTURE);
+        mMachine.onDeadline(CAPTURE_TIMEOUT_MS);
+        assertEquals(STATE_PREVIEW, mMachine.getState());
+        assertEquals(1 << STATE_CAPTURING, mMachine.getTimedOutStates());
+        assertEquals(Arrays.asList("capture", "timeout CAPTURING", "finish false"), mActions.calls);
+
+        // A late completion is ignored
+        mMachine.onCaptureCompleted();
+        assertEquals(3, mActions.calls.size());
+    }
+
+    @Test
+    public void failedCaptureFinishes() {
+        mMachine.start(0, false, PATH_SKIP_PRECAPTURE);
+        mMachine.onCaptureFailed();
+        assertEquals(STATE_PREVIEW, mMachine.getState());
+        assertEquals(Arrays.asList("capture", "finish false"), mActions.calls);
+    }
+
+    @Test
+    public void onlyOneSequenceAtATime() {
+        assertTrue(mMachine.start(0, true, PATH_FULL));
+        assertFalse(mMachine.start(10, true, PATH_FULL));
+        assertEquals(Arrays.asList("lockFocus"), mActions.calls);
+
+        mMachine.reset();
+        assertEquals(STATE_PREVIEW, mMachine.getState());
+        // Results for the dropped sequence do nothing
+        play(new long[] {AF_STATE_FOCUSED_LOCKED, AE_STATE_CONVERGED, 20});
+        assertEquals(1, mActions.calls.size());
+        assertTrue(mMachine.start(30, true, PATH_FULL));
+    }
+
+    private static class ScriptedActions implements StillCaptureStateMachine.Actions {
+
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void lockFocus() {
+            calls.add("lockFocus");
+        }
+
+        @Override
+        public void runPrecapture() {
+            calls.add("runPrecapture");
+        }
+
+        @Override
+        public void capture() {
+            calls.add("capture");
+        }
+
+        @Override
+        public void finish(boolean captured) {
+            calls.add("finish " + captured);
+        }
+
+        @Override
+        public void scheduleDeadline(long delayMs) {
+        }
+
+        @Override
+        public void onTimeout(int state) {
+            calls.add("timeout " + StillCaptureStateMachine.getStateName(state));
+        }
+    }
+}
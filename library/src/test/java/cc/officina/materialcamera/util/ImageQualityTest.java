@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures synthetic luma planes with {@link ImageQuality}.
+ */
+public class ImageQualityTest {
+
+    private static final float MIN_SHARPNESS = 100f;
+
+    /**
+     * Random detail around mid grey, like a textured scene in focus.
+     */
+    private static byte[] detailed(int width, int height, long seed) {
+        final Random random = new Random(seed);
+        final byte[] luma = new byte[width * height];
+        for (int i = 0; i < luma.length; i++)
+            luma[i] = (byte) (64 + random.nextInt(128));
+        return luma;
+    }
+
+    private static byte[] uniform(int width, int height, int value) {
+        final byte[] luma = new byte[width * height];
+        Arrays.fill(luma, (byte) value);
+        return luma;
+    }
+
+    /**
+     * Box blur of the given radius, what a defocused or shaken shot looks like.
+     */
+    private static byte[] blurred(byte[] luma, int width, int height, int radius) {
+        final byte[] out = new byte[luma.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int dy = -radius; dy <= radius; dy++) {
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        final int sx = Math.min(width - 1, Math.max(0, x + dx));
+                        final int sy = Math.min(height - 1, Math.max(0, y + dy));
+                        sum += luma[sy * width + sx] & 0xFF;
+                        count++;
+                    }
+                }
+                out[y * width + x] = (byte) (sum / count);
+            }
+        }
+        return out;
+    }
+
+    @Test
+    public void detailedPlaneIsSharpAndWellExposed() {
+        final ImageQuality quality = ImageQuality.measure(detailed(320, 240, 1), 320, 240);
+        assertTrue(quality.toString(), quality.getSharpness() > MIN_SHARPNESS);
+        assertEquals(quality.toString(), 0, quality.getIssues(MIN_SHARPNESS));
+        assertEquals(128f, quality.getMeanLuma(), 4f);
+    }
+
+    @Test
+    public void blurLowersTheSharpness() {
+        final byte[] sharp = detailed(320, 240, 2);
+        final float before = ImageQuality.measure(sharp, 320, 240).getSharpness();
+        final ImageQuality after = ImageQuality.measure(blurred(sharp, 320, 240, 3), 320, 240);
+        assertTrue(after.getSharpness() < before / 20);
+        assertEquals(ImageQuality.ISSUE_BLURRED, after.getIssues(MIN_SHARPNESS));
+    }
+
+    @Test
+    public void flagsUnderAndOverexposure() {
+        final ImageQuality dark = ImageQuality.measure(uniform(64, 64, 8), 64, 64);
+        assertEquals(1f, dark.getDarkFraction(), 0f);
+        assertTrue((dark.getIssues(0) & ImageQuality.ISSUE_UNDEREXPOSED) != 0);
+
+        final ImageQuality bright = ImageQuality.measure(uniform(64, 64, 250), 64, 64);
+        assertEquals(1f, bright.getBrightFraction(), 0f);
+        assertTrue((bright.getIssues(0) & ImageQuality.ISSUE_OVEREXPOSED) != 0);
+    }
+
+    @Test
+    public void clippedHalfCountsWhateverTheMean() {
+        // Half black, half white: the mean is fine but most of the detail is gone
+        final int width = 64;
+        final byte[] luma = new byte[width * width];
+        for (int i = 0; i < luma.length; i++)
+            luma[i] = (byte) ((i % width) < width * 0.6 ? 0 : 255);
+        final ImageQuality quality = ImageQuality.measure(luma, width, width);
+        assertTrue((quality.getIssues(0) & ImageQuality.ISSUE_UNDEREXPOSED) != 0);
+    }
+
+    @Test
+    public void honoursStridesLikeAnImagePlane() {
+        final int width = 200;
+        final int height = 150;
+        final byte[] luma = detailed(width, height, 3);
+        final ImageQuality packed = ImageQuality.measure(luma, width, height);
+
+        // Rows padded to 256 bytes, every other byte is chroma (pixel stride 2), plus an offset
+        final int rowStride = 512;
+        final ByteBuffer plane = ByteBuffer.allocateDirect(7 + rowStride * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                plane.put(7 + y * rowStride + x * 2, luma[y * width + x]);
+        }
+        plane.position(7);
+        final ByteBuffer slice = plane.slice();
+        final ImageQuality strided = ImageQuality.measure(slice, width, height, rowStride, 2);
+        assertEquals(packed.getSharpness(), strided.getSharpness(), 0f);
+        assertEquals(packed.getMeanLuma(), strided.getMeanLuma(), 0f);
+        assertEquals(0, slice.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTinyImages() {
+        ImageQuality.measure(new byte[4], 2, 2);
+    }
+
+    @Test
+    public void greyArgbMatchesItsLuma() {
+        final int width = 64;
+        final int height = 48;
+        final byte[] luma = detailed(width, height, 5);
+        final int[] pixels = new int[luma.length];
+        for (int i = 0; i < luma.length; i++) {
+            final int value = luma[i] & 0xFF;
+            pixels[i] = 0xFF000000 | value << 16 | value << 8 | value;
+        }
+        final ImageQuality expected = ImageQuality.measure(luma, width, height);
+        final ImageQuality argb = ImageQuality.measureArgb(pixels, width, height);
+        assertEquals(expected.getSharpness(), argb.getSharpness(), 0f);
+        assertEquals(expected.getMeanLuma(), argb.getMeanLuma(), 0f);
+    }
+
+    /**
+     * {@link ImageUtil#measureJpeg} decodes a still at 1/2 to 1/8 scale, so the largest bitmap it
+     * measures is just under 960 pixels on the long side for sensors up to 7680 pixels wide. The
+     * luma conversion and the measure of that bitmap stay within the 20 ms budget of a shot.
+     */
+    @Test
+    public void decodedStillIsMeasuredWithinBudget() {
+        final int width = 959;
+        final int height = 719;
+        final byte[] luma = detailed(width, height, 4);
+        final int[] pixels = new int[luma.length];
+        for (int i = 0; i < luma.length; i++) {
+            final int value = luma[i] & 0xFF;
+            pixels[i] = 0xFF000000 | value << 16 | (255 - value) << 8 | value;
+        }
+        for (int i = 0; i < 5; i++)
+            ImageQuality.measureArgb(pixels, width, height);
+
+        final int runs = 20;
+        final long start = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+            ImageQuality.measureArgb(pixels, width, height);
+        final double averageMs = (System.nanoTime() - start) / 1e6 / runs;
+        assertTrue(averageMs + "ms", averageMs < 20);
+    }
+}
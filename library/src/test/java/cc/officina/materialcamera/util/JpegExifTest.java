@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegExifTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] read(File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length)
+                offset += input.read(data, offset, data.length - offset);
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+
+    @Test
+    public void readsTheOrientationInBothByteOrders() throws IOException {
+        assertEquals(
+                JpegExif.ORIENTATION_ROTATE_90,
+                JpegExif.readOrientation(JpegFixtures.copy(mFolder, JpegFixtures.ALIGNED)));
+        assertEquals(
+                JpegExif.ORIENTATION_ROTATE_270,
+                JpegExif.readOrientation(JpegFixtures.copy(mFolder, JpegFixtures.UNALIGNED)));
+        assertEquals(
+                JpegExif.ORIENTATION_ROTATE_180,
+                JpegExif.readOrientation(JpegFixtures.copy(mFolder, JpegFixtures.RESTART)));
+    }
+
+    @Test
+    public void fileWithoutExifHasNoOrientation() throws IOException {
+        final File jpeg = JpegFixtures.copy(mFolder, JpegFixtures.NO_EXIF);
+        assertEquals(JpegExif.ORIENTATION_UNDEFINED, JpegExif.readOrientation(jpeg));
+        assertNull(JpegExif.readThumbnail(jpeg));
+        final byte[] before = read(jpeg);
+        assertFalse(JpegExif.writeOrientation(jpeg, JpegExif.ORIENTATION_NORMAL));
+        assertArrayEquals(before, read(jpeg));
+    }
+
+    @Test
+    public void rewritesOnlyTheOrientation() throws IOException {
+        for (String name : new String[] {JpegFixtures.ALIGNED, JpegFixtures.UNALIGNED}) {
+            final File jpeg = JpegFixtures.copy(mFolder, name);
+            final byte[] before = read(jpeg);
+            assertTrue(JpegExif.writeOrientation(jpeg, JpegExif.ORIENTATION_ROTATE_180));
+            assertEquals(JpegExif.ORIENTATION_ROTATE_180, JpegExif.readOrientation(jpeg));
+
+            final byte[] after = read(jpeg);
+            assertEquals(before.length, after.length);
+            int changed = 0;
+            for (int i = 0; i < before.length; i++) {
+                if (before[i] != after[i])
+                    changed++;
+            }
+            // The value is a short, only its low byte differs for orientations up to 8
+            assertEquals(name, 1, changed);
+            assertNotNull(ImageIO.read(jpeg));
+        }
+    }
+
+    @Test
+    public void readsTheEmbeddedThumbnail() throws IOException {
+        final byte[] thumbnail = JpegExif.readThumbnail(JpegFixtures.copy(mFolder, JpegFixtures.ALIGNED));
+        assertNotNull(thumbnail);
+        assertEquals(0xFF, thumbnail[0] & 0xFF);
+        assertEquals(JpegExif.MARKER_SOI, thumbnail[1] & 0xFF);
+        assertEquals(
+                16, ImageIO.read(new java.io.ByteArrayInputStream(thumbnail)).getWidth());
+        assertNull(JpegExif.readThumbnail(JpegFixtures.copy(mFolder, JpegFixtures.UNALIGNED)));
+    }
+
+    @Test
+    public void orientationToDegrees() {
+        assertEquals(0, JpegExif.toDegrees(JpegExif.ORIENTATION_UNDEFINED));
+        assertEquals(0, JpegExif.toDegrees(JpegExif.ORIENTATION_NORMAL));
+        assertEquals(90, JpegExif.toDegrees(JpegExif.ORIENTATION_ROTATE_90));
+        assertEquals(180, JpegExif.toDegrees(JpegExif.ORIENTATION_ROTATE_180));
+        assertEquals(270, JpegExif.toDegrees(JpegExif.ORIENTATION_ROTATE_270));
+    }
+
+    @Test
+    public void ignoresSegmentsThatArentExif() {
+        final byte[] xmp = Arrays.copyOf("http://ns.adobe.com/xap/1.0/\0".getBytes(), 64);
+        assertFalse(JpegExif.setOrientation(xmp, 0, xmp.length, JpegExif.ORIENTATION_NORMAL));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Fixture JPEGs under {@code src/test/resources/jpeg}. They were encoded with ImageIO from a
+ * gradient pattern, and an Exif {@code APP1} segment was put in front:
+ *
+ * <ul>
+ *   <li>{@code aligned_64x48_rotate90_mm.jpg}: 4:2:0, whole MCUs, big endian Exif with orientation
+ *       6 and a 16x12 thumbnail
+ *   <li>{@code unaligned_70x45_rotate270_ii.jpg}: 4:2:0, partial MCUs on both edges, little endian
+ *       Exif with orientation 8
+ *   <li>{@code restart_83x61_rotate180_ii.jpg}: 4:2:0, partial MCUs, a restart marker every 3
+ *       MCUs, orientation 3
+ *   <li>{@code subsampled422_50x30_rotate90_ii.jpg}: 4:2:2, partial MCUs, orientation 6
+ *   <li>{@code gray_40x27_rotate90_mm.jpg}: a single component, a restart marker every 2 MCUs,
+ *       orientation 6
+ *   <li>{@code no_exif_32x32.jpg}: JFIF only, no Exif segment
+ * </ul>
+ */
+class JpegFixtures {
+
+    static final String ALIGNED = "aligned_64x48_rotate90_mm.jpg";
+    static final String UNALIGNED = "unaligned_70x45_rotate270_ii.jpg";
+    static final String RESTART = "restart_83x61_rotate180_ii.jpg";
+    static final String SUBSAMPLED_422 = "subsampled422_50x30_rotate90_ii.jpg";
+    static final String GRAY = "gray_40x27_rotate90_mm.jpg";
+    static final String NO_EXIF = "no_exif_32x32.jpg";
+
+    private JpegFixtures() {
+    }
+
+    /**
+     * Copies a fixture into a new directory under {@code folder}, so a test can modify it.
+     */
+    static File copy(TemporaryFolder folder, String name) throws IOException {
+        final InputStream input = JpegFixtures.class.getResourceAsStream("/jpeg/" + name);
+        if (input == null)
+            throw new IOException("Missing fixture " + name);
+        final File file = new File(folder.newFolder(), name);
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1)
+                output.write(buffer, 0, read);
+        } finally {
+            output.close();
+            input.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegRotatorTest {
+
+    /**
+     * Mean absolute difference allowed per channel. The coefficients are moved losslessly, so
+     * what's left is the decoder upsampling chroma from different neighbours.
+     */
+    private static final double TOLERANCE = 3;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Rotates {@code name} and checks the output against the source rotated in pixel space.
+     *
+     * @param trimmedWidth  source width left after dropping partial MCUs
+     * @param trimmedHeight source height left after dropping partial MCUs
+     */
+    private void assertRotates(String name, int degrees, int trimmedWidth, int trimmedHeight)
+            throws IOException {
+        final File input = JpegFixtures.copy(mFolder, name);
+        final File output = new File(mFolder.getRoot(), name + "." + degrees + ".jpg");
+        assertTrue(JpegRotator.rotate(input, output, degrees));
+
+        final BufferedImage source = ImageIO.read(input);
+        final BufferedImage rotated = ImageIO.read(output);
+        assertNotNull(rotated);
+        final boolean swap = degrees != 180;
+        assertEquals(name, swap ? trimmedHeight : trimmedWidth, rotated.getWidth());
+        assertEquals(name, swap ? trimmedWidth : trimmedHeight, rotated.getHeight());
+
+        long difference = 0;
+        for (int y = 0; y < rotated.getHeight(); y++) {
+            for (int x = 0; x < rotated.getWidth(); x++) {
+                final int sx;
+                final int sy;
+                if (degrees == 90) {
+                    sx = y;
+                    sy = trimmedHeight - 1 - x;
+                } else if (degrees == 180) {
+                    sx = trimmedWidth - 1 - x;
+                    sy = trimmedHeight - 1 - y;
+                } else {
+                    sx = trimmedWidth - 1 - y;
+                    sy = x;
+                }
+                final int expected = source.getRGB(sx, sy);
+                final int actual = rotated.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8)
+                    difference += Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+            }
+        }
+        final double mean = difference / (3.0 * rotated.getWidth() * rotated.getHeight());
+        assertTrue(name + " rotated " + degrees + " differs by " + mean, mean < TOLERANCE);
+        assertEquals(JpegExif.ORIENTATION_NORMAL, JpegExif.readOrientation(output));
+    }
+
+    @Test
+    public void rotatesWholeMcus() throws IOException {
+        assertRotates(JpegFixtures.ALIGNED, 90, 64, 48);
+        assertRotates(JpegFixtures.ALIGNED, 180, 64, 48);
+        assertRotates(JpegFixtures.ALIGNED, 270, 64, 48);
+    }
+
+    @Test
+    public void trimsPartialMcusThatWouldMoveToTheTopOrLeft() throws IOException {
+        // 4:2:0 MCUs are 16x16: 90 keeps the width, 270 keeps the height
+        assertRotates(JpegFixtures.UNALIGNED, 90, 70, 32);
+        assertRotates(JpegFixtures.UNALIGNED, 180, 64, 32);
+        assertRotates(JpegFixtures.UNALIGNED, 270, 64, 45);
+    }
+
+    @Test
+    public void rotatesAcrossRestartIntervals() throws IOException {
+        assertRotates(JpegFixtures.RESTART, 90, 83, 48);
+        assertRotates(JpegFixtures.RESTART, 180, 80, 48);
+        assertRotates(JpegFixtures.RESTART, 270, 80, 61);
+        assertRotates(JpegFixtures.GRAY, 90, 40, 24);
+        assertRotates(JpegFixtures.GRAY, 270, 40, 27);
+    }
+
+    @Test
+    public void rotatesHorizontallySubsampledChroma() throws IOException {
+        // 4:2:2 MCUs are 16x8
+        assertRotates(JpegFixtures.SUBSAMPLED_422, 90, 50, 24);
+        assertRotates(JpegFixtures.SUBSAMPLED_422, 180, 48, 24);
+        assertRotates(JpegFixtures.SUBSAMPLED_422, 270, 48, 30);
+    }
+
+    @Test
+    public void keepsTheThumbnail() throws IOException {
+        final File input = JpegFixtures.copy(mFolder, JpegFixtures.ALIGNED);
+        final File output = new File(mFolder.getRoot(), "rotated.jpg");
+        assertTrue(JpegRotator.rotate(input, output, 90));
+        final byte[] thumbnail = JpegExif.readThumbnail(output);
+        assertNotNull(thumbnail);
+        assertEquals(16, ImageIO.read(new java.io.ByteArrayInputStream(thumbnail)).getWidth());
+    }
+
+    @Test
+    public void makeUprightRotatesInPlace() throws IOException {
+        final File jpeg = JpegFixtures.copy(mFolder, JpegFixtures.UNALIGNED);
+        assertTrue(JpegRotator.makeUpright(jpeg));
+        assertEquals(JpegExif.ORIENTATION_NORMAL, JpegExif.readOrientation(jpeg));
+        final BufferedImage upright = ImageIO.read(jpeg);
+        assertEquals(45, upright.getWidth());
+        assertEquals(64, upright.getHeight());
+        assertFalse(new File(mFolder.getRoot(), jpeg.getName() + ".rotating").exists());
+
+        // Already upright, and no orientation at all
+        assertFalse(JpegRotator.makeUpright(jpeg));
+        assertFalse(JpegRotator.makeUpright(JpegFixtures.copy(mFolder, JpegFixtures.NO_EXIF)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherAngles() throws IOException {
+        final File input = JpegFixtures.copy(mFolder, JpegFixtures.ALIGNED);
+        JpegRotator.rotate(input, new File(mFolder.getRoot(), "out.jpg"), 45);
+    }
+}
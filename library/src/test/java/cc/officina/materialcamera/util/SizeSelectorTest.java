@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 Officina S.r.l.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cc.officina.materialcamera.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SizeSelectorTest {
+
+    private static SizeSelector sizes(int... dimensions) {
+        final int[] widths = new int[dimensions.length / 2];
+        final int[] heights = new int[dimensions.length / 2];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = dimensions[i * 2];
+            heights[i] = dimensions[i * 2 + 1];
+        }
+        return new SizeSelector(widths, heights);
+    }
+
+    private static void assertSize(SizeSelector sizes, int index, int width, int height) {
+        assertEquals(width + "x" + height, sizes.getWidth(index) + "x" + sizes.getHeight(index));
+    }
+
+    @Test
+    public void emptyListHasNoSizes() {
+        final SizeSelector sizes = sizes();
+        assertEquals(-1, sizes.largest());
+        assertEquals(-1, sizes.smallest());
+        assertEquals(-1, sizes.chooseStillSize(Long.MAX_VALUE));
+        assertEquals(-1, sizes.closestArea(1000, 1000, 0));
+    }
+
+    @Test
+    public void returnsIndicesIntoTheOriginalArrays() {
+        final SizeSelector sizes = sizes(1920, 1080, 640, 480, 320, 240, 1280, 720);
+        assertEquals(0, sizes.largest());
+        assertEquals(2, sizes.smallest());
+        assertEquals(3, sizes.largestWithin(1280, 1280, 16f / 9f));
+    }
+
+    @Test
+    public void closestToPicksTheNearestSizeWithinTheBudget() {
+        final SizeSelector sizes = sizes(640, 360, 1280, 720, 1600, 900, 3840, 2160);
+        assertSize(sizes, sizes.choose(SizeSelector.closestTo(1920, 1080, 1000000)), 1280, 720);
+        assertSize(sizes, sizes.choose(SizeSelector.closestTo(1920, 1080, 1440000)), 1600, 900);
+        assertSize(sizes, sizes.choose(SizeSelector.closestTo(1920, 1080, Long.MAX_VALUE)), 1600, 900);
+        assertEquals(-1, sizes.choose(SizeSelector.closestTo(1920, 1080, 200000)));
+    }
+
+    @Test
+    public void closestAreaPicksTheNearerNeighbour() {
+        final SizeSelector sizes = sizes(640, 480, 1280, 960, 1600, 1200);
+        // 1280x960 is 1228800, 1600x1200 is 1920000
+        assertSize(sizes, sizes.closestArea(1500000, Long.MAX_VALUE, 4f / 3f), 1280, 960);
+        assertSize(sizes, sizes.closestArea(1700000, Long.MAX_VALUE, 4f / 3f), 1600, 1200);
+        assertSize(sizes, sizes.closestArea(1700000, 1700000, 4f / 3f), 1280, 960);
+    }
+
+    @Test
+    public void closestToFallsBackToOtherAspectRatios() {
+        final SizeSelector sizes = sizes(640, 480, 1280, 960, 4000, 3000);
+        assertSize(sizes, sizes.choose(SizeSelector.closestTo(1920, 1080, 2000000)), 1280, 960);
+    }
+
+    @Test
+    public void aspectRatioToleratesRounding() {
+        // 854x480 is 16:9 within the tolerance
+        final SizeSelector sizes = sizes(854, 480, 640, 480);
+        assertSize(sizes, sizes.largestWithin(1000, 1000, 16f / 9f), 854, 480);
+    }
+
+    @Test
+    public void stillSizeKeepsTheSensorAspectRatio() {
+        final SizeSelector sizes = sizes(4032, 3024, 4032, 2268, 2048, 1536, 1920, 1080);
+        assertSize(sizes, sizes.chooseStillSize(Long.MAX_VALUE), 4032, 3024);
+        assertSize(sizes, sizes.chooseStillSize(8000000), 2048, 1536);
+        assertSize(sizes, sizes.chooseStillSize(1000), 1920, 1080);
+    }
+
+    @Test
+    public void snapshotSizeFollowsTheVideo() {
+        final SizeSelector sizes = sizes(4032, 3024, 4032, 2268, 1920, 1080, 1280, 720);
+        assertSize(sizes, sizes.chooseSnapshotSize(1920, 1080, Long.MAX_VALUE), 1920, 1080);
+        assertSize(sizes, sizes.chooseSnapshotSize(1920, 1080, 1000000), 1280, 720);
+    }
+
+    @Test
+    public void videoSizeIsTheLargestNotTallerThanTheLimit() {
+        final SizeSelector sizes = sizes(3840, 2160, 1920, 1080, 1440, 1080, 1280, 720, 640, 480);
+        assertSize(sizes, sizes.chooseVideoSize(1080, 16f / 9f), 1920, 1080);
+        assertSize(sizes, sizes.chooseVideoSize(1080, 4f / 3f), 1440, 1080);
+        assertSize(sizes, sizes.chooseVideoSize(720, 4f / 3f), 640, 480);
+        assertSize(sizes, sizes.chooseVideoSize(100, 16f / 9f), 640, 480);
+    }
+
+    @Test
+    public void previewSizeCoversTheViewWithinTheMax() {
+        final SizeSelector sizes = sizes(1920, 1080, 1280, 720, 960, 540, 640, 480);
+        assertSize(sizes, sizes.choosePreviewSize(1000, 500, 1920, 1080, 16f / 9f), 1280, 720);
+        assertSize(sizes, sizes.choosePreviewSize(2000, 1200, 1920, 1080, 16f / 9f), 1920, 1080);
+        assertSize(sizes, sizes.choosePreviewSize(800, 400, 1920, 1080, 2f), 1920, 1080);
+    }
+
+    @Test
+    public void smallestAtLeastHonoursTheMax() {
+        final SizeSelector sizes = sizes(1920, 1080, 1280, 720);
+        assertEquals(-1, sizes.smallestAtLeast(1300, 800, 1280, 720, 16f / 9f));
+        assertSize(sizes, sizes.smallestAtLeast(1300, 800, 1920, 1080, 0), 1920, 1080);
+    }
+}